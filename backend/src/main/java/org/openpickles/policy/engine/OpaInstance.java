@@ -0,0 +1,92 @@
+package org.openpickles.policy.engine;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One managed OPA server process of the pool, bound to its own port.
+ * <p>
+ * The port (and so the URL) of a slot never changes: a failed process is
+ * replaced by a new one on the same port.
+ */
+public class OpaInstance {
+
+    private final int index;
+    private final int port;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private volatile Process process;
+    private volatile boolean available;
+    private volatile long launchedAt;
+    // Supervisor bookkeeping, only touched from the supervisor thread
+    private final Deque<Long> restarts = new ArrayDeque<>();
+    private int failedProbes;
+
+    public OpaInstance(int index, int port) {
+        this.index = index;
+        this.port = port;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public String getUrl() {
+        return "http://localhost:" + port;
+    }
+
+    public Process getProcess() {
+        return process;
+    }
+
+    void setProcess(Process process) {
+        this.process = process;
+    }
+
+    void markLaunching() {
+        this.launchedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * When the current process was launched; state written to the snapshot
+     * after this moment may not have been loaded by it.
+     */
+    public long getLaunchedAt() {
+        return launchedAt;
+    }
+
+    /**
+     * Whether the instance accepts traffic: its process is alive and has
+     * received the pool's shared state.
+     */
+    public boolean isAvailable() {
+        return available && process != null && process.isAlive();
+    }
+
+    void setAvailable(boolean available) {
+        this.available = available;
+    }
+
+    Deque<Long> getRestarts() {
+        return restarts;
+    }
+
+    int incrementFailedProbes() {
+        return ++failedProbes;
+    }
+
+    void resetFailedProbes() {
+        failedProbes = 0;
+    }
+
+    /**
+     * Requests (or sandbox leases) currently in flight on this instance.
+     */
+    public AtomicInteger getOutstanding() {
+        return outstanding;
+    }
+}
@@ -1,87 +1,186 @@
 package org.openpickles.policy.engine;
 
-import jakarta.annotation.PostConstruct;
-import jakarta.annotation.PreDestroy;
+import org.openpickles.policy.engine.event.OpaInstanceStartedEvent;
+import org.openpickles.policy.engine.service.OpaCliRunner;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.availability.ApplicationAvailability;
+import org.springframework.boot.availability.AvailabilityChangeEvent;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.context.SmartLifecycle;
+import org.springframework.context.event.EventListener;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
 import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestTemplate;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
+/**
+ * Runs and supervises a pool of OPA server processes, one per slot on
+ * consecutive ports starting at {@code policy.engine.opa.base-port}.
+ * <p>
+ * An instance only receives traffic once its {@code /health} endpoint answers,
+ * which is polled with exponential backoff instead of waiting a fixed time.
+ * Every OPA is started on the local snapshot directory that {@code OpaClient}
+ * mirrors the shared policies and data into, so a replacement comes up with the
+ * last known state; anything written while it was starting is replayed through
+ * {@link OpaInstanceStartedEvent} before it is put back into rotation.
+ * <p>
+ * The supervisor restarts an instance when its process exits or stops
+ * answering health probes. Restarts are immediate unless the instance keeps
+ * crashing, in which case they are delayed with exponential backoff; a process
+ * that cannot even be launched is retried the same way. A restarted instance
+ * is brought up on a thread of its own, so waiting for it never holds up the
+ * health probes of the others. The application's readiness follows the pool:
+ * it refuses traffic while no instance is available.
+ */
 @Component
 public class OpaProcessManager implements SmartLifecycle {
 
     private static final Logger logger = LoggerFactory.getLogger(OpaProcessManager.class);
-    private Process opaProcess;
-    private boolean running = false;
-    private final int port = 8181;
+
+    private static final long FIRST_PROBE_DELAY_MS = 20;
+    private static final long MAX_PROBE_DELAY_MS = 1_000;
+    private static final long MAX_RESTART_DELAY_MS = 300_000;
+    private static final int FAILED_PROBES_BEFORE_RESTART = 3;
+
+    @Value("${policy.engine.opa.instances:2}")
+    private int instanceCount;
+
+    @Value("${policy.engine.opa.base-port:8181}")
+    private int basePort;
+
+    @Value("${policy.engine.opa.startup-timeout-ms:30000}")
+    private long startupTimeoutMs;
+
+    @Value("${policy.engine.opa.health-interval-ms:5000}")
+    private long healthIntervalMs;
+
+    // Crash-loop protection: more restarts than this within the window are delayed
+    @Value("${policy.engine.opa.max-restarts:5}")
+    private int maxRestarts;
+
+    @Value("${policy.engine.opa.restart-window-ms:60000}")
+    private long restartWindowMs;
+
+    // Empty: a private temporary directory, removed again on stop
+    @Value("${policy.engine.opa.snapshot-dir:}")
+    private String configuredSnapshotDir;
+
+    @Autowired
+    private ApplicationEventPublisher eventPublisher;
+
+    @Autowired
+    private ApplicationAvailability availability;
+
+    private final List<OpaInstance> instances = new ArrayList<>();
+    private final RestTemplate healthClient;
+    private ScheduledExecutorService supervisor;
+    private ExecutorService activator;
+    private Path snapshotDir;
+    private boolean ownsSnapshotDir;
+    private volatile boolean running = false;
+    private volatile boolean applicationReady = false;
+
+    public OpaProcessManager() {
+        SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
+        requestFactory.setConnectTimeout(500);
+        requestFactory.setReadTimeout(1_000);
+        this.healthClient = new RestTemplate(requestFactory);
+    }
 
     @Override
     public void start() {
         if (running) {
             return;
         }
+        running = true;
+        supervisor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "opa-supervisor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        activator = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "opa-activator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        prepareSnapshot();
 
-        try {
-            logger.info("Starting OPA process on port {}", port);
-
-            // Determine OPA binary path. Detailed logic might be needed for dev vs prod.
-            // Using a simple check for local dev convenience or docker location.
-            String opaPath = "/app/opa";
-            if (!Files.exists(Path.of(opaPath))) {
-                // Fallback for local dev if 'opa' is not in /app/opa
-                // Assume 'opa' is in PATH for local dev
-                opaPath = "opa";
+        int count = instanceCount > 0 ? instanceCount : Runtime.getRuntime().availableProcessors();
+        logger.info("Starting {} OPA process(es) on ports {}-{}", count, basePort, basePort + count - 1);
+        for (int i = 0; i < count; i++) {
+            OpaInstance instance = new OpaInstance(i, basePort + i);
+            instances.add(instance);
+            if (!launch(instance)) {
+                scheduleRestart(instance, "could not be launched");
             }
+        }
 
-            ProcessBuilder pb = new ProcessBuilder(
-                    opaPath,
-                    "run",
-                    "--server",
-                    "--addr=localhost:" + port,
-                    "--log-level=info");
-
-            // Redirect output to inherit so we see OPA logs in app logs
-            pb.inheritIO();
-
-            opaProcess = pb.start();
-            running = true;
-            logger.info("OPA process started with PID: {}", opaProcess.pid());
-
-            // Give it a moment to warm up
-            TimeUnit.SECONDS.sleep(1);
-
-        } catch (IOException | InterruptedException e) {
-            logger.error("Failed to start OPA process", e);
-            running = false;
-            // In a real app, we might want to fail startup, but for now log error
+        // The processes boot in parallel; startup only waits until they answer.
+        long deadline = System.currentTimeMillis() + startupTimeoutMs;
+        for (OpaInstance instance : instances) {
+            Process process = instance.getProcess();
+            if (process != null) {
+                activate(instance, process, deadline);
+            }
         }
+
+        supervisor.scheduleWithFixedDelay(this::supervise, healthIntervalMs, healthIntervalMs,
+                TimeUnit.MILLISECONDS);
     }
 
     @Override
     public void stop() {
-        if (opaProcess != null && opaProcess.isAlive()) {
-            logger.info("Stopping OPA process...");
-            opaProcess.destroy();
-            try {
-                if (!opaProcess.waitFor(5, TimeUnit.SECONDS)) {
-                    opaProcess.destroyForcibly();
+        running = false;
+        if (supervisor != null) {
+            supervisor.shutdownNow();
+        }
+        if (activator != null) {
+            activator.shutdownNow();
+        }
+        for (OpaInstance instance : instances) {
+            instance.setAvailable(false);
+            Process process = instance.getProcess();
+            if (process != null && process.isAlive()) {
+                logger.info("Stopping OPA process on port {}...", instance.getPort());
+                process.destroy();
+                try {
+                    if (!process.waitFor(5, TimeUnit.SECONDS)) {
+                        process.destroyForcibly();
+                    }
+                } catch (InterruptedException e) {
+                    process.destroyForcibly();
+                    Thread.currentThread().interrupt();
                 }
-            } catch (InterruptedException e) {
-                opaProcess.destroyForcibly();
             }
-            logger.info("OPA process stopped.");
         }
-        running = false;
+        instances.clear();
+        if (ownsSnapshotDir) {
+            deleteSnapshot();
+        }
+        logger.info("OPA processes stopped.");
     }
 
     @Override
     public boolean isRunning() {
-        return running && opaProcess != null && opaProcess.isAlive();
+        return running;
     }
 
     @Override
@@ -90,4 +189,225 @@ public class OpaProcessManager implements SmartLifecycle {
         // SmartLifecycle default is 0.
         return 0;
     }
+
+    /**
+     * All slots of the pool, including ones that are currently unavailable.
+     */
+    public List<OpaInstance> getInstances() {
+        return Collections.unmodifiableList(instances);
+    }
+
+    /**
+     * Directory every OPA process loads on startup.
+     */
+    public Path getSnapshotDir() {
+        return snapshotDir;
+    }
+
+    /**
+     * @return false if the process could not be started
+     */
+    private boolean launch(OpaInstance instance) {
+        try {
+            instance.markLaunching();
+            ProcessBuilder pb = new ProcessBuilder(
+                    OpaCliRunner.resolveBinary(),
+                    "run",
+                    "--server",
+                    "--addr=localhost:" + instance.getPort(),
+                    "--log-level=info",
+                    snapshotDir.toString());
+
+            // Redirect output to inherit so we see OPA logs in app logs
+            pb.inheritIO();
+
+            Process process = pb.start();
+            instance.setProcess(process);
+            logger.info("OPA process {} started on port {} with PID: {}", instance.getIndex(), instance.getPort(),
+                    process.pid());
+            process.onExit().thenRun(() -> onExit(instance, process));
+            return true;
+        } catch (IOException e) {
+            logger.error("Failed to start OPA process on port {}", instance.getPort(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Waits for the instance's process to become healthy, brings it up to date
+     * and puts it into rotation.
+     */
+    private boolean activate(OpaInstance instance, Process process, long deadline) {
+        long start = System.currentTimeMillis();
+        if (!awaitHealthy(instance, process, deadline)) {
+            logger.error("OPA process on port {} did not become healthy within {}ms", instance.getPort(),
+                    deadline - start);
+            process.destroyForcibly();
+            return false;
+        }
+        try {
+            eventPublisher.publishEvent(new OpaInstanceStartedEvent(instance, !instance.getRestarts().isEmpty()));
+        } catch (RuntimeException e) {
+            logger.error("Failed to initialise OPA process on port {}", instance.getPort(), e);
+            process.destroyForcibly();
+            return false;
+        }
+        if (instance.getProcess() != process) {
+            // Exited and replaced meanwhile; the replacement is activated on its own
+            return false;
+        }
+        instance.resetFailedProbes();
+        instance.setAvailable(true);
+        logger.info("OPA process on port {} ready after {}ms", instance.getPort(),
+                System.currentTimeMillis() - start);
+        updateReadiness();
+        return true;
+    }
+
+    private boolean awaitHealthy(OpaInstance instance, Process process, long deadline) {
+        long delay = FIRST_PROBE_DELAY_MS;
+        while (System.currentTimeMillis() < deadline && process.isAlive()) {
+            if (probe(instance)) {
+                return true;
+            }
+            try {
+                Thread.sleep(Math.min(delay, Math.max(1, deadline - System.currentTimeMillis())));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            delay = Math.min(delay * 2, MAX_PROBE_DELAY_MS);
+        }
+        return false;
+    }
+
+    private boolean probe(OpaInstance instance) {
+        try {
+            return healthClient.getForEntity(instance.getUrl() + "/health", String.class).getStatusCode()
+                    .is2xxSuccessful();
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private void supervise() {
+        for (OpaInstance instance : instances) {
+            if (!instance.isAvailable()) {
+                continue;
+            }
+            if (probe(instance)) {
+                instance.resetFailedProbes();
+            } else if (instance.incrementFailedProbes() >= FAILED_PROBES_BEFORE_RESTART) {
+                // Hung rather than crashed: kill it, the exit handler replaces it.
+                logger.warn("OPA process on port {} failed {} health probes, killing it", instance.getPort(),
+                        FAILED_PROBES_BEFORE_RESTART);
+                instance.setAvailable(false);
+                instance.getProcess().destroyForcibly();
+            }
+        }
+        updateReadiness();
+    }
+
+    private void onExit(OpaInstance instance, Process process) {
+        instance.setAvailable(false);
+        if (!running || instance.getProcess() != process) {
+            return;
+        }
+        updateReadiness();
+        scheduleRestart(instance, "exited with code " + process.exitValue());
+    }
+
+    private void scheduleRestart(OpaInstance instance, String reason) {
+        long now = System.currentTimeMillis();
+        Deque<Long> restarts = instance.getRestarts();
+        long delay;
+        synchronized (restarts) {
+            while (!restarts.isEmpty() && now - restarts.peekFirst() > restartWindowMs) {
+                restarts.pollFirst();
+            }
+            restarts.addLast(now);
+            int excess = restarts.size() - maxRestarts;
+            delay = excess <= 0 ? 0 : Math.min(1_000L << Math.min(excess, 20), MAX_RESTART_DELAY_MS);
+        }
+        if (delay > 0) {
+            logger.error("OPA process on port {} is crash-looping ({} failures within {}ms, last: {}), "
+                    + "restarting in {}ms", instance.getPort(), restarts.size(), restartWindowMs, reason, delay);
+        } else {
+            logger.warn("OPA process on port {} {}, restarting it", instance.getPort(), reason);
+        }
+        try {
+            supervisor.schedule(() -> restart(instance), delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shutting down
+        }
+    }
+
+    private void restart(OpaInstance instance) {
+        if (!running) {
+            return;
+        }
+        if (!launch(instance)) {
+            scheduleRestart(instance, "could not be launched");
+            return;
+        }
+        // A failed activation kills the process, whose exit schedules the next attempt
+        Process process = instance.getProcess();
+        try {
+            activator.execute(() -> activate(instance, process, System.currentTimeMillis() + startupTimeoutMs));
+        } catch (RejectedExecutionException e) {
+            // Shutting down
+        }
+    }
+
+    @EventListener
+    public void onReadinessChanged(AvailabilityChangeEvent<ReadinessState> event) {
+        if (event.getSource() != this && event.getState() == ReadinessState.ACCEPTING_TRAFFIC) {
+            // The application finished starting; from now on readiness follows the pool.
+            applicationReady = true;
+            updateReadiness();
+        }
+    }
+
+    private void updateReadiness() {
+        if (!applicationReady) {
+            return;
+        }
+        boolean ready = instances.stream().anyMatch(OpaInstance::isAvailable);
+        ReadinessState target = ready ? ReadinessState.ACCEPTING_TRAFFIC : ReadinessState.REFUSING_TRAFFIC;
+        if (availability.getReadinessState() != target) {
+            logger.info("Readiness changed to {} ({} of {} OPA instances available)", target,
+                    instances.stream().filter(OpaInstance::isAvailable).count(), instances.size());
+            AvailabilityChangeEvent.publish(eventPublisher, this, target);
+        }
+    }
+
+    private void prepareSnapshot() {
+        // Only state written by this run belongs in the snapshot, so by default
+        // every process gets a directory of its own. A configured directory is
+        // used as is and never cleaned: it must not be shared with another
+        // process.
+        try {
+            if (configuredSnapshotDir == null || configuredSnapshotDir.isBlank()) {
+                snapshotDir = Files.createTempDirectory("opa-snapshot-");
+                ownsSnapshotDir = true;
+            } else {
+                snapshotDir = Path.of(configuredSnapshotDir).toAbsolutePath().normalize();
+                ownsSnapshotDir = false;
+                Files.createDirectories(snapshotDir);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to prepare OPA snapshot directory", e);
+        }
+        logger.info("OPA snapshot directory: {}", snapshotDir);
+    }
+
+    private void deleteSnapshot() {
+        try (Stream<Path> paths = Files.walk(snapshotDir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to remove OPA snapshot directory {}: {}", snapshotDir, e.getMessage());
+        }
+    }
 }
@@ -0,0 +1,23 @@
+package org.openpickles.policy.engine.controller;
+
+import org.openpickles.policy.engine.dto.CheckRequest;
+import org.openpickles.policy.engine.dto.CheckResponse;
+import org.openpickles.policy.engine.service.CheckService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+@RestController
+@RequestMapping("/api/v1/check")
+public class CheckController {
+
+    @Autowired
+    private CheckService checkService;
+
+    @PostMapping
+    public CheckResponse check(@RequestBody CheckRequest request) {
+        return checkService.check(request);
+    }
+}
@@ -1,22 +1,40 @@
 package org.openpickles.policy.engine.controller;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.servlet.http.HttpServletResponse;
+import org.openpickles.policy.engine.dto.CompactEntitlement;
+import org.openpickles.policy.engine.dto.EntitlementSyncResult;
+import org.openpickles.policy.engine.dto.ResourceAccess;
 import org.openpickles.policy.engine.model.Entitlement;
 import org.openpickles.policy.engine.service.EntitlementService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.util.List;
 
 @RestController
 @RequestMapping("/api/v1/entitlements")
 public class EntitlementController {
 
+    /**
+     * Responses in this media type keep numeric resource ids as
+     * {@code resourceIdRanges} instead of expanding them into
+     * {@code resourceIds}. Requests accept both forms under any JSON type.
+     */
+    public static final String COMPACT_MEDIA_TYPE = "application/vnd.openpickles.entitlement-compact+json";
+
     private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(EntitlementController.class);
 
     @Autowired
     private EntitlementService entitlementService;
 
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
     @GetMapping
     public org.springframework.data.domain.Page<Entitlement> getAllEntitlements(
             @RequestParam(defaultValue = "0") int page,
@@ -27,6 +45,14 @@ public class EntitlementController {
         return entitlementService.getAllEntitlements(pageable, search);
     }
 
+    @GetMapping(produces = COMPACT_MEDIA_TYPE)
+    public org.springframework.data.domain.Page<CompactEntitlement> getAllEntitlementsCompact(
+            @RequestParam(defaultValue = "0") int page,
+            @RequestParam(defaultValue = "10") int size,
+            @RequestParam(required = false) String search) {
+        return getAllEntitlements(page, size, search).map(CompactEntitlement::from);
+    }
+
     @PostMapping
     public Entitlement createEntitlement(@RequestBody Entitlement entitlement) {
         logger.info("Request to create entitlement for subject: {}", entitlement.getSubjectId());
@@ -34,17 +60,75 @@ public class EntitlementController {
     }
 
     @PostMapping("/sync")
-    public List<Entitlement> syncEntitlements(@RequestBody List<Entitlement> entitlements) {
+    public EntitlementSyncResult syncEntitlements(@RequestBody List<Entitlement> entitlements) {
         logger.info("Request to sync {} entitlements", entitlements.size());
         return entitlementService.batchUpsert(entitlements);
     }
 
+    /**
+     * NDJSON variant of {@link #syncEntitlements} for large syncs, one
+     * entitlement per line, optionally gzip compressed. Answers with an NDJSON
+     * line of running totals per written chunk and a final line with
+     * {@code complete: true}; see {@link EntitlementService#syncStream} for
+     * {@code snapshot}.
+     */
+    @PostMapping(value = "/sync/stream", consumes = { "application/x-ndjson",
+            MediaType.APPLICATION_OCTET_STREAM_VALUE })
+    public void syncEntitlementStream(InputStream body,
+            @RequestParam(defaultValue = "false") boolean snapshot,
+            @RequestParam(required = false) List<String> resourceType,
+            HttpServletResponse response) throws IOException {
+        logger.info("Request to stream entitlements, snapshot: {}, resource types: {}", snapshot, resourceType);
+        response.setContentType("application/x-ndjson");
+        EntitlementSyncResult[] last = new EntitlementSyncResult[1];
+        try {
+            EntitlementSyncResult result = entitlementService.syncStream(body, snapshot, resourceType, progress -> {
+                last[0] = progress;
+                writeLine(response, progress);
+            });
+            writeLine(response, result);
+        } catch (RuntimeException e) {
+            if (!response.isCommitted()) {
+                throw e;
+            }
+            // The status line is already sent, report the failure on the last line
+            EntitlementSyncResult failed = last[0] != null ? last[0] : EntitlementSyncResult.builder().build();
+            failed.setError(e.getMessage());
+            writeLine(response, failed);
+        }
+    }
+
+    private void writeLine(HttpServletResponse response, EntitlementSyncResult line) {
+        try {
+            response.getOutputStream().write(objectMapper.writeValueAsBytes(line));
+            response.getOutputStream().write('\n');
+            response.flushBuffer();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
     @GetMapping("/resource")
     public List<Entitlement> getByResource(@RequestParam String type, @RequestParam String id) {
         logger.debug("Request to get entitlements for resource: {}/{}", type, id);
         return entitlementService.getEntitlementsByResource(type, id);
     }
 
+    @GetMapping(value = "/resource", produces = COMPACT_MEDIA_TYPE)
+    public List<CompactEntitlement> getByResourceCompact(@RequestParam String type, @RequestParam String id) {
+        return getByResource(type, id).stream().map(CompactEntitlement::from).toList();
+    }
+
+    /**
+     * Who can access a resource, with roles and groups expanded to users.
+     */
+    @GetMapping("/resource/access")
+    public ResourceAccess getResourceAccess(@RequestParam String type, @RequestParam String id,
+            @RequestParam(required = false) String action) {
+        logger.debug("Request for access to resource: {}/{}, action: {}", type, id, action);
+        return entitlementService.whoCanAccess(type, id, action);
+    }
+
     @GetMapping("/{id}")
     public ResponseEntity<Entitlement> getEntitlementById(@PathVariable Long id) {
         logger.debug("Request to get entitlement by id: {}", id);
@@ -53,6 +137,14 @@ public class EntitlementController {
                 .orElse(ResponseEntity.notFound().build());
     }
 
+    @GetMapping(value = "/{id}", produces = COMPACT_MEDIA_TYPE)
+    public ResponseEntity<CompactEntitlement> getEntitlementByIdCompact(@PathVariable Long id) {
+        logger.debug("Request to get compact entitlement by id: {}", id);
+        return entitlementService.getEntitlementById(id)
+                .map(e -> ResponseEntity.ok(CompactEntitlement.from(e)))
+                .orElse(ResponseEntity.notFound().build());
+    }
+
     @PutMapping("/{id}")
     public ResponseEntity<Entitlement> updateEntitlement(@PathVariable Long id,
             @RequestBody Entitlement entitlementDetails) {
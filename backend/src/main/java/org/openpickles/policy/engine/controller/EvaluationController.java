@@ -1,11 +1,36 @@
 package org.openpickles.policy.engine.controller;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openpickles.policy.engine.dto.BenchmarkRequest;
+import org.openpickles.policy.engine.dto.BulkValidationRequest;
+import org.openpickles.policy.engine.dto.BulkValidationResult;
+import org.openpickles.policy.engine.dto.FilterRequest;
+import org.openpickles.policy.engine.dto.FilterResult;
+import org.openpickles.policy.engine.dto.PolicyTestRequest;
+import org.openpickles.policy.engine.dto.PolicyTestResult;
+import org.openpickles.policy.engine.dto.ReplayReport;
+import org.openpickles.policy.engine.dto.ValidationResult;
+import org.openpickles.policy.engine.exception.DeadlineExceededException;
+import org.openpickles.policy.engine.model.PolicyBenchmark;
+import org.openpickles.policy.engine.service.DeadlineExecutor;
+import org.openpickles.policy.engine.service.DecisionReplayService;
 import org.openpickles.policy.engine.service.EvaluationService;
+import org.openpickles.policy.engine.service.PartialEvaluationService;
+import org.openpickles.policy.engine.service.PolicyBenchmarkService;
+import org.openpickles.policy.engine.service.PolicyCheckService;
+import org.openpickles.policy.engine.service.PolicyTestService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.InputStream;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 @RestController
 @RequestMapping("/api/v1/evaluation")
@@ -14,32 +39,212 @@ public class EvaluationController {
     @Autowired
     private EvaluationService evaluationService;
 
+    @Autowired
+    private PartialEvaluationService partialEvaluationService;
+
+    @Autowired
+    private PolicyCheckService policyCheckService;
+
+    @Autowired
+    private PolicyTestService policyTestService;
+
+    @Autowired
+    private PolicyBenchmarkService policyBenchmarkService;
+
+    @Autowired
+    private DecisionReplayService decisionReplayService;
+
+    @Autowired
+    private DeadlineExecutor deadlineExecutor;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    /**
+     * Same deadline handling as {@link #test}.
+     */
     @PostMapping("/validate")
-    public ResponseEntity<Map<String, String>> validate(@RequestBody Map<String, String> body) {
+    public CompletableFuture<ResponseEntity<Map<String, Object>>> validate(@RequestBody Map<String, String> body,
+            @RequestHeader(value = DeadlineExecutor.TIMEOUT_HEADER, required = false) Long timeoutHeader,
+            @RequestParam(required = false) Long timeoutMs) {
         String content = body.get("content");
         if (content == null) {
-            return ResponseEntity.badRequest().body(Map.of("message", "Content is required"));
+            return CompletableFuture.completedFuture(
+                    ResponseEntity.badRequest().body(Map.of("message", "Content is required")));
         }
 
-        try {
-            evaluationService.validatePolicy(content);
-            return ResponseEntity.ok(Map.of("status", "valid"));
-        } catch (Exception e) {
-            return ResponseEntity.badRequest().body(Map.of("status", "invalid", "error", e.getMessage()));
-        }
+        return deadlineExecutor.submit(deadlineExecutor.resolveTimeout(timeoutHeader, timeoutMs), () -> {
+            try {
+                ValidationResult result = evaluationService.validate(content);
+                if (!result.isValid()) {
+                    return ResponseEntity.badRequest().body(Map.<String, Object>of("status", "invalid", "error",
+                            "Policy validation failed: " + result.getError()));
+                }
+                return ResponseEntity.ok(Map.<String, Object>of("status", "valid", "warnings",
+                        result.getWarnings() != null ? result.getWarnings() : List.of()));
+            } catch (Exception e) {
+                return ResponseEntity.badRequest().body(Map.<String, Object>of("status", "invalid", "error",
+                        String.valueOf(e.getMessage())));
+            }
+        });
+    }
+
+    /**
+     * Validates many modules with one compile pass and reports diagnostics per
+     * file.
+     */
+    @PostMapping("/validate/bulk")
+    public ResponseEntity<BulkValidationResult> validateBulk(@RequestBody BulkValidationRequest request) {
+        return ResponseEntity.ok(policyCheckService.check(request));
+    }
+
+    /**
+     * Runs the Rego unit tests of a set of policies, under a batch deadline
+     * (see {@link DeadlineExecutor#resolveBatchTimeout}).
+     */
+    @PostMapping("/tests")
+    public CompletableFuture<ResponseEntity<PolicyTestResult>> runTests(@RequestBody PolicyTestRequest request,
+            @RequestHeader(value = DeadlineExecutor.TIMEOUT_HEADER, required = false) Long timeoutHeader,
+            @RequestParam(required = false) Long timeoutMs) {
+        return deadlineExecutor.submit(deadlineExecutor.resolveBatchTimeout(timeoutHeader, timeoutMs),
+                () -> policyTestService.run(request))
+                .thenApply(ResponseEntity::ok);
+    }
+
+    /**
+     * Benchmarks a policy, under a batch deadline; runs of stored policies are
+     * kept per version.
+     */
+    @PostMapping("/bench")
+    public CompletableFuture<ResponseEntity<PolicyBenchmark>> bench(@RequestBody BenchmarkRequest request,
+            @RequestHeader(value = DeadlineExecutor.TIMEOUT_HEADER, required = false) Long timeoutHeader,
+            @RequestParam(required = false) Long timeoutMs) {
+        return deadlineExecutor.submit(deadlineExecutor.resolveBatchTimeout(timeoutHeader, timeoutMs),
+                () -> policyBenchmarkService.benchmark(request))
+                .thenApply(ResponseEntity::ok);
+    }
+
+    @GetMapping("/bench")
+    public ResponseEntity<List<PolicyBenchmark>> benchHistory(@RequestParam Long policyId) {
+        return ResponseEntity.ok(policyBenchmarkService.history(policyId));
     }
 
+    /**
+     * Shadow-evaluates a corpus of recorded inputs (NDJSON request body)
+     * against a bundle and a candidate bundle and reports decision flips and
+     * latencies, under a batch deadline.
+     */
+    @PostMapping(value = "/replay", consumes = { "application/x-ndjson", MediaType.TEXT_PLAIN_VALUE,
+            MediaType.APPLICATION_OCTET_STREAM_VALUE })
+    public CompletableFuture<ResponseEntity<ReplayReport>> replay(@RequestParam Long bundleId,
+            @RequestParam Long candidateBundleId, @RequestParam(required = false) String entrypoint,
+            InputStream corpus,
+            @RequestHeader(value = DeadlineExecutor.TIMEOUT_HEADER, required = false) Long timeoutHeader,
+            @RequestParam(required = false) Long timeoutMs) {
+        return deadlineExecutor.submit(deadlineExecutor.resolveBatchTimeout(timeoutHeader, timeoutMs),
+                () -> decisionReplayService.replay(bundleId, candidateBundleId, entrypoint, corpus))
+                .thenApply(ResponseEntity::ok);
+    }
+
+    /**
+     * Runs on a virtual thread under the deadline given by the
+     * {@value DeadlineExecutor#TIMEOUT_HEADER} header or {@code timeoutMs}
+     * parameter (milliseconds); 504 once it passes.
+     */
     @PostMapping("/test")
-    public ResponseEntity<Map<String, Object>> test(@RequestBody TestRequest request) {
-        try {
-            Map<String, Object> result = evaluationService.testPolicy(
-                    request.getPolicyContent(),
-                    request.getPolicyId(),
-                    request.getInput(),
-                    request.getData());
-            return ResponseEntity.ok(result);
-        } catch (Exception e) {
-            return ResponseEntity.internalServerError().body(Map.of("error", e.getMessage()));
+    public CompletableFuture<ResponseEntity<Map<String, Object>>> test(@RequestBody TestRequest request,
+            @RequestHeader(value = DeadlineExecutor.TIMEOUT_HEADER, required = false) Long timeoutHeader,
+            @RequestParam(required = false) Long timeoutMs) {
+        return deadlineExecutor.submit(deadlineExecutor.resolveTimeout(timeoutHeader, timeoutMs),
+                () -> evaluationService.testPolicy(
+                        request.getPolicyContent(),
+                        request.getPolicyId(),
+                        request.getInput(),
+                        request.getData()))
+                .thenApply(ResponseEntity::ok)
+                .exceptionally(e -> {
+                    Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                    if (cause instanceof DeadlineExceededException deadlineExceeded) {
+                        throw deadlineExceeded;
+                    }
+                    return ResponseEntity.internalServerError()
+                            .body(Map.of("error", String.valueOf(cause.getMessage())));
+                });
+    }
+
+    /**
+     * Same deadline handling as {@link #test}.
+     */
+    @PostMapping("/bundles/{id}/decision")
+    public CompletableFuture<ResponseEntity<Map<String, Object>>> decide(@PathVariable Long id,
+            @RequestBody DecisionRequest request,
+            @RequestHeader(value = DeadlineExecutor.TIMEOUT_HEADER, required = false) Long timeoutHeader,
+            @RequestParam(required = false) Long timeoutMs) {
+        return deadlineExecutor.submit(deadlineExecutor.resolveTimeout(timeoutHeader, timeoutMs),
+                () -> evaluationService.evaluateBundle(id, request.getEntrypoint(), request.getInput()))
+                .thenApply(ResponseEntity::ok);
+    }
+
+    /**
+     * Resolves the resources of a type the subject can access with one partial
+     * evaluation. The filter is computed under the same deadline as
+     * {@link #test}, before the response starts; resource ids are then
+     * streamed so large sets are never buffered as a whole.
+     */
+    @PostMapping("/filter")
+    public CompletableFuture<ResponseEntity<StreamingResponseBody>> filter(@RequestBody FilterRequest request,
+            @RequestHeader(value = DeadlineExecutor.TIMEOUT_HEADER, required = false) Long timeoutHeader,
+            @RequestParam(required = false) Long timeoutMs) {
+        return deadlineExecutor.submit(deadlineExecutor.resolveTimeout(timeoutHeader, timeoutMs),
+                () -> partialEvaluationService.filter(request))
+                .thenApply(this::stream);
+    }
+
+    private ResponseEntity<StreamingResponseBody> stream(FilterResult result) {
+        StreamingResponseBody body = out -> {
+            try (JsonGenerator gen = objectMapper.getFactory().createGenerator(out)) {
+                gen.writeStartObject();
+                gen.writeStringField("mode", result.getMode().name());
+                gen.writeStringField("resourceType", result.getResourceType());
+                if (result.getResourceIds() != null) {
+                    gen.writeArrayFieldStart("resourceIds");
+                    for (Object id : result.getResourceIds()) {
+                        gen.writeObject(id);
+                    }
+                    gen.writeEndArray();
+                }
+                if (result.getPredicate() != null) {
+                    gen.writeObjectField("predicate", result.getPredicate());
+                }
+                if (result.getQueries() != null) {
+                    gen.writeObjectField("queries", result.getQueries());
+                }
+                if (result.getSupport() != null && !result.getSupport().isEmpty()) {
+                    gen.writeObjectField("support", result.getSupport());
+                }
+                gen.writeEndObject();
+            }
+        };
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(body);
+    }
+
+    public static class DecisionRequest {
+        private String entrypoint;
+        private Map<String, Object> input;
+
+        public String getEntrypoint() {
+            return entrypoint;
+        }
+
+        public void setEntrypoint(String entrypoint) {
+            this.entrypoint = entrypoint;
+        }
+
+        public Map<String, Object> getInput() {
+            return input;
+        }
+
+        public void setInput(Map<String, Object> input) {
+            this.input = input;
         }
     }
 
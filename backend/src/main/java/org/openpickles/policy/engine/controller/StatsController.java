@@ -1,6 +1,8 @@
 package org.openpickles.policy.engine.controller;
 
+import org.openpickles.policy.engine.dto.EvaluationStats;
 import org.openpickles.policy.engine.event.WebSocketEventListener;
+import org.openpickles.policy.engine.service.EvaluationMetrics;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -15,10 +17,29 @@ public class StatsController {
     @Autowired
     private WebSocketEventListener webSocketEventListener;
 
+    @Autowired
+    private EvaluationMetrics evaluationMetrics;
+
     @GetMapping("/clients")
     public Map<String, Object> getClientStats() {
         Map<String, Object> stats = new HashMap<>();
         stats.put("activeConnections", webSocketEventListener.getActiveConnectionCount());
         return stats;
     }
+
+    /**
+     * Evaluation latency percentiles per decision path.
+     */
+    @GetMapping("/evaluations")
+    public EvaluationStats getEvaluationStats() {
+        return evaluationMetrics.snapshot();
+    }
+
+    /**
+     * The same metrics in Prometheus text format, for scraping.
+     */
+    @GetMapping(value = "/evaluations/prometheus", produces = "text/plain; version=0.0.4; charset=utf-8")
+    public String getEvaluationMetrics() {
+        return evaluationMetrics.prometheus();
+    }
 }
@@ -1,12 +1,16 @@
 package org.openpickles.policy.engine.controller;
 
+import org.openpickles.policy.engine.dto.EntitlementChangeFeed;
 import org.openpickles.policy.engine.model.Entitlement;
 import org.openpickles.policy.engine.model.Policy;
+import org.openpickles.policy.engine.service.EntitlementChangeLog;
 import org.openpickles.policy.engine.service.EntitlementService;
 import org.openpickles.policy.engine.service.PolicyService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
 import java.util.List;
@@ -16,12 +20,17 @@ import java.util.stream.Collectors;
 @RequestMapping("/api/v1/sync")
 public class SyncController {
 
+    public static final String CURSOR_HEADER = "X-Change-Cursor";
+
     @Autowired
     private PolicyService policyService;
 
     @Autowired
     private EntitlementService entitlementService;
 
+    @Autowired
+    private EntitlementChangeLog entitlementChangeLog;
+
     @GetMapping("/policies")
     public List<Policy> getActivePolicies() {
         return policyService.getAllPolicies().stream()
@@ -29,8 +38,27 @@ public class SyncController {
                 .collect(Collectors.toList());
     }
 
+    /**
+     * Full snapshot. The {@value #CURSOR_HEADER} header is the change feed
+     * cursor to continue from; it is taken before the table is read, so
+     * changes made while reading are replayed rather than lost.
+     */
     @GetMapping("/entitlements")
-    public List<Entitlement> syncEntitlements() {
-        return entitlementService.getAllEntitlements();
+    public ResponseEntity<List<Entitlement>> syncEntitlements() {
+        long cursor = entitlementChangeLog.horizon() - 1;
+        return ResponseEntity.ok()
+                .header(CURSOR_HEADER, String.valueOf(cursor))
+                .body(entitlementService.getAllEntitlements());
+    }
+
+    /**
+     * Entitlement changes after {@code since}, oldest first. Consumers
+     * bootstrap from {@link #syncEntitlements()} and then poll with the
+     * returned {@code nextCursor}.
+     */
+    @GetMapping("/entitlements/changes")
+    public EntitlementChangeFeed entitlementChanges(@RequestParam(defaultValue = "0") long since,
+            @RequestParam(defaultValue = "1000") int limit) {
+        return entitlementChangeLog.changesSince(since, limit);
     }
 }
@@ -1,10 +1,13 @@
 package org.openpickles.policy.engine.controller;
 
+import org.openpickles.policy.engine.model.EffectivePermission;
 import org.openpickles.policy.engine.model.Group;
 import org.openpickles.policy.engine.model.Role;
 import org.openpickles.policy.engine.model.User;
 import org.openpickles.policy.engine.service.UserService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
@@ -39,6 +42,17 @@ public class UserController {
         return ResponseEntity.ok(userService.updateUser(id, userDetails));
     }
 
+    /**
+     * What the user may do, with roles and groups expanded and DENY applied.
+     */
+    @GetMapping("/{id}/effective-permissions")
+    public Page<EffectivePermission> getEffectivePermissions(@PathVariable Long id,
+            @RequestParam(defaultValue = "0") int page,
+            @RequestParam(defaultValue = "100") int size,
+            @RequestParam(required = false) String resourceType) {
+        return userService.getEffectivePermissions(id, resourceType, PageRequest.of(page, size));
+    }
+
     @DeleteMapping("/{id}")
     public ResponseEntity<Void> deleteUser(@PathVariable Long id) {
         userService.deleteUser(id);
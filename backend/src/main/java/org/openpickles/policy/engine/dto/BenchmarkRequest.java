@@ -0,0 +1,16 @@
+package org.openpickles.policy.engine.dto;
+
+import lombok.Data;
+
+import java.util.Map;
+
+@Data
+public class BenchmarkRequest {
+    // Content to benchmark; the stored content of policyId if empty
+    private String policyContent;
+    private Long policyId;
+    // Rule to evaluate relative to the package, e.g. "allow"; the whole package if empty
+    private String rule;
+    private Map<String, Object> input;
+    private Map<String, Object> data;
+}
@@ -0,0 +1,20 @@
+package org.openpickles.policy.engine.dto;
+
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class BulkValidationRequest {
+    // Candidate modules that are not stored (yet), e.g. a Git import
+    private List<Module> modules;
+    // Stored policies, by id and/or through the bindings of a bundle
+    private List<Long> policyIds;
+    private Long bundleId;
+
+    @Data
+    public static class Module {
+        private String name;
+        private String content;
+    }
+}
@@ -0,0 +1,38 @@
+package org.openpickles.policy.engine.dto;
+
+import lombok.Builder;
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+@Builder
+public class BulkValidationResult {
+    private boolean valid;
+    private List<FileResult> files;
+    // Errors OPA could not attribute to a single file
+    private List<Diagnostic> errors;
+    // Number of opa check invocations the modules were split across
+    private int shards;
+    private long durationMs;
+
+    @Data
+    @Builder
+    public static class FileResult {
+        private String name;
+        // Set for stored policies
+        private Long policyId;
+        private boolean valid;
+        private List<Diagnostic> errors;
+    }
+
+    @Data
+    @Builder
+    public static class Diagnostic {
+        // OPA error code, e.g. rego_parse_error, rego_type_error
+        private String code;
+        private String message;
+        private Integer row;
+        private Integer col;
+    }
+}
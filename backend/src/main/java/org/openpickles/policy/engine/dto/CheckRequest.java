@@ -0,0 +1,13 @@
+package org.openpickles.policy.engine.dto;
+
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class CheckRequest {
+    private String subject;
+    private String action;
+    private String resourceType;
+    private List<String> resourceIds;
+}
@@ -0,0 +1,19 @@
+package org.openpickles.policy.engine.dto;
+
+import lombok.Builder;
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+@Builder
+public class CheckResponse {
+    private String subject;
+    private String action;
+    private String resourceType;
+    private List<String> resourceIds;
+    // allowed.get(i) is the decision for resourceIds.get(i)
+    private List<Boolean> allowed;
+    // Same decisions as a little-endian bitmap (bit i = resourceIds[i]), Base64 encoded
+    private String bitmap;
+}
@@ -0,0 +1,55 @@
+package org.openpickles.policy.engine.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.openpickles.policy.engine.model.Entitlement;
+import org.openpickles.policy.engine.model.ResourceIdRanges;
+
+import java.time.Instant;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * An entitlement with its numeric resource ids kept as ranges rather than
+ * expanded: the body of the compact entitlement media type and the form of
+ * {@code data.entitlements} in bundles.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class CompactEntitlement {
+    private Long id;
+    private String resourceType;
+    // Ids not covered by resourceIdRanges: patterns, non-numeric and small sets
+    private Set<String> resourceIds;
+    // [[start, end], ...], inclusive, sorted and disjoint
+    private ResourceIdRanges resourceIdRanges;
+    private Set<String> actions;
+    private Entitlement.SubjectType subjectType;
+    private String subjectId;
+    private Entitlement.Effect effect;
+    private Instant validFrom;
+    private Instant validUntil;
+    private boolean active;
+
+    public static CompactEntitlement from(Entitlement e) {
+        return CompactEntitlement.builder()
+                .id(e.getId())
+                .resourceType(e.getResourceType())
+                .resourceIds(new TreeSet<>(e.getResourceIds()))
+                .resourceIdRanges(e.getResourceIdRanges())
+                .actions(new TreeSet<>(e.getActions()))
+                .subjectType(e.getSubjectType())
+                .subjectId(e.getSubjectId())
+                .effect(e.getEffect())
+                .validFrom(e.getValidFrom())
+                .validUntil(e.getValidUntil())
+                .active(e.isActive())
+                .build();
+    }
+}
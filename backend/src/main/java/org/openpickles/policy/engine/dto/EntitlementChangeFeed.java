@@ -0,0 +1,30 @@
+package org.openpickles.policy.engine.dto;
+
+import lombok.Builder;
+import lombok.Data;
+import org.openpickles.policy.engine.model.Entitlement;
+import org.openpickles.policy.engine.model.EntitlementChange;
+
+import java.time.Instant;
+import java.util.List;
+
+@Data
+@Builder
+public class EntitlementChangeFeed {
+    private List<Change> changes;
+    // Pass as 'since' to continue after these changes
+    private long nextCursor;
+    // More changes are ready, call again right away
+    private boolean hasMore;
+
+    @Data
+    @Builder
+    public static class Change {
+        private long sequence;
+        private Long entitlementId;
+        private EntitlementChange.Operation operation;
+        private Instant changedAt;
+        // Current state of the row; null for deletes and rows deleted since
+        private Entitlement entitlement;
+    }
+}
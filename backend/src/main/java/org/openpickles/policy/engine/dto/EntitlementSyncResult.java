@@ -0,0 +1,23 @@
+package org.openpickles.policy.engine.dto;
+
+import lombok.Builder;
+import lombok.Data;
+
+@Data
+@Builder
+public class EntitlementSyncResult {
+    // Rows in the request, before collapsing repeated business keys
+    private int received;
+    private int inserted;
+    private int updated;
+    private int unchanged;
+    // Rows removed by a snapshot sync because the stream did not contain them
+    private int deleted;
+    // Transactions the rows were written in
+    private int chunks;
+    private long durationMs;
+    // False on the progress lines of a streamed sync, true on its final line
+    private boolean complete;
+    // Set on the final line of a streamed sync that failed after progress was sent
+    private String error;
+}
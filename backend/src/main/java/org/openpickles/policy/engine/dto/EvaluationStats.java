@@ -0,0 +1,42 @@
+package org.openpickles.policy.engine.dto;
+
+import lombok.Builder;
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+@Builder
+public class EvaluationStats {
+    private List<PathStats> paths;
+
+    @Data
+    @Builder
+    public static class PathStats {
+        // Engine that answered, e.g. "wasm", "native", "opa" or "partial"
+        private String engine;
+        // Decision path relative to data, e.g. "authz/allow"
+        private String path;
+        private long count;
+        // OPA's timer_rego_query_eval_ns
+        private Latency queryEval;
+        // OPA's timer_rego_query_compile_ns
+        private Latency queryCompile;
+        // HTTP round trip as seen by the control plane
+        private Latency roundTrip;
+    }
+
+    /**
+     * Latency percentiles in milliseconds since startup.
+     */
+    @Data
+    @Builder
+    public static class Latency {
+        private long count;
+        private double meanMs;
+        private double p50Ms;
+        private double p95Ms;
+        private double p99Ms;
+        private double maxMs;
+    }
+}
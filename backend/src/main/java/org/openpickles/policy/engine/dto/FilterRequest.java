@@ -0,0 +1,20 @@
+package org.openpickles.policy.engine.dto;
+
+import lombok.Data;
+
+import java.util.Map;
+
+@Data
+public class FilterRequest {
+    private String resourceType;
+    // Optional: restrict to the binding of this context
+    private String context;
+    private String subject;
+    private String action;
+    // Rule queried in every bound package, defaults to "allow"
+    private String rule;
+    // Ref holding the resource id in the policy input, defaults to "input.resource.id"
+    private String resourceIdPath;
+    // Additional known input fields
+    private Map<String, Object> input;
+}
@@ -0,0 +1,43 @@
+package org.openpickles.policy.engine.dto;
+
+import lombok.Builder;
+import lombok.Data;
+
+import java.util.Collection;
+import java.util.List;
+
+@Data
+@Builder
+public class FilterResult {
+
+    public enum Mode {
+        // Access to exactly the listed resource ids
+        IDS,
+        // Unconditional access to every resource of the type
+        ALL,
+        // No resource is accessible
+        NONE,
+        // Access depends on resource attributes, see predicate/queries
+        RESIDUAL
+    }
+
+    private Mode mode;
+    private String resourceType;
+    private Collection<Object> resourceIds;
+    // Disjunction of conjunctions of simple conditions, null if the residual
+    // cannot be expressed that way
+    private List<List<Condition>> predicate;
+    // Raw OPA residual queries and support modules
+    private List<Object> queries;
+    private List<Object> support;
+
+    @Data
+    @Builder
+    public static class Condition {
+        // Path relative to the resource, e.g. "owner" for input.resource.owner
+        private String path;
+        // eq, neq, lt, lte, gt, gte, in
+        private String operator;
+        private Object value;
+    }
+}
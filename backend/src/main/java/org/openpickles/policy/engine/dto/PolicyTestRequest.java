@@ -0,0 +1,18 @@
+package org.openpickles.policy.engine.dto;
+
+import lombok.Data;
+
+import java.util.List;
+import java.util.Map;
+
+@Data
+public class PolicyTestRequest {
+    // Policies under test; stored *_test.rego companions are picked up automatically
+    private List<Long> policyIds;
+    private Long bundleId;
+    private List<Long> bindingIds;
+    // Additional (unsaved) test modules
+    private List<BulkValidationRequest.Module> tests;
+    // Data document for the run; defaults to the bundle/binding data
+    private Map<String, Object> data;
+}
@@ -0,0 +1,39 @@
+package org.openpickles.policy.engine.dto;
+
+import lombok.Builder;
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+@Builder(toBuilder = true)
+public class PolicyTestResult {
+
+    public enum Status {
+        PASS, FAIL, ERROR, SKIP
+    }
+
+    private boolean success;
+    private int passed;
+    private int failed;
+    private int errored;
+    private int skipped;
+    // Served from the result cache, the suite did not run again
+    private boolean cached;
+    private int shards;
+    private long durationMs;
+    private List<TestCase> results;
+
+    @Data
+    @Builder
+    public static class TestCase {
+        private String packageName;
+        private String name;
+        private String file;
+        private Integer row;
+        private Status status;
+        private long durationNs;
+        private String error;
+        private String output;
+    }
+}
@@ -0,0 +1,51 @@
+package org.openpickles.policy.engine.dto;
+
+import lombok.Builder;
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+@Builder
+public class ReplayReport {
+    private Long bundleId;
+    private Long candidateBundleId;
+    private String entrypoint;
+    // Lines read from the corpus (blank lines excluded)
+    private long inputs;
+    private long evaluated;
+    private long flipped;
+    private long errors;
+    private long durationMs;
+    private long inputsPerMinute;
+    private Latency current;
+    private Latency candidate;
+    private List<Flip> flips;
+    // True if more decisions flipped than are listed in flips
+    private boolean flipsTruncated;
+    // First few error messages, with their line number
+    private List<String> errorSamples;
+
+    @Data
+    @Builder
+    public static class Flip {
+        // 1-based line in the corpus
+        private long line;
+        private Object input;
+        private Object current;
+        private Object candidate;
+    }
+
+    /**
+     * Round trip time of a single decision in microseconds.
+     */
+    @Data
+    @Builder
+    public static class Latency {
+        private long mean;
+        private long p50;
+        private long p90;
+        private long p99;
+        private long max;
+    }
+}
@@ -0,0 +1,38 @@
+package org.openpickles.policy.engine.dto;
+
+import lombok.Builder;
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+@Builder
+public class ResourceAccess {
+    private String resourceType;
+    private String resourceId;
+    // Only grants and actions for this action, if given
+    private String action;
+    // Every entitlement listing the resource, ALLOW and DENY
+    private List<GrantView> grants;
+    // Users with at least one action left after DENY grants, roles and groups expanded
+    private List<UserAccess> users;
+
+    @Data
+    @Builder
+    public static class GrantView {
+        private Long entitlementId;
+        // "USER:alice", "ROLE:admin", "GROUP:ops"
+        private String principal;
+        private List<String> actions;
+        private String effect;
+    }
+
+    @Data
+    @Builder
+    public static class UserAccess {
+        private String username;
+        private List<String> actions;
+        // Principals of the user whose ALLOW grants apply
+        private List<String> via;
+    }
+}
@@ -0,0 +1,17 @@
+package org.openpickles.policy.engine.dto;
+
+import lombok.Builder;
+import lombok.Data;
+import org.openpickles.policy.engine.model.LintWarning;
+
+import java.util.List;
+
+@Data
+@Builder
+public class ValidationResult {
+    private boolean valid;
+    // OPA's compile errors if the module is invalid
+    private String error;
+    // Performance lint findings of a valid module, advisory only
+    private List<LintWarning> warnings;
+}
@@ -0,0 +1,54 @@
+package org.openpickles.policy.engine.event;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.cloudevents.CloudEvent;
+import io.cloudevents.core.builder.CloudEventBuilder;
+import org.openpickles.policy.engine.model.PolicyBundle;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.net.URI;
+import java.time.OffsetDateTime;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Builds the CloudEvent that tells data planes to download a new build of a
+ * bundle, see the event format in the integration guide.
+ */
+@Component
+public class BundleUpdateEvents {
+
+    public static final String TYPE = "org.openpickles.policy.bundle.update";
+
+    private static final URI SOURCE = URI.create("/policy-engine/control-plane");
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Value("${policy.engine.events.download-base-url:http://localhost:8080}")
+    private String downloadBaseUrl;
+
+    /**
+     * The topic the update of {@code bundle} is published on.
+     */
+    public String topic(PolicyBundle bundle) {
+        return "bundles/" + bundle.getName();
+    }
+
+    public CloudEvent create(PolicyBundle bundle, String version) throws JsonProcessingException {
+        byte[] data = objectMapper.writeValueAsBytes(Map.of(
+                "bundleName", bundle.getName(),
+                "version", version,
+                "downloadUrl", downloadBaseUrl + "/api/v1/bundles/" + bundle.getId() + "/download"));
+        return CloudEventBuilder.v1()
+                .withId(UUID.randomUUID().toString())
+                .withSource(SOURCE)
+                .withType(TYPE)
+                .withSubject(topic(bundle))
+                .withTime(OffsetDateTime.now())
+                .withDataContentType("application/json")
+                .withData(data)
+                .build();
+    }
+}
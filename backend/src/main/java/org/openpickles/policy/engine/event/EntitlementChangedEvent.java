@@ -0,0 +1,45 @@
+package org.openpickles.policy.engine.event;
+
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * Published (within the writing transaction) whenever entitlement rows are
+ * created, updated or deleted, either through JPA or through the bulk sync
+ * path. Listeners that maintain derived state re-read the changed rows;
+ * listeners that keep state per resource type (e.g. bundle caches) use the
+ * resource types the rows had before or after the write.
+ */
+public class EntitlementChangedEvent {
+
+    private final Set<Long> changedIds;
+    private final Set<Long> removedIds;
+    private final Set<String> resourceTypes;
+
+    public EntitlementChangedEvent(Collection<Long> changedIds, Collection<Long> removedIds,
+            Collection<String> resourceTypes) {
+        this.changedIds = Set.copyOf(changedIds);
+        this.removedIds = Set.copyOf(removedIds);
+        this.resourceTypes = Set.copyOf(resourceTypes);
+    }
+
+    public static EntitlementChangedEvent changed(Long id, Collection<String> resourceTypes) {
+        return new EntitlementChangedEvent(Set.of(id), Set.of(), resourceTypes);
+    }
+
+    public static EntitlementChangedEvent removed(Long id, Collection<String> resourceTypes) {
+        return new EntitlementChangedEvent(Set.of(), Set.of(id), resourceTypes);
+    }
+
+    public Set<Long> getChangedIds() {
+        return changedIds;
+    }
+
+    public Set<Long> getRemovedIds() {
+        return removedIds;
+    }
+
+    public Set<String> getResourceTypes() {
+        return resourceTypes;
+    }
+}
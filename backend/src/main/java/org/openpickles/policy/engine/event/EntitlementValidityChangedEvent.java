@@ -0,0 +1,16 @@
+package org.openpickles.policy.engine.event;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Published by the expiry scheduler when validity windows of entitlements
+ * open or close, i.e. when their {@code active} flag flips. Listeners of
+ * {@link EntitlementChangedEvent} see it like any other change.
+ */
+public class EntitlementValidityChangedEvent extends EntitlementChangedEvent {
+
+    public EntitlementValidityChangedEvent(Collection<Long> changedIds, Collection<String> resourceTypes) {
+        super(changedIds, List.of(), resourceTypes);
+    }
+}
@@ -0,0 +1,63 @@
+package org.openpickles.policy.engine.event;
+
+import jakarta.persistence.PostPersist;
+import jakarta.persistence.PostRemove;
+import jakarta.persistence.PostUpdate;
+import org.openpickles.policy.engine.model.Entitlement;
+import org.openpickles.policy.engine.model.User;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.stereotype.Component;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * JPA entity listener that turns entitlement and user writes into application
+ * events, so in-memory views (e.g. the check index) can follow the database.
+ * <p>
+ * Hibernate resolves this class through Spring's bean container, which is why
+ * it can be a regular component.
+ */
+@Component
+public class EntityChangeListener {
+
+    @Autowired
+    private ApplicationEventPublisher eventPublisher;
+
+    @PostPersist
+    @PostUpdate
+    public void onSaved(Object entity) {
+        if (entity instanceof Entitlement entitlement) {
+            eventPublisher.publishEvent(
+                    EntitlementChangedEvent.changed(entitlement.getId(), resourceTypes(entitlement)));
+        } else if (entity instanceof User user) {
+            eventPublisher.publishEvent(new UserMembershipChangedEvent(user.getId(), user.getUsername()));
+        }
+    }
+
+    @PostRemove
+    public void onRemoved(Object entity) {
+        if (entity instanceof Entitlement entitlement) {
+            eventPublisher.publishEvent(
+                    EntitlementChangedEvent.removed(entitlement.getId(), resourceTypes(entitlement)));
+        } else if (entity instanceof User user) {
+            eventPublisher.publishEvent(new UserMembershipChangedEvent(user.getId(), user.getUsername()));
+        }
+    }
+
+    /**
+     * The type the row is written with and, for an update that moves it, the
+     * type it was read with.
+     */
+    private static Set<String> resourceTypes(Entitlement entitlement) {
+        Set<String> types = new HashSet<>();
+        if (entitlement.getResourceType() != null) {
+            types.add(entitlement.getResourceType());
+        }
+        if (entitlement.getPersistedResourceType() != null) {
+            types.add(entitlement.getPersistedResourceType());
+        }
+        return types;
+    }
+}
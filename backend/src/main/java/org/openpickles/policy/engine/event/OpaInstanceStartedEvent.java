@@ -0,0 +1,27 @@
+package org.openpickles.policy.engine.event;
+
+import org.openpickles.policy.engine.OpaInstance;
+
+/**
+ * Published synchronously when a pooled OPA process has been (re)started and
+ * before it is put back into rotation, so listeners can load shared state into
+ * it first.
+ */
+public class OpaInstanceStartedEvent {
+
+    private final OpaInstance instance;
+    private final boolean replacement;
+
+    public OpaInstanceStartedEvent(OpaInstance instance, boolean replacement) {
+        this.instance = instance;
+        this.replacement = replacement;
+    }
+
+    public OpaInstance getInstance() {
+        return instance;
+    }
+
+    public boolean isReplacement() {
+        return replacement;
+    }
+}
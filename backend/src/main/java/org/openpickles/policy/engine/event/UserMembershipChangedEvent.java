@@ -0,0 +1,24 @@
+package org.openpickles.policy.engine.event;
+
+/**
+ * Published when a user is created, updated or deleted, i.e. whenever the
+ * set of roles and groups a username expands to may have changed.
+ */
+public class UserMembershipChangedEvent {
+
+    private final Long userId;
+    private final String username;
+
+    public UserMembershipChangedEvent(Long userId, String username) {
+        this.userId = userId;
+        this.username = username;
+    }
+
+    public Long getUserId() {
+        return userId;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+}
@@ -0,0 +1,11 @@
+package org.openpickles.policy.engine.exception;
+
+/**
+ * The caller's deadline passed before the evaluation completed.
+ */
+public class DeadlineExceededException extends TechnicalException {
+
+    public DeadlineExceededException(String message) {
+        super(message, "TECH_DEADLINE_EXCEEDED");
+    }
+}
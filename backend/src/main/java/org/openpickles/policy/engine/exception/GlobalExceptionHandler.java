@@ -6,6 +6,7 @@ import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.converter.HttpMessageNotReadableException;
 import org.springframework.web.bind.MethodArgumentNotValidException;
 import org.springframework.web.bind.annotation.ControllerAdvice;
 import org.springframework.web.bind.annotation.ExceptionHandler;
@@ -34,6 +35,22 @@ public class GlobalExceptionHandler {
         return new ResponseEntity<>(response, HttpStatus.BAD_REQUEST);
     }
 
+    @ExceptionHandler(DeadlineExceededException.class)
+    public ResponseEntity<ErrorResponse> handleDeadlineExceededException(DeadlineExceededException ex) {
+        String traceId = getTraceId();
+        logger.warn("Deadline exceeded: [{} - {}] TraceId: {}", ex.getErrorCode(), ex.getMessage(), traceId);
+
+        ErrorResponse response = ErrorResponse.builder()
+                .errorCode(ex.getErrorCode())
+                .errorMessage("The request did not complete within its deadline.")
+                .details(ex.getMessage())
+                .timestamp(LocalDateTime.now())
+                .traceId(traceId)
+                .build();
+
+        return new ResponseEntity<>(response, HttpStatus.GATEWAY_TIMEOUT);
+    }
+
     @ExceptionHandler(TechnicalException.class)
     public ResponseEntity<ErrorResponse> handleTechnicalException(TechnicalException ex) {
         String traceId = getTraceId();
@@ -72,6 +89,24 @@ public class GlobalExceptionHandler {
         return new ResponseEntity<>(response, HttpStatus.BAD_REQUEST);
     }
 
+    @ExceptionHandler(HttpMessageNotReadableException.class)
+    public ResponseEntity<ErrorResponse> handleNotReadableException(HttpMessageNotReadableException ex) {
+        String traceId = getTraceId();
+        // The root cause names the offending value, e.g. an inverted resource id range
+        Throwable cause = ex.getMostSpecificCause();
+        logger.warn("Unreadable request body: {} TraceId: {}", cause.getMessage(), traceId);
+
+        ErrorResponse response = ErrorResponse.builder()
+                .errorCode("VAL_002")
+                .errorMessage("Malformed request body")
+                .details(cause.getMessage())
+                .timestamp(LocalDateTime.now())
+                .traceId(traceId)
+                .build();
+
+        return new ResponseEntity<>(response, HttpStatus.BAD_REQUEST);
+    }
+
     @ExceptionHandler(org.springframework.dao.DataIntegrityViolationException.class)
     public ResponseEntity<ErrorResponse> handleDataIntegrityViolationException(
             org.springframework.dao.DataIntegrityViolationException ex) {
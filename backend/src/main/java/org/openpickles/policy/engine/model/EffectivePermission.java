@@ -0,0 +1,68 @@
+package org.openpickles.policy.engine.model;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Convert;
+import jakarta.persistence.Entity;
+import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.GenerationType;
+import jakarta.persistence.Id;
+import jakarta.persistence.Index;
+import jakarta.persistence.Table;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * One action a user may perform on one resource, after role and group
+ * expansion and with DENY applied, or, for grants with resource id ranges,
+ * one action on the ids of {@code resourceIdRanges} (with {@code resourceId}
+ * null). A pattern {@code resourceId} ({@code branch-12/*}) lists the ids and
+ * narrower patterns DENY cuts out of it in {@code exceptResourceIds}, and the
+ * numeric ids in {@code exceptResourceIdRanges}. Rows are derived data,
+ * rewritten per user by EffectivePermissionView whenever the user's
+ * entitlements or memberships change.
+ */
+@Entity
+@Table(name = "effective_permissions", indexes = @Index(name = "idx_effective_permission_user",
+        columnList = "user_id, resource_type, resource_id, action"))
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class EffectivePermission {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(name = "user_id", nullable = false)
+    private Long userId;
+
+    @Column(name = "resource_type", nullable = false)
+    private String resourceType;
+
+    @Column(name = "resource_id")
+    private String resourceId;
+
+    @Convert(converter = ResourceIdRangesConverter.class)
+    @Column(name = "resource_id_ranges", columnDefinition = "TEXT")
+    private ResourceIdRanges resourceIdRanges;
+
+    @Convert(converter = StringListConverter.class)
+    @Column(name = "except_resource_ids", columnDefinition = "TEXT")
+    private List<String> exceptResourceIds;
+
+    @Convert(converter = ResourceIdRangesConverter.class)
+    @Column(name = "except_resource_id_ranges", columnDefinition = "TEXT")
+    private ResourceIdRanges exceptResourceIdRanges;
+
+    @Column(nullable = false)
+    private String action;
+
+    // Principals whose ALLOW grants yield the permission, e.g. "ROLE:admin,USER:alice"
+    @Column(nullable = false, length = 1024)
+    private String via;
+}
@@ -1,12 +1,26 @@
 package org.openpickles.policy.engine.model;
 
 import jakarta.persistence.*;
+import java.time.Instant;
 import java.util.HashSet;
 import java.util.Set;
 
 @Entity
-@Table(name = "entitlements")
+// Validity indexes let the expiry scheduler find pending transitions without a scan; the subject index serves
+// lookups per principal and the sync's search for rows without a business key
+@Table(name = "entitlements", indexes = {
+        @Index(name = "idx_entitlement_valid_from", columnList = "valid_from"),
+        @Index(name = "idx_entitlement_valid_until", columnList = "valid_until"),
+        @Index(name = "idx_entitlement_subject", columnList = "subject_id, business_key") },
+        uniqueConstraints = @UniqueConstraint(name = "uk_entitlement_business_key", columnNames = "business_key"))
+@EntityListeners(org.openpickles.policy.engine.event.EntityChangeListener.class)
 public class Entitlement {
+
+    /**
+     * Largest number of range ids listed one by one in plain JSON.
+     */
+    public static final int MAX_EXPANDED_IDS = 10_000;
+
     @Id
     @GeneratedValue(strategy = GenerationType.IDENTITY)
     private Long id;
@@ -14,10 +28,20 @@ public class Entitlement {
     private String resourceType;
 
     @ElementCollection
-    @CollectionTable(name = "entitlement_resource_ids", joinColumns = @JoinColumn(name = "entitlement_id"))
+    // Reverse lookups (which entitlements grant a resource) go through resource_id
+    @CollectionTable(name = "entitlement_resource_ids", joinColumns = @JoinColumn(name = "entitlement_id"),
+            indexes = @Index(name = "idx_entitlement_resource_id", columnList = "resource_id, entitlement_id"))
     @Column(name = "resource_id")
     private Set<String> resourceIds = new HashSet<>();
 
+    // Numeric resource ids as ranges, one column instead of a row per id.
+    // Accepted in every request; plain JSON responses expand it into
+    // resourceIds up to MAX_EXPANDED_IDS ids and return it as is beyond, the
+    // compact media type always returns it as is.
+    @Convert(converter = ResourceIdRangesConverter.class)
+    @Column(name = "resource_id_ranges", columnDefinition = "TEXT")
+    private ResourceIdRanges resourceIdRanges;
+
     @ElementCollection
     @CollectionTable(name = "entitlement_actions", joinColumns = @JoinColumn(name = "entitlement_id"))
     @Column(name = "action")
@@ -31,6 +55,46 @@ public class Entitlement {
     @Enumerated(EnumType.STRING)
     private Effect effect;
 
+    // Optional validity window, start inclusive and end exclusive
+    @Column(name = "valid_from")
+    private Instant validFrom;
+
+    @Column(name = "valid_until")
+    private Instant validUntil;
+
+    // Whether the window is open; set on write and flipped by the expiry
+    // scheduler, so readers never compare timestamps themselves
+    @com.fasterxml.jackson.annotation.JsonProperty(access = com.fasterxml.jackson.annotation.JsonProperty.Access.READ_ONLY)
+    @Column(nullable = false)
+    private boolean active = true;
+
+    // Bumped whenever a collection is replaced so that collection-only
+    // updates still dirty the row (and fire @PostUpdate listeners).
+    @com.fasterxml.jackson.annotation.JsonIgnore
+    private Instant lastModifiedAt;
+
+    // Token of the last snapshot sync that contained this row; rows of a
+    // snapshot's resource types without its token are deleted at its end.
+    @com.fasterxml.jackson.annotation.JsonIgnore
+    private String syncToken;
+
+    // Business key of the rows written by sync, unique among them; null for
+    // rows created through the CRUD API, which may share a key (e.g. an ALLOW
+    // and a DENY grant of one subject) until a sync adopts the oldest of them
+    @com.fasterxml.jackson.annotation.JsonIgnore
+    @Column(name = "business_key", length = 600)
+    private String businessKey;
+
+    @Version
+    @com.fasterxml.jackson.annotation.JsonIgnore
+    private Long version;
+
+    // Resource type as last loaded or written, so the change event of an
+    // update that moves the row can name the type it left
+    @Transient
+    @com.fasterxml.jackson.annotation.JsonIgnore
+    private String persistedResourceType;
+
     public enum SubjectType {
         USER, ROLE, GROUP
     }
@@ -58,19 +122,64 @@ public class Entitlement {
         this.resourceType = resourceType;
     }
 
+    // Only the ids stored one per row; see getExpandedResourceIds for the JSON view
+    @com.fasterxml.jackson.annotation.JsonIgnore
     public Set<String> getResourceIds() {
         return resourceIds;
     }
 
+    @com.fasterxml.jackson.annotation.JsonProperty("resourceIds")
     public void setResourceIds(Set<String> resourceIds) {
+        touch();
         this.resourceIds = resourceIds;
     }
 
+    /**
+     * Every resource id, the ranges expanded unless they cover more than
+     * {@link #MAX_EXPANDED_IDS} ids; what plain JSON clients see as
+     * {@code resourceIds}.
+     */
+    @com.fasterxml.jackson.annotation.JsonProperty("resourceIds")
+    public Set<String> getExpandedResourceIds() {
+        if (resourceIdRanges == null || resourceIdRanges.isEmpty() || !isExpandable()) {
+            return resourceIds;
+        }
+        Set<String> expanded = new java.util.LinkedHashSet<>(resourceIds);
+        resourceIdRanges.forEachId(id -> expanded.add(Long.toString(id)));
+        return expanded;
+    }
+
+    /**
+     * The ranges plain JSON clients get next to {@code resourceIds} because
+     * they are too large to expand; null otherwise.
+     */
+    @com.fasterxml.jackson.annotation.JsonProperty("resourceIdRanges")
+    @com.fasterxml.jackson.annotation.JsonInclude(com.fasterxml.jackson.annotation.JsonInclude.Include.NON_NULL)
+    public ResourceIdRanges getUnexpandedResourceIdRanges() {
+        return resourceIdRanges != null && !isExpandable() ? resourceIdRanges : null;
+    }
+
+    private boolean isExpandable() {
+        return resourceIdRanges.size() <= MAX_EXPANDED_IDS;
+    }
+
+    @com.fasterxml.jackson.annotation.JsonIgnore
+    public ResourceIdRanges getResourceIdRanges() {
+        return resourceIdRanges;
+    }
+
+    @com.fasterxml.jackson.annotation.JsonProperty("resourceIdRanges")
+    public void setResourceIdRanges(ResourceIdRanges resourceIdRanges) {
+        touch();
+        this.resourceIdRanges = resourceIdRanges;
+    }
+
     public Set<String> getActions() {
         return actions;
     }
 
     public void setActions(Set<String> actions) {
+        touch();
         this.actions = actions;
     }
 
@@ -97,4 +206,110 @@ public class Entitlement {
     public void setEffect(Effect effect) {
         this.effect = effect;
     }
+
+    public Instant getValidFrom() {
+        return validFrom;
+    }
+
+    public void setValidFrom(Instant validFrom) {
+        this.validFrom = validFrom;
+    }
+
+    public Instant getValidUntil() {
+        return validUntil;
+    }
+
+    public void setValidUntil(Instant validUntil) {
+        this.validUntil = validUntil;
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    public void setActive(boolean active) {
+        this.active = active;
+    }
+
+    public boolean isActiveAt(Instant now) {
+        return isActiveAt(validFrom, validUntil, now);
+    }
+
+    public static boolean isActiveAt(Instant validFrom, Instant validUntil, Instant now) {
+        return (validFrom == null || !validFrom.isAfter(now)) && (validUntil == null || validUntil.isAfter(now));
+    }
+
+    public Instant getLastModifiedAt() {
+        return lastModifiedAt;
+    }
+
+    public void setLastModifiedAt(Instant lastModifiedAt) {
+        this.lastModifiedAt = lastModifiedAt;
+    }
+
+    public String getSyncToken() {
+        return syncToken;
+    }
+
+    public void setSyncToken(String syncToken) {
+        this.syncToken = syncToken;
+    }
+
+    public String getBusinessKey() {
+        return businessKey;
+    }
+
+    public void setBusinessKey(String businessKey) {
+        this.businessKey = businessKey;
+    }
+
+    public Long getVersion() {
+        return version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
+
+    public String getPersistedResourceType() {
+        return persistedResourceType;
+    }
+
+    /**
+     * The unique form of (resource type, subject type, subject id); the
+     * resource type is length-prefixed so no choice of separator is ambiguous.
+     */
+    public static String businessKey(String resourceType, SubjectType subjectType, String subjectId) {
+        return resourceType.length() + ":" + resourceType + ":" + subjectType + ":" + subjectId;
+    }
+
+    @PrePersist
+    void onCreate() {
+        if (lastModifiedAt == null) {
+            touch();
+        }
+        active = isActiveAt(Instant.now());
+    }
+
+    @PreUpdate
+    void onUpdate() {
+        active = isActiveAt(Instant.now());
+        // A row moved to another key through the CRUD API is no longer the synced row of its old key
+        if (businessKey != null && (resourceType == null || subjectType == null || subjectId == null
+                || !businessKey.equals(businessKey(resourceType, subjectType, subjectId)))) {
+            businessKey = null;
+        }
+    }
+
+    // Entity listeners run first, so their @PostUpdate still sees the old type
+    @PostLoad
+    @PostPersist
+    @PostUpdate
+    void onPersisted() {
+        persistedResourceType = resourceType;
+    }
+
+    private void touch() {
+        this.lastModifiedAt = Instant.now();
+    }
 }
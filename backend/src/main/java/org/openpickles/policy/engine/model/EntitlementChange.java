@@ -0,0 +1,46 @@
+package org.openpickles.policy.engine.model;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.EnumType;
+import jakarta.persistence.Enumerated;
+import jakarta.persistence.Id;
+import jakarta.persistence.Index;
+import jakarta.persistence.Table;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.Instant;
+
+/**
+ * One entry of the entitlement change feed. The id is the feed's sequence
+ * number, taken from {@link EntitlementChangeSequence}; rows are written by
+ * EntitlementChangeLog in the transaction of the change itself.
+ */
+@Entity
+@Table(name = "entitlement_changes", indexes = @Index(name = "idx_entitlement_change_time", columnList = "changed_at"))
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class EntitlementChange {
+
+    @Id
+    private Long id;
+
+    @Column(nullable = false)
+    private Long entitlementId;
+
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false)
+    private Operation operation;
+
+    @Column(nullable = false)
+    private Instant changedAt;
+
+    public enum Operation {
+        UPSERT, DELETE
+    }
+}
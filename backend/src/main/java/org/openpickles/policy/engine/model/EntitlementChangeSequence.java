@@ -0,0 +1,31 @@
+package org.openpickles.policy.engine.model;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * The single row that hands out the sequence numbers of the entitlement
+ * change feed. EntitlementChangeLog updates it in the transaction of each
+ * change, so its lock orders writers on every replica by commit.
+ */
+@Entity
+@Table(name = "entitlement_change_sequence")
+@Data
+@NoArgsConstructor
+public class EntitlementChangeSequence {
+
+    @Id
+    private Integer id;
+
+    // Highest sequence handed out by a committed transaction
+    @Column(nullable = false)
+    private Long lastSequence;
+
+    // Highest sequence dropped by retention
+    @Column(nullable = false)
+    private Long prunedThrough;
+}
@@ -0,0 +1,32 @@
+package org.openpickles.policy.engine.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * A performance finding of the Rego linter. Warnings never block a save.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class LintWarning {
+
+    public enum Rule {
+        // Iteration over a large data document instead of a keyed lookup
+        NON_INDEXED_ITERATION,
+        // Comprehension over a large data document, rebuilt for every decision
+        UNBOUNDED_COMPREHENSION,
+        // The same expensive built-in call evaluated more than once
+        REPEATED_BUILTIN
+    }
+
+    private Rule rule;
+    private String message;
+    // Rule (head) the finding is in
+    private String ruleName;
+    private Integer row;
+    private Integer col;
+}
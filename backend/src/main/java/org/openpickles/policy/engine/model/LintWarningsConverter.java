@@ -0,0 +1,44 @@
+package org.openpickles.policy.engine.model;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.persistence.AttributeConverter;
+import jakarta.persistence.Converter;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Stores a policy's lint warnings as a JSON array.
+ */
+@Converter
+public class LintWarningsConverter implements AttributeConverter<List<LintWarning>, String> {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Override
+    public String convertToDatabaseColumn(List<LintWarning> warnings) {
+        if (warnings == null) {
+            return null;
+        }
+        try {
+            return MAPPER.writeValueAsString(warnings);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot serialize lint warnings", e);
+        }
+    }
+
+    @Override
+    public List<LintWarning> convertToEntityAttribute(String json) {
+        if (json == null || json.isEmpty()) {
+            return null;
+        }
+        try {
+            return MAPPER.readValue(json, new TypeReference<List<LintWarning>>() {
+            });
+        } catch (IOException e) {
+            // Stale format: drop the warnings, the next save recomputes them
+            return null;
+        }
+    }
+}
@@ -43,6 +43,11 @@ public class Policy {
     @Column(unique = true, nullable = false)
     private String filename; // e.g., "authz.rego"
 
+    // Performance lint findings of the current content, null if not linted
+    @Convert(converter = LintWarningsConverter.class)
+    @Column(columnDefinition = "TEXT")
+    private java.util.List<LintWarning> lintWarnings;
+
     public enum SourceType {
         MANUAL, GIT
     }
@@ -153,4 +158,12 @@ public class Policy {
     public void setFilename(String filename) {
         this.filename = filename;
     }
+
+    public java.util.List<LintWarning> getLintWarnings() {
+        return lintWarnings;
+    }
+
+    public void setLintWarnings(java.util.List<LintWarning> lintWarnings) {
+        this.lintWarnings = lintWarnings;
+    }
 }
@@ -0,0 +1,62 @@
+package org.openpickles.policy.engine.model;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.GenerationType;
+import jakarta.persistence.Id;
+import jakarta.persistence.Index;
+import jakarta.persistence.Table;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.Instant;
+
+/**
+ * One {@code opa bench} run of a policy, kept per policy version so
+ * regressions between versions can be compared.
+ */
+@Entity
+@Table(name = "policy_benchmark", indexes = {
+        @Index(name = "idx_benchmark_policy", columnList = "policyId, createdAt")
+})
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class PolicyBenchmark {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    // Null for ad-hoc runs of unsaved content, which are not stored
+    private Long policyId;
+
+    private String policyVersion;
+
+    // SHA-256 of the benchmarked content
+    @Column(length = 64)
+    private String contentHash;
+
+    // The content differed from the stored version (unsaved edits)
+    private boolean draft;
+
+    @Column(nullable = false)
+    private Instant createdAt;
+
+    @Column(length = 1000)
+    private String query;
+
+    private long iterations;
+    private double nsPerOp;
+    private Long allocsPerOp;
+    private Long bytesPerOp;
+
+    // Query evaluation latency percentiles reported by OPA's metrics
+    private Double p50Ns;
+    private Double p90Ns;
+    private Double p99Ns;
+}
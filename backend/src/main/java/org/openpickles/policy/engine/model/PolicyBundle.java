@@ -22,7 +22,8 @@ public class PolicyBundle {
 
     private String entrypoint = "allow";
 
-    @ElementCollection
+    // Eager like the binding's policy ids: decisions read it on virtual threads without a session
+    @ElementCollection(fetch = FetchType.EAGER)
     @CollectionTable(name = "policy_bundle_bindings", joinColumns = @JoinColumn(name = "bundle_id"))
     @Column(name = "binding_id")
     private List<Long> bindingIds = new ArrayList<>();
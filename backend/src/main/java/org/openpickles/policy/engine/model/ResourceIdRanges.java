@@ -0,0 +1,261 @@
+package org.openpickles.policy.engine.model;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.LongConsumer;
+
+/**
+ * Compact encoding of a set of numeric resource ids as sorted, disjoint,
+ * inclusive ranges: {@code [[1000, 1999], [2005, 2005]]} in JSON and
+ * {@code 1000-1999,2005} in storage. Membership is a binary search over the
+ * range starts.
+ * <p>
+ * Only canonical decimal ids (no sign, no leading zeros, at most 18 digits)
+ * are numeric; anything else, e.g. {@code 007}, stays an exact resource id.
+ */
+public final class ResourceIdRanges {
+
+    public static final ResourceIdRanges EMPTY = new ResourceIdRanges(new long[0], new long[0]);
+
+    private static final int MAX_DIGITS = 18;
+    private static final long MAX_ID = 999_999_999_999_999_999L;
+
+    private final long[] starts;
+    private final long[] ends;
+
+    private ResourceIdRanges(long[] starts, long[] ends) {
+        this.starts = starts;
+        this.ends = ends;
+    }
+
+    public static boolean isNumeric(String resourceId) {
+        int length = resourceId.length();
+        if (length == 0 || length > MAX_DIGITS || (length > 1 && resourceId.charAt(0) == '0')) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            char c = resourceId.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The ranges covering the given numeric ids.
+     */
+    public static ResourceIdRanges ofIds(Collection<String> resourceIds) {
+        long[] ids = new long[resourceIds.size()];
+        int n = 0;
+        for (String id : resourceIds) {
+            ids[n++] = Long.parseLong(id);
+        }
+        Arrays.sort(ids, 0, n);
+        List<long[]> pairs = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            pairs.add(new long[] { ids[i], ids[i] });
+        }
+        return merge(pairs);
+    }
+
+    /**
+     * The numeric ids starting with {@code prefix}, e.g. {@code [[12, 12],
+     * [120, 129], [1200, 1299], ...]} for {@code 12}; all of them for the
+     * empty prefix.
+     */
+    public static ResourceIdRanges ofPrefix(String prefix) {
+        if (prefix.isEmpty()) {
+            return fromPairs(List.<long[]>of(new long[] { 0, MAX_ID }));
+        }
+        if (!isNumeric(prefix)) {
+            return EMPTY;
+        }
+        if (prefix.equals("0")) {
+            return fromPairs(List.<long[]>of(new long[] { 0, 0 }));
+        }
+        List<long[]> pairs = new ArrayList<>();
+        long start = Long.parseLong(prefix);
+        long width = 1;
+        for (int digits = prefix.length(); digits <= MAX_DIGITS; digits++) {
+            pairs.add(new long[] { start, start + width - 1 });
+            start *= 10;
+            width *= 10;
+        }
+        return fromPairs(pairs);
+    }
+
+    /**
+     * Normalizes {@code [start, end]} pairs in any order, merging overlapping
+     * and adjacent ones.
+     */
+    @JsonCreator(mode = JsonCreator.Mode.DELEGATING)
+    public static ResourceIdRanges fromPairs(List<long[]> pairs) {
+        List<long[]> sorted = new ArrayList<>(pairs.size());
+        for (long[] pair : pairs) {
+            if (pair == null || pair.length != 2 || pair[0] < 0 || pair[0] > pair[1] || pair[1] > MAX_ID) {
+                throw new IllegalArgumentException("Resource id ranges must be [start, end] pairs with "
+                        + "0 <= start <= end <= " + MAX_ID + ", got "
+                        + (pair == null ? null : Arrays.toString(pair)));
+            }
+            sorted.add(pair);
+        }
+        sorted.sort((a, b) -> Long.compare(a[0], b[0]));
+        return merge(sorted);
+    }
+
+    /**
+     * Parses the storage form, e.g. {@code 1000-1999,2005}.
+     */
+    public static ResourceIdRanges parse(String text) {
+        if (text == null || text.isEmpty()) {
+            return EMPTY;
+        }
+        List<long[]> pairs = new ArrayList<>();
+        for (String part : text.split(",")) {
+            int dash = part.indexOf('-');
+            long start = Long.parseLong(dash < 0 ? part : part.substring(0, dash));
+            long end = dash < 0 ? start : Long.parseLong(part.substring(dash + 1));
+            pairs.add(new long[] { start, end });
+        }
+        return fromPairs(pairs);
+    }
+
+    @JsonValue
+    public List<long[]> toPairs() {
+        List<long[]> pairs = new ArrayList<>(starts.length);
+        for (int i = 0; i < starts.length; i++) {
+            pairs.add(new long[] { starts[i], ends[i] });
+        }
+        return pairs;
+    }
+
+    public String format() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < starts.length; i++) {
+            if (i > 0) {
+                text.append(',');
+            }
+            text.append(starts[i]);
+            if (ends[i] != starts[i]) {
+                text.append('-').append(ends[i]);
+            }
+        }
+        return text.toString();
+    }
+
+    public boolean contains(String resourceId) {
+        return starts.length > 0 && isNumeric(resourceId) && contains(Long.parseLong(resourceId));
+    }
+
+    public boolean contains(long id) {
+        int i = Arrays.binarySearch(starts, id);
+        if (i >= 0) {
+            return true;
+        }
+        int before = -i - 2;
+        return before >= 0 && id <= ends[before];
+    }
+
+    /**
+     * The ids in this set and not in {@code other}.
+     */
+    public ResourceIdRanges minus(ResourceIdRanges other) {
+        List<long[]> pairs = new ArrayList<>();
+        int j = 0;
+        for (int i = 0; i < starts.length; i++) {
+            long start = starts[i];
+            long end = ends[i];
+            while (j < other.starts.length && other.ends[j] < start) {
+                j++;
+            }
+            int k = j;
+            while (start <= end && k < other.starts.length && other.starts[k] <= end) {
+                if (other.starts[k] > start) {
+                    pairs.add(new long[] { start, other.starts[k] - 1 });
+                }
+                start = Math.max(start, other.ends[k] + 1);
+                k++;
+            }
+            if (start <= end) {
+                pairs.add(new long[] { start, end });
+            }
+        }
+        return merge(pairs);
+    }
+
+    public ResourceIdRanges union(ResourceIdRanges other) {
+        List<long[]> pairs = toPairs();
+        pairs.addAll(other.toPairs());
+        pairs.sort((a, b) -> Long.compare(a[0], b[0]));
+        return merge(pairs);
+    }
+
+    public void forEachId(LongConsumer action) {
+        for (int i = 0; i < starts.length; i++) {
+            for (long id = starts[i]; id <= ends[i]; id++) {
+                action.accept(id);
+            }
+        }
+    }
+
+    /**
+     * Number of ids covered, {@link Long#MAX_VALUE} if that overflows.
+     */
+    public long size() {
+        long size = 0;
+        for (int i = 0; i < starts.length; i++) {
+            size += ends[i] - starts[i] + 1;
+            if (size < 0) {
+                return Long.MAX_VALUE;
+            }
+        }
+        return size;
+    }
+
+    public int rangeCount() {
+        return starts.length;
+    }
+
+    public boolean isEmpty() {
+        return starts.length == 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof ResourceIdRanges other && Arrays.equals(starts, other.starts)
+                && Arrays.equals(ends, other.ends);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(starts) + Arrays.hashCode(ends);
+    }
+
+    @Override
+    public String toString() {
+        return format();
+    }
+
+    // pairs must be sorted by start
+    private static ResourceIdRanges merge(List<long[]> pairs) {
+        long[] starts = new long[pairs.size()];
+        long[] ends = new long[pairs.size()];
+        int n = 0;
+        for (long[] pair : pairs) {
+            if (n > 0 && pair[0] <= ends[n - 1] + 1) {
+                ends[n - 1] = Math.max(ends[n - 1], pair[1]);
+            } else {
+                starts[n] = pair[0];
+                ends[n] = pair[1];
+                n++;
+            }
+        }
+        return n == 0 ? EMPTY : new ResourceIdRanges(Arrays.copyOf(starts, n), Arrays.copyOf(ends, n));
+    }
+}
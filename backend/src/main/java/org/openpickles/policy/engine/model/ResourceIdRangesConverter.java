@@ -0,0 +1,21 @@
+package org.openpickles.policy.engine.model;
+
+import jakarta.persistence.AttributeConverter;
+import jakarta.persistence.Converter;
+
+/**
+ * Stores resource id ranges in their text form, e.g. {@code 1000-1999,2005}.
+ */
+@Converter
+public class ResourceIdRangesConverter implements AttributeConverter<ResourceIdRanges, String> {
+
+    @Override
+    public String convertToDatabaseColumn(ResourceIdRanges ranges) {
+        return ranges == null || ranges.isEmpty() ? null : ranges.format();
+    }
+
+    @Override
+    public ResourceIdRanges convertToEntityAttribute(String text) {
+        return text == null || text.isEmpty() ? null : ResourceIdRanges.parse(text);
+    }
+}
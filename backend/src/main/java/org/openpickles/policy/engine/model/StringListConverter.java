@@ -0,0 +1,44 @@
+package org.openpickles.policy.engine.model;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.persistence.AttributeConverter;
+import jakarta.persistence.Converter;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Stores a list of strings, e.g. resource ids, as a JSON array; null or empty
+ * lists as NULL.
+ */
+@Converter
+public class StringListConverter implements AttributeConverter<List<String>, String> {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Override
+    public String convertToDatabaseColumn(List<String> values) {
+        if (values == null || values.isEmpty()) {
+            return null;
+        }
+        try {
+            return MAPPER.writeValueAsString(values);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot serialize string list", e);
+        }
+    }
+
+    @Override
+    public List<String> convertToEntityAttribute(String json) {
+        if (json == null || json.isEmpty()) {
+            return null;
+        }
+        try {
+            return MAPPER.readValue(json, new TypeReference<List<String>>() {
+            });
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot parse string list: " + json, e);
+        }
+    }
+}
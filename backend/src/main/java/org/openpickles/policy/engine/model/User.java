@@ -7,6 +7,7 @@ import java.util.Set;
 
 @Entity
 @Table(name = "users")
+@EntityListeners(org.openpickles.policy.engine.event.EntityChangeListener.class)
 public class User {
     @Id
     @GeneratedValue(strategy = GenerationType.IDENTITY)
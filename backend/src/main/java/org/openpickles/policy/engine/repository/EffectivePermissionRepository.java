@@ -0,0 +1,16 @@
+package org.openpickles.policy.engine.repository;
+
+import org.openpickles.policy.engine.model.EffectivePermission;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface EffectivePermissionRepository extends JpaRepository<EffectivePermission, Long> {
+    Page<EffectivePermission> findByUserIdOrderByResourceTypeAscResourceIdAscActionAsc(Long userId,
+            Pageable pageable);
+
+    Page<EffectivePermission> findByUserIdAndResourceTypeOrderByResourceIdAscActionAsc(Long userId,
+            String resourceType, Pageable pageable);
+}
@@ -0,0 +1,13 @@
+package org.openpickles.policy.engine.repository;
+
+import org.openpickles.policy.engine.model.EntitlementChange;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+
+@Repository
+public interface EntitlementChangeRepository extends JpaRepository<EntitlementChange, Long> {
+    List<EntitlementChange> findByIdGreaterThanAndIdLessThanOrderByIdAsc(Long since, Long before, Pageable pageable);
+}
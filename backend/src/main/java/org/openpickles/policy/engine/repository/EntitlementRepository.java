@@ -2,14 +2,21 @@ package org.openpickles.policy.engine.repository;
 
 import org.openpickles.policy.engine.model.Entitlement;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import java.util.List;
 
 @Repository
 public interface EntitlementRepository extends JpaRepository<Entitlement, Long> {
-    // Find entitlements that contain the specific resourceId in their set
-    List<Entitlement> findByResourceTypeAndResourceIdsContaining(String resourceType, String resourceId);
+    // Find entitlements that contain the specific resourceId in their set. An
+    // explicit join (rather than MEMBER OF) lets the database use the
+    // resource_id index of the collection table.
+    @Query("SELECT DISTINCT e FROM Entitlement e JOIN e.resourceIds r "
+            + "WHERE r = :resourceId AND e.resourceType = :resourceType")
+    List<Entitlement> findByResourceTypeAndResourceIdsContaining(@Param("resourceType") String resourceType,
+            @Param("resourceId") String resourceId);
 
     List<Entitlement> findBySubjectTypeAndSubjectId(Entitlement.SubjectType subjectType, String subjectId);
 
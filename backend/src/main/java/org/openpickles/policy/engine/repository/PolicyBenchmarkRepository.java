@@ -0,0 +1,13 @@
+package org.openpickles.policy.engine.repository;
+
+import org.openpickles.policy.engine.model.PolicyBenchmark;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+
+@Repository
+public interface PolicyBenchmarkRepository extends JpaRepository<PolicyBenchmark, Long> {
+
+    List<PolicyBenchmark> findByPolicyIdOrderByCreatedAtDesc(Long policyId);
+}
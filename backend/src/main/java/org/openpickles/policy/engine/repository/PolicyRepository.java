@@ -13,6 +13,10 @@ public interface PolicyRepository extends JpaRepository<Policy, Long> {
 
     List<Policy> findByNameIn(java.util.Collection<String> names);
 
+    List<Policy> findByFilenameIn(java.util.Collection<String> filenames);
+
+    List<Policy> findByContentContaining(String text);
+
     org.springframework.data.domain.Page<Policy> findByNameContainingIgnoreCase(String name,
             org.springframework.data.domain.Pageable pageable);
 }
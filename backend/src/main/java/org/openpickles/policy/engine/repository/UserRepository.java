@@ -4,9 +4,14 @@ import org.openpickles.policy.engine.model.User;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.stereotype.Repository;
 
+import java.util.List;
 import java.util.Optional;
 
 @Repository
 public interface UserRepository extends JpaRepository<User, Long> {
     Optional<User> findByUsername(String username);
+
+    List<User> findByRoles_Name(String roleName);
+
+    List<User> findByGroups_Name(String groupName);
 }
@@ -0,0 +1,84 @@
+package org.openpickles.policy.engine.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.openpickles.policy.engine.event.EntitlementChangedEvent;
+import org.openpickles.policy.engine.model.PolicyBinding;
+import org.openpickles.policy.engine.model.PolicyBundle;
+import org.openpickles.policy.engine.repository.PolicyBindingRepository;
+import org.openpickles.policy.engine.repository.PolicyBundleRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Drops the per-bundle state the decision engines keep (the WASM module, the
+ * natively compiled bundle and the copy published to OPA, all built over a
+ * frozen data.json) when what it was built from changes: a bundle build, a
+ * policy update, or, after commit, any entitlement write to a resource type the
+ * bundle is bound to.
+ */
+@Component
+@Slf4j
+public class BundleCacheInvalidator {
+
+    @Autowired
+    private PolicyBindingRepository bindingRepository;
+
+    @Autowired
+    private PolicyBundleRepository bundleRepository;
+
+    @Autowired
+    private WasmEvaluationEngine wasmEvaluationEngine;
+
+    @Autowired
+    private NativeEvaluationEngine nativeEvaluationEngine;
+
+    @Autowired
+    private EvaluationService evaluationService;
+
+    /**
+     * The next decision of the bundle loads it again.
+     */
+    public void invalidate(Long bundleId) {
+        wasmEvaluationEngine.invalidate(bundleId);
+        nativeEvaluationEngine.invalidate(bundleId);
+        evaluationService.invalidate(bundleId);
+    }
+
+    /**
+     * Invalidates every bundle bound to one of the resource types.
+     *
+     * @return the invalidated bundles
+     */
+    public Collection<PolicyBundle> invalidateBoundTo(Collection<String> resourceTypes) {
+        if (resourceTypes.isEmpty()) {
+            return List.of();
+        }
+        Map<Long, PolicyBundle> bundles = new LinkedHashMap<>();
+        for (PolicyBinding binding : bindingRepository.findByResourceTypeIn(new ArrayList<>(resourceTypes))) {
+            bundleRepository.findByBindingIdsContaining(binding.getId())
+                    .forEach(bundle -> bundles.putIfAbsent(bundle.getId(), bundle));
+        }
+        bundles.keySet().forEach(this::invalidate);
+        return bundles.values();
+    }
+
+    /**
+     * Runs after commit and after the {@link EntitlementIndex} has applied the
+     * change, so the reload already sees the written rows.
+     */
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onEntitlementChanged(EntitlementChangedEvent event) {
+        try {
+            invalidateBoundTo(event.getResourceTypes());
+        } catch (RuntimeException e) {
+            log.error("Failed to invalidate bundles bound to {}", event.getResourceTypes(), e);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package org.openpickles.policy.engine.service;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+/**
+ * The per-bundle state of an in-JVM engine, see {@link WasmEvaluationEngine}
+ * and {@link NativeEvaluationEngine}, built in the background.
+ * <p>
+ * Building it runs {@code opa build} or {@code opa parse}, which can take far
+ * longer than a decision may, so the decision that finds a bundle missing only
+ * starts the build and, like every decision until the build completes, is
+ * served by OPA. A bundle that could not be built is retried after a minute.
+ */
+@Slf4j
+class BundleLoads<T> {
+
+    private static final long RETRY_AFTER_FAILURE_MS = 60_000;
+
+    private final Map<Long, Load<T>> loads = new ConcurrentHashMap<>();
+
+    private final Executor executor;
+
+    BundleLoads(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * @param loader builds the state; returns null if the bundle cannot be
+     *               served by the engine
+     * @return the state of the bundle, or empty while it is being built or if
+     *         it could not be
+     */
+    Optional<T> get(Long bundleId, Supplier<T> loader) {
+        Load<T> load = loads.compute(bundleId, (id, current) -> current != null && !current.isRetryDue()
+                ? current
+                : new Load<>(bundleId, loader, executor));
+        return Optional.ofNullable(load.value());
+    }
+
+    /**
+     * Drops the state of a bundle, or stops waiting for the build in progress;
+     * the next decision builds it again.
+     *
+     * @return false if there was nothing to drop
+     */
+    boolean invalidate(Long bundleId) {
+        return loads.remove(bundleId) != null;
+    }
+
+    /**
+     * Drops the state of a bundle unless it was replaced in the meantime, e.g.
+     * because it can no longer serve decisions.
+     */
+    void invalidate(Long bundleId, T value) {
+        loads.computeIfPresent(bundleId, (id, current) -> current.value() == value ? null : current);
+    }
+
+    private static final class Load<T> {
+        private final CompletableFuture<T> future;
+        private volatile long completedAt;
+
+        Load(Long bundleId, Supplier<T> loader, Executor executor) {
+            this.future = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return loader.get();
+                } finally {
+                    completedAt = System.currentTimeMillis();
+                }
+            }, executor);
+            future.whenComplete((value, e) -> {
+                if (e != null) {
+                    log.error("Failed to load bundle {}", bundleId, e);
+                }
+            });
+        }
+
+        T value() {
+            return future.isDone() && !future.isCompletedExceptionally() ? future.join() : null;
+        }
+
+        boolean isRetryDue() {
+            return future.isDone() && value() == null
+                    && System.currentTimeMillis() - completedAt >= RETRY_AFTER_FAILURE_MS;
+        }
+    }
+}
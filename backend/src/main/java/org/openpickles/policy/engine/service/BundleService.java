@@ -0,0 +1,371 @@
+package org.openpickles.policy.engine.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.tomcat.util.http.fileupload.FileUtils;
+import org.openpickles.policy.engine.dto.CompactEntitlement;
+import org.openpickles.policy.engine.exception.FunctionalException;
+import org.openpickles.policy.engine.exception.TechnicalException;
+import org.openpickles.policy.engine.model.Entitlement;
+import org.openpickles.policy.engine.model.Policy;
+import org.openpickles.policy.engine.model.PolicyBinding;
+import org.openpickles.policy.engine.model.PolicyBundle;
+import org.openpickles.policy.engine.model.ResourceIdRanges;
+import org.openpickles.policy.engine.model.ResourceType;
+import org.openpickles.policy.engine.repository.PolicyBindingRepository;
+import org.openpickles.policy.engine.repository.PolicyRepository;
+import org.openpickles.policy.engine.repository.ResourceTypeRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Assembles policy bundles: the data document served to data planes, the
+ * standard (Rego) tarball and the WASM compiled variant.
+ */
+@Service
+public class BundleService {
+
+    private static final Logger logger = LoggerFactory.getLogger(BundleService.class);
+
+    @Autowired
+    private PolicyBindingRepository bindingRepository;
+
+    @Autowired
+    private PolicyRepository policyRepository;
+
+    @Autowired
+    private EntitlementIndex entitlementIndex;
+
+    @Autowired
+    private ResourceTypeRepository resourceTypeRepository;
+
+    @Autowired
+    private OpaCliRunner opaCliRunner;
+
+    // Validity timestamps are written as RFC 3339 strings, which Rego parses with time.parse_rfc3339_ns
+    private final ObjectMapper objectMapper = new ObjectMapper().registerModule(new JavaTimeModule())
+            .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+
+    public List<PolicyBinding> getBindings(PolicyBundle bundle) {
+        return bindingRepository.findAllById(bundle.getBindingIds());
+    }
+
+    public List<Policy> getPolicies(List<PolicyBinding> bindings) {
+        Set<Long> policyIds = bindings.stream()
+                .flatMap(b -> b.getPolicyIds().stream())
+                .collect(Collectors.toSet());
+        return policyRepository.findAllById(policyIds);
+    }
+
+    /**
+     * Builds the data document for a set of bindings: the bindings themselves,
+     * the active entitlements of the bound resource types (plus an index over
+     * their resource ids) and their resource type definitions.
+     */
+    public Map<String, Object> buildData(List<PolicyBinding> bindings) {
+        Set<String> resourceTypeKeys = bindings.stream()
+                .map(PolicyBinding::getResourceType)
+                .collect(Collectors.toSet());
+        // Read from the in-memory store rather than loading the whole table through JPA
+        EntitlementStore.Snapshot snapshot = entitlementIndex.snapshot();
+        List<CompactEntitlement> entitlements = new ArrayList<>();
+        for (String resourceType : resourceTypeKeys) {
+            snapshot.forEachGrant(resourceType, grant -> entitlements.add(toCompact(grant)));
+        }
+        entitlements.sort(Comparator.comparing(CompactEntitlement::getId));
+
+        // Include the definitions for the resource types used in the bindings.
+        // This allows the policy to access metadata (like PII flags) defined in the
+        // schema
+        List<ResourceType> allResourceTypes = resourceTypeRepository.findAll();
+        List<ResourceType> filteredResourceTypes = allResourceTypes.stream()
+                .filter(rt -> resourceTypeKeys.contains(rt.getKey()))
+                .collect(Collectors.toList());
+
+        Map<String, Object> dataJson = new HashMap<>();
+        dataJson.put("bindings", bindings);
+        dataJson.put("entitlements", entitlements);
+        dataJson.put("entitlement_index", buildEntitlementIndex(entitlements));
+        dataJson.put("resource_types", filteredResourceTypes);
+        return dataJson;
+    }
+
+    /**
+     * Positions in {@code data.entitlements} by resource type, keyed by exact
+     * resource id under {@code ids} and by pattern prefix ({@code branch-12/}
+     * for {@code branch-12/*}, the empty string for {@code *}) under
+     * {@code prefixes}. Rego cannot walk a trie, so patterns are a flat map a
+     * policy probes with the prefixes of the requested id (for hierarchical
+     * ids, one probe per path segment). Resource id ranges are listed under
+     * {@code ranges} as {@code [start, end, position]}, sorted by start, for
+     * a policy to compare the numeric id against.
+     */
+    static Map<String, IndexSections> buildEntitlementIndex(List<CompactEntitlement> entitlements) {
+        Map<String, IndexSections> index = new TreeMap<>();
+        for (int i = 0; i < entitlements.size(); i++) {
+            CompactEntitlement e = entitlements.get(i);
+            IndexSections byType = index.computeIfAbsent(e.getResourceType(), k -> new IndexSections());
+            for (String resourceId : e.getResourceIds()) {
+                if (ResourceIdTrie.isPattern(resourceId)) {
+                    byType.prefixes.computeIfAbsent(ResourceIdTrie.prefixOf(resourceId), k -> new ArrayList<>())
+                            .add(i);
+                } else {
+                    byType.ids.computeIfAbsent(resourceId, k -> new ArrayList<>()).add(i);
+                }
+            }
+            if (e.getResourceIdRanges() != null) {
+                for (long[] range : e.getResourceIdRanges().toPairs()) {
+                    byType.ranges.add(new long[] { range[0], range[1], i });
+                }
+            }
+        }
+        index.values().forEach(sections -> sections.ranges.sort(Comparator.comparingLong(range -> range[0])));
+        return index;
+    }
+
+    private static CompactEntitlement toCompact(EntitlementStore.Grant grant) {
+        String principal = grant.getPrincipal();
+        int colon = principal.indexOf(':');
+        ResourceIdRanges ranges = grant.getResourceIdRanges();
+        return CompactEntitlement.builder()
+                .id(grant.getId())
+                .resourceType(grant.getResourceType())
+                .resourceIds(new TreeSet<>(grant.getResourceIds()))
+                .resourceIdRanges(ranges != null && !ranges.isEmpty() ? ranges : null)
+                .actions(new TreeSet<>(grant.getActions()))
+                .subjectType(Entitlement.SubjectType.valueOf(principal.substring(0, colon)))
+                .subjectId(principal.substring(colon + 1))
+                .effect(grant.isDeny() ? Entitlement.Effect.DENY : Entitlement.Effect.ALLOW)
+                .validFrom(grant.getValidFrom())
+                .validUntil(grant.getValidUntil())
+                .active(true)
+                .build();
+    }
+
+    /**
+     * The index entries of one resource type.
+     */
+    static final class IndexSections {
+        public final Map<String, List<Integer>> ids = new TreeMap<>();
+        public final Map<String, List<Integer>> prefixes = new TreeMap<>();
+        public final List<long[]> ranges = new ArrayList<>();
+    }
+
+    public String buildDataJson(List<PolicyBinding> bindings) {
+        try {
+            return objectMapper.writeValueAsString(buildData(bindings));
+        } catch (Exception e) {
+            throw new TechnicalException("Error serializing bundle data: " + e.getMessage(), "TECH_001", e);
+        }
+    }
+
+    /**
+     * Standard bundle: data.json plus the Rego sources under policies/.
+     */
+    public byte[] buildStandardBundle(List<Policy> policies, String jsonContent) {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            try (TarArchiveOutputStream tarOut = new TarArchiveOutputStream(new GZIPOutputStream(baos))) {
+
+                // Add data.json
+                TarArchiveEntry dataEntry = new TarArchiveEntry("data.json");
+                dataEntry.setSize(jsonContent.getBytes().length);
+                tarOut.putArchiveEntry(dataEntry);
+                tarOut.write(jsonContent.getBytes());
+                tarOut.closeArchiveEntry();
+
+                // Add Policies
+                for (Policy policy : policies) {
+                    String policyContent = policy.getContent();
+                    if (policyContent == null)
+                        policyContent = "";
+                    String filename = "policies/"
+                            + (policy.getFilename() != null ? policy.getFilename() : policy.getName() + ".rego");
+                    TarArchiveEntry policyEntry = new TarArchiveEntry(filename);
+                    policyEntry.setSize(policyContent.getBytes().length);
+                    tarOut.putArchiveEntry(policyEntry);
+                    tarOut.write(policyContent.getBytes());
+                    tarOut.closeArchiveEntry();
+                }
+                tarOut.finish();
+            }
+            return baos.toByteArray();
+        } catch (Exception e) {
+            throw new TechnicalException("Error generating bundle: " + e.getMessage(), "TECH_001", e);
+        }
+    }
+
+    public void validateWasmBundle(PolicyBundle bundle) {
+        try {
+            // Fetch policies to validate them
+            List<PolicyBinding> bindings = getBindings(bundle);
+            if (bindings.isEmpty() && bundle.getBindingIds().isEmpty()) {
+                return;
+            }
+
+            // Attempt compile against a dummy data.json
+            compileToWasm(getPolicies(bindings), "{}", bundle.getEntrypoint());
+
+        } catch (TechnicalException e) {
+            // Log full error
+            logger.error("WASM Validation failed: {}", e.getMessage());
+            // Throw functional error to user
+            throw new FunctionalException(
+                    "WASM Compilation Validation Failed: " + e.getMessage(), "FUNC_WASM_INVALID");
+        } catch (Exception e) {
+            logger.error("Unexpected error during WASM validation", e);
+            throw new TechnicalException("Validation Error", "TECH_VAL_ERR", e);
+        }
+    }
+
+    public byte[] compileToWasm(List<Policy> policies, String jsonContent, String entrypoint) {
+        Path tempDir = null;
+        try {
+            tempDir = Files.createTempDirectory("opa-build");
+
+            Files.write(tempDir.resolve("data.json"), jsonContent.getBytes(), StandardOpenOption.CREATE);
+
+            List<String> entrypoints = preparePolicyFiles(policies, tempDir, entrypoint);
+
+            if (entrypoints.isEmpty()) {
+                logger.warn("No package names found in policies. WASM build might fail.");
+            }
+
+            return executeOpaBuild(tempDir, entrypoints);
+
+        } catch (TechnicalException te) {
+            throw te;
+        } catch (Exception e) {
+            throw new TechnicalException(
+                    "Error generating WASM bundle: " + e.getMessage(), "TECH_001", e);
+        } finally {
+            if (tempDir != null) {
+                try {
+                    FileUtils.deleteDirectory(tempDir.toFile());
+                } catch (Exception ignore) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the entries of a gzipped bundle tarball into memory, keyed by path
+     * without the leading slash (e.g. "policy.wasm", "data.json").
+     */
+    public Map<String, byte[]> extractBundle(byte[] bundle) {
+        Map<String, byte[]> entries = new HashMap<>();
+        try (TarArchiveInputStream tarIn = new TarArchiveInputStream(
+                new GZIPInputStream(new ByteArrayInputStream(bundle)))) {
+            TarArchiveEntry entry;
+            while ((entry = tarIn.getNextEntry()) != null) {
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                String name = entry.getName().startsWith("/") ? entry.getName().substring(1) : entry.getName();
+                entries.put(name, tarIn.readAllBytes());
+            }
+        } catch (Exception e) {
+            throw new TechnicalException("Error reading bundle: " + e.getMessage(), "TECH_001", e);
+        }
+        return entries;
+    }
+
+    private List<String> preparePolicyFiles(List<Policy> policies, Path tempDir, String entrypoint)
+            throws java.io.IOException {
+        List<String> entrypoints = new ArrayList<>();
+        for (Policy policy : policies) {
+            String content = policy.getContent() != null ? policy.getContent() : "";
+
+            // Sanitize filename to prevent path traversal
+            String rawFilename = policy.getFilename() != null ? policy.getFilename()
+                    : "policy-" + policy.getId() + ".rego";
+            String safeFilename = java.nio.file.Paths.get(rawFilename).getFileName().toString();
+
+            Path policyPath = tempDir.resolve(safeFilename).normalize();
+            if (!policyPath.startsWith(tempDir)) {
+                throw new SecurityException("Path traversal attempt detected: " + rawFilename);
+            }
+
+            Files.write(policyPath, content.getBytes(), StandardOpenOption.CREATE);
+
+            String packageName = findPackageName(content);
+            if (packageName != null) {
+                // Validate entrypoint if provided, otherwise default to 'allow'
+                String epName = "allow";
+                if (entrypoint != null && !entrypoint.isEmpty()) {
+                    if (!entrypoint.matches("^\\w+$")) {
+                        throw new SecurityException("Invalid entrypoint format");
+                    }
+                    epName = entrypoint;
+                }
+                entrypoints.add(packageName.replace(".", "/") + "/" + epName);
+            }
+        }
+        return entrypoints;
+    }
+
+    private byte[] executeOpaBuild(Path tempDir, List<String> entrypoints)
+            throws java.io.IOException, InterruptedException {
+        List<String> args = new ArrayList<>();
+        args.add("build");
+        args.add("-t");
+        args.add("wasm");
+        args.add("-o");
+        args.add("bundle.tar.gz");
+        args.add("-b");
+        args.add(".");
+        for (String ep : entrypoints) {
+            args.add("-e");
+            args.add(ep);
+        }
+
+        OpaCliRunner.Result result = opaCliRunner.run(tempDir, args);
+        if (!result.isSuccess()) {
+            logger.error("OPA Build Failed. Output:\n{}", result.getOutput());
+            throw new TechnicalException(
+                    "OPA build failed with exit code " + result.getExitCode() + ". Output: " + result.getOutput(),
+                    "TECH_OPA_FAIL");
+        }
+
+        Path bundlePath = tempDir.resolve("bundle.tar.gz");
+        if (!Files.exists(bundlePath)) {
+            throw new TechnicalException(
+                    "OPA build succeeded but bundle.tar.gz not found", "TECH_OPA_NO_OUTPUT");
+        }
+        return Files.readAllBytes(bundlePath);
+    }
+
+    public String findPackageName(String content) {
+        // Simple regex to find package declaration
+        java.util.regex.Pattern pattern = java.util.regex.Pattern.compile("^\\s*package\\s+([a-zA-Z0-9_.]+)",
+                java.util.regex.Pattern.MULTILINE);
+        java.util.regex.Matcher matcher = pattern.matcher(content);
+        if (matcher.find()) {
+            return matcher.group(1);
+        }
+        return null;
+    }
+}
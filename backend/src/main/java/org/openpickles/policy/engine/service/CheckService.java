@@ -0,0 +1,98 @@
+package org.openpickles.policy.engine.service;
+
+import org.openpickles.policy.engine.dto.CheckRequest;
+import org.openpickles.policy.engine.dto.CheckResponse;
+import org.openpickles.policy.engine.exception.FunctionalException;
+import org.openpickles.policy.engine.model.PolicyBinding;
+import org.openpickles.policy.engine.repository.PolicyBindingRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Native "subject has action on resource" checks for resource types bound in
+ * DIRECT evaluation mode, answered from the {@link EntitlementIndex} without
+ * going through Rego. DENY grants override ALLOW grants.
+ */
+@Service
+public class CheckService {
+
+    private static final String DIRECT_MODE = "DIRECT";
+    private static final long BINDING_CACHE_TTL_MS = 5_000;
+
+    @Autowired
+    private EntitlementIndex entitlementIndex;
+
+    @Autowired
+    private PolicyBindingRepository bindingRepository;
+
+    // resourceType -> [isDirect, checkedAt]; bindings change rarely
+    private final Map<String, long[]> directModeCache = new ConcurrentHashMap<>();
+
+    public CheckResponse check(CheckRequest request) {
+        if (request.getSubject() == null || request.getAction() == null || request.getResourceType() == null
+                || request.getResourceIds() == null || request.getResourceIds().isEmpty()) {
+            throw new FunctionalException("subject, action, resourceType and resourceIds are required",
+                    "FUNC_CHECK_INVALID");
+        }
+        if (!isDirect(request.getResourceType())) {
+            throw new FunctionalException("Resource type " + request.getResourceType()
+                    + " has no DIRECT policy binding", "FUNC_CHECK_MODE");
+        }
+
+        List<EntitlementStore.Grant> grants = entitlementIndex.grantsFor(request.getResourceType(),
+                entitlementIndex.principalsOf(request.getSubject()));
+
+        List<String> resourceIds = request.getResourceIds();
+        List<Boolean> allowed = new ArrayList<>(resourceIds.size());
+        BitSet bitmap = new BitSet(resourceIds.size());
+        for (int i = 0; i < resourceIds.size(); i++) {
+            boolean decision = decide(grants, request.getAction(), resourceIds.get(i));
+            allowed.add(decision);
+            if (decision) {
+                bitmap.set(i);
+            }
+        }
+
+        return CheckResponse.builder()
+                .subject(request.getSubject())
+                .action(request.getAction())
+                .resourceType(request.getResourceType())
+                .resourceIds(resourceIds)
+                .allowed(allowed)
+                .bitmap(Base64.getEncoder().encodeToString(bitmap.toByteArray()))
+                .build();
+    }
+
+    private boolean decide(List<EntitlementStore.Grant> grants, String action, String resourceId) {
+        boolean allow = false;
+        for (EntitlementStore.Grant grant : grants) {
+            if (grant.covers(action, resourceId)) {
+                if (grant.isDeny()) {
+                    return false;
+                }
+                allow = true;
+            }
+        }
+        return allow;
+    }
+
+    private boolean isDirect(String resourceType) {
+        long now = System.currentTimeMillis();
+        long[] cached = directModeCache.get(resourceType);
+        if (cached != null && now - cached[1] < BINDING_CACHE_TTL_MS) {
+            return cached[0] == 1;
+        }
+        boolean direct = bindingRepository.findByResourceType(resourceType).stream()
+                .map(PolicyBinding::getEvaluationMode)
+                .anyMatch(DIRECT_MODE::equalsIgnoreCase);
+        directModeCache.put(resourceType, new long[] { direct ? 1 : 0, now });
+        return direct;
+    }
+}
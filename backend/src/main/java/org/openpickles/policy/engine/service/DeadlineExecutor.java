@@ -0,0 +1,123 @@
+package org.openpickles.policy.engine.service;
+
+import jakarta.annotation.PreDestroy;
+import org.openpickles.policy.engine.exception.DeadlineExceededException;
+import org.openpickles.policy.engine.exception.FunctionalException;
+import org.slf4j.MDC;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * Runs evaluations on virtual threads under a per-request deadline.
+ * <p>
+ * Blocking on OPA parks a virtual thread instead of holding a connector
+ * thread, so the number of concurrent evaluations is not bounded by the
+ * Tomcat pool. The deadline is visible to the OPA client through
+ * {@link EvaluationDeadline}; the returned future fails with
+ * {@link DeadlineExceededException} once it passes, even if the task has not
+ * noticed yet, and the task is interrupted. Tasks run with the MDC (trace id)
+ * and security context of the submitting request.
+ */
+@Component
+public class DeadlineExecutor {
+
+    public static final String TIMEOUT_HEADER = "X-Request-Timeout";
+
+    @Value("${policy.engine.evaluation.timeout-ms:10000}")
+    private long defaultTimeoutMs;
+
+    @Value("${policy.engine.evaluation.max-timeout-ms:60000}")
+    private long maxTimeoutMs;
+
+    // Test runs, benchmarks and replays work through many inputs per request
+    @Value("${policy.engine.evaluation.batch-timeout-ms:300000}")
+    private long batchTimeoutMs;
+
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Picks the timeout of a request: the header wins over the parameter, both
+     * in milliseconds, capped at {@code policy.engine.evaluation.max-timeout-ms}.
+     */
+    public long resolveTimeout(Long header, Long param) {
+        return resolve(header, param, defaultTimeoutMs, maxTimeoutMs);
+    }
+
+    /**
+     * Like {@link #resolveTimeout}, for requests that evaluate a whole batch:
+     * defaults to and is capped at {@code policy.engine.evaluation.batch-timeout-ms}
+     * (or the regular maximum if that is higher).
+     */
+    public long resolveBatchTimeout(Long header, Long param) {
+        return resolve(header, param, batchTimeoutMs, Math.max(batchTimeoutMs, maxTimeoutMs));
+    }
+
+    private static long resolve(Long header, Long param, long defaultMs, long maxMs) {
+        Long requested = header != null ? header : param;
+        if (requested == null) {
+            return defaultMs;
+        }
+        if (requested <= 0) {
+            throw new FunctionalException("Timeout must be positive: " + requested, "FUNC_TIMEOUT_INVALID");
+        }
+        return Math.min(requested, maxMs);
+    }
+
+    public <T> CompletableFuture<T> submit(long timeoutMs, Supplier<T> work) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        CompletableFuture<T> result = new CompletableFuture<>();
+        // The task works on behalf of the calling request
+        Map<String, String> mdc = MDC.getCopyOfContextMap();
+        SecurityContext security = SecurityContextHolder.createEmptyContext();
+        security.setAuthentication(SecurityContextHolder.getContext().getAuthentication());
+        Future<?> task = executor.submit(() -> {
+            if (mdc != null) {
+                MDC.setContextMap(mdc);
+            }
+            SecurityContextHolder.setContext(security);
+            try {
+                result.complete(EvaluationDeadline.call(deadline, work));
+            } catch (Throwable e) {
+                // A failed OPA call after the deadline is the deadline's doing
+                result.completeExceptionally(System.nanoTime() - deadline >= 0 ? exceeded(timeoutMs) : e);
+            } finally {
+                SecurityContextHolder.clearContext();
+                MDC.clear();
+            }
+        });
+        return result.orTimeout(timeoutMs, TimeUnit.MILLISECONDS)
+                .whenComplete((value, e) -> {
+                    // Stops work nobody waits for any more, e.g. a blocked OPA call or opa process
+                    if (e != null) {
+                        task.cancel(true);
+                    }
+                })
+                .exceptionallyCompose(e -> CompletableFuture.failedFuture(
+                        unwrap(e) instanceof TimeoutException ? exceeded(timeoutMs) : unwrap(e)));
+    }
+
+    private static DeadlineExceededException exceeded(long timeoutMs) {
+        return new DeadlineExceededException("Evaluation did not complete within " + timeoutMs + " ms");
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+    }
+}
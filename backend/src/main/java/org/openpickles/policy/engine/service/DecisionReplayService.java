@@ -0,0 +1,295 @@
+package org.openpickles.policy.engine.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.openpickles.policy.engine.OpaInstance;
+import org.openpickles.policy.engine.OpaProcessManager;
+import org.openpickles.policy.engine.dto.ReplayReport;
+import org.openpickles.policy.engine.exception.FunctionalException;
+import org.openpickles.policy.engine.exception.TechnicalException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replays recorded decision inputs against the current and a candidate
+ * bundle to preview the effect of a rollout.
+ * <p>
+ * Both bundles are loaded once into sandboxes on each of the leased OPA
+ * instances, and the corpus is streamed line by line: every input is
+ * evaluated against both bundles on the same instance, at most
+ * {@code policy.engine.replay.concurrency} inputs at a time, so neither the
+ * corpus nor the decisions are held in memory beyond the reported flips.
+ * <p>
+ * The instances keep serving live decisions, so a replay only leases a share
+ * of them ({@code policy.engine.replay.instance-share}, at least one and at
+ * most {@code policy.engine.replay.instances}) and keeps at most
+ * {@code policy.engine.replay.concurrency-per-instance} inputs in flight on
+ * each.
+ */
+@Service
+@Slf4j
+public class DecisionReplayService {
+
+    private static final int ERROR_SAMPLES = 20;
+
+    @Value("${policy.engine.replay.instances:2}")
+    private int maxInstances;
+
+    @Value("${policy.engine.replay.instance-share:0.25}")
+    private double instanceShare;
+
+    @Value("${policy.engine.replay.concurrency-per-instance:8}")
+    private int concurrencyPerInstance;
+
+    @Value("${policy.engine.replay.max-flips:10000}")
+    private int maxFlips;
+
+    @Autowired
+    private EvaluationService evaluationService;
+
+    @Autowired
+    private OpaClient opaClient;
+
+    @Autowired
+    private OpaProcessManager processManager;
+
+    private final int concurrency;
+    private final ExecutorService executor;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    public DecisionReplayService(@Value("${policy.engine.replay.concurrency:64}") int concurrency) {
+        this.concurrency = Math.max(1, concurrency);
+        this.executor = Executors.newFixedThreadPool(this.concurrency, r -> {
+            Thread thread = new Thread(r, "decision-replay");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * @param corpus NDJSON, one decision input per line; a line may also be a
+     *               decision log entry, whose {@code input} field is used
+     */
+    public ReplayReport replay(Long bundleId, Long candidateBundleId, String entrypoint, InputStream corpus) {
+        if (bundleId == null || candidateBundleId == null) {
+            throw new FunctionalException("bundleId and candidateBundleId are required", "FUNC_REPLAY_INVALID");
+        }
+        long start = System.currentTimeMillis();
+
+        int count = workerCount();
+        List<Worker> workers = new ArrayList<>();
+        try {
+            for (int i = 0; i < count; i++) {
+                OpaClient.Lease lease = opaClient.acquire();
+                Worker worker = new Worker(lease);
+                workers.add(worker);
+                worker.current = evaluationService.loadBundle(lease, bundleId, entrypoint);
+                worker.candidate = evaluationService.loadBundle(lease, candidateBundleId, entrypoint);
+            }
+            return run(workers, corpus, start, bundleId, candidateBundleId, entrypoint);
+        } finally {
+            workers.forEach(Worker::close);
+        }
+    }
+
+    private int workerCount() {
+        long available = processManager.getInstances().stream().filter(OpaInstance::isAvailable).count();
+        if (available == 0) {
+            throw new TechnicalException("No OPA instance available", "TECH_OPA_UNAVAILABLE");
+        }
+        return workerCount(available, instanceShare, maxInstances);
+    }
+
+    /**
+     * The share of the available instances, rounded down but at least one,
+     * capped at {@code max}.
+     */
+    static int workerCount(long available, double share, int max) {
+        long shared = Math.max(1, (long) Math.floor(available * Math.min(Math.max(share, 0), 1)));
+        return (int) Math.min(shared, Math.max(1, max));
+    }
+
+    private ReplayReport run(List<Worker> workers, InputStream corpus, long start, Long bundleId,
+            Long candidateBundleId, String entrypoint) {
+        Latencies currentLatency = new Latencies();
+        Latencies candidateLatency = new Latencies();
+        List<ReplayReport.Flip> flips = Collections.synchronizedList(new ArrayList<>());
+        List<String> errorSamples = Collections.synchronizedList(new ArrayList<>());
+        AtomicLong flipped = new AtomicLong();
+        AtomicLong errors = new AtomicLong();
+        AtomicLong evaluated = new AtomicLong();
+        int permits = (int) Math.min(concurrency, (long) workers.size() * Math.max(1, concurrencyPerInstance));
+        Semaphore inFlight = new Semaphore(permits);
+
+        long lineNumber = 0;
+        long inputs = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(corpus, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isBlank()) {
+                    continue;
+                }
+                Worker worker = workers.get((int) (inputs++ % workers.size()));
+                long number = lineNumber;
+                String text = line;
+                inFlight.acquire();
+                try {
+                    executor.execute(() -> {
+                        try {
+                            Object input = parseInput(text);
+                            long t0 = System.nanoTime();
+                            Object current = worker.current.evaluate(input);
+                            long t1 = System.nanoTime();
+                            Object candidate = worker.candidate.evaluate(input);
+                            long t2 = System.nanoTime();
+                            currentLatency.add((t1 - t0) / 1000);
+                            candidateLatency.add((t2 - t1) / 1000);
+                            evaluated.incrementAndGet();
+                            if (!Objects.equals(current, candidate)) {
+                                if (flipped.incrementAndGet() <= maxFlips) {
+                                    flips.add(ReplayReport.Flip.builder()
+                                            .line(number)
+                                            .input(input)
+                                            .current(current)
+                                            .candidate(candidate)
+                                            .build());
+                                }
+                            }
+                        } catch (Exception e) {
+                            if (errors.incrementAndGet() <= ERROR_SAMPLES) {
+                                errorSamples.add("line " + number + ": " + e.getMessage());
+                            }
+                        } finally {
+                            inFlight.release();
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    inFlight.release();
+                    throw e;
+                }
+            }
+            // Wait for the tail of the corpus
+            inFlight.acquire(permits);
+        } catch (IOException e) {
+            throw new FunctionalException("Failed to read replay corpus: " + e.getMessage(), "FUNC_REPLAY_INVALID");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TechnicalException("Interrupted while replaying decisions", "TECH_REPLAY", e);
+        }
+
+        List<ReplayReport.Flip> sorted = new ArrayList<>(flips);
+        sorted.sort((a, b) -> Long.compare(a.getLine(), b.getLine()));
+        long durationMs = System.currentTimeMillis() - start;
+        log.info("Replayed {} inputs against bundles {} and {} in {} ms, {} flipped", inputs, bundleId,
+                candidateBundleId, durationMs, flipped.get());
+        return ReplayReport.builder()
+                .bundleId(bundleId)
+                .candidateBundleId(candidateBundleId)
+                .entrypoint(entrypoint)
+                .inputs(inputs)
+                .evaluated(evaluated.get())
+                .flipped(flipped.get())
+                .errors(errors.get())
+                .durationMs(durationMs)
+                .inputsPerMinute(durationMs > 0 ? inputs * 60_000 / durationMs : inputs)
+                .current(currentLatency.summary())
+                .candidate(candidateLatency.summary())
+                .flips(sorted)
+                .flipsTruncated(flipped.get() > maxFlips)
+                .errorSamples(new ArrayList<>(errorSamples))
+                .build();
+    }
+
+    private Object parseInput(String line) throws IOException {
+        Object value = objectMapper.readValue(line, Object.class);
+        // Decision log entries carry the input next to the result and metadata
+        if (value instanceof Map<?, ?> map && map.containsKey("decision_id") && map.containsKey("input")) {
+            return map.get("input");
+        }
+        return value;
+    }
+
+    private static class Worker implements AutoCloseable {
+        private final OpaClient.Lease lease;
+        private EvaluationService.LoadedBundle current;
+        private EvaluationService.LoadedBundle candidate;
+
+        Worker(OpaClient.Lease lease) {
+            this.lease = lease;
+        }
+
+        @Override
+        public void close() {
+            if (current != null) {
+                current.close();
+            }
+            if (candidate != null) {
+                candidate.close();
+            }
+            lease.close();
+        }
+    }
+
+    /**
+     * Latencies in microseconds, kept in a growing primitive array so large
+     * corpora do not box every sample.
+     */
+    private static class Latencies {
+        private long[] values = new long[1024];
+        private int size;
+
+        synchronized void add(long micros) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = micros;
+        }
+
+        synchronized ReplayReport.Latency summary() {
+            if (size == 0) {
+                return ReplayReport.Latency.builder().build();
+            }
+            long[] sorted = Arrays.copyOf(values, size);
+            Arrays.sort(sorted);
+            long sum = 0;
+            for (long value : sorted) {
+                sum += value;
+            }
+            return ReplayReport.Latency.builder()
+                    .mean(sum / size)
+                    .p50(percentile(sorted, 0.50))
+                    .p90(percentile(sorted, 0.90))
+                    .p99(percentile(sorted, 0.99))
+                    .max(sorted[size - 1])
+                    .build();
+        }
+
+        private static long percentile(long[] sorted, double p) {
+            return sorted[(int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1)];
+        }
+    }
+}
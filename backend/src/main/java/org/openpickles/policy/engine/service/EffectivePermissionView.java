@@ -0,0 +1,366 @@
+package org.openpickles.policy.engine.service;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.openpickles.policy.engine.event.EntitlementChangedEvent;
+import org.openpickles.policy.engine.event.UserMembershipChangedEvent;
+import org.openpickles.policy.engine.model.EffectivePermission;
+import org.openpickles.policy.engine.model.Entitlement;
+import org.openpickles.policy.engine.model.Group;
+import org.openpickles.policy.engine.model.ResourceIdRanges;
+import org.openpickles.policy.engine.model.Role;
+import org.openpickles.policy.engine.model.StringListConverter;
+import org.openpickles.policy.engine.model.User;
+import org.openpickles.policy.engine.repository.EffectivePermissionRepository;
+import org.openpickles.policy.engine.repository.EntitlementRepository;
+import org.openpickles.policy.engine.repository.UserRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Materialized effective permissions of every user: direct, role-derived and
+ * group-derived entitlements merged per (resource type, resource id, action),
+ * with DENY taking precedence over ALLOW. Pattern resource ids
+ * ({@code branch-12/*}) are kept as single rows rather than expanded, listing
+ * the ids DENY cuts out of them, and so are resource id ranges: one row per
+ * resource type, action and granting principal, with the denied ids cut out.
+ * <p>
+ * The view is rebuilt at startup and then maintained per user after each
+ * commit. An entitlement change only recomputes the users its principal (old
+ * and new) expands to, on a worker thread so a role or group with many members
+ * does not hold up the committing request; changes arriving meanwhile are
+ * recomputed together in the next batch. A user change only recomputes that
+ * user, right away. Recomputing a user replaces all of its rows in one
+ * transaction.
+ */
+@Component
+@Slf4j
+public class EffectivePermissionView {
+
+    private static final String DELETE_USER = "DELETE FROM effective_permissions WHERE user_id = ?";
+    private static final String INSERT_PERMISSION = "INSERT INTO effective_permissions "
+            + "(user_id, resource_type, resource_id, resource_id_ranges, except_resource_ids, "
+            + "except_resource_id_ranges, action, via) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final StringListConverter RESOURCE_ID_LIST = new StringListConverter();
+
+    @Autowired
+    private EffectivePermissionRepository permissionRepository;
+
+    @Autowired
+    private EntitlementRepository entitlementRepository;
+
+    @Autowired
+    private UserRepository userRepository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    // entitlement id -> principal, to find the users a removed or re-targeted row applied to
+    private final Map<Long, String> principalById = new ConcurrentHashMap<>();
+    // Recomputations read and write outside the committing transaction; the
+    // last one to take the lock sees the latest state
+    private final Object writeLock = new Object();
+
+    // Entitlements changed or removed since the last batch, guarded by itself
+    private final Set<Long> pendingChanged = new HashSet<>();
+    private final Set<Long> pendingRemoved = new HashSet<>();
+    private final ExecutorService recomputer = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "effective-permissions");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PreDestroy
+    public void shutdown() {
+        recomputer.shutdownNow();
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void rebuild() {
+        long start = System.currentTimeMillis();
+        int[] users = { 0 };
+        transactionTemplate().executeWithoutResult(status -> {
+            synchronized (writeLock) {
+                principalById.clear();
+                entitlementRepository.findAll().stream()
+                        .filter(e -> e.getSubjectType() != null)
+                        .forEach(e -> principalById.put(e.getId(), principal(e)));
+                jdbcTemplate.update("DELETE FROM effective_permissions");
+                for (User user : userRepository.findAll()) {
+                    write(user);
+                    users[0]++;
+                }
+            }
+        });
+        log.info("Effective permissions built for {} users in {}ms", users[0], System.currentTimeMillis() - start);
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onEntitlementChanged(EntitlementChangedEvent event) {
+        synchronized (pendingChanged) {
+            pendingChanged.addAll(event.getChangedIds());
+            pendingRemoved.addAll(event.getRemovedIds());
+        }
+        try {
+            // Queued runs after the first find nothing left to do
+            recomputer.execute(this::recomputePending);
+        } catch (RejectedExecutionException e) {
+            // Shutting down; the view is rebuilt on the next start
+        }
+    }
+
+    private void recomputePending() {
+        List<Long> changedIds;
+        List<Long> removedIds;
+        synchronized (pendingChanged) {
+            if (pendingChanged.isEmpty() && pendingRemoved.isEmpty()) {
+                return;
+            }
+            changedIds = new ArrayList<>(pendingChanged);
+            removedIds = new ArrayList<>(pendingRemoved);
+            pendingChanged.clear();
+            pendingRemoved.clear();
+        }
+        long start = System.currentTimeMillis();
+        int[] users = { 0 };
+        try {
+            transactionTemplate().executeWithoutResult(status -> users[0] = recompute(changedIds, removedIds));
+            log.debug("Effective permissions of {} users recomputed for {} entitlement changes in {}ms", users[0],
+                    changedIds.size() + removedIds.size(), System.currentTimeMillis() - start);
+        } catch (RuntimeException e) {
+            // Stale until the users' next change or the next start
+            log.error("Failed to recompute effective permissions for {} entitlement changes",
+                    changedIds.size() + removedIds.size(), e);
+        }
+    }
+
+    private int recompute(List<Long> changedIds, List<Long> removedIds) {
+        synchronized (writeLock) {
+            Set<String> principals = new HashSet<>();
+            for (Long id : removedIds) {
+                String previous = principalById.remove(id);
+                if (previous != null) {
+                    principals.add(previous);
+                }
+            }
+            for (Long id : changedIds) {
+                String previous = principalById.get(id);
+                if (previous != null) {
+                    principals.add(previous);
+                }
+            }
+            for (Entitlement e : entitlementRepository.findAllById(changedIds)) {
+                if (e.getSubjectType() == null) {
+                    continue;
+                }
+                principalById.put(e.getId(), principal(e));
+                principals.add(principal(e));
+            }
+
+            Map<Long, User> affected = new TreeMap<>();
+            for (String principal : principals) {
+                membersOf(principal).forEach(user -> affected.putIfAbsent(user.getId(), user));
+            }
+            affected.values().forEach(this::write);
+            return affected.size();
+        }
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onUserChanged(UserMembershipChangedEvent event) {
+        transactionTemplate().executeWithoutResult(status -> {
+            synchronized (writeLock) {
+                userRepository.findById(event.getUserId()).ifPresentOrElse(this::write,
+                        () -> jdbcTemplate.update(DELETE_USER, event.getUserId()));
+            }
+        });
+    }
+
+    /**
+     * A page of a user's effective permissions, optionally of one resource
+     * type, ordered by resource type, resource id and action.
+     */
+    public Page<EffectivePermission> permissionsOf(Long userId, String resourceType, Pageable pageable) {
+        if (resourceType != null) {
+            return permissionRepository.findByUserIdAndResourceTypeOrderByResourceIdAscActionAsc(userId,
+                    resourceType, pageable);
+        }
+        return permissionRepository.findByUserIdOrderByResourceTypeAscResourceIdAscActionAsc(userId, pageable);
+    }
+
+    private void write(User user) {
+        List<String> principals = new ArrayList<>();
+        principals.add(EntitlementIndex.principal(Entitlement.SubjectType.USER, user.getUsername()));
+        for (Role role : user.getRoles()) {
+            principals.add(EntitlementIndex.principal(Entitlement.SubjectType.ROLE, role.getName()));
+        }
+        for (Group group : user.getGroups()) {
+            principals.add(EntitlementIndex.principal(Entitlement.SubjectType.GROUP, group.getName()));
+        }
+
+        // (resourceType, resourceId, action) -> principals allowing it
+        Map<List<String>, Set<String>> allowed = new HashMap<>();
+        Set<List<String>> denied = new HashSet<>();
+        // (resourceType, action) -> prefixes of DENY patterns
+        Map<List<String>, ResourceIdTrie<Boolean>> deniedPatterns = new HashMap<>();
+        // (resourceType, action, principal) -> ALLOW ranges; (resourceType, action) -> numeric ids DENY covers
+        Map<List<String>, ResourceIdRanges> allowedRanges = new HashMap<>();
+        Map<List<String>, ResourceIdRanges> deniedRanges = new HashMap<>();
+        Map<List<String>, List<String>> deniedNumericIds = new HashMap<>();
+        // (resourceType, action) -> other ids and patterns DENY lists, and the numeric ids DENY lists or ranges,
+        // to note in the ALLOW patterns they fall in
+        Map<List<String>, List<String>> deniedListed = new HashMap<>();
+        Map<List<String>, ResourceIdRanges> deniedExplicitRanges = new HashMap<>();
+        for (Entitlement e : entitlementsOf(principals)) {
+            if (e.getResourceType() == null || !e.isActive()) {
+                continue;
+            }
+            boolean deny = e.getEffect() == Entitlement.Effect.DENY;
+            for (String action : e.getActions()) {
+                List<String> typeAction = List.of(e.getResourceType(), action);
+                for (String resourceId : e.getResourceIds()) {
+                    List<String> key = List.of(e.getResourceType(), resourceId, action);
+                    if (deny && ResourceIdTrie.isPattern(resourceId)) {
+                        deniedPatterns.computeIfAbsent(typeAction, k -> new ResourceIdTrie<>())
+                                .add(ResourceIdTrie.prefixOf(resourceId), true);
+                        deniedRanges.merge(typeAction, ResourceIdRanges.ofPrefix(ResourceIdTrie.prefixOf(resourceId)),
+                                ResourceIdRanges::union);
+                        deniedListed.computeIfAbsent(typeAction, k -> new ArrayList<>()).add(resourceId);
+                    } else if (deny) {
+                        denied.add(key);
+                        if (ResourceIdRanges.isNumeric(resourceId)) {
+                            deniedNumericIds.computeIfAbsent(typeAction, k -> new ArrayList<>()).add(resourceId);
+                        } else {
+                            deniedListed.computeIfAbsent(typeAction, k -> new ArrayList<>()).add(resourceId);
+                        }
+                    } else {
+                        allowed.computeIfAbsent(key, k -> new TreeSet<>()).add(principal(e));
+                    }
+                }
+                if (e.getResourceIdRanges() != null && !e.getResourceIdRanges().isEmpty()) {
+                    if (deny) {
+                        deniedRanges.merge(typeAction, e.getResourceIdRanges(), ResourceIdRanges::union);
+                        deniedExplicitRanges.merge(typeAction, e.getResourceIdRanges(), ResourceIdRanges::union);
+                    } else {
+                        allowedRanges.merge(List.of(e.getResourceType(), action, principal(e)),
+                                e.getResourceIdRanges(), ResourceIdRanges::union);
+                    }
+                }
+            }
+        }
+        deniedNumericIds.forEach((typeAction, ids) -> {
+            deniedRanges.merge(typeAction, ResourceIdRanges.ofIds(ids), ResourceIdRanges::union);
+            deniedExplicitRanges.merge(typeAction, ResourceIdRanges.ofIds(ids), ResourceIdRanges::union);
+        });
+        allowed.keySet().removeAll(denied);
+        if (!deniedRanges.isEmpty()) {
+            allowed.keySet().removeIf(key -> {
+                ResourceIdRanges ranges = deniedRanges.get(List.of(key.get(0), key.get(2)));
+                return ranges != null && ranges.contains(key.get(1));
+            });
+        }
+        // A DENY pattern removes the ids and the narrower patterns it covers;
+        // an ALLOW pattern only partly denied stays, with the exceptions noted below
+        if (!deniedPatterns.isEmpty()) {
+            allowed.keySet().removeIf(key -> {
+                ResourceIdTrie<Boolean> patterns = deniedPatterns.get(List.of(key.get(0), key.get(2)));
+                boolean[] covered = { false };
+                if (patterns != null) {
+                    patterns.forEachMatch(key.get(1), match -> covered[0] = true);
+                }
+                return covered[0];
+            });
+        }
+
+        List<Object[]> rows = new ArrayList<>(allowed.size() + allowedRanges.size());
+        allowed.forEach((key, via) -> {
+            String exceptIds = null;
+            String exceptRanges = null;
+            if (ResourceIdTrie.isPattern(key.get(1))) {
+                List<String> typeAction = List.of(key.get(0), key.get(2));
+                String prefix = ResourceIdTrie.prefixOf(key.get(1));
+                // Patterns as wide as this one removed it above, so the ones left are narrower
+                exceptIds = RESOURCE_ID_LIST.convertToDatabaseColumn(
+                        deniedListed.getOrDefault(typeAction, List.of()).stream()
+                                .filter(id -> (ResourceIdTrie.isPattern(id) ? ResourceIdTrie.prefixOf(id) : id)
+                                        .startsWith(prefix))
+                                .sorted()
+                                .distinct()
+                                .toList());
+                ResourceIdRanges explicit = deniedExplicitRanges.get(typeAction);
+                ResourceIdRanges covered = ResourceIdRanges.ofPrefix(prefix);
+                ResourceIdRanges except = explicit != null ? covered.minus(covered.minus(explicit))
+                        : ResourceIdRanges.EMPTY;
+                exceptRanges = except.isEmpty() ? null : except.format();
+            }
+            rows.add(new Object[] { user.getId(), key.get(0), key.get(1), null, exceptIds, exceptRanges, key.get(2),
+                    String.join(",", via) });
+        });
+        allowedRanges.forEach((key, ranges) -> {
+            ResourceIdRanges deniedIds = deniedRanges.get(List.of(key.get(0), key.get(1)));
+            ResourceIdRanges remaining = deniedIds != null ? ranges.minus(deniedIds) : ranges;
+            if (!remaining.isEmpty()) {
+                rows.add(new Object[] { user.getId(), key.get(0), null, remaining.format(), null, null, key.get(1),
+                        key.get(2) });
+            }
+        });
+        jdbcTemplate.update(DELETE_USER, user.getId());
+        if (!rows.isEmpty()) {
+            jdbcTemplate.batchUpdate(INSERT_PERMISSION, rows);
+        }
+    }
+
+    private List<Entitlement> entitlementsOf(List<String> principals) {
+        List<Entitlement> entitlements = new ArrayList<>();
+        for (String principal : principals) {
+            int colon = principal.indexOf(':');
+            entitlements.addAll(entitlementRepository.findBySubjectTypeAndSubjectId(
+                    Entitlement.SubjectType.valueOf(principal.substring(0, colon)), principal.substring(colon + 1)));
+        }
+        return entitlements;
+    }
+
+    private List<User> membersOf(String principal) {
+        int colon = principal.indexOf(':');
+        String name = principal.substring(colon + 1);
+        return switch (Entitlement.SubjectType.valueOf(principal.substring(0, colon))) {
+            case USER -> userRepository.findByUsername(name).map(List::of).orElse(List.of());
+            case ROLE -> userRepository.findByRoles_Name(name);
+            case GROUP -> userRepository.findByGroups_Name(name);
+        };
+    }
+
+    private static String principal(Entitlement e) {
+        return EntitlementIndex.principal(e.getSubjectType(), e.getSubjectId());
+    }
+
+    private TransactionTemplate transactionTemplate() {
+        TransactionTemplate template = new TransactionTemplate(transactionManager);
+        template.setPropagationBehavior(TransactionTemplate.PROPAGATION_REQUIRES_NEW);
+        return template;
+    }
+}
@@ -0,0 +1,464 @@
+package org.openpickles.policy.engine.service;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import lombok.extern.slf4j.Slf4j;
+import org.openpickles.policy.engine.dto.EntitlementSyncResult;
+import org.openpickles.policy.engine.event.EntitlementChangedEvent;
+import org.openpickles.policy.engine.exception.TechnicalException;
+import org.openpickles.policy.engine.model.Entitlement;
+import org.openpickles.policy.engine.model.ResourceIdRangesConverter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Writes entitlements by business key (resource type, subject type, subject
+ * id) with plain JDBC batches instead of one JPA lookup and save per row.
+ * <p>
+ * The existing rows of a batch and their collections are loaded with three
+ * {@code IN} queries, diffed in memory, and the inserts, updates and
+ * collection changes are sent as JDBC batches. Rows whose effect, validity
+ * window, resource ids, resource id ranges and actions are unchanged are not
+ * written at all. Since JPA entity listeners do not see these writes, each
+ * transaction publishes one {@link EntitlementChangedEvent} for its changed
+ * rows itself.
+ * <p>
+ * Concurrent syncs are kept apart at two levels. Within a node, a chunk is
+ * written in one transaction while holding a lock per business key it
+ * contains, so syncs of the same key serialize while syncs of disjoint keys
+ * proceed in parallel. Across nodes, the unique business
+ * key of synced rows and their version column turn a racing insert or update
+ * into a conflict, and the chunk is retried up to
+ * {@code policy.engine.entitlements.sync.max-attempts} times against the then
+ * current rows.
+ */
+@Component
+@Slf4j
+public class EntitlementBulkWriter {
+
+    private static final String SELECT_EXISTING = "SELECT id, resource_type, subject_type, subject_id, effect, "
+            + "valid_from, valid_until, resource_id_ranges, business_key, version FROM entitlements ";
+    private static final String INSERT_ENTITLEMENT = "INSERT INTO entitlements "
+            + "(resource_type, subject_type, subject_id, effect, valid_from, valid_until, active, resource_id_ranges, "
+            + "last_modified_at, sync_token, business_key, version) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, 0)";
+    private static final String UPDATE_ENTITLEMENT = "UPDATE entitlements SET effect = ?, valid_from = ?, "
+            + "valid_until = ?, active = ?, resource_id_ranges = ?, last_modified_at = ?, business_key = ?, "
+            + "version = version + 1 WHERE id = ? AND version = ?";
+
+    private static final ResourceIdRangesConverter RANGES = new ResourceIdRangesConverter();
+    private static final long MAX_BACKOFF_MS = 200;
+
+    @Value("${policy.engine.entitlements.sync.max-attempts:5}")
+    private int maxAttempts;
+
+    @Autowired
+    private NamedParameterJdbcTemplate jdbc;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Autowired
+    private ApplicationEventPublisher eventPublisher;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    private final KeyLocks<String> locks = new KeyLocks<>();
+
+    /**
+     * Upserts one chunk. Outside a transaction the chunk is written as one
+     * transaction, retried on conflict, while holding the locks of its keys. Inside the caller's transaction it is written once, as part of that
+     * transaction. Either way the chunk is committed or rolled back as a whole.
+     *
+     * @param chunk     entitlements with distinct business keys
+     * @param syncToken token of the snapshot sync the chunk belongs to, stamped
+     *                  on every row of the chunk; null outside snapshots
+     * @return the inserted, updated and unchanged counts of the chunk
+     */
+    public EntitlementSyncResult upsert(Collection<Entitlement> chunk, String syncToken) {
+        if (TransactionSynchronizationManager.isActualTransactionActive()) {
+            // Locks would be released before the caller commits, and a failed write cannot be retried in it
+            return write(chunk, syncToken);
+        }
+        List<String> keys = new ArrayList<>(chunk.size());
+        for (Entitlement e : chunk) {
+            keys.add(Entitlement.businessKey(e.getResourceType(), e.getSubjectType(), e.getSubjectId()));
+        }
+        try (KeyLocks<String>.Held held = locks.lockAll(keys)) {
+            return writeWithRetry(chunk, syncToken);
+        }
+    }
+
+    /**
+     * Writes the rows in a transaction of their own, starting over with the
+     * then current rows when another writer got to one of their keys first.
+     */
+    private EntitlementSyncResult writeWithRetry(Collection<Entitlement> rows, String syncToken) {
+        for (int attempt = 1;; attempt++) {
+            try {
+                return new TransactionTemplate(transactionManager).execute(status -> write(rows, syncToken));
+            } catch (DuplicateKeyException | ConcurrencyFailureException e) {
+                if (attempt >= maxAttempts) {
+                    throw new TechnicalException("Entitlements kept conflicting with concurrent writes after "
+                            + attempt + " attempts", "TECH_SYNC_CONFLICT", e);
+                }
+                log.debug("Sync of {} entitlements conflicted (attempt {}), retrying: {}", rows.size(), attempt,
+                        e.getMessage());
+                backoff(attempt);
+            }
+        }
+    }
+
+    private EntitlementSyncResult write(Collection<Entitlement> chunk, String syncToken) {
+        // Pending JPA changes must be visible to the queries below
+        entityManager.flush();
+
+        Map<List<Object>, Entitlement> incoming = new LinkedHashMap<>();
+        chunk.forEach(e -> incoming.put(key(e.getResourceType(), e.getSubjectType(), e.getSubjectId()), e));
+        Map<List<Object>, Row> existing = loadExisting(incoming);
+
+        Instant now = Instant.now();
+        List<Entitlement> inserts = new ArrayList<>();
+        List<Object[]> updates = new ArrayList<>();
+        List<Object[]> stamps = new ArrayList<>();
+        List<Object[]> adoptions = new ArrayList<>();
+        List<Object[]> resourceIdInserts = new ArrayList<>();
+        List<Object[]> resourceIdDeletes = new ArrayList<>();
+        List<Object[]> actionInserts = new ArrayList<>();
+        List<Object[]> actionDeletes = new ArrayList<>();
+        Set<Long> changedIds = new HashSet<>();
+        Set<String> changedTypes = new HashSet<>();
+        int unchanged = 0;
+
+        for (Map.Entry<List<Object>, Entitlement> entry : incoming.entrySet()) {
+            Entitlement e = entry.getValue();
+            Row row = existing.get(entry.getKey());
+            if (row == null) {
+                inserts.add(e);
+                continue;
+            }
+            if (syncToken != null) {
+                stamps.add(new Object[] { syncToken, row.id });
+            }
+            String businessKey = Entitlement.businessKey(e.getResourceType(), e.getSubjectType(), e.getSubjectId());
+            Set<String> resourceIds = nonNull(e.getResourceIds());
+            Set<String> actions = nonNull(e.getActions());
+            String effect = e.getEffect() != null ? e.getEffect().name() : null;
+            String ranges = RANGES.convertToDatabaseColumn(e.getResourceIdRanges());
+            if (Objects.equals(effect, row.effect) && Objects.equals(e.getValidFrom(), row.validFrom)
+                    && Objects.equals(e.getValidUntil(), row.validUntil) && resourceIds.equals(row.resourceIds)
+                    && Objects.equals(ranges, row.resourceIdRanges) && actions.equals(row.actions)) {
+                if (row.businessKey == null) {
+                    adoptions.add(new Object[] { businessKey, row.id, row.version });
+                }
+                unchanged++;
+                continue;
+            }
+            updates.add(new Object[] { effect, timestamp(e.getValidFrom()), timestamp(e.getValidUntil()),
+                    e.isActiveAt(now), ranges, Timestamp.from(now), businessKey, row.id, row.version });
+            diff(row.id, row.resourceIds, resourceIds, resourceIdInserts, resourceIdDeletes);
+            diff(row.id, row.actions, actions, actionInserts, actionDeletes);
+            changedIds.add(row.id);
+            changedTypes.add(e.getResourceType());
+        }
+
+        List<Long> insertedIds = insert(inserts, now, syncToken);
+        for (int i = 0; i < inserts.size(); i++) {
+            Long id = insertedIds.get(i);
+            nonNull(inserts.get(i).getResourceIds()).forEach(r -> resourceIdInserts.add(new Object[] { id, r }));
+            nonNull(inserts.get(i).getActions()).forEach(a -> actionInserts.add(new Object[] { id, a }));
+            changedIds.add(id);
+            changedTypes.add(inserts.get(i).getResourceType());
+        }
+
+        versionedBatch(UPDATE_ENTITLEMENT, updates);
+        versionedBatch("UPDATE entitlements SET business_key = ?, version = version + 1 WHERE id = ? AND version = ?",
+                adoptions);
+        batch("UPDATE entitlements SET sync_token = ? WHERE id = ?", stamps);
+        batch("DELETE FROM entitlement_resource_ids WHERE entitlement_id = ? AND resource_id = ?",
+                resourceIdDeletes);
+        batch("INSERT INTO entitlement_resource_ids (entitlement_id, resource_id) VALUES (?, ?)",
+                resourceIdInserts);
+        batch("DELETE FROM entitlement_actions WHERE entitlement_id = ? AND action = ?", actionDeletes);
+        batch("INSERT INTO entitlement_actions (entitlement_id, action) VALUES (?, ?)", actionInserts);
+
+        if (!changedIds.isEmpty()) {
+            eventPublisher.publishEvent(new EntitlementChangedEvent(changedIds, List.of(), changedTypes));
+        }
+        // Entities already loaded in this persistence context are stale now
+        entityManager.clear();
+
+        return EntitlementSyncResult.builder()
+                .received(chunk.size())
+                .inserted(inserts.size())
+                .updated(updates.size())
+                .unchanged(unchanged)
+                .chunks(1)
+                .build();
+    }
+
+    private static void backoff(int attempt) {
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(1, Math.min(MAX_BACKOFF_MS, 10L << attempt)));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TechnicalException("Interrupted while retrying an entitlement sync", "TECH_SYNC_CONFLICT", e);
+        }
+    }
+
+    /**
+     * Deletes the rows of the given resource types that the snapshot sync
+     * {@code syncToken} did not write, {@code chunkSize} rows per transaction.
+     *
+     * @return the number of deleted rows
+     */
+    public int deleteUnsynced(Collection<String> resourceTypes, String syncToken, int chunkSize) {
+        if (resourceTypes.isEmpty()) {
+            return 0;
+        }
+        MapSqlParameterSource params = new MapSqlParameterSource()
+                .addValue("resourceTypes", resourceTypes)
+                .addValue("syncToken", syncToken)
+                .addValue("limit", chunkSize);
+        int deleted = 0;
+        while (true) {
+            Integer count = new TransactionTemplate(transactionManager).execute(status -> {
+                entityManager.flush();
+                List<Long> ids = new ArrayList<>();
+                Set<String> types = new HashSet<>();
+                jdbc.query("SELECT id, resource_type FROM entitlements WHERE resource_type IN (:resourceTypes) "
+                        + "AND (sync_token IS NULL OR sync_token <> :syncToken) ORDER BY id LIMIT :limit", params,
+                        rs -> {
+                            ids.add(rs.getLong(1));
+                            types.add(rs.getString(2));
+                        });
+                if (ids.isEmpty()) {
+                    return 0;
+                }
+                MapSqlParameterSource idParams = new MapSqlParameterSource("ids", ids);
+                jdbc.update("DELETE FROM entitlement_resource_ids WHERE entitlement_id IN (:ids)", idParams);
+                jdbc.update("DELETE FROM entitlement_actions WHERE entitlement_id IN (:ids)", idParams);
+                jdbc.update("DELETE FROM entitlements WHERE id IN (:ids)", idParams);
+                eventPublisher.publishEvent(new EntitlementChangedEvent(List.of(), ids, types));
+                entityManager.clear();
+                return ids.size();
+            });
+            if (count == null || count == 0) {
+                return deleted;
+            }
+            deleted += count;
+        }
+    }
+
+    static List<Object> key(String resourceType, Entitlement.SubjectType subjectType, String subjectId) {
+        return List.of(resourceType, subjectType, subjectId);
+    }
+
+    /**
+     * Existing rows for the incoming business keys: the row holding the key,
+     * or else the oldest row with the key created through the CRUD API, which
+     * the sync then adopts.
+     */
+    private Map<List<Object>, Row> loadExisting(Map<List<Object>, Entitlement> incoming) {
+        Map<List<Object>, Row> existing = new HashMap<>();
+        RowCallbackHandler collect = rs -> {
+            String subjectType = rs.getString("subject_type");
+            if (subjectType == null) {
+                return;
+            }
+            List<Object> key = key(rs.getString("resource_type"),
+                    Entitlement.SubjectType.valueOf(subjectType), rs.getString("subject_id"));
+            if (incoming.containsKey(key) && !existing.containsKey(key)) {
+                existing.put(key, new Row(rs.getLong("id"), rs.getString("effect"),
+                        instant(rs.getTimestamp("valid_from")), instant(rs.getTimestamp("valid_until")),
+                        rs.getString("resource_id_ranges"), rs.getString("business_key"), rs.getLong("version")));
+            }
+        };
+
+        // Looked up through the unique index on business_key
+        Set<String> businessKeys = new HashSet<>();
+        incoming.values().forEach(e -> businessKeys.add(
+                Entitlement.businessKey(e.getResourceType(), e.getSubjectType(), e.getSubjectId())));
+        jdbc.query(SELECT_EXISTING + "WHERE business_key IN (:businessKeys)",
+                new MapSqlParameterSource("businessKeys", businessKeys), collect);
+
+        // Rows without a business key (written before business keys existed, or
+        // through the CRUD API, which never sets one) are adopted by the first
+        // sync of their key. CRUD keeps adding such rows, so they are looked up
+        // through the (subject_id, business_key) index rather than a scan.
+        Set<String> subjectIds = new HashSet<>();
+        incoming.forEach((key, e) -> {
+            if (!existing.containsKey(key)) {
+                subjectIds.add(e.getSubjectId());
+            }
+        });
+        if (!subjectIds.isEmpty()) {
+            jdbc.query(SELECT_EXISTING + "WHERE business_key IS NULL AND subject_id IN (:subjectIds) ORDER BY id",
+                    new MapSqlParameterSource("subjectIds", subjectIds), collect);
+        }
+        if (existing.isEmpty()) {
+            return existing;
+        }
+
+        Map<Long, Row> byId = new HashMap<>();
+        existing.values().forEach(row -> byId.put(row.id, row));
+        MapSqlParameterSource ids = new MapSqlParameterSource("ids", byId.keySet());
+        jdbc.query("SELECT entitlement_id, resource_id FROM entitlement_resource_ids WHERE entitlement_id IN (:ids)",
+                ids, rs -> {
+                    byId.get(rs.getLong(1)).resourceIds.add(rs.getString(2));
+                });
+        jdbc.query("SELECT entitlement_id, action FROM entitlement_actions WHERE entitlement_id IN (:ids)",
+                ids, rs -> {
+                    byId.get(rs.getLong(1)).actions.add(rs.getString(2));
+                });
+        return existing;
+    }
+
+    /**
+     * Inserts the rows as one batch.
+     *
+     * @return the generated ids, in the order of {@code inserts}
+     */
+    private List<Long> insert(List<Entitlement> inserts, Instant now, String syncToken) {
+        if (inserts.isEmpty()) {
+            return List.of();
+        }
+        List<Long> ids = jdbc.getJdbcTemplate().execute((ConnectionCallback<List<Long>>) connection -> {
+            try (PreparedStatement ps = connection.prepareStatement(INSERT_ENTITLEMENT, new String[] { "id" })) {
+                for (Entitlement e : inserts) {
+                    ps.setString(1, e.getResourceType());
+                    ps.setString(2, e.getSubjectType().name());
+                    ps.setString(3, e.getSubjectId());
+                    ps.setString(4, e.getEffect() != null ? e.getEffect().name() : null);
+                    ps.setTimestamp(5, timestamp(e.getValidFrom()));
+                    ps.setTimestamp(6, timestamp(e.getValidUntil()));
+                    ps.setBoolean(7, e.isActiveAt(now));
+                    ps.setString(8, RANGES.convertToDatabaseColumn(e.getResourceIdRanges()));
+                    ps.setTimestamp(9, Timestamp.from(now));
+                    ps.setString(10, syncToken);
+                    ps.setString(11, Entitlement.businessKey(e.getResourceType(), e.getSubjectType(),
+                            e.getSubjectId()));
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+                List<Long> generated = new ArrayList<>(inserts.size());
+                try (ResultSet keys = ps.getGeneratedKeys()) {
+                    while (keys.next()) {
+                        generated.add(keys.getLong(1));
+                    }
+                }
+                return generated;
+            }
+        });
+        if (ids == null || ids.size() != inserts.size()) {
+            throw new TechnicalException("JDBC driver returned " + (ids == null ? 0 : ids.size())
+                    + " generated keys for " + inserts.size() + " inserted entitlements", "TECH_SYNC_KEYS");
+        }
+        return ids;
+    }
+
+    private void batch(String sql, List<Object[]> args) {
+        if (!args.isEmpty()) {
+            jdbc.getJdbcTemplate().batchUpdate(sql, args);
+        }
+    }
+
+    /**
+     * Runs updates whose last two parameters are the id and the version the
+     * row was read with, failing if any row has been written since.
+     */
+    private void versionedBatch(String sql, List<Object[]> args) {
+        if (args.isEmpty()) {
+            return;
+        }
+        int[] counts = jdbc.getJdbcTemplate().batchUpdate(sql, args);
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] == 0) {
+                Object[] row = args.get(i);
+                throw new OptimisticLockingFailureException("Entitlement " + row[row.length - 2]
+                        + " was changed concurrently since version " + row[row.length - 1]);
+            }
+        }
+    }
+
+    private static void diff(Long id, Set<String> current, Set<String> target, List<Object[]> inserts,
+            List<Object[]> deletes) {
+        for (String value : current) {
+            if (!target.contains(value)) {
+                deletes.add(new Object[] { id, value });
+            }
+        }
+        for (String value : target) {
+            if (!current.contains(value)) {
+                inserts.add(new Object[] { id, value });
+            }
+        }
+    }
+
+    private static Set<String> nonNull(Set<String> values) {
+        return values != null ? values : Set.of();
+    }
+
+    private static Timestamp timestamp(Instant instant) {
+        return instant != null ? Timestamp.from(instant) : null;
+    }
+
+    private static Instant instant(Timestamp timestamp) {
+        return timestamp != null ? timestamp.toInstant() : null;
+    }
+
+    /**
+     * The columns of an existing row the diff looks at.
+     */
+    private static final class Row {
+        private final Long id;
+        private final String effect;
+        private final Instant validFrom;
+        private final Instant validUntil;
+        // In storage form, compared as text
+        private final String resourceIdRanges;
+        // Null until a sync adopts the row
+        private final String businessKey;
+        private final long version;
+        private final Set<String> resourceIds = new HashSet<>();
+        private final Set<String> actions = new HashSet<>();
+
+        Row(Long id, String effect, Instant validFrom, Instant validUntil, String resourceIdRanges,
+                String businessKey, long version) {
+            this.id = id;
+            this.effect = effect;
+            this.validFrom = validFrom;
+            this.validUntil = validUntil;
+            this.resourceIdRanges = resourceIdRanges;
+            this.businessKey = businessKey;
+            this.version = version;
+        }
+    }
+}
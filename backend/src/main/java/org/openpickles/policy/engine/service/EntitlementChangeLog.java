@@ -0,0 +1,228 @@
+package org.openpickles.policy.engine.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.openpickles.policy.engine.dto.EntitlementChangeFeed;
+import org.openpickles.policy.engine.event.EntitlementChangedEvent;
+import org.openpickles.policy.engine.exception.FunctionalException;
+import org.openpickles.policy.engine.model.Entitlement;
+import org.openpickles.policy.engine.model.EntitlementChange;
+import org.openpickles.policy.engine.repository.EntitlementChangeRepository;
+import org.openpickles.policy.engine.repository.EntitlementRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Append-only log of entitlement changes behind the incremental sync feed.
+ * <p>
+ * Every {@link EntitlementChangedEvent} (JPA writes through the entity
+ * listener, bulk syncs through the bulk writer) is appended with JDBC inside
+ * the transaction that made the change, so a change and its log entry commit
+ * or roll back together. The listener is synchronous on purpose: JPA updates
+ * are only flushed, and their events published, while the transaction
+ * commits, after before-commit callbacks have run.
+ * <p>
+ * Sequence numbers come from the single {@code entitlement_change_sequence}
+ * row, updated in the same transaction. Its row lock is held until commit, so
+ * writers on every replica take their sequences in commit order: every entry
+ * up to the committed counter is committed, and the feed serves nothing past
+ * it (the "horizon"). The price is that writers serialize from their first
+ * logged change until they commit, which is the tail of their transaction.
+ * <p>
+ * Entries older than the retention are pruned; a cursor from before the
+ * retained range is rejected so that its consumer bootstraps again.
+ */
+@Slf4j
+@Component
+public class EntitlementChangeLog {
+
+    private static final String INSERT_CHANGE = "INSERT INTO entitlement_changes "
+            + "(id, entitlement_id, operation, changed_at) VALUES (?, ?, ?, ?)";
+
+    private static final String UPSERT = EntitlementChange.Operation.UPSERT.name();
+    private static final String DELETE = EntitlementChange.Operation.DELETE.name();
+    private static final long PRUNE_INTERVAL_MS = 600_000;
+
+    @Value("${policy.engine.sync.changes.max-limit:10000}")
+    private int maxLimit;
+
+    @Value("${policy.engine.sync.changes.retention-ms:604800000}")
+    private long retentionMs;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private EntitlementChangeRepository changeRepository;
+
+    @Autowired
+    private EntitlementRepository entitlementRepository;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private ScheduledExecutorService pruner;
+
+    @PostConstruct
+    public void init() {
+        try {
+            // Entries logged before the sequence row existed carry identity values
+            jdbcTemplate.update("INSERT INTO entitlement_change_sequence (id, last_sequence, pruned_through) "
+                    + "SELECT 1, COALESCE(MAX(id), 0), 0 FROM entitlement_changes "
+                    + "WHERE NOT EXISTS (SELECT 1 FROM entitlement_change_sequence)");
+        } catch (DuplicateKeyException e) {
+            // Another replica created it first
+        }
+        if (retentionMs > 0) {
+            pruner = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "entitlement-change-pruner");
+                thread.setDaemon(true);
+                return thread;
+            });
+            pruner.scheduleWithFixedDelay(this::pruneSafely, PRUNE_INTERVAL_MS, PRUNE_INTERVAL_MS,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (pruner != null) {
+            pruner.shutdownNow();
+        }
+    }
+
+    @EventListener
+    public void onEntitlementChanged(EntitlementChangedEvent event) {
+        Timestamp now = Timestamp.from(Instant.now());
+        List<Object[]> rows = new ArrayList<>();
+        event.getChangedIds().forEach(id -> rows.add(new Object[] { null, id, UPSERT, now }));
+        event.getRemovedIds().forEach(id -> rows.add(new Object[] { null, id, DELETE, now }));
+        if (rows.isEmpty()) {
+            return;
+        }
+
+        // Waits for the writers that took sequences before and have not committed yet
+        jdbcTemplate.update("UPDATE entitlement_change_sequence SET last_sequence = last_sequence + ? WHERE id = 1",
+                rows.size());
+        long last = jdbcTemplate.queryForObject("SELECT last_sequence FROM entitlement_change_sequence WHERE id = 1",
+                Long.class);
+        for (int i = 0; i < rows.size(); i++) {
+            rows.get(i)[0] = last - rows.size() + 1 + i;
+        }
+        jdbcTemplate.batchUpdate(INSERT_CHANGE, rows);
+    }
+
+    /**
+     * The first sequence that may not be served yet: every entry below it is
+     * either committed or gone for good.
+     */
+    public long horizon() {
+        return jdbcTemplate.queryForObject("SELECT last_sequence FROM entitlement_change_sequence WHERE id = 1",
+                Long.class) + 1;
+    }
+
+    /**
+     * Drops the entries logged before {@code before}.
+     *
+     * @return the number of dropped entries
+     */
+    public int prune(Instant before) {
+        TransactionTemplate template = new TransactionTemplate(transactionManager);
+        Integer pruned = template.execute(status -> {
+            Long through = jdbcTemplate.queryForObject("SELECT MAX(id) FROM entitlement_changes WHERE changed_at < ?",
+                    Long.class, Timestamp.from(before));
+            if (through == null) {
+                return 0;
+            }
+            // Committed together with the delete, so a reader that misses entries also sees why
+            jdbcTemplate.update("UPDATE entitlement_change_sequence SET pruned_through = ? "
+                    + "WHERE id = 1 AND pruned_through < ?", through, through);
+            return jdbcTemplate.update("DELETE FROM entitlement_changes WHERE id <= ?", through);
+        });
+        return pruned != null ? pruned : 0;
+    }
+
+    /**
+     * Changes after {@code since}, oldest first, each with the current state
+     * of its row.
+     */
+    public EntitlementChangeFeed changesSince(long since, int limit) {
+        if (since < 0 || limit < 1 || limit > maxLimit) {
+            throw new FunctionalException("since must be >= 0 and limit between 1 and " + maxLimit,
+                    "FUNC_SYNC_CURSOR");
+        }
+        long horizon = horizon();
+        List<EntitlementChange> entries = changeRepository.findByIdGreaterThanAndIdLessThanOrderByIdAsc(since,
+                horizon, PageRequest.of(0, limit + 1));
+        // Read after the entries: a prune that removed some of them is visible by now
+        long prunedThrough = jdbcTemplate.queryForObject("SELECT pruned_through FROM entitlement_change_sequence "
+                + "WHERE id = 1", Long.class);
+        if (since < prunedThrough) {
+            throw new FunctionalException("Changes up to " + prunedThrough + " are no longer retained; "
+                    + "bootstrap again from GET /api/v1/sync/entitlements", "FUNC_SYNC_CURSOR_EXPIRED");
+        }
+        boolean hasMore = entries.size() > limit;
+        if (hasMore) {
+            entries = entries.subList(0, limit);
+        }
+
+        Set<Long> upserted = new HashSet<>();
+        entries.stream()
+                .filter(e -> e.getOperation() == EntitlementChange.Operation.UPSERT)
+                .forEach(e -> upserted.add(e.getEntitlementId()));
+        Map<Long, Entitlement> current = entitlementRepository.findAllById(upserted).stream()
+                .collect(Collectors.toMap(Entitlement::getId, Function.identity()));
+
+        List<EntitlementChangeFeed.Change> changes = entries.stream()
+                .map(e -> EntitlementChangeFeed.Change.builder()
+                        .sequence(e.getId())
+                        .entitlementId(e.getEntitlementId())
+                        .operation(e.getOperation())
+                        .changedAt(e.getChangedAt())
+                        .entitlement(e.getOperation() == EntitlementChange.Operation.UPSERT
+                                ? current.get(e.getEntitlementId())
+                                : null)
+                        .build())
+                .toList();
+
+        // Without more entries everything below the horizon has been seen
+        long nextCursor = hasMore ? entries.get(entries.size() - 1).getId() : Math.max(since, horizon - 1);
+        return EntitlementChangeFeed.builder()
+                .changes(changes)
+                .nextCursor(nextCursor)
+                .hasMore(hasMore)
+                .build();
+    }
+
+    private void pruneSafely() {
+        try {
+            int pruned = prune(Instant.now().minusMillis(retentionMs));
+            if (pruned > 0) {
+                log.info("Pruned {} entitlement changes older than {} ms", pruned, retentionMs);
+            }
+        } catch (Exception e) {
+            log.error("Failed to prune entitlement changes", e);
+        }
+    }
+}
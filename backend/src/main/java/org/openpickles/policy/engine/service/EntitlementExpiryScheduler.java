@@ -0,0 +1,263 @@
+package org.openpickles.policy.engine.service;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.openpickles.policy.engine.event.BundleUpdateEvents;
+import org.openpickles.policy.engine.event.EntitlementChangedEvent;
+import org.openpickles.policy.engine.event.EntitlementValidityChangedEvent;
+import org.openpickles.policy.engine.event.EventPublisher;
+import org.openpickles.policy.engine.model.Entitlement;
+import org.openpickles.policy.engine.model.PolicyBinding;
+import org.openpickles.policy.engine.model.PolicyBundle;
+import org.openpickles.policy.engine.repository.PolicyBindingRepository;
+import org.openpickles.policy.engine.repository.PolicyBundleRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens and closes entitlement validity windows ({@code validFrom},
+ * {@code validUntil}) by flipping the {@code active} flag that the check
+ * index, the effective-permission view and bundles read.
+ * <p>
+ * Pending transitions live in a {@link TimingWheel}: they are loaded once at
+ * startup through the validity indexes and added after each commit for the
+ * written rows, so no tick ever scans the table. Every tick applies all of its
+ * due flips in one transaction, publishes one change event for them and sends
+ * one update notification per affected bundle.
+ */
+@Component
+@Slf4j
+public class EntitlementExpiryScheduler {
+
+    private static final int ID_BATCH = 1000;
+
+    @Value("${policy.engine.entitlements.validity.tick-ms:1000}")
+    private long tickMs;
+
+    @Autowired
+    private NamedParameterJdbcTemplate jdbc;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Autowired
+    private ApplicationEventPublisher applicationEventPublisher;
+
+    @Autowired
+    private EventPublisher eventPublisher;
+
+    @Autowired
+    private BundleUpdateEvents bundleUpdateEvents;
+
+    @Autowired
+    private PolicyBindingRepository bindingRepository;
+
+    @Autowired
+    private PolicyBundleRepository bundleRepository;
+
+    private TimingWheel wheel;
+    private ScheduledExecutorService ticker;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            wheel = new TimingWheel(tickMs, now);
+        }
+        MapSqlParameterSource params = new MapSqlParameterSource("now", new Timestamp(now));
+        // Transitions missed while the service was down are due right away
+        List<Long> stale = new ArrayList<>();
+        stale.addAll(jdbc.queryForList("SELECT id FROM entitlements WHERE active = TRUE AND valid_until <= :now",
+                params, Long.class));
+        stale.addAll(jdbc.queryForList("SELECT id FROM entitlements WHERE active = FALSE AND valid_from <= :now "
+                + "AND (valid_until IS NULL OR valid_until > :now)", params, Long.class));
+        synchronized (this) {
+            stale.forEach(id -> wheel.schedule(id, now));
+            jdbc.query("SELECT id, valid_from FROM entitlements WHERE valid_from > :now", params, rs -> {
+                wheel.schedule(rs.getLong(1), rs.getTimestamp(2).getTime());
+            });
+            jdbc.query("SELECT id, valid_until FROM entitlements WHERE valid_until > :now", params, rs -> {
+                wheel.schedule(rs.getLong(1), rs.getTimestamp(2).getTime());
+            });
+            log.info("Expiry scheduler started with {} pending validity transitions", wheel.size());
+        }
+
+        ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "entitlement-expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleWithFixedDelay(this::tickSafely, tickMs, tickMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (ticker != null) {
+            ticker.shutdownNow();
+        }
+    }
+
+    /**
+     * Schedules the future transitions of written rows. The scheduler's own
+     * flips need nothing new: both transitions of a row are scheduled when
+     * it is written.
+     */
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onEntitlementChanged(EntitlementChangedEvent event) {
+        if (event instanceof EntitlementValidityChangedEvent || event.getChangedIds().isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        List<long[]> transitions = new ArrayList<>();
+        for (List<Long> ids : batches(event.getChangedIds())) {
+            jdbc.query("SELECT id, valid_from, valid_until FROM entitlements WHERE id IN (:ids) "
+                    + "AND (valid_from > :now OR valid_until > :now)",
+                    new MapSqlParameterSource("ids", ids).addValue("now", new Timestamp(now)), rs -> {
+                        Timestamp validFrom = rs.getTimestamp(2);
+                        Timestamp validUntil = rs.getTimestamp(3);
+                        if (validFrom != null && validFrom.getTime() > now) {
+                            transitions.add(new long[] { rs.getLong(1), validFrom.getTime() });
+                        }
+                        if (validUntil != null && validUntil.getTime() > now) {
+                            transitions.add(new long[] { rs.getLong(1), validUntil.getTime() });
+                        }
+                    });
+        }
+        synchronized (this) {
+            if (wheel != null) {
+                transitions.forEach(t -> wheel.schedule(t[0], t[1]));
+            }
+        }
+    }
+
+    // Anything escaping a fixed-delay task cancels all of its later runs
+    private void tickSafely() {
+        try {
+            tick();
+        } catch (Throwable t) {
+            log.error("Validity tick failed", t);
+        }
+    }
+
+    /**
+     * Applies the transitions that became due since the previous tick.
+     */
+    public void tick() {
+        long[] due;
+        synchronized (this) {
+            due = wheel.advance(System.currentTimeMillis());
+        }
+        if (due.length == 0) {
+            return;
+        }
+        Set<Long> ids = new LinkedHashSet<>();
+        for (long id : due) {
+            ids.add(id);
+        }
+        Set<String> resourceTypes;
+        try {
+            resourceTypes = apply(ids);
+        } catch (Exception e) {
+            // The transaction rolled back; retry the same rows on the next tick
+            log.error("Failed to apply {} validity transitions, retrying", ids.size(), e);
+            long retryAt = System.currentTimeMillis() + tickMs;
+            synchronized (this) {
+                ids.forEach(id -> wheel.schedule(id, retryAt));
+            }
+            return;
+        }
+        if (!resourceTypes.isEmpty()) {
+            notifyBundles(resourceTypes);
+        }
+    }
+
+    /**
+     * Flips the {@code active} flag of the rows whose window opened or closed,
+     * in one transaction.
+     *
+     * @return the resource types of the flipped rows
+     */
+    private Set<String> apply(Set<Long> dueIds) {
+        Set<String> resourceTypes = new HashSet<>();
+        new TransactionTemplate(transactionManager).executeWithoutResult(status -> {
+            Instant now = Instant.now();
+            List<Object[]> flips = new ArrayList<>();
+            List<Long> changedIds = new ArrayList<>();
+            for (List<Long> ids : batches(dueIds)) {
+                jdbc.query("SELECT id, resource_type, valid_from, valid_until, active FROM entitlements "
+                        + "WHERE id IN (:ids)", new MapSqlParameterSource("ids", ids), rs -> {
+                            Timestamp validFrom = rs.getTimestamp(3);
+                            Timestamp validUntil = rs.getTimestamp(4);
+                            boolean active = Entitlement.isActiveAt(validFrom != null ? validFrom.toInstant() : null,
+                                    validUntil != null ? validUntil.toInstant() : null, now);
+                            // Rows rewritten since they were scheduled may already be right
+                            if (active != rs.getBoolean(5)) {
+                                flips.add(new Object[] { active, rs.getLong(1) });
+                                changedIds.add(rs.getLong(1));
+                                resourceTypes.add(rs.getString(2));
+                            }
+                        });
+            }
+            if (flips.isEmpty()) {
+                return;
+            }
+            jdbc.getJdbcTemplate().batchUpdate("UPDATE entitlements SET active = ?, version = version + 1 WHERE id = ?", flips);
+            applicationEventPublisher.publishEvent(new EntitlementValidityChangedEvent(changedIds, resourceTypes));
+            log.info("Validity windows changed for {} entitlements", changedIds.size());
+        });
+        return resourceTypes;
+    }
+
+    /**
+     * One update notification per bundle bound to any of the resource types.
+     * The engines' caches of these bundles are dropped by the
+     * {@link BundleCacheInvalidator} once the flips commit.
+     */
+    private void notifyBundles(Set<String> resourceTypes) {
+        Map<Long, PolicyBundle> bundles = new LinkedHashMap<>();
+        for (PolicyBinding binding : bindingRepository.findByResourceTypeIn(new ArrayList<>(resourceTypes))) {
+            bundleRepository.findByBindingIdsContaining(binding.getId())
+                    .forEach(bundle -> bundles.putIfAbsent(bundle.getId(), bundle));
+        }
+        for (PolicyBundle bundle : bundles.values()) {
+            try {
+                eventPublisher.publish(bundleUpdateEvents.topic(bundle),
+                        bundleUpdateEvents.create(bundle, UUID.randomUUID().toString()));
+            } catch (Exception e) {
+                log.error("Failed to publish bundle update for {}", bundle.getName(), e);
+            }
+        }
+    }
+
+    private static List<List<Long>> batches(Set<Long> ids) {
+        List<Long> all = new ArrayList<>(ids);
+        List<List<Long>> batches = new ArrayList<>();
+        for (int from = 0; from < all.size(); from += ID_BATCH) {
+            batches.add(all.subList(from, Math.min(from + ID_BATCH, all.size())));
+        }
+        return batches;
+    }
+}
@@ -0,0 +1,361 @@
+package org.openpickles.policy.engine.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.openpickles.policy.engine.event.EntitlementChangedEvent;
+import org.openpickles.policy.engine.event.UserMembershipChangedEvent;
+import org.openpickles.policy.engine.model.Entitlement;
+import org.openpickles.policy.engine.model.Group;
+import org.openpickles.policy.engine.model.ResourceIdRanges;
+import org.openpickles.policy.engine.model.Role;
+import org.openpickles.policy.engine.repository.UserRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * In-memory index of the active entitlement rows for the native check API,
+ * bundle generation and resource-centric lookups.
+ * <p>
+ * Grants live in a columnar {@link EntitlementStore}, bucketed by resource
+ * type and principal ("USER:alice", "ROLE:admin", "GROUP:ops"), so a check
+ * only touches the grants of the subject's own principals, and with a
+ * reverse posting list from resource id to grant for "who can access R".
+ * Pattern resource ids ({@code branch-12/*}) go into a {@link ResourceIdTrie}
+ * per resource type instead, and grants with {@link ResourceIdRanges} are
+ * probed by binary search. The index is loaded once at startup with plain
+ * JDBC and then kept current from {@link EntitlementChangedEvent}s after each
+ * commit; the role/group expansion of usernames is cached the same way from
+ * {@link UserMembershipChangedEvent}s.
+ */
+@Component
+@Slf4j
+public class EntitlementIndex {
+
+    private static final int LOAD_BATCH = 1000;
+    private static final String SELECT_ROWS = "SELECT id, resource_type, subject_type, subject_id, effect, "
+            + "valid_from, valid_until, resource_id_ranges FROM entitlements WHERE active = TRUE "
+            + "AND resource_type IS NOT NULL AND subject_type IS NOT NULL ";
+
+    @Autowired
+    private NamedParameterJdbcTemplate jdbc;
+
+    @Autowired
+    private UserRepository userRepository;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private final EntitlementStore store = new EntitlementStore();
+    // Grants with patterns or ranges, which the store cannot find by resource id
+    private final Map<Long, NonExact> nonExact = new ConcurrentHashMap<>();
+    // resourceType -> pattern prefix -> ids of the entitlements listing the pattern
+    private final Map<String, ResourceIdTrie<Long>> byPrefix = new ConcurrentHashMap<>();
+    // resourceType -> entitlement id -> its resource id ranges
+    private final Map<String, Map<Long, ResourceIdRanges>> byRanges = new ConcurrentHashMap<>();
+    private final Map<String, List<String>> principalsByUsername = new ConcurrentHashMap<>();
+    // Bumped on every membership change; an expansion loaded across one is not kept
+    private final AtomicLong membershipGeneration = new AtomicLong();
+    private final Object writeLock = new Object();
+    // Readers of the pattern and range maps see them change together with the store snapshot
+    private final ReadWriteLock viewLock = new ReentrantReadWriteLock();
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void load() {
+        long start = System.currentTimeMillis();
+        synchronized (writeLock) {
+            transactionTemplate().executeWithoutResult(status -> {
+                viewLock.writeLock().lock();
+                try {
+                    nonExact.clear();
+                    byPrefix.clear();
+                    byRanges.clear();
+                    store.load(sink -> readRows(null, row -> {
+                        track(row);
+                        sink.accept(row);
+                    }));
+                } finally {
+                    viewLock.writeLock().unlock();
+                }
+            });
+        }
+        log.info("Entitlement index loaded with {} grants in {}ms", size(), System.currentTimeMillis() - start);
+    }
+
+    // Ahead of other after-commit listeners: bundle caches dropped for the
+    // change reload from this index
+    @Order(Ordered.HIGHEST_PRECEDENCE)
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onEntitlementChanged(EntitlementChangedEvent event) {
+        refresh(event.getChangedIds(), event.getRemovedIds());
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onUserChanged(UserMembershipChangedEvent event) {
+        // Usernames can be renamed, so drop every cached expansion of the user
+        membershipGeneration.incrementAndGet();
+        principalsByUsername.clear();
+    }
+
+    /**
+     * Re-reads the changed rows and drops the removed ones.
+     * <p>
+     * Rows are read under the write lock: refreshes are applied in the order
+     * they read, so one that read a row before a concurrent commit can never
+     * be applied after the refresh that read it afterwards.
+     */
+    public void refresh(Collection<Long> changedIds, Collection<Long> removedIds) {
+        synchronized (writeLock) {
+            transactionTemplate().executeWithoutResult(status -> {
+                List<EntitlementStore.Row> changed = new ArrayList<>();
+                if (!changedIds.isEmpty()) {
+                    readRows(changedIds, changed::add);
+                }
+                // Changed rows that are gone or inactive now leave the index too
+                Set<Long> leaving = new HashSet<>(removedIds);
+                leaving.addAll(changedIds);
+                viewLock.writeLock().lock();
+                try {
+                    leaving.forEach(this::untrack);
+                    changed.forEach(this::track);
+                    store.apply(changed, leaving);
+                } finally {
+                    viewLock.writeLock().unlock();
+                }
+            });
+        }
+    }
+
+    /**
+     * The current content of the index, unaffected by later changes.
+     */
+    public EntitlementStore.Snapshot snapshot() {
+        return store.snapshot();
+    }
+
+    /**
+     * Principals a username expands to: the user itself plus its roles and
+     * groups.
+     */
+    public List<String> principalsOf(String username) {
+        List<String> cached = principalsByUsername.get(username);
+        if (cached != null) {
+            return cached;
+        }
+        long generation = membershipGeneration.get();
+        List<String> principals = new ArrayList<>();
+        principals.add(principal(Entitlement.SubjectType.USER, username));
+        userRepository.findByUsername(username).ifPresent(user -> {
+            for (Role role : user.getRoles()) {
+                principals.add(principal(Entitlement.SubjectType.ROLE, role.getName()));
+            }
+            for (Group group : user.getGroups()) {
+                principals.add(principal(Entitlement.SubjectType.GROUP, group.getName()));
+            }
+        });
+        List<String> loaded = List.copyOf(principals);
+        principalsByUsername.putIfAbsent(username, loaded);
+        // A membership change since the read may have cleared the cache before
+        // the put above; checked after it, so one of the two always drops it
+        if (membershipGeneration.get() != generation) {
+            principalsByUsername.remove(username, loaded);
+        }
+        return loaded;
+    }
+
+    /**
+     * Grants of the given principals on a resource type.
+     */
+    public List<EntitlementStore.Grant> grantsFor(String resourceType, List<String> principals) {
+        return store.snapshot().grantsFor(resourceType, principals);
+    }
+
+    /**
+     * Grants covering a resource id, exactly, through a pattern or through a
+     * range, of any principal.
+     */
+    public List<EntitlementStore.Grant> grantsOn(String resourceType, String resourceId) {
+        EntitlementStore.Snapshot snapshot;
+        // id -> principal of the pattern and range grants that match
+        Map<Long, String> matched = new LinkedHashMap<>();
+        viewLock.readLock().lock();
+        try {
+            snapshot = store.snapshot();
+            Set<Long> ids = new LinkedHashSet<>();
+            ResourceIdTrie<Long> patterns = byPrefix.get(resourceType);
+            if (patterns != null) {
+                patterns.forEachMatch(resourceId, ids::add);
+            }
+            Map<Long, ResourceIdRanges> ranged = byRanges.get(resourceType);
+            if (ranged != null && ResourceIdRanges.isNumeric(resourceId)) {
+                long numericId = Long.parseLong(resourceId);
+                ranged.forEach((id, ranges) -> {
+                    if (ranges.contains(numericId)) {
+                        ids.add(id);
+                    }
+                });
+            }
+            for (Long id : ids) {
+                NonExact grant = nonExact.get(id);
+                if (grant != null) {
+                    matched.put(id, grant.principal);
+                }
+            }
+        } finally {
+            viewLock.readLock().unlock();
+        }
+        List<EntitlementStore.Grant> grants = new ArrayList<>(snapshot.grantsListing(resourceType, resourceId));
+        grants.forEach(grant -> matched.remove(grant.getId()));
+        matched.forEach((id, principal) -> {
+            EntitlementStore.Grant stored = snapshot.grant(resourceType, principal, id);
+            if (stored != null) {
+                grants.add(stored);
+            }
+        });
+        return grants;
+    }
+
+    public int size() {
+        return store.snapshot().size();
+    }
+
+    static String principal(Entitlement.SubjectType type, String id) {
+        return type + ":" + id;
+    }
+
+    /**
+     * Reads the active rows with the given ids, or all of them for null, with
+     * their collections, {@value #LOAD_BATCH} rows per query.
+     */
+    private void readRows(Collection<Long> ids, Consumer<EntitlementStore.Row> action) {
+        List<Long> all = ids != null ? new ArrayList<>(ids) : null;
+        long after = Long.MIN_VALUE;
+        for (int from = 0;; from += LOAD_BATCH) {
+            Map<Long, EntitlementStore.Row> rows = new LinkedHashMap<>();
+            MapSqlParameterSource params;
+            String sql;
+            if (all != null) {
+                if (from >= all.size()) {
+                    return;
+                }
+                params = new MapSqlParameterSource("ids", all.subList(from, Math.min(from + LOAD_BATCH, all.size())));
+                sql = SELECT_ROWS + "AND id IN (:ids)";
+            } else {
+                params = new MapSqlParameterSource("after", after).addValue("limit", LOAD_BATCH);
+                sql = SELECT_ROWS + "AND id > :after ORDER BY id LIMIT :limit";
+            }
+            jdbc.query(sql, params, rs -> {
+                String ranges = rs.getString("resource_id_ranges");
+                Timestamp validFrom = rs.getTimestamp("valid_from");
+                Timestamp validUntil = rs.getTimestamp("valid_until");
+                EntitlementStore.Row row = new EntitlementStore.Row(rs.getLong("id"), rs.getString("resource_type"),
+                        principal(Entitlement.SubjectType.valueOf(rs.getString("subject_type")),
+                                rs.getString("subject_id")),
+                        Entitlement.Effect.DENY.name().equals(rs.getString("effect")),
+                        ranges != null ? ResourceIdRanges.parse(ranges) : null,
+                        validFrom != null ? validFrom.toInstant() : null,
+                        validUntil != null ? validUntil.toInstant() : null);
+                rows.put(row.getId(), row);
+            });
+            if (rows.isEmpty()) {
+                if (all == null) {
+                    return;
+                }
+                continue;
+            }
+            MapSqlParameterSource rowIds = new MapSqlParameterSource("ids", rows.keySet());
+            jdbc.query("SELECT entitlement_id, resource_id FROM entitlement_resource_ids "
+                    + "WHERE entitlement_id IN (:ids)", rowIds, rs -> {
+                        rows.get(rs.getLong(1)).getResourceIds().add(rs.getString(2));
+                    });
+            jdbc.query("SELECT entitlement_id, action FROM entitlement_actions WHERE entitlement_id IN (:ids)",
+                    rowIds, rs -> {
+                        rows.get(rs.getLong(1)).getActions().add(rs.getString(2));
+                    });
+            rows.values().forEach(action);
+            for (Long id : rows.keySet()) {
+                after = id;
+            }
+        }
+    }
+
+    private void track(EntitlementStore.Row row) {
+        List<String> prefixes = row.getResourceIds().stream()
+                .filter(ResourceIdTrie::isPattern)
+                .map(ResourceIdTrie::prefixOf)
+                .toList();
+        ResourceIdRanges ranges = row.getResourceIdRanges() != null && !row.getResourceIdRanges().isEmpty()
+                ? row.getResourceIdRanges() : null;
+        if (prefixes.isEmpty() && ranges == null) {
+            return;
+        }
+        nonExact.put(row.getId(), new NonExact(row.getResourceType(), row.getPrincipal(), prefixes, ranges));
+        for (String prefix : prefixes) {
+            byPrefix.computeIfAbsent(row.getResourceType(), k -> new ResourceIdTrie<>()).add(prefix, row.getId());
+        }
+        if (ranges != null) {
+            byRanges.computeIfAbsent(row.getResourceType(), k -> new ConcurrentHashMap<>()).put(row.getId(), ranges);
+        }
+    }
+
+    private void untrack(Long id) {
+        NonExact grant = nonExact.remove(id);
+        if (grant == null) {
+            return;
+        }
+        ResourceIdTrie<Long> patterns = byPrefix.get(grant.resourceType);
+        if (patterns != null) {
+            grant.prefixes.forEach(prefix -> patterns.remove(prefix, id));
+        }
+        Map<Long, ResourceIdRanges> ranged = byRanges.get(grant.resourceType);
+        if (ranged != null) {
+            ranged.remove(id);
+        }
+    }
+
+    private TransactionTemplate transactionTemplate() {
+        TransactionTemplate template = new TransactionTemplate(transactionManager);
+        template.setPropagationBehavior(TransactionTemplate.PROPAGATION_REQUIRES_NEW);
+        template.setReadOnly(true);
+        return template;
+    }
+
+    /**
+     * What the pattern and range lookups need of a grant.
+     */
+    private static final class NonExact {
+        private final String resourceType;
+        private final String principal;
+        private final List<String> prefixes;
+        private final ResourceIdRanges ranges;
+
+        NonExact(String resourceType, String principal, List<String> prefixes, ResourceIdRanges ranges) {
+            this.resourceType = resourceType;
+            this.principal = principal;
+            this.prefixes = prefixes;
+            this.ranges = ranges;
+        }
+    }
+}
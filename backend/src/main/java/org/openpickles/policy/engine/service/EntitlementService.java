@@ -1,13 +1,40 @@
 package org.openpickles.policy.engine.service;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import org.openpickles.policy.engine.dto.EntitlementSyncResult;
+import org.openpickles.policy.engine.dto.ResourceAccess;
 import org.openpickles.policy.engine.model.Entitlement;
+import org.openpickles.policy.engine.model.ResourceIdRanges;
+import org.openpickles.policy.engine.model.User;
 import org.openpickles.policy.engine.repository.EntitlementRepository;
+import org.openpickles.policy.engine.repository.UserRepository;
 import org.openpickles.policy.engine.aop.Auditable;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
 
 @Service
 public class EntitlementService {
@@ -15,6 +42,30 @@ public class EntitlementService {
     @Autowired
     private EntitlementRepository entitlementRepository;
 
+    @Autowired
+    private EntitlementBulkWriter bulkWriter;
+
+    @Autowired
+    private EntitlementIndex entitlementIndex;
+
+    @Autowired
+    private UserRepository userRepository;
+
+    @Value("${policy.engine.entitlements.sync.chunk-size:1000}")
+    private int syncChunkSize;
+
+    @Value("${policy.engine.entitlements.ranges.compact-threshold:0}")
+    private int compactThreshold;
+
+    @Value("${policy.engine.entitlements.ranges.max-ids:100000000}")
+    private long maxRangeIds;
+
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    private final ObjectReader ndjsonReader = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+            .readerFor(Entitlement.class);
+
     private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(EntitlementService.class);
 
     public org.springframework.data.domain.Page<Entitlement> getAllEntitlements(
@@ -35,6 +86,8 @@ public class EntitlementService {
     @Auditable(action = "CREATE", resourceType = "ENTITLEMENT")
     public Entitlement createEntitlement(Entitlement entitlement) {
         logger.info("Creating entitlement for subject: {}", entitlement.getSubjectId());
+        requireValidGrant(entitlement);
+        compact(entitlement);
         return entitlementRepository.save(entitlement);
     }
 
@@ -44,7 +97,19 @@ public class EntitlementService {
 
     public List<Entitlement> getEntitlementsByResource(String resourceType, String resourceId) {
         logger.debug("Fetching entitlements for resource: {}/{}", resourceType, resourceId);
-        return entitlementRepository.findByResourceTypeAndResourceIdsContaining(resourceType, resourceId);
+        List<Entitlement> entitlements = new ArrayList<>(
+                entitlementRepository.findByResourceTypeAndResourceIdsContaining(resourceType, resourceId));
+        // Pattern grants (branch-12/*) are only found through the index's trie
+        Set<Long> listed = new HashSet<>();
+        entitlements.forEach(e -> listed.add(e.getId()));
+        List<Long> patternIds = entitlementIndex.grantsOn(resourceType, resourceId).stream()
+                .map(EntitlementStore.Grant::getId)
+                .filter(id -> !listed.contains(id))
+                .toList();
+        if (!patternIds.isEmpty()) {
+            entitlements.addAll(entitlementRepository.findAllById(patternIds));
+        }
+        return entitlements;
     }
 
     public List<Entitlement> getEntitlementsBySubject(Entitlement.SubjectType subjectType, String subjectId) {
@@ -52,6 +117,77 @@ public class EntitlementService {
         return entitlementRepository.findBySubjectTypeAndSubjectId(subjectType, subjectId);
     }
 
+    /**
+     * Who can access a resource: the grants listing it, from the in-memory
+     * {@link EntitlementIndex}, and the users they apply to with ROLE and
+     * GROUP grants expanded to their members. DENY grants remove actions as in
+     * {@link CheckService}.
+     *
+     * @param action only consider this action, may be null for all
+     */
+    public ResourceAccess whoCanAccess(String resourceType, String resourceId, String action) {
+        List<EntitlementStore.Grant> grants = entitlementIndex.grantsOn(resourceType, resourceId).stream()
+                .filter(g -> action == null || g.getActions().contains(action))
+                .sorted(Comparator.comparing(EntitlementStore.Grant::getId))
+                .toList();
+
+        // principal -> usernames it stands for, each role and group resolved once
+        Map<String, List<String>> members = new HashMap<>();
+        // username -> allowed actions, denied actions, principals the allows came from
+        Map<String, Set<String>> allowed = new TreeMap<>();
+        Map<String, Set<String>> denied = new HashMap<>();
+        Map<String, Set<String>> via = new HashMap<>();
+        for (EntitlementStore.Grant grant : grants) {
+            Set<String> actions = action != null ? Set.of(action) : grant.getActions();
+            for (String username : members.computeIfAbsent(grant.getPrincipal(), this::membersOf)) {
+                if (grant.isDeny()) {
+                    denied.computeIfAbsent(username, k -> new HashSet<>()).addAll(actions);
+                } else {
+                    allowed.computeIfAbsent(username, k -> new TreeSet<>()).addAll(actions);
+                    via.computeIfAbsent(username, k -> new TreeSet<>()).add(grant.getPrincipal());
+                }
+            }
+        }
+
+        List<ResourceAccess.UserAccess> users = new ArrayList<>();
+        allowed.forEach((username, actions) -> {
+            actions.removeAll(denied.getOrDefault(username, Set.of()));
+            if (!actions.isEmpty()) {
+                users.add(ResourceAccess.UserAccess.builder()
+                        .username(username)
+                        .actions(new ArrayList<>(actions))
+                        .via(new ArrayList<>(via.get(username)))
+                        .build());
+            }
+        });
+
+        return ResourceAccess.builder()
+                .resourceType(resourceType)
+                .resourceId(resourceId)
+                .action(action)
+                .grants(grants.stream()
+                        .map(g -> ResourceAccess.GrantView.builder()
+                                .entitlementId(g.getId())
+                                .principal(g.getPrincipal())
+                                .actions(g.getActions().stream().sorted().toList())
+                                .effect(g.isDeny() ? Entitlement.Effect.DENY.name() : Entitlement.Effect.ALLOW.name())
+                                .build())
+                        .toList())
+                .users(users)
+                .build();
+    }
+
+    private List<String> membersOf(String principal) {
+        int colon = principal.indexOf(':');
+        Entitlement.SubjectType type = Entitlement.SubjectType.valueOf(principal.substring(0, colon));
+        String name = principal.substring(colon + 1);
+        return switch (type) {
+            case USER -> List.of(name);
+            case ROLE -> userRepository.findByRoles_Name(name).stream().map(User::getUsername).toList();
+            case GROUP -> userRepository.findByGroups_Name(name).stream().map(User::getUsername).toList();
+        };
+    }
+
     @Auditable(action = "UPDATE", resourceType = "ENTITLEMENT")
     public Entitlement updateEntitlement(Long id, Entitlement entitlementDetails) {
         logger.info("Updating entitlement: {}", id);
@@ -59,12 +195,17 @@ public class EntitlementService {
                 .orElseThrow(() -> new org.openpickles.policy.engine.exception.FunctionalException(
                         "Entitlement not found with id: " + id, "FUNC_004"));
 
+        requireValidGrant(entitlementDetails);
+        compact(entitlementDetails);
         entitlement.setResourceType(entitlementDetails.getResourceType());
         entitlement.setResourceIds(entitlementDetails.getResourceIds());
+        entitlement.setResourceIdRanges(entitlementDetails.getResourceIdRanges());
         entitlement.setActions(entitlementDetails.getActions());
         entitlement.setSubjectType(entitlementDetails.getSubjectType());
         entitlement.setSubjectId(entitlementDetails.getSubjectId());
         entitlement.setEffect(entitlementDetails.getEffect());
+        entitlement.setValidFrom(entitlementDetails.getValidFrom());
+        entitlement.setValidUntil(entitlementDetails.getValidUntil());
         return entitlementRepository.save(entitlement);
     }
 
@@ -74,33 +215,179 @@ public class EntitlementService {
         entitlementRepository.deleteById(id);
     }
 
+    /**
+     * Creates or updates entitlements by business key (resource type, subject
+     * type, subject id): resource ids, actions and effect of an existing row
+     * are overwritten with the pushed state. If a key appears more than once
+     * the last occurrence wins.
+     * <p>
+     * Rows are written by {@link EntitlementBulkWriter} in chunks of
+     * {@code policy.engine.entitlements.sync.chunk-size}, one transaction per
+     * chunk holding the locks of its keys; writes racing with other syncs of
+     * the same keys are retried internally.
+     */
     @Auditable(action = "BATCH_UPSERT", resourceType = "ENTITLEMENT")
-    public List<Entitlement> batchUpsert(List<Entitlement> entitlements) {
-        return entitlements.stream().map(incoming -> {
-            // Find existing entitlement by business key
-            List<Entitlement> existingList = entitlementRepository.findByResourceTypeAndSubjectTypeAndSubjectId(
-                    incoming.getResourceType(),
-                    incoming.getSubjectType(),
-                    incoming.getSubjectId());
-
-            if (!existingList.isEmpty()) {
-                // Update the first matching entitlement (assuming 1:1 mapping for
-                // Subject+ResourceType for simplicity)
-                // In a more complex scenario, we might merge, but "Upsert" usually implies
-                // "Update specific target".
-                // Since our model allows multiple rows (List return), we pick the first to
-                // update or we'd need a better unique constraint.
-                // Given the requirement is just "services want to push", updating the primary
-                // record found is safest.
-                Entitlement existing = existingList.get(0);
-                existing.setResourceIds(incoming.getResourceIds()); // Overwrite resource IDs with the pushed state
-                existing.setActions(incoming.getActions());
-                existing.setEffect(incoming.getEffect());
-                return entitlementRepository.save(existing);
-            } else {
-                // Create new
-                return entitlementRepository.save(incoming);
+    public EntitlementSyncResult batchUpsert(List<Entitlement> entitlements) {
+        long start = System.currentTimeMillis();
+        Map<List<Object>, Entitlement> byKey = new LinkedHashMap<>();
+        for (int i = 0; i < entitlements.size(); i++) {
+            Entitlement e = entitlements.get(i);
+            requireKey(e, i);
+            compact(e);
+            byKey.put(EntitlementBulkWriter.key(e.getResourceType(), e.getSubjectType(), e.getSubjectId()), e);
+        }
+
+        List<Entitlement> unique = new ArrayList<>(byKey.values());
+        EntitlementSyncResult totals = EntitlementSyncResult.builder().received(entitlements.size()).build();
+        for (int from = 0; from < unique.size(); from += syncChunkSize) {
+            add(totals, bulkWriter.upsert(unique.subList(from, Math.min(from + syncChunkSize, unique.size())), null));
+        }
+        totals.setDurationMs(System.currentTimeMillis() - start);
+        totals.setComplete(true);
+        logger.info("Synced {} entitlements in {} chunks: {} inserted, {} updated, {} unchanged",
+                totals.getReceived(), totals.getChunks(), totals.getInserted(), totals.getUpdated(),
+                totals.getUnchanged());
+        return totals;
+    }
+
+    /**
+     * Streaming variant of {@link #batchUpsert}: reads NDJSON, one entitlement
+     * per line, optionally gzip compressed (detected from the content), and
+     * upserts every {@code chunk-size} rows as they arrive, so memory use does
+     * not grow with the size of the stream. A key repeated across chunks is
+     * simply written again.
+     *
+     * @param snapshot      the stream is the complete state of the resource
+     *                      types it contains (plus {@code resourceTypes}): once
+     *                      it has been read to the end, rows of those types
+     *                      that were not in it are deleted
+     * @param resourceTypes resource types included in the snapshot even if
+     *                      the stream has no row of them, may be null
+     * @param progress      receives the running totals after each chunk
+     */
+    @Auditable(action = "STREAM_SYNC", resourceType = "ENTITLEMENT")
+    public EntitlementSyncResult syncStream(InputStream body, boolean snapshot, Collection<String> resourceTypes,
+            Consumer<EntitlementSyncResult> progress) {
+        long start = System.currentTimeMillis();
+        String syncToken = snapshot ? UUID.randomUUID().toString() : null;
+        Set<String> scope = new HashSet<>(resourceTypes != null ? resourceTypes : List.of());
+        EntitlementSyncResult totals = EntitlementSyncResult.builder().build();
+
+        try (MappingIterator<Entitlement> rows = ndjsonReader.readValues(decompress(body))) {
+            Map<List<Object>, Entitlement> chunk = new LinkedHashMap<>();
+            while (rows.hasNextValue()) {
+                Entitlement e = rows.nextValue();
+                requireKey(e, totals.getReceived());
+                compact(e);
+                totals.setReceived(totals.getReceived() + 1);
+                chunk.put(EntitlementBulkWriter.key(e.getResourceType(), e.getSubjectType(), e.getSubjectId()), e);
+                if (snapshot) {
+                    scope.add(e.getResourceType());
+                }
+                if (chunk.size() >= syncChunkSize) {
+                    writeChunk(chunk, syncToken, totals, start, progress);
+                }
+            }
+            if (!chunk.isEmpty()) {
+                writeChunk(chunk, syncToken, totals, start, progress);
             }
-        }).toList();
+        } catch (JsonProcessingException e) {
+            throw new org.openpickles.policy.engine.exception.FunctionalException("Invalid entitlement at line "
+                    + e.getLocation().getLineNr() + ": " + e.getOriginalMessage(), "FUNC_SYNC_PARSE");
+        } catch (IOException e) {
+            throw new org.openpickles.policy.engine.exception.TechnicalException(
+                    "Reading the entitlement stream failed", "TECH_SYNC_READ", e);
+        }
+
+        if (snapshot) {
+            totals.setDeleted(bulkWriter.deleteUnsynced(scope, syncToken, syncChunkSize));
+        }
+        totals.setDurationMs(System.currentTimeMillis() - start);
+        totals.setComplete(true);
+        logger.info("Streamed {} entitlements in {} chunks: {} inserted, {} updated, {} unchanged, {} deleted",
+                totals.getReceived(), totals.getChunks(), totals.getInserted(), totals.getUpdated(),
+                totals.getUnchanged(), totals.getDeleted());
+        return totals;
+    }
+
+    private void writeChunk(Map<List<Object>, Entitlement> chunk, String syncToken, EntitlementSyncResult totals,
+            long start, Consumer<EntitlementSyncResult> progress) {
+        add(totals, bulkWriter.upsert(chunk.values(), syncToken));
+        chunk.clear();
+        totals.setDurationMs(System.currentTimeMillis() - start);
+        if (progress != null) {
+            progress.accept(totals);
+        }
+    }
+
+    private static void add(EntitlementSyncResult totals, EntitlementSyncResult chunk) {
+        totals.setInserted(totals.getInserted() + chunk.getInserted());
+        totals.setUpdated(totals.getUpdated() + chunk.getUpdated());
+        totals.setUnchanged(totals.getUnchanged() + chunk.getUnchanged());
+        totals.setChunks(totals.getChunks() + 1);
+    }
+
+    private void requireKey(Entitlement e, int index) {
+        if (e.getResourceType() == null || e.getSubjectType() == null || e.getSubjectId() == null) {
+            throw new org.openpickles.policy.engine.exception.FunctionalException("Entitlement " + index
+                    + " needs resourceType, subjectType and subjectId", "FUNC_ENTITLEMENT_KEY");
+        }
+        requireValidGrant(e);
+    }
+
+    private void requireValidGrant(Entitlement e) {
+        if (e.getValidFrom() != null && e.getValidUntil() != null && !e.getValidFrom().isBefore(e.getValidUntil())) {
+            throw new org.openpickles.policy.engine.exception.FunctionalException("validFrom of "
+                    + e.getSubjectType() + ":" + e.getSubjectId() + " must be before its validUntil",
+                    "FUNC_ENTITLEMENT_VALIDITY");
+        }
+        // Every consumer of a grant must be able to afford walking its ranges
+        if (e.getResourceIdRanges() != null && e.getResourceIdRanges().size() > maxRangeIds) {
+            throw new org.openpickles.policy.engine.exception.FunctionalException("resourceIdRanges of "
+                    + e.getSubjectType() + ":" + e.getSubjectId() + " cover more than " + maxRangeIds + " ids",
+                    "FUNC_ENTITLEMENT_RANGES");
+        }
+        if (e.getResourceIds() == null) {
+            return;
+        }
+        for (String resourceId : e.getResourceIds()) {
+            if (resourceId == null || !ResourceIdTrie.isValid(resourceId)) {
+                throw new org.openpickles.policy.engine.exception.FunctionalException("Resource id " + resourceId
+                        + " of " + e.getSubjectType() + ":" + e.getSubjectId()
+                        + " may only contain a wildcard (*) as its last character", "FUNC_ENTITLEMENT_PATTERN");
+            }
+        }
+    }
+
+    /**
+     * Moves the numeric resource ids of a grant into its ranges once there are
+     * {@code policy.engine.entitlements.ranges.compact-threshold} of them, so
+     * that large id sets are stored as one column rather than a row per id.
+     * Off by default: bundles ship the moved ids in {@code resourceIdRanges},
+     * which policies reading only {@code resourceIds} do not see.
+     */
+    private void compact(Entitlement e) {
+        if (compactThreshold <= 0 || e.getResourceIds() == null || e.getResourceIds().size() < compactThreshold) {
+            return;
+        }
+        Set<String> numeric = new HashSet<>();
+        Set<String> exact = new HashSet<>();
+        for (String resourceId : e.getResourceIds()) {
+            (ResourceIdRanges.isNumeric(resourceId) ? numeric : exact).add(resourceId);
+        }
+        if (numeric.size() < compactThreshold) {
+            return;
+        }
+        ResourceIdRanges ranges = ResourceIdRanges.ofIds(numeric);
+        e.setResourceIdRanges(e.getResourceIdRanges() != null ? e.getResourceIdRanges().union(ranges) : ranges);
+        e.setResourceIds(exact);
+    }
+
+    private static InputStream decompress(InputStream body) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(body, STREAM_BUFFER_SIZE);
+        in.mark(2);
+        boolean gzip = in.read() == 0x1f && in.read() == 0x8b;
+        in.reset();
+        return gzip ? new GZIPInputStream(in, STREAM_BUFFER_SIZE) : in;
     }
 }
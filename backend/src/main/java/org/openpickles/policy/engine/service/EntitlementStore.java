@@ -0,0 +1,781 @@
+package org.openpickles.policy.engine.service;
+
+import org.openpickles.policy.engine.model.ResourceIdRanges;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Columnar in-memory store of entitlement grants, the storage behind
+ * {@link EntitlementIndex}.
+ * <p>
+ * Resource types, principals, actions and resource ids are dictionary
+ * encoded to ints ({@link StringDictionary}). The grants of a resource type
+ * are spread over {@value #SHARDS} shards by principal; a shard keeps its rows
+ * in primitive column arrays sorted by principal, with the resource ids and
+ * actions of all rows concatenated, plus a sorted (resource id, row) posting
+ * list for reverse lookups. A grant with one action and one resource id costs
+ * around 40 bytes plus its resource id's dictionary entry, and the heap holds
+ * a few hundred arrays per resource type instead of objects per grant.
+ * <p>
+ * Readers work on an immutable {@link Snapshot} without locking. Writers
+ * ({@link #apply}, {@link #load}) are serialized and copy on write: a change
+ * rebuilds only the shards it touches and publishes a new snapshot sharing
+ * every other shard with the previous one.
+ * <p>
+ * Dictionary codes are never removed, so strings of changed or removed grants
+ * stay encoded. Once the dictionaries hold twice the entries of their last
+ * full encoding (and at least {@value #MIN_REENCODE_ENTRIES}), {@link #apply}
+ * re-encodes the whole store with fresh dictionaries, which keeps them in
+ * proportion to the live grants at an amortized constant cost per write.
+ */
+public class EntitlementStore {
+
+    static final int SHARD_BITS = 8;
+    static final int SHARDS = 1 << SHARD_BITS;
+
+    static final int MIN_REENCODE_ENTRIES = 4096;
+
+    private static final long NO_TIME = Long.MIN_VALUE;
+    private static final byte DENY = 1;
+
+    private volatile Snapshot snapshot = new Snapshot(new Dictionaries(), Map.of(), 0);
+
+    // Writer side: entitlement id -> type code << SHARD_BITS | shard
+    private Directory directory = new Directory();
+    // Dictionary entries right after the last full encoding
+    private int encodedEntries;
+
+    public Snapshot snapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Replaces the whole content with the rows {@code source} passes to its
+     * argument, with fresh dictionaries.
+     */
+    public synchronized void load(Consumer<Consumer<Row>> source) {
+        Dictionaries dict = new Dictionaries();
+        directory = new Directory();
+        Map<Integer, ShardBuilder> builders = new HashMap<>();
+        source.accept(row -> {
+            int location = location(dict, row);
+            builders.computeIfAbsent(location, k -> new ShardBuilder(k >>> SHARD_BITS)).add(dict, row);
+            directory.put(row.getId(), location);
+        });
+
+        Map<Integer, Shard[]> tables = new HashMap<>();
+        int size = 0;
+        for (Map.Entry<Integer, ShardBuilder> entry : builders.entrySet()) {
+            Shard shard = entry.getValue().build();
+            tables.computeIfAbsent(entry.getKey() >>> SHARD_BITS, k -> new Shard[SHARDS])[entry.getKey()
+                    & (SHARDS - 1)] = shard;
+            size += shard.size;
+        }
+        snapshot = new Snapshot(dict, tables, size);
+        encodedEntries = dict.entries();
+    }
+
+    /**
+     * Encodes the current grants again with fresh dictionaries, dropping the
+     * strings no grant uses any more.
+     */
+    public synchronized void reencode() {
+        Snapshot current = snapshot;
+        load(sink -> current.tables.values().forEach(shards -> {
+            for (Shard shard : shards) {
+                for (int row = 0; shard != null && row < shard.size; row++) {
+                    sink.accept(new Grant(current.dict, shard, row).toRow());
+                }
+            }
+        }));
+    }
+
+    /**
+     * Replaces the grants with the ids of {@code upserts}, adds the new ones
+     * and drops {@code removedIds}, publishing one new snapshot.
+     */
+    public synchronized void apply(Collection<Row> upserts, Collection<Long> removedIds) {
+        Snapshot current = snapshot;
+        Dictionaries dict = current.dict;
+        // location -> ids leaving the shard, rows entering it
+        Map<Integer, Set<Long>> leaving = new HashMap<>();
+        Map<Integer, List<Row>> entering = new HashMap<>();
+        Set<Long> ids = new HashSet<>(removedIds);
+        upserts.forEach(row -> ids.add(row.getId()));
+        for (Long id : ids) {
+            int location = directory.get(id);
+            if (location >= 0) {
+                leaving.computeIfAbsent(location, k -> new HashSet<>()).add(id);
+                directory.remove(id);
+            }
+        }
+        for (Row row : upserts) {
+            int location = location(dict, row);
+            entering.computeIfAbsent(location, k -> new ArrayList<>()).add(row);
+            directory.put(row.getId(), location);
+        }
+
+        Set<Integer> touched = new HashSet<>(leaving.keySet());
+        touched.addAll(entering.keySet());
+        if (touched.isEmpty()) {
+            return;
+        }
+        Map<Integer, Shard[]> tables = new HashMap<>(current.tables);
+        Set<Integer> copied = new HashSet<>();
+        int size = current.size;
+        for (int location : touched) {
+            int type = location >>> SHARD_BITS;
+            Shard[] shards = tables.get(type);
+            if (copied.add(type)) {
+                shards = shards != null ? shards.clone() : new Shard[SHARDS];
+                tables.put(type, shards);
+            }
+            int index = location & (SHARDS - 1);
+            Shard old = shards[index];
+            ShardBuilder builder = new ShardBuilder(type);
+            if (old != null) {
+                Set<Long> gone = leaving.getOrDefault(location, Set.of());
+                for (int row = 0; row < old.size; row++) {
+                    if (!gone.contains(old.ids[row])) {
+                        builder.copy(old, row);
+                    }
+                }
+                size -= old.size;
+            }
+            for (Row row : entering.getOrDefault(location, List.of())) {
+                builder.add(dict, row);
+            }
+            shards[index] = builder.size > 0 ? builder.build() : null;
+            size += builder.size;
+        }
+        snapshot = new Snapshot(dict, tables, size);
+        if (dict.entries() >= Math.max(MIN_REENCODE_ENTRIES, 2L * encodedEntries)) {
+            reencode();
+        }
+    }
+
+    private static int location(Dictionaries dict, Row row) {
+        int type = dict.types.encode(row.getResourceType());
+        return (type << SHARD_BITS) | shardOf(dict.principals.encode(row.getPrincipal()));
+    }
+
+    private static int shardOf(int principal) {
+        return (principal * 0x9e3779b9) >>> (32 - SHARD_BITS);
+    }
+
+    /**
+     * A grant as handed to the store.
+     */
+    public static final class Row {
+        private final long id;
+        private final String resourceType;
+        private final String principal;
+        private final boolean deny;
+        private final Set<String> resourceIds = new HashSet<>();
+        private final ResourceIdRanges resourceIdRanges;
+        private final Set<String> actions = new HashSet<>();
+        private final Instant validFrom;
+        private final Instant validUntil;
+
+        public Row(long id, String resourceType, String principal, boolean deny, ResourceIdRanges resourceIdRanges,
+                Instant validFrom, Instant validUntil) {
+            this.id = id;
+            this.resourceType = resourceType;
+            this.principal = principal;
+            this.deny = deny;
+            this.resourceIdRanges = resourceIdRanges;
+            this.validFrom = validFrom;
+            this.validUntil = validUntil;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getResourceType() {
+            return resourceType;
+        }
+
+        public String getPrincipal() {
+            return principal;
+        }
+
+        public boolean isDeny() {
+            return deny;
+        }
+
+        // Filled by the caller before the row is handed over
+        public Set<String> getResourceIds() {
+            return resourceIds;
+        }
+
+        public ResourceIdRanges getResourceIdRanges() {
+            return resourceIdRanges;
+        }
+
+        public Set<String> getActions() {
+            return actions;
+        }
+
+        public Instant getValidFrom() {
+            return validFrom;
+        }
+
+        public Instant getValidUntil() {
+            return validUntil;
+        }
+    }
+
+    /**
+     * Immutable state of the store at one point in time.
+     */
+    public static final class Snapshot {
+        private final Dictionaries dict;
+        // resource type code -> shards, never modified once published
+        private final Map<Integer, Shard[]> tables;
+        private final int size;
+
+        private Snapshot(Dictionaries dict, Map<Integer, Shard[]> tables, int size) {
+            this.dict = dict;
+            this.tables = tables;
+            this.size = size;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        // Strings encoded in the dictionaries, live or not
+        int dictionaryEntries() {
+            return dict.entries();
+        }
+
+        /**
+         * Grants of the given principals on a resource type.
+         */
+        public List<Grant> grantsFor(String resourceType, List<String> principals) {
+            Shard[] shards = shards(resourceType);
+            if (shards == null) {
+                return List.of();
+            }
+            List<Grant> grants = new ArrayList<>();
+            for (String principal : principals) {
+                int code = dict.principals.find(principal);
+                Shard shard = code >= 0 ? shards[shardOf(code)] : null;
+                if (shard == null) {
+                    continue;
+                }
+                for (int row = lowerBound(shard.principals, shard.size, code); row < shard.size
+                        && shard.principals[row] == code; row++) {
+                    grants.add(new Grant(dict, shard, row));
+                }
+            }
+            return grants;
+        }
+
+        /**
+         * Grants listing the exact resource id, of any principal. Patterns
+         * and ranges are not matched here.
+         */
+        public List<Grant> grantsListing(String resourceType, String resourceId) {
+            Shard[] shards = shards(resourceType);
+            int code = shards != null ? dict.resources.find(resourceId) : -1;
+            if (code < 0) {
+                return List.of();
+            }
+            List<Grant> grants = new ArrayList<>();
+            for (Shard shard : shards) {
+                if (shard == null) {
+                    continue;
+                }
+                int[] codes = shard.postingCodes;
+                for (int i = lowerBound(codes, codes.length, code); i < codes.length && codes[i] == code; i++) {
+                    grants.add(new Grant(dict, shard, shard.postingRows[i]));
+                }
+            }
+            return grants;
+        }
+
+        /**
+         * The grant with the given id, looked up through its principal.
+         */
+        public Grant grant(String resourceType, String principal, long id) {
+            Shard[] shards = shards(resourceType);
+            int code = shards != null ? dict.principals.find(principal) : -1;
+            Shard shard = code >= 0 ? shards[shardOf(code)] : null;
+            if (shard == null) {
+                return null;
+            }
+            for (int row = lowerBound(shard.principals, shard.size, code); row < shard.size
+                    && shard.principals[row] == code; row++) {
+                if (shard.ids[row] == id) {
+                    return new Grant(dict, shard, row);
+                }
+            }
+            return null;
+        }
+
+        public void forEachGrant(String resourceType, Consumer<Grant> action) {
+            Shard[] shards = shards(resourceType);
+            if (shards == null) {
+                return;
+            }
+            for (Shard shard : shards) {
+                if (shard != null) {
+                    for (int row = 0; row < shard.size; row++) {
+                        action.accept(new Grant(dict, shard, row));
+                    }
+                }
+            }
+        }
+
+        private Shard[] shards(String resourceType) {
+            int code = dict.types.find(resourceType);
+            return code >= 0 ? tables.get(code) : null;
+        }
+
+        private static int lowerBound(int[] values, int length, int key) {
+            int low = 0;
+            int high = length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (values[mid] < key) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    /**
+     * View of one stored grant; decodes its columns on access.
+     */
+    public static final class Grant {
+        private final Dictionaries dict;
+        private final Shard shard;
+        private final int row;
+
+        private Grant(Dictionaries dict, Shard shard, int row) {
+            this.dict = dict;
+            this.shard = shard;
+            this.row = row;
+        }
+
+        public Long getId() {
+            return shard.ids[row];
+        }
+
+        public String getResourceType() {
+            return dict.types.get(shard.type);
+        }
+
+        public String getPrincipal() {
+            return dict.principals.get(shard.principals[row]);
+        }
+
+        /**
+         * Exact and pattern resource ids, without the ranges.
+         */
+        public Set<String> getResourceIds() {
+            Set<String> resourceIds = new LinkedHashSet<>();
+            for (int i = shard.resourceStarts[row]; i < shard.resourceStarts[row + 1]; i++) {
+                resourceIds.add(dict.resources.get(shard.resources[i]));
+            }
+            if (shard.patternStarts != null) {
+                for (int i = shard.patternStarts[row]; i < shard.patternStarts[row + 1]; i++) {
+                    resourceIds.add(dict.resources.get(shard.patterns[i]));
+                }
+            }
+            return resourceIds;
+        }
+
+        public ResourceIdRanges getResourceIdRanges() {
+            return shard.ranges != null ? shard.ranges[row] : null;
+        }
+
+        public Set<String> getActions() {
+            Set<String> actions = new LinkedHashSet<>();
+            for (int i = shard.actionStarts[row]; i < shard.actionStarts[row + 1]; i++) {
+                actions.add(dict.actions.get(shard.actions[i]));
+            }
+            return actions;
+        }
+
+        public boolean isDeny() {
+            return (shard.flags[row] & DENY) != 0;
+        }
+
+        public Instant getValidFrom() {
+            return shard.validFrom != null ? instant(shard.validFrom[row]) : null;
+        }
+
+        public Instant getValidUntil() {
+            return shard.validUntil != null ? instant(shard.validUntil[row]) : null;
+        }
+
+        public boolean covers(String action, String resourceId) {
+            int actionCode = dict.actions.find(action);
+            if (actionCode < 0 || !contains(shard.actions, shard.actionStarts[row], shard.actionStarts[row + 1],
+                    actionCode)) {
+                return false;
+            }
+            int resourceCode = dict.resources.find(resourceId);
+            if (resourceCode >= 0 && Arrays.binarySearch(shard.resources, shard.resourceStarts[row],
+                    shard.resourceStarts[row + 1], resourceCode) >= 0) {
+                return true;
+            }
+            if (shard.patternStarts != null) {
+                for (int i = shard.patternStarts[row]; i < shard.patternStarts[row + 1]; i++) {
+                    if (resourceId.startsWith(ResourceIdTrie.prefixOf(dict.resources.get(shard.patterns[i])))) {
+                        return true;
+                    }
+                }
+            }
+            ResourceIdRanges ranges = getResourceIdRanges();
+            return ranges != null && ranges.contains(resourceId);
+        }
+
+        private Row toRow() {
+            Row copy = new Row(getId(), getResourceType(), getPrincipal(), isDeny(), getResourceIdRanges(),
+                    getValidFrom(), getValidUntil());
+            copy.getResourceIds().addAll(getResourceIds());
+            copy.getActions().addAll(getActions());
+            return copy;
+        }
+
+        private static boolean contains(int[] values, int from, int to, int key) {
+            for (int i = from; i < to; i++) {
+                if (values[i] == key) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static Instant instant(long epochMilli) {
+            return epochMilli != NO_TIME ? Instant.ofEpochMilli(epochMilli) : null;
+        }
+    }
+
+    private static final class Dictionaries {
+        private final StringDictionary types = new StringDictionary();
+        private final StringDictionary principals = new StringDictionary();
+        private final StringDictionary actions = new StringDictionary();
+        private final StringDictionary resources = new StringDictionary();
+
+        int entries() {
+            return types.size() + principals.size() + actions.size() + resources.size();
+        }
+    }
+
+    /**
+     * The grants of one resource type and principal hash, column by column.
+     * Row r owns actions[actionStarts[r]..actionStarts[r + 1]) and likewise
+     * for the sorted exact resource ids and the patterns. Optional columns
+     * are null when no row of the shard uses them.
+     */
+    private static final class Shard {
+        private final int type;
+        private final int size;
+        private final long[] ids;
+        private final int[] principals;
+        private final byte[] flags;
+        private final long[] validFrom;
+        private final long[] validUntil;
+        private final int[] actionStarts;
+        private final int[] actions;
+        private final int[] resourceStarts;
+        private final int[] resources;
+        private final int[] patternStarts;
+        private final int[] patterns;
+        private final ResourceIdRanges[] ranges;
+        // (resource id code, row) pairs sorted by code, for reverse lookups
+        private final int[] postingCodes;
+        private final int[] postingRows;
+
+        private Shard(ShardBuilder b, int[] order) {
+            type = b.type;
+            size = b.size;
+            ids = new long[size];
+            principals = new int[size];
+            flags = new byte[size];
+            long[] from = new long[size];
+            long[] until = new long[size];
+            ResourceIdRanges[] rowRanges = new ResourceIdRanges[size];
+            Column actionColumn = new Column(b.actions.size);
+            Column resourceColumn = new Column(b.resources.size);
+            Column patternColumn = new Column(b.patterns.size);
+            boolean windows = false;
+            boolean anyRanges = false;
+            for (int r = 0; r < size; r++) {
+                int i = order[r];
+                ids[r] = b.ids[i];
+                principals[r] = b.principals[i];
+                flags[r] = b.flags[i];
+                from[r] = b.validFrom[i];
+                until[r] = b.validUntil[i];
+                windows |= from[r] != NO_TIME || until[r] != NO_TIME;
+                rowRanges[r] = b.ranges[i];
+                anyRanges |= rowRanges[r] != null;
+                actionColumn.addRow(b.actions.values, b.actions.start(i), b.actions.start(i + 1));
+                resourceColumn.addRow(b.resources.values, b.resources.start(i), b.resources.start(i + 1));
+                patternColumn.addRow(b.patterns.values, b.patterns.start(i), b.patterns.start(i + 1));
+            }
+            validFrom = windows ? from : null;
+            validUntil = windows ? until : null;
+            ranges = anyRanges ? rowRanges : null;
+            actionStarts = actionColumn.starts();
+            actions = actionColumn.values();
+            resourceStarts = resourceColumn.starts();
+            resources = resourceColumn.values();
+            patternStarts = patternColumn.size > 0 ? patternColumn.starts() : null;
+            patterns = patternStarts != null ? patternColumn.values() : null;
+
+            long[] postings = new long[resources.length];
+            for (int r = 0; r < size; r++) {
+                for (int i = resourceStarts[r]; i < resourceStarts[r + 1]; i++) {
+                    postings[i] = ((long) resources[i] << 32) | r;
+                }
+            }
+            Arrays.sort(postings);
+            postingCodes = new int[postings.length];
+            postingRows = new int[postings.length];
+            for (int i = 0; i < postings.length; i++) {
+                postingCodes[i] = (int) (postings[i] >>> 32);
+                postingRows[i] = (int) postings[i];
+            }
+        }
+    }
+
+    /**
+     * Collects the rows of one shard in insertion order; {@link #build} sorts
+     * them by principal.
+     */
+    private static final class ShardBuilder {
+        private final int type;
+        private int size;
+        private long[] ids = new long[16];
+        private int[] principals = new int[16];
+        private byte[] flags = new byte[16];
+        private long[] validFrom = new long[16];
+        private long[] validUntil = new long[16];
+        private ResourceIdRanges[] ranges = new ResourceIdRanges[16];
+        private final Column actions = new Column(16);
+        private final Column resources = new Column(16);
+        private final Column patterns = new Column(0);
+
+        ShardBuilder(int type) {
+            this.type = type;
+        }
+
+        void add(Dictionaries dict, Row row) {
+            for (String action : row.getActions()) {
+                actions.add(dict.actions.encode(action));
+            }
+            actions.endRow();
+            int from = resources.size;
+            for (String resourceId : row.getResourceIds()) {
+                (ResourceIdTrie.isPattern(resourceId) ? patterns : resources).add(dict.resources.encode(resourceId));
+            }
+            // Exact ids sorted per row for binary search
+            Arrays.sort(resources.values, from, resources.size);
+            resources.endRow();
+            patterns.endRow();
+            ResourceIdRanges rowRanges = row.getResourceIdRanges() != null && !row.getResourceIdRanges().isEmpty()
+                    ? row.getResourceIdRanges() : null;
+            append(row.getId(), dict.principals.encode(row.getPrincipal()), row.isDeny() ? DENY : 0,
+                    millis(row.getValidFrom()), millis(row.getValidUntil()), rowRanges);
+        }
+
+        void copy(Shard shard, int row) {
+            actions.addRow(shard.actions, shard.actionStarts[row], shard.actionStarts[row + 1]);
+            resources.addRow(shard.resources, shard.resourceStarts[row], shard.resourceStarts[row + 1]);
+            if (shard.patternStarts != null) {
+                patterns.addRow(shard.patterns, shard.patternStarts[row], shard.patternStarts[row + 1]);
+            } else {
+                patterns.endRow();
+            }
+            append(shard.ids[row], shard.principals[row], shard.flags[row],
+                    shard.validFrom != null ? shard.validFrom[row] : NO_TIME,
+                    shard.validUntil != null ? shard.validUntil[row] : NO_TIME,
+                    shard.ranges != null ? shard.ranges[row] : null);
+        }
+
+        Shard build() {
+            long[] keys = new long[size];
+            for (int i = 0; i < size; i++) {
+                keys[i] = ((long) principals[i] << 32) | i;
+            }
+            Arrays.sort(keys);
+            int[] order = new int[size];
+            for (int r = 0; r < size; r++) {
+                order[r] = (int) keys[r];
+            }
+            return new Shard(this, order);
+        }
+
+        private void append(long id, int principal, byte flag, long from, long until, ResourceIdRanges rowRanges) {
+            if (size == ids.length) {
+                int capacity = size * 2;
+                ids = Arrays.copyOf(ids, capacity);
+                principals = Arrays.copyOf(principals, capacity);
+                flags = Arrays.copyOf(flags, capacity);
+                validFrom = Arrays.copyOf(validFrom, capacity);
+                validUntil = Arrays.copyOf(validUntil, capacity);
+                ranges = Arrays.copyOf(ranges, capacity);
+            }
+            ids[size] = id;
+            principals[size] = principal;
+            flags[size] = flag;
+            validFrom[size] = from;
+            validUntil[size] = until;
+            ranges[size] = rowRanges;
+            size++;
+        }
+
+        private static long millis(Instant instant) {
+            return instant != null ? instant.toEpochMilli() : NO_TIME;
+        }
+    }
+
+    /**
+     * Growable int column of per-row slices: row r is
+     * values[start(r)..start(r + 1)).
+     */
+    private static final class Column {
+        private int[] values;
+        private int size;
+        private int[] starts = new int[16];
+        private int rows;
+
+        Column(int capacity) {
+            values = new int[Math.max(capacity, 4)];
+        }
+
+        // Appends to the open row
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        void addRow(int[] source, int from, int to) {
+            for (int i = from; i < to; i++) {
+                add(source[i]);
+            }
+            endRow();
+        }
+
+        void endRow() {
+            if (rows + 1 == starts.length) {
+                starts = Arrays.copyOf(starts, starts.length * 2);
+            }
+            starts[++rows] = size;
+        }
+
+        int start(int row) {
+            return starts[row];
+        }
+
+        int[] values() {
+            return Arrays.copyOf(values, size);
+        }
+
+        int[] starts() {
+            return Arrays.copyOf(starts, rows + 1);
+        }
+    }
+
+    /**
+     * Entitlement id -> shard location map over primitive arrays, with linear
+     * probing. Costs about 24 bytes per stored id however sparse the ids are.
+     */
+    private static final class Directory {
+        private long[] ids = new long[1024];
+        // location + 1, 0 for a free slot
+        private int[] locations = new int[1024];
+        private int size;
+
+        // -1 when not stored
+        int get(long id) {
+            int mask = ids.length - 1;
+            for (int slot = slotOf(id, mask); locations[slot] != 0; slot = (slot + 1) & mask) {
+                if (ids[slot] == id) {
+                    return locations[slot] - 1;
+                }
+            }
+            return -1;
+        }
+
+        void put(long id, int location) {
+            if ((size + 1) * 2 > ids.length) {
+                rehash(ids.length * 2);
+            }
+            int slot = find(id);
+            if (locations[slot] == 0) {
+                ids[slot] = id;
+                size++;
+            }
+            locations[slot] = location + 1;
+        }
+
+        void remove(long id) {
+            int mask = ids.length - 1;
+            int gap = find(id);
+            if (locations[gap] == 0) {
+                return;
+            }
+            size--;
+            // Shifts back the rest of the probe run so that lookups never stop at the gap
+            for (int slot = (gap + 1) & mask; locations[slot] != 0; slot = (slot + 1) & mask) {
+                if (((slot - slotOf(ids[slot], mask)) & mask) >= ((slot - gap) & mask)) {
+                    ids[gap] = ids[slot];
+                    locations[gap] = locations[slot];
+                    gap = slot;
+                }
+            }
+            locations[gap] = 0;
+        }
+
+        // The slot holding id, or the free slot ending its probe run
+        private int find(long id) {
+            int mask = ids.length - 1;
+            int slot = slotOf(id, mask);
+            while (locations[slot] != 0 && ids[slot] != id) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void rehash(int capacity) {
+            long[] oldIds = ids;
+            int[] oldLocations = locations;
+            ids = new long[capacity];
+            locations = new int[capacity];
+            for (int i = 0; i < oldIds.length; i++) {
+                if (oldLocations[i] != 0) {
+                    int slot = find(oldIds[i]);
+                    ids[slot] = oldIds[i];
+                    locations[slot] = oldLocations[i];
+                }
+            }
+        }
+
+        private static int slotOf(long id, int mask) {
+            return (int) ((id * 0x9e3779b97f4a7c15L) >>> 32) & mask;
+        }
+    }
+}
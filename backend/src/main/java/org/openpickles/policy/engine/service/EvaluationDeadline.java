@@ -0,0 +1,68 @@
+package org.openpickles.policy.engine.service;
+
+import java.util.function.Supplier;
+
+/**
+ * The deadline of the evaluation running on the current thread.
+ * <p>
+ * Set by {@link DeadlineExecutor} for the duration of a task and read by the
+ * OPA HTTP client, which turns the remaining time into connect and read
+ * timeouts: once the deadline passes the connection is dropped, and OPA
+ * cancels the query when its client goes away.
+ */
+public final class EvaluationDeadline {
+
+    // System.nanoTime() at which the deadline expires
+    private static final ThreadLocal<Long> DEADLINE = new ThreadLocal<>();
+
+    private EvaluationDeadline() {
+    }
+
+    /**
+     * Remaining time in milliseconds, or -1 if the thread has no deadline.
+     * Zero once the deadline has passed.
+     */
+    public static long remainingMillis() {
+        Long deadline = DEADLINE.get();
+        if (deadline == null) {
+            return -1;
+        }
+        return Math.max(0, (deadline - System.nanoTime()) / 1_000_000);
+    }
+
+    public static boolean isExceeded() {
+        return remainingMillis() == 0;
+    }
+
+    static <T> T call(long deadlineNanos, Supplier<T> work) {
+        Long previous = DEADLINE.get();
+        DEADLINE.set(deadlineNanos);
+        try {
+            return work.get();
+        } finally {
+            restore(previous);
+        }
+    }
+
+    /**
+     * Runs work that has to complete regardless of the deadline, e.g. removing
+     * a sandbox after the evaluation timed out.
+     */
+    public static void lifted(Runnable work) {
+        Long previous = DEADLINE.get();
+        DEADLINE.remove();
+        try {
+            work.run();
+        } finally {
+            restore(previous);
+        }
+    }
+
+    private static void restore(Long previous) {
+        if (previous != null) {
+            DEADLINE.set(previous);
+        } else {
+            DEADLINE.remove();
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package org.openpickles.policy.engine.service;
+
+import org.openpickles.policy.engine.dto.EvaluationStats;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Function;
+
+/**
+ * Latency histograms of policy evaluations, per engine and decision path.
+ * <p>
+ * Every evaluation records its round trip under the engine that answered it
+ * ({@value #WASM}, {@value #NATIVE}, {@value #OPA} or {@value #PARTIAL}), so
+ * engines can be compared on the same path. OPA evaluations also record OPA's
+ * own query eval and compile timers (requested with {@code metrics=true}), so
+ * the time spent in Rego can be told apart from transport and sandbox
+ * overhead. Histograms are lock-free log-linear buckets (at most ~12% relative
+ * error) and cumulative since startup. Paths beyond
+ * {@code policy.engine.metrics.max-paths} are folded into {@value #OTHER_PATH}
+ * of their engine to bound memory and scrape size.
+ */
+@Component
+public class EvaluationMetrics {
+
+    public static final String WASM = "wasm";
+    public static final String NATIVE = "native";
+    public static final String OPA = "opa";
+    public static final String PARTIAL = "partial";
+
+    static final String OTHER_PATH = "_other";
+
+    @Value("${policy.engine.metrics.max-paths:200}")
+    private int maxPaths;
+
+    private final Map<Key, PathMetrics> paths = new ConcurrentHashMap<>();
+
+    /**
+     * Records an evaluation answered in the JVM, without OPA timers.
+     */
+    public void record(String engine, String path, long roundTripNs) {
+        record(engine, path, null, roundTripNs);
+    }
+
+    /**
+     * @param engine     the engine that answered, e.g. {@value #OPA}
+     * @param opaMetrics the {@code metrics} object of an OPA response, may be
+     *                   null
+     */
+    public void record(String engine, String path, Map<?, ?> opaMetrics, long roundTripNs) {
+        PathMetrics metrics = forPath(new Key(engine, path == null || path.isEmpty() ? "data" : path));
+        metrics.roundTrip.record(roundTripNs);
+        if (opaMetrics != null) {
+            if (opaMetrics.get("timer_rego_query_eval_ns") instanceof Number eval) {
+                metrics.queryEval.record(eval.longValue());
+            }
+            if (opaMetrics.get("timer_rego_query_compile_ns") instanceof Number compile) {
+                metrics.queryCompile.record(compile.longValue());
+            }
+        }
+    }
+
+    public EvaluationStats snapshot() {
+        return EvaluationStats.builder()
+                .paths(sortedPaths().stream()
+                        .map(e -> EvaluationStats.PathStats.builder()
+                                .engine(e.getKey().engine())
+                                .path(e.getKey().path())
+                                .count(e.getValue().roundTrip.count.get())
+                                .queryEval(e.getValue().queryEval.summary())
+                                .queryCompile(e.getValue().queryCompile.summary())
+                                .roundTrip(e.getValue().roundTrip.summary())
+                                .build())
+                        .toList())
+                .build();
+    }
+
+    /**
+     * Prometheus text exposition format (version 0.0.4), one summary per
+     * timer with quantile 0.5/0.95/0.99 in seconds.
+     */
+    public String prometheus() {
+        StringBuilder sb = new StringBuilder();
+        List<Map.Entry<Key, PathMetrics>> entries = sortedPaths();
+        writeSummary(sb, "policy_engine_opa_query_eval_seconds", "OPA timer_rego_query_eval_ns per decision path",
+                entries, m -> m.queryEval);
+        writeSummary(sb, "policy_engine_opa_query_compile_seconds",
+                "OPA timer_rego_query_compile_ns per decision path", entries, m -> m.queryCompile);
+        writeSummary(sb, "policy_engine_evaluation_round_trip_seconds",
+                "Round trip of evaluations per engine and decision path", entries, m -> m.roundTrip);
+        return sb.toString();
+    }
+
+    private void writeSummary(StringBuilder sb, String name, String help, List<Map.Entry<Key, PathMetrics>> entries,
+            Function<PathMetrics, Histogram> timer) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" summary\n");
+        for (Map.Entry<Key, PathMetrics> entry : entries) {
+            Histogram histogram = timer.apply(entry.getValue());
+            // Only OPA reports its own timers
+            if (histogram.count.get() == 0) {
+                continue;
+            }
+            String path = "engine=\"" + escape(entry.getKey().engine()) + "\",path=\""
+                    + escape(entry.getKey().path()) + "\"";
+            for (double quantile : new double[] { 0.5, 0.95, 0.99 }) {
+                sb.append(name).append('{').append(path).append(",quantile=\"").append(quantile).append("\"} ")
+                        .append(histogram.percentile(quantile) / 1e9).append('\n');
+            }
+            sb.append(name).append("_sum{").append(path).append("} ").append(histogram.sum.get() / 1e9).append('\n');
+            sb.append(name).append("_count{").append(path).append("} ").append(histogram.count.get()).append('\n');
+        }
+    }
+
+    private List<Map.Entry<Key, PathMetrics>> sortedPaths() {
+        return paths.entrySet().stream()
+                .sorted(Map.Entry.comparingByKey(Comparator.comparing(Key::engine).thenComparing(Key::path)))
+                .toList();
+    }
+
+    private PathMetrics forPath(Key key) {
+        PathMetrics metrics = paths.get(key);
+        if (metrics != null) {
+            return metrics;
+        }
+        if (paths.size() >= maxPaths) {
+            return paths.computeIfAbsent(new Key(key.engine(), OTHER_PATH), p -> new PathMetrics());
+        }
+        return paths.computeIfAbsent(key, p -> new PathMetrics());
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private record Key(String engine, String path) {
+    }
+
+    private static class PathMetrics {
+        private final Histogram queryEval = new Histogram();
+        private final Histogram queryCompile = new Histogram();
+        private final Histogram roundTrip = new Histogram();
+    }
+
+    /**
+     * Nanosecond histogram with 8 linear sub-buckets per power of two.
+     */
+    static class Histogram {
+        private static final int SUB_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray((64 - SUB_BITS + 1) * SUB_BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long ns) {
+            long value = Math.max(0, ns);
+            buckets.incrementAndGet(index(value));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            max.accumulateAndGet(value, Math::max);
+        }
+
+        long percentile(double quantile) {
+            long total = count.get();
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        EvaluationStats.Latency summary() {
+            long total = count.get();
+            return EvaluationStats.Latency.builder()
+                    .count(total)
+                    .meanMs(total > 0 ? sum.get() / 1e6 / total : 0)
+                    .p50Ms(percentile(0.50) / 1e6)
+                    .p95Ms(percentile(0.95) / 1e6)
+                    .p99Ms(percentile(0.99) / 1e6)
+                    .maxMs(max.get() / 1e6)
+                    .build();
+        }
+
+        static int index(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        static long upperBound(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+            int sub = index % SUB_BUCKETS;
+            return ((long) (SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+        }
+    }
+}
@@ -1,106 +1,543 @@
 package org.openpickles.policy.engine.service;
 
+import jakarta.annotation.PreDestroy;
+import org.openpickles.policy.engine.dto.ValidationResult;
+import org.openpickles.policy.engine.exception.FunctionalException;
 import org.openpickles.policy.engine.exception.TechnicalException;
+import org.openpickles.policy.engine.model.Policy;
+import org.openpickles.policy.engine.model.PolicyBinding;
+import org.openpickles.policy.engine.model.PolicyBundle;
+import org.openpickles.policy.engine.repository.PolicyBundleRepository;
+import org.openpickles.policy.engine.repository.PolicyRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
+import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.http.HttpEntity;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
 @Service
 public class EvaluationService {
 
+    private static final Logger logger = LoggerFactory.getLogger(EvaluationService.class);
+    private static final int VALIDATION_CACHE_SIZE = 1000;
+
     private final RestTemplate restTemplate;
-    // OPA is running locally on port 8181
-    private final String OPA_URL = "http://localhost:8181";
 
-    public EvaluationService() {
-        this.restTemplate = new RestTemplate();
+    @Autowired
+    private PolicyRepository policyRepository;
+
+    @Autowired
+    private PolicyBundleRepository bundleRepository;
+
+    @Autowired
+    private BundleService bundleService;
+
+    @Autowired
+    private WasmEvaluationEngine wasmEvaluationEngine;
+
+    @Autowired
+    private NativeEvaluationEngine nativeEvaluationEngine;
+
+    @Autowired
+    private RegoPerformanceLinter regoPerformanceLinter;
+
+    @Autowired
+    private EvaluationMetrics evaluationMetrics;
+
+    private final OpaClient opaClient;
+
+    // Bundles served by OPA, published to every instance and republished once invalidated
+    private final Map<Long, ResidentSlot> residentBundles = new ConcurrentHashMap<>();
+
+    // Publishes run apart from the decisions that trigger them, see ResidentSlot
+    private final ExecutorService publisher = Executors.newVirtualThreadPerTaskExecutor();
+
+    // content hash + OPA version -> validation outcome, least recently used evicted
+    private final Map<String, CompletableFuture<ValidationResult>> validationCache = Collections
+            .synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CompletableFuture<ValidationResult>> eldest) {
+                    return size() > VALIDATION_CACHE_SIZE;
+                }
+            });
+
+    @Autowired
+    public EvaluationService(OpaClient opaClient) {
+        this.opaClient = opaClient;
+        this.restTemplate = opaClient.getRestTemplate();
     }
 
     /**
-     * Validates Rego syntax by attempting to compile it via OPA.
-     * Note: OPA's Compile API is complex. A simpler way for "validation" is to try
-     * "PUT" it to a temp path
-     * or use the underlying library.
-     * For now, we will try to PUT it to a temporary ID and check for 200 OK.
+     * Validates a module by compiling it in OPA, see {@link #validate}.
      */
     public void validatePolicy(String content) {
-        // We use a temp policy ID for validation to avoid conflicts
-        String tempId = "validation/temp";
-        String url = OPA_URL + "/v1/policies/" + tempId;
+        ValidationResult result = validate(content);
+        if (!result.isValid()) {
+            throw new TechnicalException("Policy validation failed: " + result.getError(), "TECH_OPA_VAL");
+        }
+    }
+
+    /**
+     * Validates a module, reusing the result of an earlier validation of the
+     * same content by the same OPA version.
+     * <p>
+     * Concurrent requests for the same content share one compilation. Only
+     * outcomes are cached: if OPA cannot be reached the error is propagated and
+     * the next request tries again.
+     */
+    public ValidationResult validate(String content) {
+        String key = sha256(content != null ? content : "") + ":" + opaClient.getVersion();
+        CompletableFuture<ValidationResult> pending = new CompletableFuture<>();
+        CompletableFuture<ValidationResult> existing = validationCache.putIfAbsent(key, pending);
+        if (existing != null) {
+            try {
+                return existing.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException re ? re : e;
+            }
+        }
+
+        try {
+            ValidationResult result = compileModule(content);
+            pending.complete(result);
+            return result;
+        } catch (RuntimeException e) {
+            validationCache.remove(key, pending);
+            pending.completeExceptionally(e);
+            throw e;
+        }
+    }
 
+    /**
+     * Compiles the module inside a sandbox of its own, so a draft can neither
+     * replace nor conflict with the packages of stored policies that live
+     * instances are serving, and removes it again.
+     */
+    private ValidationResult compileModule(String content) {
         HttpHeaders headers = new HttpHeaders();
         headers.setContentType(MediaType.TEXT_PLAIN);
-        // OPA expects raw text body for Policy PUT
-        HttpEntity<String> request = new HttpEntity<>(content, headers);
 
+        try (OpaClient.Lease lease = opaClient.acquire()) {
+            OpaSandbox sandbox = new OpaSandbox(lease.getUrl());
+            // OPA expects raw text body for Policy PUT
+            HttpEntity<String> request = new HttpEntity<>(sandbox.rewrite(content), headers);
+            try {
+                restTemplate.put(sandbox.getUrl() + "/v1/policies/" + sandbox.getPolicyId(0), request);
+            } catch (HttpClientErrorException e) {
+                // Rejected by the compiler: nothing was stored. Errors name
+                // the sandbox packages, report the module's own instead.
+                return ValidationResult.builder().valid(false).error(sandbox.unwrap(e.getMessage())).build();
+            } catch (Exception e) {
+                throw new TechnicalException("Policy validation failed: " + e.getMessage(), "TECH_OPA_VAL", e);
+            }
+            // Only the module was stored, no data
+            try {
+                restTemplate.delete(sandbox.getUrl() + "/v1/policies/" + sandbox.getPolicyId(0));
+            } catch (Exception e) {
+                logger.debug("Validation module {} not removed: {}", sandbox.getPolicyId(0), e.getMessage());
+            }
+            return ValidationResult.builder()
+                    .valid(true)
+                    .warnings(regoPerformanceLinter.isEnabled() ? regoPerformanceLinter.lint(content) : List.of())
+                    .build();
+        }
+    }
+
+    private static String sha256(String content) {
         try {
-            restTemplate.put(url, request);
-        } catch (Exception e) {
-            throw new TechnicalException("Policy validation failed: " + e.getMessage(), "TECH_OPA_VAL", e);
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256")
+                    .digest(content.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
         }
     }
 
     /**
      * Tests a policy with input and data.
-     * 1. If policyContent is provided (unsaved), push it to a temp location.
-     * 2. Query OPA using the input.
-     * 3. (Optional) mocking 'data' context is harder in OPA server mode compared to
-     * 'opa eval'.
-     * For Server mode, 'data' must be pushed via PUT /v1/data.
-     * We will simulate 'data' by pushing it to a distinct path or expecting it to
-     * be passed as 'input' wrapper if the policy supports it.
-     * HOWEVER, for true "Mock Data" support in server mode, we should push to
-     * /v1/data (replacing or merging).
-     * This is risky in a shared env, but OK for this single-tenant embedded setup.
+     * <p>
+     * Every run is evaluated inside its own {@link OpaSandbox}: the context data
+     * is written to {@code data.sandboxes.<id>} and the policy is re-packaged
+     * under the same root, so concurrent runs (and any data already loaded into
+     * the embedded OPA) never see each other. The sandbox is removed once the
+     * query has completed.
+     * <p>
+     * If no content is supplied, the stored content of {@code policyId} is used.
+     * Stored policies of the packages it imports or refers to are loaded next
+     * to it, transitively. The result is the sandbox document, i.e. the
+     * equivalent of querying {@code data} in an OPA that holds only these
+     * policies and the context data.
      */
     public Map<String, Object> testPolicy(String policyContent, String policyId, Map<String, Object> input,
             Map<String, Object> contextData) {
-        // Step 1: Handle Context Data
-        if (contextData != null && !contextData.isEmpty()) {
-            pushContextData(contextData);
-        }
-
-        // Step 2: Handle Policy Content
-        // If content is provided, we prefer that (Testing unsaved changes). Use a temp
-        // ID.
-        // If not, we assume necessary policies are already loaded (e.g. synced).
-        if (policyContent != null && !policyContent.isEmpty()) {
-            // Push temp policy
-            pushTempPolicy(policyContent);
-        }
-
-        // Step 3: Evaluate
-        // We assume the policy entry point is 'allow' or similar, but the user might
-        // want to query arbitrary paths.
-        // For simplicity, let's assume we query 'data' to see everything, OR the user
-        // specifies the path in 'input' or separate param?
-        // The Requirement was "Input and Data".
-        // Let's assume a standard query path like "data.policy.allow" isn't generic
-        // enough.
-        // We will default to querying "data" which returns everything, or maybe a
-        // specific package if we parse it.
-        // Better: Query "data".
-
-        String queryUrl = OPA_URL + "/v1/data";
-
-        // request body for OPA data query: { "input": ... }
-        Map<String, Object> requestBody = Map.of("input", input != null ? input : Map.of());
+        String content = policyContent;
+        if ((content == null || content.isEmpty()) && policyId != null && !policyId.isEmpty()) {
+            content = loadStoredContent(policyId);
+        }
+        List<String> modules = new ArrayList<>();
+        if (content != null && !content.isEmpty()) {
+            modules.add(content);
+            modules.addAll(referencedModules(content, policyId));
+        }
+
+        return evaluateInSandbox(modules, contextData != null ? contextData : Map.of(), "", input);
+    }
+
+    /**
+     * Stored modules of the packages {@code content} refers to, and of the
+     * packages those refer to. Its own package is never loaded: the content
+     * under test replaces it.
+     */
+    private List<String> referencedModules(String content, String policyId) {
+        Set<String> refs = new HashSet<>(OpaSandbox.dataRefs(content));
+        if (refs.isEmpty()) {
+            return List.of();
+        }
+        String ownPackage = bundleService.findPackageName(content);
+        // package -> content of the stored policies that may be loaded
+        List<Map.Entry<String, String>> candidates = new ArrayList<>();
+        Set<Long> fetched = new HashSet<>();
+        Set<String> roots = new HashSet<>();
 
+        List<String> modules = new ArrayList<>();
+        boolean added = true;
+        while (added) {
+            added = false;
+            // A package a ref lies in or contains starts with the ref's first segment
+            for (String ref : List.copyOf(refs)) {
+                String root = ref.split("\\.", 2)[0];
+                if (!roots.add(root)) {
+                    continue;
+                }
+                for (Policy policy : policyRepository.findByContentContaining(root)) {
+                    String packageName = fetched.add(policy.getId()) && policy.getContent() != null
+                            ? bundleService.findPackageName(policy.getContent())
+                            : null;
+                    if (packageName != null && !packageName.equals(ownPackage)
+                            && !String.valueOf(policy.getId()).equals(policyId)) {
+                        candidates.add(Map.entry(packageName, policy.getContent()));
+                    }
+                }
+            }
+            for (Iterator<Map.Entry<String, String>> it = candidates.iterator(); it.hasNext();) {
+                Map.Entry<String, String> candidate = it.next();
+                if (refs.stream().anyMatch(ref -> refersTo(ref, candidate.getKey()))) {
+                    it.remove();
+                    modules.add(candidate.getValue());
+                    refs.addAll(OpaSandbox.dataRefs(candidate.getValue()));
+                    added = true;
+                }
+            }
+        }
+        return modules;
+    }
+
+    /**
+     * Whether {@code data.<ref>} lies in, or contains, package {@code packageName}.
+     */
+    private static boolean refersTo(String ref, String packageName) {
+        return ref.equals(packageName) || ref.startsWith(packageName + ".") || packageName.startsWith(ref + ".");
+    }
+
+    /**
+     * Evaluates a decision against a bundle.
+     * <p>
+     * WASM-enabled bundles are served by the in-JVM {@link WasmEvaluationEngine}
+     * when possible, bundles in the restricted Rego subset by the
+     * {@link NativeEvaluationEngine} if enabled. Otherwise the bundle's
+     * policies and data are published to every OPA instance once and queried
+     * over HTTP until the bundle is invalidated, see {@link #invalidate}.
+     *
+     * @param entrypoint rule path relative to data, e.g. "authz/allow"; defaults
+     *                   to the bundle entrypoint of its only package
+     */
+    public Map<String, Object> evaluateBundle(Long bundleId, String entrypoint, Map<String, Object> input) {
+        PolicyBundle bundle = bundleRepository.findById(bundleId)
+                .orElseThrow(() -> new FunctionalException("Bundle not found with id: " + bundleId, "FUNC_003"));
+        Object safeInput = input != null ? input : Map.of();
+
+        long start = System.nanoTime();
+        Optional<Map<String, Object>> wasmResult = wasmEvaluationEngine.evaluate(bundle, entrypoint, safeInput);
+        if (wasmResult.isPresent()) {
+            evaluationMetrics.record(EvaluationMetrics.WASM, entrypoint != null ? entrypoint.replace('.', '/') : null,
+                    System.nanoTime() - start);
+            Map<String, Object> response = new HashMap<>(wasmResult.get());
+            response.put("engine", EvaluationMetrics.WASM);
+            return response;
+        }
+
+        List<PolicyBinding> bindings = bundleService.getBindings(bundle);
+        List<Policy> policies = bundleService.getPolicies(bindings);
+        String path = resolveEntrypoint(policies, entrypoint, bundle.getEntrypoint());
+
+        start = System.nanoTime();
+        Optional<Map<String, Object>> nativeResult = nativeEvaluationEngine.evaluate(bundle, path, safeInput);
+        if (nativeResult.isPresent()) {
+            evaluationMetrics.record(EvaluationMetrics.NATIVE, path, System.nanoTime() - start);
+            Map<String, Object> response = new HashMap<>(nativeResult.get());
+            response.put("engine", EvaluationMetrics.NATIVE);
+            return response;
+        }
+
+        // Timed per query, including OPA's own timers
+        Map<String, Object> response = new HashMap<>(evaluateResident(bundle, bindings, policies, path, safeInput));
+        response.put("engine", EvaluationMetrics.OPA);
+        return response;
+    }
+
+    /**
+     * Marks the bundle published to OPA as outdated; the next decision served
+     * by OPA starts publishing it again in the background and decisions keep
+     * being answered from the old copy until the new one is in place. The old
+     * copy is removed from the instances once the decisions running on it
+     * complete.
+     */
+    public void invalidate(Long bundleId) {
+        ResidentSlot slot = residentBundles.get(bundleId);
+        if (slot != null) {
+            slot.invalidate();
+            logger.info("Invalidated OPA copy of bundle {}", bundleId);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        publisher.shutdownNow();
+    }
+
+    private Map<String, Object> evaluateResident(PolicyBundle bundle, List<PolicyBinding> bindings,
+            List<Policy> policies, String path, Object input) {
+        ResidentSlot slot = residentBundles.computeIfAbsent(bundle.getId(), id -> new ResidentSlot());
+        while (true) {
+            ResidentBundle resident = slot.current(bundle.getId(), bindings, policies);
+            // Replaced between lookup and use: take the copy that replaced it
+            if (!resident.enter()) {
+                continue;
+            }
+            try (OpaClient.Lease lease = opaClient.acquire()) {
+                Map<String, Object> body = query(lease.getUrl() + "/v1/data/" + resident.namespace.getDataPath(),
+                        path, input);
+                return body != null ? body : Map.of();
+            } finally {
+                resident.exit();
+            }
+        }
+    }
+
+    /**
+     * Publishes a bundle's policies and data to every instance, in a namespace
+     * of its own so a later copy never mixes with one still answering.
+     */
+    private ResidentBundle publish(Long bundleId, List<PolicyBinding> bindings, List<Policy> policies) {
+        List<String> modules = policies.stream()
+                .map(p -> p.getContent() != null ? p.getContent() : "")
+                .toList();
+        OpaSandbox namespace = new OpaSandbox();
+        int published = 0;
+        try {
+            opaClient.putData(namespace.getDataPath(), bundleService.buildData(bindings));
+            for (String module : modules) {
+                opaClient.putPolicy(namespace.getPolicyId(published), namespace.rewrite(module));
+                published++;
+            }
+        } catch (RuntimeException e) {
+            int count = published;
+            EvaluationDeadline.lifted(() -> unpublish(namespace, count));
+            throw e;
+        }
+        logger.info("Published bundle {} to OPA as {}", bundleId, namespace.getDataPath());
+        return new ResidentBundle(namespace, modules.size());
+    }
+
+    private void unpublish(OpaSandbox namespace, int moduleCount) {
+        // Best effort like removeSandbox: a leftover namespace is never queried again
         try {
-            ResponseEntity<Map> response = restTemplate.postForEntity(queryUrl, requestBody, Map.class);
-            return response.getBody();
+            for (int i = 0; i < moduleCount; i++) {
+                opaClient.removePolicy(namespace.getPolicyId(i));
+            }
+            opaClient.removeData(namespace.getDataPath());
+        } catch (RuntimeException e) {
+            logger.warn("Failed to remove OPA namespace {}: {}", namespace.getId(), e.getMessage());
+        }
+    }
+
+    /**
+     * Loads a bundle's policies and data into a sandbox on the leased instance
+     * and keeps it there until the returned handle is closed, so many inputs
+     * can be evaluated without reloading the bundle for each of them.
+     */
+    public LoadedBundle loadBundle(OpaClient.Lease lease, Long bundleId, String entrypoint) {
+        PolicyBundle bundle = bundleRepository.findById(bundleId)
+                .orElseThrow(() -> new FunctionalException("Bundle not found with id: " + bundleId, "FUNC_003"));
+        List<PolicyBinding> bindings = bundleService.getBindings(bundle);
+        List<Policy> policies = bundleService.getPolicies(bindings);
+        String path = resolveEntrypoint(policies, entrypoint, bundle.getEntrypoint());
+        List<String> modules = policies.stream()
+                .map(p -> p.getContent() != null ? p.getContent() : "")
+                .toList();
+
+        OpaSandbox sandbox = new OpaSandbox(lease.getUrl());
+        try {
+            pushContextData(sandbox, bundleService.buildData(bindings));
+            for (int i = 0; i < modules.size(); i++) {
+                pushTempPolicy(sandbox, i, modules.get(i));
+            }
+        } catch (RuntimeException e) {
+            cleanup(sandbox, modules.size());
+            throw e;
+        }
+        return new LoadedBundle(sandbox, modules.size(), path);
+    }
+
+    /**
+     * Partially evaluates queries through OPA's Compile API with the modules
+     * and data loaded into a sandbox.
+     *
+     * @param queries  query paths relative to data, e.g. "authz/allow"; each is
+     *                 compiled as {@code data.<path> == true}
+     * @param unknowns refs left unknown, e.g. "input.resource"
+     * @return one Compile API result per query ({@code queries}/{@code support})
+     */
+    public List<Map<String, Object>> partialEvaluate(List<String> modules, Object data, List<String> queries,
+            Map<String, Object> input, List<String> unknowns) {
+        return inSandbox(modules, data, sandbox -> {
+            List<Map<String, Object>> results = new ArrayList<>();
+            for (String query : queries) {
+                String ref = "data." + OpaSandbox.ROOT + "." + sandbox.getId() + "." + query.replace('/', '.');
+                Map<String, Object> requestBody = Map.of(
+                        "query", ref + " == true",
+                        "input", input != null ? input : Map.of(),
+                        "unknowns", unknowns);
+                ResponseEntity<Map> response;
+                long start = System.nanoTime();
+                try {
+                    response = restTemplate.postForEntity(sandbox.getUrl() + "/v1/compile", requestBody, Map.class);
+                } catch (Exception e) {
+                    throw new TechnicalException("Partial evaluation failed", "TECH_OPA_COMPILE", e);
+                }
+                evaluationMetrics.record(EvaluationMetrics.PARTIAL, query, System.nanoTime() - start);
+                Object result = response.getBody() != null ? response.getBody().get("result") : null;
+                results.add(result instanceof Map ? (Map<String, Object>) result : Map.of());
+            }
+            return results;
+        });
+    }
+
+    private String resolveEntrypoint(List<Policy> policies, String entrypoint, String ruleName) {
+        if (entrypoint != null && !entrypoint.isEmpty()) {
+            return entrypoint.replace('.', '/');
+        }
+        List<String> packages = policies.stream()
+                .map(p -> bundleService.findPackageName(p.getContent() != null ? p.getContent() : ""))
+                .filter(Objects::nonNull)
+                .distinct()
+                .toList();
+        if (packages.size() != 1) {
+            throw new FunctionalException("Bundle has " + packages.size()
+                    + " packages, an explicit entrypoint is required", "FUNC_ENTRYPOINT");
+        }
+        String rule = ruleName != null && !ruleName.isEmpty() ? ruleName : "allow";
+        return packages.get(0).replace('.', '/') + "/" + rule;
+    }
+
+    /**
+     * Loads the modules and data into a fresh sandbox, queries
+     * {@code data.sandboxes.<id>/<path>} and always removes the sandbox again.
+     */
+    private Map<String, Object> evaluateInSandbox(List<String> modules, Object data, String path, Object input) {
+        return inSandbox(modules, data, sandbox -> query(sandbox.getUrl() + "/v1/data/" + sandbox.getDataPath(),
+                path, input));
+    }
+
+    /**
+     * Queries {@code <dataUrl>/<path>} and records its metrics.
+     *
+     * @return the plain OPA response, null if it has no body
+     */
+    private Map<String, Object> query(String dataUrl, String path, Object input) {
+        String queryUrl = dataUrl + (path.isEmpty() ? "" : "/" + path) + "?metrics=true";
+        Map<String, Object> requestBody = Map.of("input", input != null ? input : Map.of());
+        ResponseEntity<Map> response;
+        long start = System.nanoTime();
+        try {
+            response = restTemplate.postForEntity(queryUrl, requestBody, Map.class);
         } catch (Exception e) {
             throw new TechnicalException("Policy evaluation failed", "TECH_OPA_EVAL", e);
         }
+        long roundTrip = System.nanoTime() - start;
+        if (response.getBody() == null) {
+            evaluationMetrics.record(EvaluationMetrics.OPA, path, null, roundTrip);
+            return null;
+        }
+        // Metrics are recorded here, callers get the plain OPA response
+        Map<String, Object> body = new HashMap<>(response.getBody());
+        evaluationMetrics.record(EvaluationMetrics.OPA, path, (Map<?, ?>) body.remove("metrics"), roundTrip);
+        return body;
+    }
+
+    private <T> T inSandbox(List<String> modules, Object data, Function<OpaSandbox, T> action) {
+        // The sandbox only exists on the leased instance, so every request of
+        // the run has to go there.
+        try (OpaClient.Lease lease = opaClient.acquire()) {
+            OpaSandbox sandbox = new OpaSandbox(lease.getUrl());
+            try {
+                // Context data goes to the sandbox root (an empty object still
+                // creates the root so the policy packages have a parent).
+                pushContextData(sandbox, data);
+
+                // Policy content, re-packaged under the sandbox root.
+                for (int i = 0; i < modules.size(); i++) {
+                    pushTempPolicy(sandbox, i, modules.get(i));
+                }
+
+                return action.apply(sandbox);
+            } finally {
+                cleanup(sandbox, modules.size());
+            }
+        }
     }
 
-    private void pushContextData(Map<String, Object> data) {
-        String url = OPA_URL + "/v1/data";
+    private String loadStoredContent(String policyId) {
+        try {
+            return policyRepository.findById(Long.valueOf(policyId))
+                    .map(Policy::getContent)
+                    .orElseThrow(() -> new FunctionalException("Policy not found with id: " + policyId, "FUNC_007"));
+        } catch (NumberFormatException e) {
+            throw new FunctionalException("Invalid policy id: " + policyId, "FUNC_007");
+        }
+    }
+
+    private void pushContextData(OpaSandbox sandbox, Object data) {
+        String url = sandbox.getUrl() + "/v1/data/" + sandbox.getDataPath();
         try {
             restTemplate.put(url, data);
         } catch (Exception e) {
@@ -108,15 +545,200 @@ public class EvaluationService {
         }
     }
 
-    private void pushTempPolicy(String content) {
-        String url = OPA_URL + "/v1/policies/temp_test_policy";
+    private void pushTempPolicy(OpaSandbox sandbox, int index, String content) {
+        String url = sandbox.getUrl() + "/v1/policies/" + sandbox.getPolicyId(index);
         HttpHeaders headers = new HttpHeaders();
         headers.setContentType(MediaType.TEXT_PLAIN);
-        HttpEntity<String> request = new HttpEntity<>(content, headers);
+        HttpEntity<String> request = new HttpEntity<>(sandbox.rewrite(content), headers);
         try {
             restTemplate.put(url, request);
         } catch (Exception e) {
             throw new TechnicalException("Failed to load temporary policy", "TECH_OPA_LOAD", e);
         }
     }
+
+    private void cleanup(OpaSandbox sandbox, int moduleCount) {
+        // Runs even if the caller's deadline has passed
+        EvaluationDeadline.lifted(() -> removeSandbox(sandbox, moduleCount));
+    }
+
+    private void removeSandbox(OpaSandbox sandbox, int moduleCount) {
+        // Best effort: a leftover sandbox only costs memory and cannot affect
+        // other runs, so failures here must not mask the evaluation result.
+        for (int i = 0; i < moduleCount; i++) {
+            try {
+                restTemplate.delete(sandbox.getUrl() + "/v1/policies/" + sandbox.getPolicyId(i));
+            } catch (Exception e) {
+                logger.debug("Sandbox policy {} not removed: {}", sandbox.getPolicyId(i), e.getMessage());
+            }
+        }
+        try {
+            restTemplate.delete(sandbox.getUrl() + "/v1/data/" + sandbox.getDataPath());
+        } catch (Exception e) {
+            logger.warn("Failed to remove sandbox data {}: {}", sandbox.getId(), e.getMessage());
+        }
+    }
+
+    /**
+     * The copies of one bundle published to OPA: the one answering decisions
+     * and the one being published to replace it.
+     * <p>
+     * Publishing writes the policies and data to every instance, which can
+     * outlast a decision's deadline, so it runs in the background with the
+     * deadline lifted and is never restarted by the decisions waiting for it.
+     * Only the first copy of a bundle is waited for; later ones replace the
+     * copy in use once they are complete.
+     */
+    private class ResidentSlot {
+        private ResidentBundle current;
+        private CompletableFuture<ResidentBundle> publishing;
+        // Bumped by invalidate; current is outdated if published for an earlier one
+        private int generation;
+        private int currentGeneration;
+
+        synchronized void invalidate() {
+            generation++;
+        }
+
+        ResidentBundle current(Long bundleId, List<PolicyBinding> bindings, List<Policy> policies) {
+            CompletableFuture<ResidentBundle> next;
+            synchronized (this) {
+                if (current != null && currentGeneration == generation) {
+                    return current;
+                }
+                if (publishing == null) {
+                    int target = generation;
+                    CompletableFuture<ResidentBundle> future = CompletableFuture.supplyAsync(() -> {
+                        ResidentBundle[] published = new ResidentBundle[1];
+                        EvaluationDeadline.lifted(() -> published[0] = publish(bundleId, bindings, policies));
+                        return published[0];
+                    }, publisher);
+                    publishing = future;
+                    future.whenComplete((published, e) -> completed(bundleId, future, target, published, e));
+                }
+                if (current != null) {
+                    return current;
+                }
+                next = publishing;
+            }
+            try {
+                return next.get();
+            } catch (InterruptedException e) {
+                // The decision's deadline passed; the publish carries on for the next one
+                Thread.currentThread().interrupt();
+                throw new TechnicalException("Interrupted while publishing bundle " + bundleId, "TECH_OPA_EVAL", e);
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof RuntimeException re ? re
+                        : new TechnicalException("Failed to publish bundle " + bundleId, "TECH_OPA_EVAL", e);
+            }
+        }
+
+        private synchronized void completed(Long bundleId, CompletableFuture<ResidentBundle> future, int target,
+                ResidentBundle published, Throwable e) {
+            if (publishing == future) {
+                publishing = null;
+            }
+            if (e != null) {
+                // The next decision tries again, on the old copy if there is one
+                logger.warn("Failed to publish bundle {} to OPA: {}", bundleId, e.getMessage());
+                return;
+            }
+            ResidentBundle previous = current;
+            current = published;
+            currentGeneration = target;
+            if (previous != null) {
+                previous.retire();
+            }
+        }
+    }
+
+    /**
+     * A bundle published to every instance, see {@link #evaluateResident}.
+     */
+    private class ResidentBundle {
+        private final OpaSandbox namespace;
+        private final int moduleCount;
+        // Decisions in flight; the namespace is removed once retired and idle
+        private final AtomicInteger users = new AtomicInteger();
+        private final AtomicBoolean removed = new AtomicBoolean();
+        private volatile boolean retired;
+
+        private ResidentBundle(OpaSandbox namespace, int moduleCount) {
+            this.namespace = namespace;
+            this.moduleCount = moduleCount;
+        }
+
+        /**
+         * @return false if the copy was retired and must not be queried
+         */
+        boolean enter() {
+            users.incrementAndGet();
+            if (retired) {
+                exit();
+                return false;
+            }
+            return true;
+        }
+
+        void exit() {
+            if (users.decrementAndGet() == 0 && retired) {
+                remove();
+            }
+        }
+
+        void retire() {
+            retired = true;
+            if (users.get() == 0) {
+                remove();
+            }
+        }
+
+        private void remove() {
+            if (removed.compareAndSet(false, true)) {
+                EvaluationDeadline.lifted(() -> unpublish(namespace, moduleCount));
+            }
+        }
+    }
+
+    /**
+     * A bundle resident in a sandbox, see {@link #loadBundle}.
+     */
+    public class LoadedBundle implements AutoCloseable {
+        private final OpaSandbox sandbox;
+        private final int moduleCount;
+        private final String path;
+        private final String queryUrl;
+
+        private LoadedBundle(OpaSandbox sandbox, int moduleCount, String path) {
+            this.sandbox = sandbox;
+            this.moduleCount = moduleCount;
+            this.path = path;
+            this.queryUrl = sandbox.getUrl() + "/v1/data/" + sandbox.getDataPath() + "/" + path + "?metrics=true";
+        }
+
+        /**
+         * The decision for one input, i.e. the {@code result} of the query
+         * (null if undefined).
+         */
+        public Object evaluate(Object input) {
+            ResponseEntity<Map> response;
+            long start = System.nanoTime();
+            try {
+                response = restTemplate.postForEntity(queryUrl, Map.of("input", input != null ? input : Map.of()),
+                        Map.class);
+            } catch (Exception e) {
+                throw new TechnicalException("Policy evaluation failed", "TECH_OPA_EVAL", e);
+            }
+            Map<?, ?> body = response.getBody();
+            // Kept apart from the live decision paths
+            evaluationMetrics.record(EvaluationMetrics.OPA, "replay:" + path, body != null ? (Map<?, ?>) body.get("metrics") : null,
+                    System.nanoTime() - start);
+            return body != null ? body.get("result") : null;
+        }
+
+        @Override
+        public void close() {
+            cleanup(sandbox, moduleCount);
+        }
+    }
 }
@@ -0,0 +1,80 @@
+package org.openpickles.policy.engine.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One lock per key, created on first use and dropped when its last holder
+ * or waiter is done, so only keys currently being written take memory.
+ * Writers of the same key serialize, writers of disjoint keys never wait on
+ * each other. {@link #lockAll} takes its keys in ascending order, so callers
+ * locking overlapping sets cannot deadlock.
+ */
+public class KeyLocks<K extends Comparable<? super K>> {
+
+    private final ConcurrentHashMap<K, Entry> locks = new ConcurrentHashMap<>();
+
+    /**
+     * Locks every key, waiting for the ones held by other threads.
+     *
+     * @return the held locks, released on close
+     */
+    public Held lockAll(Collection<K> keys) {
+        Held held = new Held(keys.size());
+        try {
+            for (K key : new TreeSet<>(keys)) {
+                Entry entry = locks.compute(key, (k, e) -> {
+                    Entry current = e != null ? e : new Entry();
+                    current.users++;
+                    return current;
+                });
+                held.keys.add(key);
+                entry.lock.lock();
+                held.entries.add(entry);
+            }
+        } catch (RuntimeException | Error e) {
+            held.close();
+            throw e;
+        }
+        return held;
+    }
+
+    /**
+     * Number of keys with a lock, for tests and metrics.
+     */
+    public int size() {
+        return locks.size();
+    }
+
+    private static final class Entry {
+        private final ReentrantLock lock = new ReentrantLock();
+        // Guarded by the map's compute
+        private int users;
+    }
+
+    public final class Held implements AutoCloseable {
+        private final List<K> keys;
+        private final List<Entry> entries;
+
+        private Held(int size) {
+            keys = new ArrayList<>(size);
+            entries = new ArrayList<>(size);
+        }
+
+        @Override
+        public void close() {
+            for (int i = keys.size() - 1; i >= 0; i--) {
+                if (i < entries.size()) {
+                    entries.get(i).lock.unlock();
+                }
+                locks.computeIfPresent(keys.get(i), (k, e) -> --e.users == 0 ? null : e);
+            }
+            keys.clear();
+            entries.clear();
+        }
+    }
+}
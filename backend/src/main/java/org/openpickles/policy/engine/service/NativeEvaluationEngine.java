@@ -0,0 +1,148 @@
+package org.openpickles.policy.engine.service;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.openpickles.policy.engine.model.Policy;
+import org.openpickles.policy.engine.model.PolicyBinding;
+import org.openpickles.policy.engine.model.PolicyBundle;
+import org.openpickles.policy.engine.service.rego.CompiledBundle;
+import org.openpickles.policy.engine.service.rego.DataSnapshot;
+import org.openpickles.policy.engine.service.rego.RegoCompiler;
+import org.openpickles.policy.engine.service.rego.UnsupportedRegoException;
+import org.openpickles.policy.engine.service.rego.Values;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Evaluates bundles written in the restricted Rego subset entitlement
+ * policies use directly in the JVM, see {@link RegoCompiler}.
+ * <p>
+ * Loading a bundle parses its modules with {@code opa parse}, compiles the
+ * rules to closures over the bundle's data.json and builds hash indexes for
+ * iterations guarded by an equality, so a typical "is there an entitlement for
+ * this subject" rule is a map lookup instead of a scan.
+ * <p>
+ * Like the {@link WasmEvaluationEngine}, a bundle is compiled in the background
+ * (see {@link BundleLoads}) and only replaced when the bundle is (re)built, one
+ * of its policies changes or an entitlement of a bound resource type is
+ * written, see {@link BundleCacheInvalidator}. Bundles using Rego outside the
+ * subset, and any query that hits an unsupported case at run time (e.g.
+ * conflicting rule values), return an empty result and the caller falls back
+ * to OPA.
+ */
+@Component
+@Slf4j
+public class NativeEvaluationEngine {
+
+    @Value("${policy.engine.native.enabled:false}")
+    private boolean enabled;
+
+    @Autowired
+    private BundleService bundleService;
+
+    @Autowired
+    private OpaCliRunner opaCliRunner;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final ExecutorService loader = Executors.newVirtualThreadPerTaskExecutor();
+
+    private final BundleLoads<CompiledBundle> bundles = new BundleLoads<>(loader);
+
+    @PreDestroy
+    public void shutdown() {
+        loader.shutdownNow();
+    }
+
+    /**
+     * Evaluates a rule path of a bundle.
+     *
+     * @param path rule path relative to data, e.g. "authz/allow"
+     * @return the OPA style response ({@code {"result": ...}} or an empty map
+     *         when undefined), or empty if the decision must be served by OPA
+     */
+    public Optional<Map<String, Object>> evaluate(PolicyBundle bundle, String path, Object input) {
+        if (!enabled) {
+            return Optional.empty();
+        }
+
+        Optional<CompiledBundle> compiled = bundles.get(bundle.getId(), () -> load(bundle));
+        if (compiled.isEmpty()) {
+            return Optional.empty();
+        }
+
+        try {
+            Object value = compiled.get().evaluate(path, objectMapper.convertValue(input, Object.class));
+            Map<String, Object> response = new HashMap<>();
+            if (value != Values.UNDEFINED) {
+                response.put("result", Values.toJson(value));
+            }
+            return Optional.of(response);
+        } catch (UnsupportedRegoException e) {
+            log.debug("Native evaluation of bundle {} not possible, falling back to OPA: {}", bundle.getId(),
+                    e.getMessage());
+            return Optional.empty();
+        } catch (RuntimeException e) {
+            log.warn("Native evaluation of bundle {} failed, falling back to OPA: {}", bundle.getId(), e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Drops the compiled bundle; the next decision compiles it again.
+     */
+    public void invalidate(Long bundleId) {
+        if (bundles.invalidate(bundleId)) {
+            log.info("Invalidated native evaluator for bundle {}", bundleId);
+        }
+    }
+
+    /**
+     * @return the compiled bundle, or null if it has to be served by OPA
+     */
+    private CompiledBundle load(PolicyBundle bundle) {
+        long start = System.nanoTime();
+        try {
+            List<PolicyBinding> bindings = bundleService.getBindings(bundle);
+            List<Policy> policies = bundleService.getPolicies(bindings);
+
+            List<JsonNode> modules = new ArrayList<>();
+            for (Policy policy : policies) {
+                JsonNode module = opaCliRunner.parse(policy.getContent());
+                if (module == null) {
+                    log.info("Policy {} of bundle {} could not be parsed, serving it through OPA", policy.getName(),
+                            bundle.getId());
+                    return null;
+                }
+                modules.add(module);
+            }
+            Map<String, Object> data = objectMapper.readValue(bundleService.buildDataJson(bindings),
+                    new TypeReference<Map<String, Object>>() {
+                    });
+
+            CompiledBundle compiled = RegoCompiler.compile(modules, new DataSnapshot(data));
+            log.info("Compiled bundle {} for native evaluation in {}ms", bundle.getId(),
+                    (System.nanoTime() - start) / 1_000_000);
+            return compiled;
+        } catch (UnsupportedRegoException e) {
+            log.info("Bundle {} is outside the natively evaluated Rego subset, serving it through OPA: {}",
+                    bundle.getId(), e.getMessage());
+            return null;
+        } catch (Exception e) {
+            log.warn("Bundle {} could not be compiled for native evaluation: {}", bundle.getId(), e.getMessage());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package org.openpickles.policy.engine.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.tomcat.util.http.fileupload.FileUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the {@code opa} command line tool (build, check, parse, ...) in a
+ * working directory and captures its combined output.
+ */
+@Component
+@Slf4j
+public class OpaCliRunner {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Value("${policy.engine.opa.cli-timeout-ms:120000}")
+    private long timeoutMs;
+
+    /**
+     * Resolves the OPA binary: the Docker image ships it as /app/opa, local
+     * development relies on 'opa' being on the PATH.
+     */
+    public static String resolveBinary() {
+        String opaPath = "/app/opa";
+        if (!Files.exists(Path.of(opaPath))) {
+            opaPath = "opa";
+        }
+        return opaPath;
+    }
+
+    /**
+     * Runs {@code opa <args>} and waits at most
+     * {@code policy.engine.opa.cli-timeout-ms} for it to exit.
+     * <p>
+     * The output goes to a temporary file rather than a pipe, so a process
+     * that hangs, or keeps its output open, cannot block the caller past the
+     * timeout. A process that overruns it, or whose caller is interrupted, is
+     * killed.
+     *
+     * @throws IOException if opa cannot be started or does not exit in time
+     */
+    public Result run(Path workDir, List<String> args) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(resolveBinary());
+        command.addAll(args);
+        return exec(workDir, command);
+    }
+
+    Result exec(Path workDir, List<String> command) throws IOException, InterruptedException {
+        Path outputFile = Files.createTempFile("opa-output", ".log");
+        try {
+            ProcessBuilder pb = new ProcessBuilder(command);
+            pb.directory(workDir.toFile());
+            pb.redirectErrorStream(true);
+            pb.redirectOutput(outputFile.toFile());
+            Process process = pb.start();
+            try {
+                if (!process.waitFor(timeoutMs, TimeUnit.MILLISECONDS)) {
+                    throw new IOException(String.join(" ", command) + " did not exit within " + timeoutMs + " ms");
+                }
+            } finally {
+                if (process.isAlive()) {
+                    process.destroyForcibly();
+                }
+            }
+
+            String output = Files.readString(outputFile, StandardCharsets.UTF_8);
+            if (log.isDebugEnabled()) {
+                output.lines().forEach(line -> log.debug("OPA Output: {}", line));
+            }
+            return new Result(process.exitValue(), output);
+        } finally {
+            Files.deleteIfExists(outputFile);
+        }
+    }
+
+    /**
+     * Parses a single module with {@code opa parse --format json}.
+     *
+     * @return the module's AST, or null if it does not parse or opa is not
+     *         available
+     */
+    public JsonNode parse(String content) {
+        Path dir = null;
+        try {
+            dir = Files.createTempDirectory("opa-parse");
+            Files.writeString(dir.resolve("policy.rego"), content != null ? content : "", StandardCharsets.UTF_8);
+            Result result = run(dir, List.of("parse", "--format", "json", "policy.rego"));
+            int json = result.getOutput().indexOf('{');
+            if (!result.isSuccess() || json < 0) {
+                return null;
+            }
+            return objectMapper.readTree(result.getOutput().substring(json));
+        } catch (IOException e) {
+            log.debug("opa parse unavailable: {}", e.getMessage());
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            if (dir != null) {
+                try {
+                    FileUtils.deleteDirectory(dir.toFile());
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+
+    public static class Result {
+        private final int exitCode;
+        private final String output;
+
+        public Result(int exitCode, String output) {
+            this.exitCode = exitCode;
+            this.output = output;
+        }
+
+        public int getExitCode() {
+            return exitCode;
+        }
+
+        public String getOutput() {
+            return output;
+        }
+
+        public boolean isSuccess() {
+            return exitCode == 0;
+        }
+    }
+}
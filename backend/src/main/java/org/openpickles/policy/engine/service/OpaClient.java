@@ -0,0 +1,350 @@
+package org.openpickles.policy.engine.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.openpickles.policy.engine.OpaInstance;
+import org.openpickles.policy.engine.OpaProcessManager;
+import org.openpickles.policy.engine.event.OpaInstanceStartedEvent;
+import org.openpickles.policy.engine.exception.TechnicalException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.event.EventListener;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Entry point to the pool of OPA servers.
+ * <p>
+ * Callers {@link #acquire() acquire} a lease on the instance with the fewest
+ * outstanding requests and keep it for everything that has to happen on the
+ * same server, e.g. the whole lifetime of an {@link OpaSandbox}.
+ * <p>
+ * State that every instance must hold is written with {@link #putData} /
+ * {@link #putPolicy} and dropped with {@link #removeData} /
+ * {@link #removePolicy}: changes are sent to all available instances and
+ * mirrored into the snapshot directory every OPA process loads on startup, so
+ * an instance that replaces a failed one comes up with the same state. Changes
+ * made while it was starting are replayed before it receives traffic.
+ */
+@Component
+@Slf4j
+public class OpaClient {
+
+    @Autowired
+    private OpaProcessManager processManager;
+
+    @Autowired
+    private OpaCliRunner opaCliRunner;
+
+    private final RestTemplate restTemplate = new RestTemplate(new DeadlineRequestFactory());
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    // Shared state with the time of its last write, replayed in insertion order
+    private final Map<String, Object> sharedData = new LinkedHashMap<>();
+    private final Map<String, String> sharedPolicies = new LinkedHashMap<>();
+    private final Map<String, Long> writtenAt = new LinkedHashMap<>();
+    // Removals a starting instance may have missed, see pruneRemovals()
+    private final Map<String, Long> removedAt = new LinkedHashMap<>();
+    private volatile String version;
+
+    /**
+     * Leases the available instance with the fewest outstanding requests.
+     */
+    public Lease acquire() {
+        OpaInstance best = null;
+        int bestLoad = Integer.MAX_VALUE;
+        for (OpaInstance instance : processManager.getInstances()) {
+            int load = instance.getOutstanding().get();
+            if (instance.isAvailable() && load < bestLoad) {
+                best = instance;
+                bestLoad = load;
+            }
+        }
+        if (best == null) {
+            throw new TechnicalException("No OPA instance available", "TECH_OPA_UNAVAILABLE");
+        }
+        best.getOutstanding().incrementAndGet();
+        return new Lease(best);
+    }
+
+    /**
+     * Version of the OPA binary the pool runs, "unknown" if it cannot be
+     * determined.
+     */
+    public String getVersion() {
+        String current = version;
+        if (current == null) {
+            current = "unknown";
+            try {
+                OpaCliRunner.Result result = opaCliRunner.run(Path.of(System.getProperty("java.io.tmpdir")),
+                        List.of("version"));
+                if (result.isSuccess()) {
+                    current = result.getOutput().lines()
+                            .filter(line -> line.startsWith("Version:"))
+                            .map(line -> line.substring("Version:".length()).trim())
+                            .findFirst()
+                            .orElse(current);
+                }
+            } catch (IOException e) {
+                log.warn("Could not determine OPA version: {}", e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            version = current;
+        }
+        return current;
+    }
+
+    public RestTemplate getRestTemplate() {
+        return restTemplate;
+    }
+
+    /**
+     * Writes a document on every instance, e.g. {@code putData("shared/x", ...)}.
+     */
+    public synchronized void putData(String path, Object data) {
+        sharedData.put(path, data);
+        writtenAt.put("data:" + path, System.currentTimeMillis());
+        removedAt.remove("data:" + path);
+        writeSnapshot(Path.of(path, "data.json"), () -> objectMapper.writeValueAsBytes(data));
+        for (OpaInstance instance : processManager.getInstances()) {
+            if (instance.isAvailable()) {
+                pushData(instance, path, data);
+            }
+        }
+    }
+
+    /**
+     * Registers a policy module on every instance.
+     */
+    public synchronized void putPolicy(String id, String content) {
+        sharedPolicies.put(id, content);
+        writtenAt.put("policy:" + id, System.currentTimeMillis());
+        removedAt.remove("policy:" + id);
+        writeSnapshot(Path.of(id + ".rego"), () -> content.getBytes(StandardCharsets.UTF_8));
+        for (OpaInstance instance : processManager.getInstances()) {
+            if (instance.isAvailable()) {
+                pushPolicy(instance, id, content);
+            }
+        }
+    }
+
+    /**
+     * Deletes a document written with {@link #putData} from every instance.
+     */
+    public synchronized void removeData(String path) {
+        sharedData.remove(path);
+        writtenAt.remove("data:" + path);
+        removedAt.put("data:" + path, System.currentTimeMillis());
+        deleteSnapshot(Path.of(path, "data.json"));
+        for (OpaInstance instance : processManager.getInstances()) {
+            if (instance.isAvailable()) {
+                delete(instance, "/v1/data/" + path);
+            }
+        }
+        pruneRemovals();
+    }
+
+    /**
+     * Deletes a policy module registered with {@link #putPolicy} from every
+     * instance.
+     */
+    public synchronized void removePolicy(String id) {
+        sharedPolicies.remove(id);
+        writtenAt.remove("policy:" + id);
+        removedAt.put("policy:" + id, System.currentTimeMillis());
+        deleteSnapshot(Path.of(id + ".rego"));
+        for (OpaInstance instance : processManager.getInstances()) {
+            if (instance.isAvailable()) {
+                delete(instance, "/v1/policies/" + id);
+            }
+        }
+        pruneRemovals();
+    }
+
+    @EventListener
+    public synchronized void onInstanceStarted(OpaInstanceStartedEvent event) {
+        OpaInstance instance = event.getInstance();
+        // Everything older was in the snapshot the process loaded on startup
+        long since = instance.getLaunchedAt();
+        sharedData.forEach((path, data) -> {
+            if (writtenAt.get("data:" + path) >= since) {
+                pushData(instance, path, data);
+            }
+        });
+        sharedPolicies.forEach((id, content) -> {
+            if (writtenAt.get("policy:" + id) >= since) {
+                pushPolicy(instance, id, content);
+            }
+        });
+        // The process may have read a file before it was deleted; policies
+        // first, they can refer to the data
+        removedAt.forEach((key, at) -> {
+            if (at >= since && key.startsWith("policy:")) {
+                delete(instance, "/v1/policies/" + key.substring("policy:".length()));
+            }
+        });
+        removedAt.forEach((key, at) -> {
+            if (at >= since && key.startsWith("data:")) {
+                delete(instance, "/v1/data/" + key.substring("data:".length()));
+            }
+        });
+        pruneRemovals();
+    }
+
+    /**
+     * Forgets removals that no instance still starting can have missed: every
+     * process launched after them never saw the deleted files.
+     */
+    private void pruneRemovals() {
+        long oldestLaunch = processManager.getInstances().stream()
+                .filter(instance -> !instance.isAvailable())
+                .mapToLong(OpaInstance::getLaunchedAt)
+                .min()
+                .orElse(Long.MAX_VALUE);
+        removedAt.values().removeIf(at -> at < oldestLaunch);
+    }
+
+    private void writeSnapshot(Path relative, SnapshotContent content) {
+        Path target = processManager.getSnapshotDir().resolve(relative).normalize();
+        if (!target.startsWith(processManager.getSnapshotDir())) {
+            throw new TechnicalException("Invalid shared state path: " + relative, "TECH_OPA_SNAPSHOT");
+        }
+        try {
+            Files.createDirectories(target.getParent());
+            // Written aside and moved so a starting OPA never loads a partial file
+            Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+            Files.write(tmp, content.get());
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new TechnicalException("Failed to write OPA snapshot " + relative, "TECH_OPA_SNAPSHOT", e);
+        }
+    }
+
+    private void deleteSnapshot(Path relative) {
+        Path root = processManager.getSnapshotDir();
+        Path target = root.resolve(relative).normalize();
+        if (!target.startsWith(root)) {
+            throw new TechnicalException("Invalid shared state path: " + relative, "TECH_OPA_SNAPSHOT");
+        }
+        try {
+            Files.deleteIfExists(target);
+            // Drop directories the removal left empty
+            for (Path dir = target.getParent(); !dir.equals(root); dir = dir.getParent()) {
+                try (Stream<Path> entries = Files.list(dir)) {
+                    if (entries.findAny().isPresent()) {
+                        break;
+                    }
+                }
+                Files.delete(dir);
+            }
+        } catch (NoSuchFileException | DirectoryNotEmptyException e) {
+            // Removed or refilled concurrently
+        } catch (IOException e) {
+            throw new TechnicalException("Failed to delete OPA snapshot " + relative, "TECH_OPA_SNAPSHOT", e);
+        }
+    }
+
+    private void delete(OpaInstance instance, String resource) {
+        // Best effort: a leftover document or module only costs memory, the
+        // next restart of the instance drops it
+        try {
+            restTemplate.delete(instance.getUrl() + resource);
+        } catch (HttpClientErrorException.NotFound e) {
+            // Never arrived there
+        } catch (Exception e) {
+            log.warn("Failed to delete {} from OPA on port {}: {}", resource, instance.getPort(), e.getMessage());
+        }
+    }
+
+    private void pushData(OpaInstance instance, String path, Object data) {
+        try {
+            restTemplate.put(instance.getUrl() + "/v1/data/" + path, data);
+        } catch (Exception e) {
+            throw new TechnicalException("Failed to push data to OPA on port " + instance.getPort(),
+                    "TECH_OPA_DATA", e);
+        }
+    }
+
+    private void pushPolicy(OpaInstance instance, String id, String content) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.TEXT_PLAIN);
+        try {
+            restTemplate.put(instance.getUrl() + "/v1/policies/" + id, new HttpEntity<>(content, headers));
+        } catch (Exception e) {
+            throw new TechnicalException("Failed to load policy into OPA on port " + instance.getPort(),
+                    "TECH_OPA_LOAD", e);
+        }
+    }
+
+    /**
+     * Applies the {@link EvaluationDeadline} of the calling thread as connect
+     * and read timeout of each request.
+     */
+    private static class DeadlineRequestFactory extends SimpleClientHttpRequestFactory {
+        @Override
+        protected void prepareConnection(HttpURLConnection connection, String httpMethod) throws IOException {
+            super.prepareConnection(connection, httpMethod);
+            long remaining = EvaluationDeadline.remainingMillis();
+            if (remaining == 0) {
+                throw new SocketTimeoutException("Evaluation deadline exceeded");
+            }
+            if (remaining > 0) {
+                int timeout = (int) Math.min(remaining, Integer.MAX_VALUE);
+                connection.setConnectTimeout(timeout);
+                connection.setReadTimeout(timeout);
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface SnapshotContent {
+        byte[] get() throws IOException;
+    }
+
+    /**
+     * A reservation of one instance; closing it releases the slot.
+     */
+    public static class Lease implements AutoCloseable {
+        private final OpaInstance instance;
+        private boolean closed;
+
+        Lease(OpaInstance instance) {
+            this.instance = instance;
+        }
+
+        public String getUrl() {
+            return instance.getUrl();
+        }
+
+        public OpaInstance getInstance() {
+            return instance;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                instance.getOutstanding().decrementAndGet();
+            }
+        }
+    }
+}
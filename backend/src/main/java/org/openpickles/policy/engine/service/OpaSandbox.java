@@ -0,0 +1,184 @@
+package org.openpickles.policy.engine.service;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An isolated namespace inside one running OPA instance used for a single
+ * evaluation run.
+ * <p>
+ * OPA keeps one global document tree, so a test run that simply does
+ * {@code PUT /v1/data} replaces everybody else's data. Instead, each run gets
+ * its own root under {@code data.sandboxes.<id>}: the caller's context data is
+ * written there and every policy module is re-packaged beneath the same root
+ * (with its {@code data.} references rewritten to match), so the module sees
+ * exactly the documents it would see at the top level while other runs stay
+ * untouched.
+ */
+public class OpaSandbox {
+
+    public static final String ROOT = "sandboxes";
+
+    private static final Pattern PACKAGE_PATTERN = Pattern.compile("^(\\s*package\\s+)([a-zA-Z0-9_.]+)",
+            Pattern.MULTILINE);
+
+    // Matches the 'data' root keyword but not 'metadata', 'input.data' etc.
+    private static final Pattern DATA_REF_PATTERN = Pattern.compile("(?<![\\w.])data(?=\\s*[.\\[])");
+
+    private static final Pattern DATA_PATH_PATTERN = Pattern.compile(
+            "(?<![\\w.])data((?:\\.[a-zA-Z_][a-zA-Z0-9_]*)+)");
+
+    private final String id;
+    private final String url;
+
+    /**
+     * @param url base URL of the OPA instance the sandbox lives on
+     */
+    public OpaSandbox(String url) {
+        this.id = "s" + UUID.randomUUID().toString().replace("-", "");
+        this.url = url;
+    }
+
+    /**
+     * A namespace that is not bound to one instance, for state published to
+     * all of them with {@link OpaClient#putData} / {@link OpaClient#putPolicy}.
+     */
+    public OpaSandbox() {
+        this(null);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * Path of the sandbox data root, relative to {@code /v1/data}.
+     */
+    public String getDataPath() {
+        return ROOT + "/" + id;
+    }
+
+    /**
+     * Id under which a module is registered via {@code /v1/policies}.
+     */
+    public String getPolicyId(int index) {
+        return ROOT + "/" + id + "/" + index;
+    }
+
+    /**
+     * Rewrites a Rego module so that its package and all {@code data.}
+     * references live beneath this sandbox's root.
+     * <p>
+     * Only code is rewritten: string literals, raw strings and comments that
+     * happen to contain {@code data.} or {@code package} are kept as written.
+     */
+    public String rewrite(String content) {
+        if (content == null) {
+            return "";
+        }
+        String prefix = ROOT + "." + id;
+        StringBuilder sb = new StringBuilder(content.length() + 64);
+        boolean packageSeen = false;
+        for (int[] span : spans(content)) {
+            String text = content.substring(span[0], span[1]);
+            if (span[2] == 0) {
+                sb.append(text);
+                continue;
+            }
+            text = DATA_REF_PATTERN.matcher(text).replaceAll(Matcher.quoteReplacement("data." + prefix));
+            if (!packageSeen) {
+                Matcher packageMatcher = PACKAGE_PATTERN.matcher(text);
+                if (packageMatcher.find()) {
+                    packageSeen = true;
+                    text = text.substring(0, packageMatcher.start()) + packageMatcher.group(1) + prefix + "."
+                            + packageMatcher.group(2) + text.substring(packageMatcher.end());
+                }
+            }
+            sb.append(text);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The documents a module refers to below {@code data}, e.g.
+     * {@code lib.roles.admins} for {@code import data.lib.roles} followed by
+     * {@code data.lib.roles.admins}, so the packages they live in can be loaded
+     * next to it. Strings and comments are skipped.
+     */
+    public static Set<String> dataRefs(String content) {
+        Set<String> refs = new LinkedHashSet<>();
+        if (content == null) {
+            return refs;
+        }
+        for (int[] span : spans(content)) {
+            if (span[2] == 1) {
+                Matcher matcher = DATA_PATH_PATTERN.matcher(content.substring(span[0], span[1]));
+                while (matcher.find()) {
+                    refs.add(matcher.group(1).substring(1));
+                }
+            }
+        }
+        return refs;
+    }
+
+    /**
+     * Splits a module into {@code [start, end, isCode]} spans, code being
+     * everything outside string literals, raw strings and comments.
+     */
+    private static List<int[]> spans(String content) {
+        List<int[]> spans = new ArrayList<>();
+        int codeStart = 0;
+        int i = 0;
+        int length = content.length();
+        while (i < length) {
+            char c = content.charAt(i);
+            int end;
+            if (c == '#') {
+                end = content.indexOf('\n', i);
+                end = end < 0 ? length : end;
+            } else if (c == '`') {
+                end = content.indexOf('`', i + 1);
+                end = end < 0 ? length : end + 1;
+            } else if (c == '"') {
+                end = i + 1;
+                while (end < length && content.charAt(end) != '"' && content.charAt(end) != '\n') {
+                    end += content.charAt(end) == '\\' ? 2 : 1;
+                }
+                end = Math.min(length, end + 1);
+            } else {
+                i++;
+                continue;
+            }
+            if (i > codeStart) {
+                spans.add(new int[] { codeStart, i, 1 });
+            }
+            spans.add(new int[] { i, end, 0 });
+            codeStart = end;
+            i = end;
+        }
+        if (codeStart < length) {
+            spans.add(new int[] { codeStart, length, 1 });
+        }
+        return spans;
+    }
+
+    /**
+     * Strips this sandbox's root from OPA messages about rewritten modules,
+     * so they name the packages and refs the author wrote.
+     */
+    public String unwrap(String message) {
+        if (message == null) {
+            return null;
+        }
+        return message.replace(ROOT + "." + id + ".", "");
+    }
+}
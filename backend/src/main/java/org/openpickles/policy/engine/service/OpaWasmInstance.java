@@ -0,0 +1,165 @@
+package org.openpickles.policy.engine.service;
+
+import com.dylibso.chicory.runtime.ByteArrayMemory;
+import com.dylibso.chicory.runtime.ExportFunction;
+import com.dylibso.chicory.runtime.HostFunction;
+import com.dylibso.chicory.runtime.ImportMemory;
+import com.dylibso.chicory.runtime.ImportValues;
+import com.dylibso.chicory.runtime.Instance;
+import com.dylibso.chicory.runtime.Machine;
+import com.dylibso.chicory.runtime.Memory;
+import com.dylibso.chicory.wasm.WasmModule;
+import com.dylibso.chicory.wasm.types.ExternalType;
+import com.dylibso.chicory.wasm.types.FunctionType;
+import com.dylibso.chicory.wasm.types.Import;
+import com.dylibso.chicory.wasm.types.MemoryImport;
+import com.dylibso.chicory.wasm.types.MemoryLimits;
+import com.dylibso.chicory.wasm.types.ValType;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * A single instantiated OPA policy.wasm module with its data document loaded.
+ * <p>
+ * Implements the host side of the OPA WebAssembly ABI (1.2+): the module
+ * imports {@code env.memory}, {@code opa_abort}, {@code opa_println} and the
+ * {@code opa_builtinN} callbacks, and is evaluated through the one-shot
+ * {@code opa_eval} export. Host-implemented builtins are not supported; the
+ * engine refuses such modules so evaluation falls back to the OPA server.
+ * <p>
+ * Instances are not thread-safe and are meant to be pooled.
+ */
+@Slf4j
+public class OpaWasmInstance {
+
+    private static final String ENV = "env";
+
+    private final Instance instance;
+    private final Memory memory;
+    private final ExportFunction opaEval;
+    private final ExportFunction opaMalloc;
+    private final ExportFunction opaJsonParse;
+    private final ExportFunction opaJsonDump;
+    private final int dataAddr;
+    private final int baseHeapPtr;
+
+    public OpaWasmInstance(WasmModule module, Function<Instance, Machine> machineFactory, byte[] data) {
+        MemoryLimits limits = module.importSection().stream()
+                .filter(i -> i.importType() == ExternalType.MEMORY)
+                .map(i -> ((MemoryImport) i).limits())
+                .findFirst()
+                .orElse(new MemoryLimits(2));
+        this.memory = new ByteArrayMemory(limits);
+
+        ImportValues.Builder imports = ImportValues.builder()
+                .addMemory(new ImportMemory(ENV, "memory", memory));
+        for (HostFunction function : hostFunctions(module)) {
+            imports.addFunction(function);
+        }
+
+        this.instance = Instance.builder(module)
+                .withImportValues(imports.build())
+                .withMachineFactory(machineFactory)
+                .build();
+
+        this.opaEval = instance.export("opa_eval");
+        this.opaMalloc = instance.export("opa_malloc");
+        this.opaJsonParse = instance.export("opa_json_parse");
+        this.opaJsonDump = instance.export("opa_json_dump");
+
+        this.dataAddr = parseJson(data);
+        this.baseHeapPtr = (int) instance.export("opa_heap_ptr_get").apply()[0];
+    }
+
+    /**
+     * JSON object of builtin name to id that the module expects the host to
+     * provide.
+     */
+    public String builtins() {
+        return dumpJson((int) instance.export("builtins").apply()[0]);
+    }
+
+    /**
+     * JSON object of entrypoint name (e.g. "authz/allow") to entrypoint id.
+     */
+    public String entrypoints() {
+        return dumpJson((int) instance.export("entrypoints").apply()[0]);
+    }
+
+    /**
+     * Evaluates an entrypoint and returns the raw JSON result set, e.g.
+     * {@code [{"result":true}]} or {@code []} if undefined.
+     */
+    public String eval(int entrypointId, byte[] input) {
+        int inputAddr = baseHeapPtr;
+        ensureCapacity(inputAddr + input.length);
+        memory.write(inputAddr, input);
+
+        long resultAddr = opaEval.apply(0, entrypointId, dataAddr, inputAddr, input.length,
+                inputAddr + input.length, 0)[0];
+        return memory.readCString((int) resultAddr);
+    }
+
+    private int parseJson(byte[] json) {
+        int addr = (int) opaMalloc.apply(json.length)[0];
+        memory.write(addr, json);
+        int parsed = (int) opaJsonParse.apply(addr, json.length)[0];
+        if (parsed == 0) {
+            throw new IllegalStateException("OPA WASM module failed to parse the data document");
+        }
+        return parsed;
+    }
+
+    private String dumpJson(int valueAddr) {
+        int strAddr = (int) opaJsonDump.apply(valueAddr)[0];
+        return memory.readCString(strAddr);
+    }
+
+    private void ensureCapacity(int requiredBytes) {
+        int available = memory.pages() * Memory.PAGE_SIZE;
+        if (requiredBytes > available) {
+            int missingPages = (requiredBytes - available + Memory.PAGE_SIZE - 1) / Memory.PAGE_SIZE;
+            if (memory.grow(missingPages) < 0) {
+                throw new IllegalStateException("OPA WASM memory limit reached");
+            }
+        }
+    }
+
+    private List<HostFunction> hostFunctions(WasmModule module) {
+        List<HostFunction> functions = new ArrayList<>();
+        for (Import imp : module.importSection().stream().toList()) {
+            if (imp.importType() != ExternalType.FUNCTION || !ENV.equals(imp.module())) {
+                continue;
+            }
+            String name = imp.name();
+            if ("opa_abort".equals(name)) {
+                functions.add(new HostFunction(ENV, name, FunctionType.of(List.of(ValType.I32), List.of()),
+                        (inst, args) -> {
+                            throw new IllegalStateException("OPA WASM abort: "
+                                    + inst.memory().readCString((int) args[0], StandardCharsets.UTF_8));
+                        }));
+            } else if ("opa_println".equals(name)) {
+                functions.add(new HostFunction(ENV, name, FunctionType.of(List.of(ValType.I32), List.of()),
+                        (inst, args) -> {
+                            log.info("OPA WASM: {}", inst.memory().readCString((int) args[0]));
+                            return null;
+                        }));
+            } else if (name.startsWith("opa_builtin")) {
+                // opa_builtinN(builtin_id, ctx, arg1..argN) -> value address
+                int arity = Integer.parseInt(name.substring("opa_builtin".length()));
+                List<ValType> params = new ArrayList<>(Collections.nCopies(arity + 2, ValType.I32));
+                functions.add(new HostFunction(ENV, name, FunctionType.of(params, List.of(ValType.I32)),
+                        (inst, args) -> {
+                            throw new UnsupportedOperationException(
+                                    "Host builtin " + args[0] + " is not supported by the in-JVM engine");
+                        }));
+            }
+        }
+        return functions;
+    }
+}
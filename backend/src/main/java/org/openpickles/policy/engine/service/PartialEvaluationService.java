@@ -0,0 +1,266 @@
+package org.openpickles.policy.engine.service;
+
+import org.openpickles.policy.engine.dto.FilterRequest;
+import org.openpickles.policy.engine.dto.FilterResult;
+import org.openpickles.policy.engine.exception.FunctionalException;
+import org.openpickles.policy.engine.model.Policy;
+import org.openpickles.policy.engine.model.PolicyBinding;
+import org.openpickles.policy.engine.repository.PolicyBindingRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Answers "which resources of a type can this subject access" with a single
+ * partial evaluation instead of one decision per resource.
+ * <p>
+ * The bound policies are compiled with {@code input.resource} unknown. If every
+ * residual query reduces to an equality (or membership) on the resource id,
+ * the result is the explicit id set; if a query holds unconditionally every
+ * resource is accessible; otherwise the residual is returned, translated into
+ * simple conditions where possible so the resource provider can push it into
+ * its own query.
+ */
+@Service
+public class PartialEvaluationService {
+
+    private static final String RESOURCE_ROOT = "input.resource";
+    private static final Map<String, String> OPERATORS = Map.of(
+            "eq", "eq", "equal", "eq", "neq", "neq",
+            "lt", "lt", "lte", "lte", "gt", "gt", "gte", "gte");
+    private static final Map<String, String> SWAPPED = Map.of(
+            "eq", "eq", "neq", "neq", "lt", "gt", "lte", "gte", "gt", "lt", "gte", "lte");
+
+    @Autowired
+    private PolicyBindingRepository bindingRepository;
+
+    @Autowired
+    private BundleService bundleService;
+
+    @Autowired
+    private EvaluationService evaluationService;
+
+    public FilterResult filter(FilterRequest request) {
+        if (request.getResourceType() == null || request.getSubject() == null) {
+            throw new FunctionalException("resourceType and subject are required", "FUNC_FILTER_INVALID");
+        }
+
+        List<PolicyBinding> bindings = bindingRepository.findByResourceType(request.getResourceType()).stream()
+                .filter(b -> request.getContext() == null || request.getContext().equals(b.getContext()))
+                .toList();
+        List<Policy> policies = bundleService.getPolicies(bindings);
+        String rule = request.getRule() != null && !request.getRule().isEmpty() ? request.getRule() : "allow";
+        List<String> queries = policies.stream()
+                .map(p -> bundleService.findPackageName(p.getContent() != null ? p.getContent() : ""))
+                .filter(Objects::nonNull)
+                .distinct()
+                .map(pkg -> pkg.replace('.', '/') + "/" + rule)
+                .toList();
+
+        FilterResult.FilterResultBuilder result = FilterResult.builder().resourceType(request.getResourceType());
+        if (queries.isEmpty()) {
+            return result.mode(FilterResult.Mode.NONE).build();
+        }
+
+        Map<String, Object> input = new HashMap<>();
+        if (request.getInput() != null) {
+            input.putAll(request.getInput());
+        }
+        input.put("subject", request.getSubject());
+        if (request.getAction() != null) {
+            input.put("action", request.getAction());
+        }
+        input.put("resourceType", request.getResourceType());
+        input.remove("resource");
+
+        List<String> modules = policies.stream().map(p -> p.getContent() != null ? p.getContent() : "").toList();
+        List<Map<String, Object>> compiled = evaluationService.partialEvaluate(modules,
+                bundleService.buildData(bindings), queries, input, List.of(RESOURCE_ROOT));
+
+        String idPath = relativePath(request.getResourceIdPath() != null ? request.getResourceIdPath()
+                : RESOURCE_ROOT + ".id");
+        return analyze(compiled, idPath, result);
+    }
+
+    @SuppressWarnings("unchecked")
+    private FilterResult analyze(List<Map<String, Object>> compiled, String idPath,
+            FilterResult.FilterResultBuilder result) {
+        List<Object> rawQueries = new ArrayList<>();
+        List<Object> support = new ArrayList<>();
+        for (Map<String, Object> c : compiled) {
+            if (c.get("queries") instanceof List<?> q) {
+                rawQueries.addAll(q);
+            }
+            if (c.get("support") instanceof List<?> s) {
+                support.addAll(s);
+            }
+        }
+
+        if (rawQueries.isEmpty()) {
+            return result.mode(FilterResult.Mode.NONE).build();
+        }
+
+        List<List<FilterResult.Condition>> predicate = new ArrayList<>();
+        boolean translatable = support.isEmpty();
+        for (Object query : rawQueries) {
+            List<Object> exprs = (List<Object>) query;
+            if (exprs.isEmpty()) {
+                // An empty query is unconditionally true
+                return result.mode(FilterResult.Mode.ALL).build();
+            }
+            List<FilterResult.Condition> conjunction = new ArrayList<>();
+            for (Object expr : exprs) {
+                FilterResult.Condition condition = translate((Map<String, Object>) expr);
+                if (condition == null) {
+                    translatable = false;
+                    break;
+                }
+                conjunction.add(condition);
+            }
+            predicate.add(conjunction);
+        }
+
+        if (translatable) {
+            Set<Object> ids = new LinkedHashSet<>();
+            boolean idsOnly = true;
+            for (List<FilterResult.Condition> conjunction : predicate) {
+                FilterResult.Condition c = conjunction.size() == 1 ? conjunction.get(0) : null;
+                if (c == null || !idPath.equals(c.getPath())) {
+                    idsOnly = false;
+                    break;
+                }
+                if ("eq".equals(c.getOperator())) {
+                    ids.add(c.getValue());
+                } else if ("in".equals(c.getOperator())) {
+                    ids.addAll((List<Object>) c.getValue());
+                } else {
+                    idsOnly = false;
+                    break;
+                }
+            }
+            if (idsOnly) {
+                return result.mode(FilterResult.Mode.IDS).resourceIds(ids).build();
+            }
+        }
+
+        return result.mode(FilterResult.Mode.RESIDUAL)
+                .predicate(translatable ? predicate : null)
+                .queries(rawQueries)
+                .support(support)
+                .build();
+    }
+
+    /**
+     * Translates {@code <op>(input.resource.x, scalar)} (either order) and
+     * {@code internal.member_2(input.resource.x, collection)}; anything else
+     * returns null.
+     */
+    @SuppressWarnings("unchecked")
+    private FilterResult.Condition translate(Map<String, Object> expr) {
+        if (Boolean.TRUE.equals(expr.get("negated")) || !(expr.get("terms") instanceof List<?>)) {
+            return null;
+        }
+        List<Map<String, Object>> terms = (List<Map<String, Object>>) expr.get("terms");
+        if (terms.size() != 3) {
+            return null;
+        }
+        String operator = operatorName(terms.get(0));
+        if (operator == null) {
+            return null;
+        }
+
+        if ("internal.member_2".equals(operator)) {
+            String path = resourcePath(terms.get(1));
+            List<Object> values = scalars(terms.get(2));
+            return path != null && values != null
+                    ? FilterResult.Condition.builder().path(path).operator("in").value(values).build()
+                    : null;
+        }
+
+        String op = OPERATORS.get(operator);
+        if (op == null) {
+            return null;
+        }
+        String leftPath = resourcePath(terms.get(1));
+        String rightPath = resourcePath(terms.get(2));
+        if (leftPath != null && rightPath == null && isScalar(terms.get(2))) {
+            return FilterResult.Condition.builder().path(leftPath).operator(op).value(terms.get(2).get("value"))
+                    .build();
+        }
+        if (rightPath != null && leftPath == null && isScalar(terms.get(1))) {
+            return FilterResult.Condition.builder().path(rightPath).operator(SWAPPED.get(op))
+                    .value(terms.get(1).get("value")).build();
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private String operatorName(Map<String, Object> term) {
+        if (!"ref".equals(term.get("type"))) {
+            return null;
+        }
+        List<String> parts = new ArrayList<>();
+        for (Map<String, Object> part : (List<Map<String, Object>>) term.get("value")) {
+            parts.add(String.valueOf(part.get("value")));
+        }
+        return String.join(".", parts);
+    }
+
+    /**
+     * Path relative to input.resource for a ground ref into it, else null.
+     */
+    @SuppressWarnings("unchecked")
+    private String resourcePath(Map<String, Object> term) {
+        if (!"ref".equals(term.get("type"))) {
+            return null;
+        }
+        List<Map<String, Object>> parts = (List<Map<String, Object>>) term.get("value");
+        if (parts.size() < 3 || !"input".equals(parts.get(0).get("value"))
+                || !"resource".equals(parts.get(1).get("value"))) {
+            return null;
+        }
+        List<String> path = new ArrayList<>();
+        for (Map<String, Object> part : parts.subList(2, parts.size())) {
+            if (!"string".equals(part.get("type"))) {
+                return null;
+            }
+            path.add(String.valueOf(part.get("value")));
+        }
+        return String.join(".", path);
+    }
+
+    private boolean isScalar(Map<String, Object> term) {
+        Object type = term.get("type");
+        return "string".equals(type) || "number".equals(type) || "boolean".equals(type) || "null".equals(type);
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Object> scalars(Map<String, Object> term) {
+        if (!("set".equals(term.get("type")) || "array".equals(term.get("type")))) {
+            return null;
+        }
+        List<Object> values = new ArrayList<>();
+        for (Map<String, Object> element : (List<Map<String, Object>>) term.get("value")) {
+            if (!isScalar(element)) {
+                return null;
+            }
+            values.add(element.get("value"));
+        }
+        return values;
+    }
+
+    private String relativePath(String ref) {
+        String prefix = RESOURCE_ROOT + ".";
+        if (!ref.startsWith(prefix)) {
+            throw new FunctionalException("resourceIdPath must start with " + prefix, "FUNC_FILTER_INVALID");
+        }
+        return ref.substring(prefix.length());
+    }
+}
@@ -0,0 +1,155 @@
+package org.openpickles.policy.engine.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.tomcat.util.http.fileupload.FileUtils;
+import org.openpickles.policy.engine.dto.BenchmarkRequest;
+import org.openpickles.policy.engine.exception.FunctionalException;
+import org.openpickles.policy.engine.exception.TechnicalException;
+import org.openpickles.policy.engine.model.Policy;
+import org.openpickles.policy.engine.model.PolicyBenchmark;
+import org.openpickles.policy.engine.repository.PolicyBenchmarkRepository;
+import org.openpickles.policy.engine.repository.PolicyRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures the cost of a policy with {@code opa bench}.
+ * <p>
+ * The module, input and context data are written to a temporary directory
+ * and benchmarked by a separate {@code opa bench} process, so runs are
+ * isolated from the served OPA instances and from each other. Results of
+ * stored policies are persisted with the policy version for comparison.
+ */
+@Service
+@Slf4j
+public class PolicyBenchmarkService {
+
+    private static final String EVAL_TIMER = "histogram_timer_rego_query_eval_ns_";
+
+    @Autowired
+    private OpaCliRunner opaCliRunner;
+
+    @Autowired
+    private BundleService bundleService;
+
+    @Autowired
+    private PolicyRepository policyRepository;
+
+    @Autowired
+    private PolicyBenchmarkRepository benchmarkRepository;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    public PolicyBenchmark benchmark(BenchmarkRequest request) {
+        Policy stored = request.getPolicyId() != null
+                ? policyRepository.findById(request.getPolicyId()).orElseThrow(
+                        () -> new FunctionalException("Policy not found with id: " + request.getPolicyId(),
+                                "FUNC_007"))
+                : null;
+        String content = request.getPolicyContent();
+        if (content == null || content.isEmpty()) {
+            content = stored != null ? stored.getContent() : null;
+        }
+        if (content == null || content.isEmpty()) {
+            throw new FunctionalException("Policy content or policyId is required", "FUNC_BENCH_INVALID");
+        }
+        String pkg = bundleService.findPackageName(content);
+        if (pkg == null) {
+            throw new FunctionalException("Policy has no package declaration", "FUNC_BENCH_INVALID");
+        }
+        String rule = request.getRule();
+        if (rule != null && !rule.isEmpty() && !rule.matches("^[\\w.]+$")) {
+            throw new FunctionalException("Invalid rule: " + rule, "FUNC_BENCH_INVALID");
+        }
+        String query = "data." + pkg + (rule != null && !rule.isEmpty() ? "." + rule : "");
+
+        JsonNode result = run(content, query, request.getInput(), request.getData());
+
+        long n = Math.max(1, result.path("N").asLong());
+        PolicyBenchmark benchmark = PolicyBenchmark.builder()
+                .policyId(stored != null ? stored.getId() : null)
+                .policyVersion(stored != null ? stored.getVersion() : null)
+                .contentHash(sha256(content))
+                .draft(stored != null && !content.equals(stored.getContent()))
+                .createdAt(Instant.now())
+                .query(query)
+                .iterations(n)
+                .nsPerOp((double) result.path("T").asLong() / n)
+                .allocsPerOp(result.has("MemAllocs") ? result.get("MemAllocs").asLong() / n : null)
+                .bytesPerOp(result.has("MemBytes") ? result.get("MemBytes").asLong() / n : null)
+                .p50Ns(percentile(result, "median", "50%"))
+                .p90Ns(percentile(result, "90%"))
+                .p99Ns(percentile(result, "99%"))
+                .build();
+        return stored != null ? benchmarkRepository.save(benchmark) : benchmark;
+    }
+
+    public List<PolicyBenchmark> history(Long policyId) {
+        return benchmarkRepository.findByPolicyIdOrderByCreatedAtDesc(policyId);
+    }
+
+    private JsonNode run(String content, String query, Map<String, Object> input, Map<String, Object> data) {
+        Path dir = null;
+        try {
+            dir = Files.createTempDirectory("opa-bench");
+            Path policies = Files.createDirectory(dir.resolve("policies"));
+            Files.writeString(policies.resolve("policy.rego"), content, StandardCharsets.UTF_8);
+            Files.write(policies.resolve("data.json"), objectMapper.writeValueAsBytes(data != null ? data : Map.of()));
+            Files.write(dir.resolve("input.json"), objectMapper.writeValueAsBytes(input != null ? input : Map.of()));
+
+            OpaCliRunner.Result result = opaCliRunner.run(dir, List.of("bench", "--format", "json",
+                    "-d", "policies", "-i", "input.json", query));
+            String output = result.getOutput();
+            int json = output.indexOf('{');
+            if (!result.isSuccess() || json < 0) {
+                throw new FunctionalException("Benchmark failed: " + output.trim(), "FUNC_BENCH_FAILED");
+            }
+            return objectMapper.readTree(output.substring(json));
+        } catch (IOException e) {
+            throw new TechnicalException("Failed to run opa bench: " + e.getMessage(), "TECH_OPA_BENCH", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TechnicalException("Interrupted while running opa bench", "TECH_OPA_BENCH", e);
+        } finally {
+            if (dir != null) {
+                try {
+                    FileUtils.deleteDirectory(dir.toFile());
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+
+    private Double percentile(JsonNode result, String... suffixes) {
+        JsonNode extra = result.path("Extra");
+        for (String suffix : suffixes) {
+            JsonNode value = extra.get(EVAL_TIMER + suffix);
+            if (value != null && value.isNumber()) {
+                return value.asDouble();
+            }
+        }
+        return null;
+    }
+
+    private static String sha256(String content) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256")
+                    .digest(content.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
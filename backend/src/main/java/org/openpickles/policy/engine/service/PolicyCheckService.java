@@ -0,0 +1,249 @@
+package org.openpickles.policy.engine.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.tomcat.util.http.fileupload.FileUtils;
+import org.openpickles.policy.engine.dto.BulkValidationRequest;
+import org.openpickles.policy.engine.dto.BulkValidationResult;
+import org.openpickles.policy.engine.exception.FunctionalException;
+import org.openpickles.policy.engine.exception.TechnicalException;
+import org.openpickles.policy.engine.model.Policy;
+import org.openpickles.policy.engine.model.PolicyBundle;
+import org.openpickles.policy.engine.repository.PolicyBundleRepository;
+import org.openpickles.policy.engine.repository.PolicyRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Validates many modules at once with {@code opa check}.
+ * <p>
+ * The modules are written to a temporary tree and compiled together by a
+ * single {@code opa check --format json} run, instead of one OPA round trip
+ * (and full recompile) per module. Sets larger than
+ * {@code policy.engine.validation.shard-size} are split into shards that are
+ * checked in parallel; modules of the same package always stay in the same
+ * shard, so conflicts within a package are still detected.
+ */
+@Service
+@Slf4j
+public class PolicyCheckService {
+
+    @Value("${policy.engine.validation.shard-size:200}")
+    private int shardSize;
+
+    @Autowired
+    private OpaCliRunner opaCliRunner;
+
+    @Autowired
+    private BundleService bundleService;
+
+    @Autowired
+    private PolicyRepository policyRepository;
+
+    @Autowired
+    private PolicyBundleRepository bundleRepository;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final ExecutorService executor = Executors
+            .newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), r -> {
+                Thread thread = new Thread(r, "opa-check");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public BulkValidationResult check(BulkValidationRequest request) {
+        long start = System.currentTimeMillis();
+        List<Candidate> candidates = collect(request);
+        if (candidates.isEmpty()) {
+            throw new FunctionalException("No modules to validate", "FUNC_VALIDATE_EMPTY");
+        }
+
+        List<List<Candidate>> shards = shard(candidates);
+        List<CompletableFuture<List<BulkValidationResult.Diagnostic>>> runs = shards.stream()
+                .map(shard -> CompletableFuture.supplyAsync(() -> checkShard(shard), executor))
+                .toList();
+
+        List<BulkValidationResult.Diagnostic> unattributed = new ArrayList<>();
+        try {
+            for (CompletableFuture<List<BulkValidationResult.Diagnostic>> run : runs) {
+                unattributed.addAll(run.join());
+            }
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException re ? re : e;
+        }
+
+        List<BulkValidationResult.FileResult> files = candidates.stream()
+                .map(c -> BulkValidationResult.FileResult.builder()
+                        .name(c.name)
+                        .policyId(c.policyId)
+                        .valid(c.errors.isEmpty())
+                        .errors(c.errors)
+                        .build())
+                .toList();
+        boolean valid = unattributed.isEmpty() && files.stream().allMatch(BulkValidationResult.FileResult::isValid);
+        return BulkValidationResult.builder()
+                .valid(valid)
+                .files(files)
+                .errors(unattributed)
+                .shards(shards.size())
+                .durationMs(System.currentTimeMillis() - start)
+                .build();
+    }
+
+    private List<Candidate> collect(BulkValidationRequest request) {
+        List<Candidate> candidates = new ArrayList<>();
+        if (request.getModules() != null) {
+            for (BulkValidationRequest.Module module : request.getModules()) {
+                candidates.add(new Candidate(module.getName(), null, module.getContent()));
+            }
+        }
+
+        Set<Long> policyIds = new LinkedHashSet<>();
+        if (request.getPolicyIds() != null) {
+            policyIds.addAll(request.getPolicyIds());
+        }
+        if (request.getBundleId() != null) {
+            PolicyBundle bundle = bundleRepository.findById(request.getBundleId())
+                    .orElseThrow(() -> new FunctionalException("Bundle not found with id: " + request.getBundleId(),
+                            "FUNC_003"));
+            bundleService.getPolicies(bundleService.getBindings(bundle)).forEach(p -> policyIds.add(p.getId()));
+        }
+        for (Policy policy : policyRepository.findAllById(policyIds)) {
+            String name = policy.getFilename() != null ? policy.getFilename() : policy.getName() + ".rego";
+            candidates.add(new Candidate(name, policy.getId(), policy.getContent()));
+        }
+        return candidates;
+    }
+
+    private List<List<Candidate>> shard(List<Candidate> candidates) {
+        if (shardSize <= 0 || candidates.size() <= shardSize) {
+            return List.of(candidates);
+        }
+        Map<String, List<Candidate>> byPackage = new LinkedHashMap<>();
+        for (Candidate c : candidates) {
+            String pkg = bundleService.findPackageName(c.content);
+            // Unparseable package lines cannot conflict with anything, keep them apart
+            byPackage.computeIfAbsent(pkg != null ? pkg : "#" + System.identityHashCode(c), k -> new ArrayList<>())
+                    .add(c);
+        }
+        List<List<Candidate>> shards = new ArrayList<>();
+        List<Candidate> current = new ArrayList<>();
+        for (List<Candidate> group : byPackage.values()) {
+            if (!current.isEmpty() && current.size() + group.size() > shardSize) {
+                shards.add(current);
+                current = new ArrayList<>();
+            }
+            current.addAll(group);
+        }
+        if (!current.isEmpty()) {
+            shards.add(current);
+        }
+        return shards;
+    }
+
+    /**
+     * Runs one {@code opa check} over a shard, attaches the diagnostics to its
+     * candidates and returns the ones without a file.
+     */
+    private List<BulkValidationResult.Diagnostic> checkShard(List<Candidate> shard) {
+        Path dir = null;
+        try {
+            dir = Files.createTempDirectory("opa-check");
+            // Files are numbered so names from different sources cannot collide
+            Map<String, Candidate> byFile = new HashMap<>();
+            for (int i = 0; i < shard.size(); i++) {
+                String file = i + ".rego";
+                Files.writeString(dir.resolve(file), shard.get(i).content, StandardCharsets.UTF_8);
+                byFile.put(file, shard.get(i));
+            }
+
+            OpaCliRunner.Result result = opaCliRunner.run(dir,
+                    List.of("check", "--format", "json", "--max-errors", "-1", "."));
+            if (result.isSuccess()) {
+                return List.of();
+            }
+
+            List<BulkValidationResult.Diagnostic> unattributed = new ArrayList<>();
+            for (JsonNode error : parseErrors(result.getOutput())) {
+                JsonNode location = error.path("location");
+                BulkValidationResult.Diagnostic diagnostic = BulkValidationResult.Diagnostic.builder()
+                        .code(error.path("code").asText(null))
+                        .message(error.path("message").asText(null))
+                        .row(location.has("row") ? location.get("row").asInt() : null)
+                        .col(location.has("col") ? location.get("col").asInt() : null)
+                        .build();
+                Candidate owner = location.has("file")
+                        ? byFile.get(Path.of(location.get("file").asText()).getFileName().toString())
+                        : null;
+                if (owner != null) {
+                    owner.errors.add(diagnostic);
+                } else {
+                    unattributed.add(diagnostic);
+                }
+            }
+            return unattributed;
+        } catch (IOException e) {
+            throw new TechnicalException("Failed to run opa check: " + e.getMessage(), "TECH_OPA_CHECK", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TechnicalException("Interrupted while running opa check", "TECH_OPA_CHECK", e);
+        } finally {
+            if (dir != null) {
+                try {
+                    FileUtils.deleteDirectory(dir.toFile());
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+
+    private JsonNode parseErrors(String output) {
+        int json = output.indexOf('{');
+        if (json < 0) {
+            throw new TechnicalException("Unexpected opa check output: " + output.trim(), "TECH_OPA_CHECK");
+        }
+        try {
+            return objectMapper.readTree(output.substring(json)).path("errors");
+        } catch (IOException e) {
+            throw new TechnicalException("Unexpected opa check output: " + output.trim(), "TECH_OPA_CHECK", e);
+        }
+    }
+
+    private static class Candidate {
+        private final String name;
+        private final Long policyId;
+        private final String content;
+        // Only written by the shard containing the candidate
+        private final List<BulkValidationResult.Diagnostic> errors = new ArrayList<>();
+
+        Candidate(String name, Long policyId, String content) {
+            this.name = name;
+            this.policyId = policyId;
+            this.content = content != null ? content : "";
+        }
+    }
+}
@@ -22,6 +22,9 @@ public class PolicyService {
     @Autowired
     private org.openpickles.policy.engine.event.EventPublisher eventPublisher;
 
+    @Autowired
+    private org.openpickles.policy.engine.event.BundleUpdateEvents bundleUpdateEvents;
+
     @Autowired
     private org.openpickles.policy.engine.repository.PolicyBindingRepository policyBindingRepository;
 
@@ -29,7 +32,10 @@ public class PolicyService {
     private org.openpickles.policy.engine.repository.PolicyBundleRepository policyBundleRepository;
 
     @Autowired
-    private com.fasterxml.jackson.databind.ObjectMapper objectMapper;
+    private BundleCacheInvalidator bundleCacheInvalidator;
+
+    @Autowired
+    private RegoPerformanceLinter regoPerformanceLinter;
 
     public List<Policy> getAllPolicies() {
         return policyRepository.findAll();
@@ -46,6 +52,7 @@ public class PolicyService {
     @Auditable(action = "CREATE", resourceType = "POLICY")
     public Policy createPolicy(Policy policy) {
         validatePolicy(policy);
+        policy.setLintWarnings(lint(policy.getContent()));
         return policyRepository.save(policy);
     }
 
@@ -71,6 +78,7 @@ public class PolicyService {
         policy.setGitBranch(policyDetails.getGitBranch());
         policy.setGitPath(policyDetails.getGitPath());
         policy.setFilename(policyDetails.getFilename());
+        policy.setLintWarnings(lint(policy.getContent()));
 
         Policy saved = policyRepository.save(policy);
         notifyPolicyChange(saved);
@@ -89,27 +97,10 @@ public class PolicyService {
                         .findByBindingIdsContaining(binding.getId());
 
                 for (org.openpickles.policy.engine.model.PolicyBundle bundle : bundles) {
-                    // Construct Event Data
-                    java.util.Map<String, String> eventData = new java.util.HashMap<>();
-                    eventData.put("bundleName", bundle.getName());
-                    eventData.put("version", java.util.UUID.randomUUID().toString()); // Mock version for now
-                    eventData.put("downloadUrl", "/api/v1/bundles/" + bundle.getName() + "/download"); // TODO: Real URL
-
-                    byte[] dataBytes = objectMapper.writeValueAsBytes(eventData);
-
-                    // Build CloudEvent
-                    io.cloudevents.CloudEvent event = io.cloudevents.core.builder.CloudEventBuilder.v1()
-                            .withId(java.util.UUID.randomUUID().toString())
-                            .withSource(java.net.URI.create("/policy-engine/control-plane"))
-                            .withType("org.openpickles.policy.bundle.update")
-                            .withSubject("bundles/" + bundle.getName())
-                            .withTime(java.time.OffsetDateTime.now())
-                            .withDataContentType("application/json")
-                            .withData(dataBytes)
-                            .build();
-
-                    // Publish
-                    eventPublisher.publish("bundles/" + bundle.getName(), event);
+                    bundleCacheInvalidator.invalidate(bundle.getId());
+
+                    eventPublisher.publish(bundleUpdateEvents.topic(bundle),
+                            bundleUpdateEvents.create(bundle, java.util.UUID.randomUUID().toString()));
                 }
             }
         } catch (Exception e) {
@@ -119,6 +110,21 @@ public class PolicyService {
         }
     }
 
+    /**
+     * Performance warnings are advisory and never block a save.
+     */
+    private List<org.openpickles.policy.engine.model.LintWarning> lint(String content) {
+        if (!regoPerformanceLinter.isEnabled() || content == null || content.isBlank()) {
+            return null;
+        }
+        try {
+            return regoPerformanceLinter.lint(content);
+        } catch (Exception e) {
+            System.err.println("Failed to lint policy: " + e.getMessage());
+            return null;
+        }
+    }
+
     private void validatePolicy(Policy policy) {
         if (policy.getName() == null || policy.getName().trim().isEmpty()) {
             throw new org.openpickles.policy.engine.exception.FunctionalException(
@@ -0,0 +1,336 @@
+package org.openpickles.policy.engine.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.tomcat.util.http.fileupload.FileUtils;
+import org.openpickles.policy.engine.dto.BulkValidationRequest;
+import org.openpickles.policy.engine.dto.PolicyTestRequest;
+import org.openpickles.policy.engine.dto.PolicyTestResult;
+import org.openpickles.policy.engine.exception.FunctionalException;
+import org.openpickles.policy.engine.exception.TechnicalException;
+import org.openpickles.policy.engine.model.Policy;
+import org.openpickles.policy.engine.model.PolicyBinding;
+import org.openpickles.policy.engine.model.PolicyBundle;
+import org.openpickles.policy.engine.repository.PolicyBindingRepository;
+import org.openpickles.policy.engine.repository.PolicyBundleRepository;
+import org.openpickles.policy.engine.repository.PolicyRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs Rego unit tests ({@code _test.rego} modules) with {@code opa test}.
+ * <p>
+ * The test files are split across up to {@code policy.engine.tests.shards}
+ * parallel {@code opa test} runs, each of which sees every policy under test
+ * and the data document. Results are cached by a hash of all modules, the data
+ * and the OPA version, so re-running an unchanged suite returns immediately.
+ */
+@Service
+@Slf4j
+public class PolicyTestService {
+
+    private static final String TEST_SUFFIX = "_test.rego";
+    private static final int RESULT_CACHE_SIZE = 200;
+
+    @Value("${policy.engine.tests.shards:0}")
+    private int maxShards;
+
+    @Autowired
+    private OpaCliRunner opaCliRunner;
+
+    @Autowired
+    private OpaClient opaClient;
+
+    @Autowired
+    private BundleService bundleService;
+
+    @Autowired
+    private PolicyRepository policyRepository;
+
+    @Autowired
+    private PolicyBundleRepository bundleRepository;
+
+    @Autowired
+    private PolicyBindingRepository bindingRepository;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final ExecutorService executor = Executors
+            .newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), r -> {
+                Thread thread = new Thread(r, "opa-test");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    // input hash -> result, least recently used evicted
+    private final Map<String, PolicyTestResult> resultCache = Collections
+            .synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PolicyTestResult> eldest) {
+                    return size() > RESULT_CACHE_SIZE;
+                }
+            });
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public PolicyTestResult run(PolicyTestRequest request) {
+        long start = System.currentTimeMillis();
+
+        List<PolicyBinding> bindings = new ArrayList<>();
+        if (request.getBindingIds() != null) {
+            bindings.addAll(bindingRepository.findAllById(request.getBindingIds()));
+        }
+        if (request.getBundleId() != null) {
+            PolicyBundle bundle = bundleRepository.findById(request.getBundleId())
+                    .orElseThrow(() -> new FunctionalException("Bundle not found with id: " + request.getBundleId(),
+                            "FUNC_003"));
+            bindings.addAll(bundleService.getBindings(bundle));
+        }
+
+        Map<String, String> modules = collectModules(request, bindings);
+        if (modules.isEmpty()) {
+            throw new FunctionalException("No policies to test", "FUNC_TEST_EMPTY");
+        }
+        Map<String, String> policies = new LinkedHashMap<>();
+        List<String> tests = new ArrayList<>();
+        modules.forEach((name, content) -> {
+            if (name.endsWith(TEST_SUFFIX)) {
+                tests.add(name);
+            } else {
+                policies.put(name, content);
+            }
+        });
+
+        String dataJson = dataJson(request, bindings);
+        String key = hash(modules, dataJson);
+        PolicyTestResult cached = resultCache.get(key);
+        if (cached != null) {
+            return cached.toBuilder().cached(true).durationMs(System.currentTimeMillis() - start).build();
+        }
+
+        List<List<String>> shards = shard(tests);
+        List<CompletableFuture<List<PolicyTestResult.TestCase>>> runs = shards.stream()
+                .map(shard -> CompletableFuture.supplyAsync(
+                        () -> runShard(policies, shard, modules, dataJson), executor))
+                .toList();
+        List<PolicyTestResult.TestCase> cases = new ArrayList<>();
+        try {
+            for (CompletableFuture<List<PolicyTestResult.TestCase>> run : runs) {
+                cases.addAll(run.join());
+            }
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException re ? re : e;
+        }
+        cases.sort(Comparator.comparing(PolicyTestResult.TestCase::getFile)
+                .thenComparing(c -> c.getRow() != null ? c.getRow() : 0));
+
+        int failed = count(cases, PolicyTestResult.Status.FAIL);
+        int errored = count(cases, PolicyTestResult.Status.ERROR);
+        PolicyTestResult result = PolicyTestResult.builder()
+                .success(failed == 0 && errored == 0)
+                .passed(count(cases, PolicyTestResult.Status.PASS))
+                .failed(failed)
+                .errored(errored)
+                .skipped(count(cases, PolicyTestResult.Status.SKIP))
+                .shards(shards.size())
+                .results(List.copyOf(cases))
+                .durationMs(System.currentTimeMillis() - start)
+                .build();
+        resultCache.put(key, result);
+        return result;
+    }
+
+    /**
+     * File name -> content of the policies under test plus their stored
+     * {@code _test.rego} companions and any test modules of the request.
+     */
+    private Map<String, String> collectModules(PolicyTestRequest request, List<PolicyBinding> bindings) {
+        Set<Long> policyIds = new LinkedHashSet<>();
+        if (request.getPolicyIds() != null) {
+            policyIds.addAll(request.getPolicyIds());
+        }
+        bundleService.getPolicies(bindings).forEach(p -> policyIds.add(p.getId()));
+
+        Map<String, String> modules = new LinkedHashMap<>();
+        List<Policy> policies = policyRepository.findAllById(policyIds);
+        policies.forEach(p -> modules.put(filename(p), p.getContent() != null ? p.getContent() : ""));
+
+        List<String> companions = modules.keySet().stream()
+                .filter(name -> name.endsWith(".rego") && !name.endsWith(TEST_SUFFIX))
+                .map(name -> name.substring(0, name.length() - ".rego".length()) + TEST_SUFFIX)
+                .filter(name -> !modules.containsKey(name))
+                .toList();
+        if (!companions.isEmpty()) {
+            policyRepository.findByFilenameIn(companions)
+                    .forEach(p -> modules.put(filename(p), p.getContent() != null ? p.getContent() : ""));
+        }
+
+        if (request.getTests() != null) {
+            for (BulkValidationRequest.Module test : request.getTests()) {
+                String name = test.getName() != null ? test.getName() : "request" + modules.size();
+                modules.put(name.endsWith(TEST_SUFFIX) ? name : name + TEST_SUFFIX,
+                        test.getContent() != null ? test.getContent() : "");
+            }
+        }
+        return modules;
+    }
+
+    private String dataJson(PolicyTestRequest request, List<PolicyBinding> bindings) {
+        if (request.getData() != null) {
+            try {
+                return objectMapper.writeValueAsString(request.getData());
+            } catch (IOException e) {
+                throw new FunctionalException("Invalid test data: " + e.getMessage(), "FUNC_TEST_DATA");
+            }
+        }
+        return bindings.isEmpty() ? "{}" : bundleService.buildDataJson(bindings);
+    }
+
+    private List<List<String>> shard(List<String> tests) {
+        if (tests.isEmpty()) {
+            return List.of();
+        }
+        int count = Math.min(tests.size(),
+                maxShards > 0 ? maxShards : Runtime.getRuntime().availableProcessors());
+        List<List<String>> shards = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            shards.add(new ArrayList<>());
+        }
+        for (int i = 0; i < tests.size(); i++) {
+            shards.get(i % count).add(tests.get(i));
+        }
+        return shards;
+    }
+
+    private List<PolicyTestResult.TestCase> runShard(Map<String, String> policies, List<String> tests,
+            Map<String, String> modules, String dataJson) {
+        Path dir = null;
+        try {
+            dir = Files.createTempDirectory("opa-test");
+            Files.writeString(dir.resolve("data.json"), dataJson, StandardCharsets.UTF_8);
+
+            // Files are numbered so arbitrary names cannot escape the directory
+            Map<String, String> names = new HashMap<>();
+            int index = 0;
+            for (Map.Entry<String, String> policy : policies.entrySet()) {
+                String file = "p" + index++ + ".rego";
+                Files.writeString(dir.resolve(file), policy.getValue(), StandardCharsets.UTF_8);
+                names.put(file, policy.getKey());
+            }
+            for (String test : tests) {
+                String file = "t" + index++ + TEST_SUFFIX;
+                Files.writeString(dir.resolve(file), modules.get(test), StandardCharsets.UTF_8);
+                names.put(file, test);
+            }
+
+            OpaCliRunner.Result result = opaCliRunner.run(dir, List.of("test", "--format", "json", "."));
+            return parse(result, names);
+        } catch (IOException e) {
+            throw new TechnicalException("Failed to run opa test: " + e.getMessage(), "TECH_OPA_TEST", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TechnicalException("Interrupted while running opa test", "TECH_OPA_TEST", e);
+        } finally {
+            if (dir != null) {
+                try {
+                    FileUtils.deleteDirectory(dir.toFile());
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+
+    private List<PolicyTestResult.TestCase> parse(OpaCliRunner.Result result, Map<String, String> names) {
+        String output = result.getOutput();
+        int json = output.indexOf('[');
+        JsonNode reports;
+        try {
+            reports = json < 0 ? null : objectMapper.readTree(output.substring(json));
+        } catch (IOException e) {
+            reports = null;
+        }
+        if (reports == null || !reports.isArray()) {
+            // Not a test report: the modules did not compile
+            throw new FunctionalException("Policies or tests do not compile: " + output.trim(),
+                    "FUNC_TEST_COMPILE");
+        }
+
+        List<PolicyTestResult.TestCase> cases = new ArrayList<>();
+        for (JsonNode report : reports) {
+            JsonNode location = report.path("location");
+            String file = Path.of(location.path("file").asText("")).getFileName().toString();
+            PolicyTestResult.Status status = report.path("skip").asBoolean() ? PolicyTestResult.Status.SKIP
+                    : report.hasNonNull("error") ? PolicyTestResult.Status.ERROR
+                            : report.path("fail").asBoolean() ? PolicyTestResult.Status.FAIL
+                                    : PolicyTestResult.Status.PASS;
+            String packageName = report.path("package").asText(null);
+            cases.add(PolicyTestResult.TestCase.builder()
+                    .packageName(packageName != null && packageName.startsWith("data.")
+                            ? packageName.substring("data.".length()) : packageName)
+                    .name(report.path("name").asText(null))
+                    .file(names.getOrDefault(file, file))
+                    .row(location.has("row") ? location.get("row").asInt() : null)
+                    .status(status)
+                    .durationNs(report.path("duration").asLong())
+                    .error(report.hasNonNull("error") ? report.get("error").path("message").asText(
+                            report.get("error").toString()) : null)
+                    .output(report.hasNonNull("output") ? report.get("output").asText() : null)
+                    .build());
+        }
+        return cases;
+    }
+
+    private String hash(Map<String, String> modules, String dataJson) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            modules.entrySet().stream()
+                    .sorted(Map.Entry.comparingByKey())
+                    .forEach(e -> {
+                        digest.update(e.getKey().getBytes(StandardCharsets.UTF_8));
+                        digest.update((byte) 0);
+                        digest.update(e.getValue().getBytes(StandardCharsets.UTF_8));
+                        digest.update((byte) 0);
+                    });
+            digest.update(dataJson.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(opaClient.getVersion().getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String filename(Policy policy) {
+        return policy.getFilename() != null ? policy.getFilename() : policy.getName() + ".rego";
+    }
+
+    private static int count(List<PolicyTestResult.TestCase> cases, PolicyTestResult.Status status) {
+        return (int) cases.stream().filter(c -> c.getStatus() == status).count();
+    }
+}
@@ -0,0 +1,302 @@
+package org.openpickles.policy.engine.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import lombok.extern.slf4j.Slf4j;
+import org.openpickles.policy.engine.model.LintWarning;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Static performance checks on a Rego module, based on the AST printed by
+ * {@code opa parse --format json}.
+ * <p>
+ * Flags
+ * <ul>
+ * <li>iteration over one of the large data roots
+ * ({@code policy.engine.lint.large-data-roots}) with an unbound key, e.g.
+ * {@code data.entitlements[_].subjectId == input.user}, which scans the
+ * whole document on every decision instead of a keyed lookup;</li>
+ * <li>comprehensions whose body does such an iteration, rebuilt for every
+ * decision;</li>
+ * <li>expensive built-ins called more than once with the same arguments.</li>
+ * </ul>
+ * The linter is advisory: it returns an empty list if OPA is not available
+ * or the module does not parse (validation reports that).
+ */
+@Component
+@Slf4j
+public class RegoPerformanceLinter {
+
+    private static final Set<String> EXPENSIVE_BUILTINS = Set.of(
+            "http.send", "regex.match", "regex.find_n", "regex.find_all_string_submatch_n", "regex.split",
+            "regex.replace", "regex.template_match", "regex.globs_match", "glob.match", "json.unmarshal",
+            "yaml.unmarshal", "json.patch", "graph.reachable", "walk", "net.cidr_contains_matches");
+    private static final List<String> EXPENSIVE_PREFIXES = List.of("io.jwt.", "crypto.");
+    private static final Set<String> COMPREHENSIONS = Set.of("arraycomprehension", "setcomprehension",
+            "objectcomprehension");
+
+    @Value("${policy.engine.lint.enabled:true}")
+    private boolean enabled;
+
+    @Value("${policy.engine.lint.large-data-roots:entitlements,bindings}")
+    private List<String> largeDataRoots;
+
+    @Autowired
+    private OpaCliRunner opaCliRunner;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public List<LintWarning> lint(String content) {
+        JsonNode module = opaCliRunner.parse(content);
+        if (module == null) {
+            return List.of();
+        }
+        List<LintWarning> warnings = new ArrayList<>();
+        Map<String, Integer> calls = new HashMap<>();
+        for (JsonNode rule : module.path("rules")) {
+            for (JsonNode r = rule; r != null && !r.isMissingNode(); r = r.get("else")) {
+                Scope scope = new Scope(ruleName(r), warnings, calls);
+                Set<String> bound = new HashSet<>();
+                lintBody(r.path("body"), scope, bound);
+                // Heads are evaluated after the body, e.g. ids := {e.id | some e in data.entitlements}
+                JsonNode head = r.path("head");
+                for (String field : List.of("key", "value")) {
+                    if (head.hasNonNull(field)) {
+                        walk(head.get(field), scope, bound);
+                    }
+                }
+            }
+        }
+        return warnings;
+    }
+
+    /**
+     * Walks a body in order; variables assigned by earlier expressions count
+     * as bound, so {@code x := input.id; data.entitlements[x]} is a lookup.
+     */
+    private void lintBody(JsonNode body, Scope scope, Set<String> bound) {
+        for (JsonNode expr : body) {
+            JsonNode terms = expr.path("terms");
+            if (terms.isArray() && terms.size() > 0) {
+                String operator = refName(terms.get(0));
+                if (isMembership(operator) && largeRoot(terms.get(terms.size() - 1)) != null) {
+                    // x in data.entitlements
+                    scope.iteration(largeRoot(terms.get(terms.size() - 1)), location(expr));
+                }
+                if (operator != null && isExpensive(operator)) {
+                    scope.call(operator, terms, location(expr));
+                }
+                for (int i = 1; i < terms.size(); i++) {
+                    walk(terms.get(i), scope, bound);
+                }
+                if (("assign".equals(operator) || "eq".equals(operator)) && terms.size() == 3
+                        && "var".equals(terms.get(1).path("type").asText())) {
+                    bound.add(terms.get(1).path("value").asText());
+                }
+            } else if (terms.has("symbols")) {
+                for (JsonNode symbol : terms.get("symbols")) {
+                    JsonNode value = symbol.path("value");
+                    if ("call".equals(symbol.path("type").asText()) && isMembership(refName(value.get(0)))
+                            && largeRoot(value.get(value.size() - 1)) != null) {
+                        // some x in data.entitlements
+                        scope.iteration(largeRoot(value.get(value.size() - 1)), location(expr));
+                    }
+                    walk(symbol, scope, bound);
+                }
+            } else {
+                walk(terms, scope, bound);
+            }
+        }
+    }
+
+    private void walk(JsonNode term, Scope scope, Set<String> bound) {
+        String type = term.path("type").asText();
+        JsonNode value = term.path("value");
+        if ("ref".equals(type)) {
+            String root = largeRoot(term);
+            if (root != null) {
+                for (int i = 2; i < value.size(); i++) {
+                    JsonNode key = value.get(i);
+                    if ("var".equals(key.path("type").asText()) && !bound.contains(key.path("value").asText())) {
+                        scope.iteration(root, location(term));
+                        break;
+                    }
+                }
+            }
+            for (JsonNode element : value) {
+                if (!"var".equals(element.path("type").asText())) {
+                    walk(element, scope, bound);
+                }
+            }
+        } else if ("call".equals(type)) {
+            String name = refName(value.get(0));
+            if (name != null && isExpensive(name)) {
+                scope.call(name, value, location(term));
+            }
+            for (int i = 1; i < value.size(); i++) {
+                walk(value.get(i), scope, bound);
+            }
+        } else if (COMPREHENSIONS.contains(type)) {
+            Scope inner = scope.comprehension();
+            lintBody(value.path("body"), inner, new HashSet<>(bound));
+            if (!inner.iteratedRoots.isEmpty()) {
+                scope.warnings.add(LintWarning.builder()
+                        .rule(LintWarning.Rule.UNBOUNDED_COMPREHENSION)
+                        .ruleName(scope.ruleName)
+                        .message("Comprehension iterates over data." + String.join(", data.", inner.iteratedRoots)
+                                + " and is rebuilt for every decision; precompute it in a bundle index or look up"
+                                + " by key")
+                        .row(location(term)[0])
+                        .col(location(term)[1])
+                        .build());
+            }
+        } else if (value.isArray()) {
+            // array, set, and object (as [key, value] pairs) terms
+            for (JsonNode element : value) {
+                if (element.isArray()) {
+                    element.forEach(e -> walk(e, scope, bound));
+                } else {
+                    walk(element, scope, bound);
+                }
+            }
+        }
+    }
+
+    private String largeRoot(JsonNode term) {
+        if (!"ref".equals(term.path("type").asText())) {
+            return null;
+        }
+        JsonNode value = term.path("value");
+        if (value.size() < 2 || !"data".equals(value.get(0).path("value").asText())
+                || !"string".equals(value.get(1).path("type").asText())) {
+            return null;
+        }
+        String root = value.get(1).path("value").asText();
+        return largeDataRoots.contains(root) ? root : null;
+    }
+
+    private static String refName(JsonNode term) {
+        if (term == null || !"ref".equals(term.path("type").asText())) {
+            return null;
+        }
+        List<String> parts = new ArrayList<>();
+        for (JsonNode part : term.path("value")) {
+            parts.add(part.path("value").asText());
+        }
+        return String.join(".", parts);
+    }
+
+    private static boolean isMembership(String operator) {
+        return "internal.member_2".equals(operator) || "internal.member_3".equals(operator);
+    }
+
+    private static boolean isExpensive(String builtin) {
+        return EXPENSIVE_BUILTINS.contains(builtin) || EXPENSIVE_PREFIXES.stream().anyMatch(builtin::startsWith);
+    }
+
+    private static String ruleName(JsonNode rule) {
+        JsonNode head = rule.path("head");
+        if (head.hasNonNull("name")) {
+            return head.get("name").asText();
+        }
+        List<String> parts = new ArrayList<>();
+        head.path("ref").forEach(part -> parts.add(part.path("value").asText()));
+        return String.join(".", parts);
+    }
+
+    private static Integer[] location(JsonNode node) {
+        JsonNode location = node.path("location");
+        return new Integer[] {
+                location.has("row") ? location.get("row").asInt() : null,
+                location.has("col") ? location.get("col").asInt() : null };
+    }
+
+    /**
+     * Location-free rendering of a term, so identical calls compare equal.
+     */
+    private static String canonical(JsonNode node) {
+        if (node.isObject()) {
+            StringBuilder sb = new StringBuilder("{");
+            Iterator<Map.Entry<String, JsonNode>> fields = node.fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                if (!"location".equals(field.getKey())) {
+                    sb.append(field.getKey()).append(':').append(canonical(field.getValue())).append(',');
+                }
+            }
+            return sb.append('}').toString();
+        }
+        if (node.isArray()) {
+            StringBuilder sb = new StringBuilder("[");
+            node.forEach(e -> sb.append(canonical(e)).append(','));
+            return sb.append(']').toString();
+        }
+        return node.toString();
+    }
+
+    private static class Scope {
+        private final String ruleName;
+        private final List<LintWarning> warnings;
+        // Calls of expensive built-ins in the whole module, by canonical form
+        private final Map<String, Integer> calls;
+        private final boolean inComprehension;
+        private final Set<String> iteratedRoots = new HashSet<>();
+
+        Scope(String ruleName, List<LintWarning> warnings, Map<String, Integer> calls) {
+            this(ruleName, warnings, calls, false);
+        }
+
+        private Scope(String ruleName, List<LintWarning> warnings, Map<String, Integer> calls,
+                boolean inComprehension) {
+            this.ruleName = ruleName;
+            this.warnings = warnings;
+            this.calls = calls;
+            this.inComprehension = inComprehension;
+        }
+
+        Scope comprehension() {
+            return new Scope(ruleName, warnings, calls, true);
+        }
+
+        void iteration(String root, Integer[] location) {
+            if (inComprehension) {
+                // Reported once for the enclosing comprehension
+                iteratedRoots.add(root);
+                return;
+            }
+            warnings.add(LintWarning.builder()
+                    .rule(LintWarning.Rule.NON_INDEXED_ITERATION)
+                    .ruleName(ruleName)
+                    .message("Iterates over data." + root + " with an unbound key, scanning the whole document"
+                            + " for every decision; look up by a key derived from input instead")
+                    .row(location[0])
+                    .col(location[1])
+                    .build());
+        }
+
+        void call(String builtin, JsonNode terms, Integer[] location) {
+            int count = calls.merge(canonical(terms), 1, Integer::sum);
+            if (count == 2) {
+                warnings.add(LintWarning.builder()
+                        .rule(LintWarning.Rule.REPEATED_BUILTIN)
+                        .ruleName(ruleName)
+                        .message(builtin + " is evaluated more than once with the same arguments; assign the"
+                                + " result to a rule or variable and reuse it")
+                        .row(location[0])
+                        .col(location[1])
+                        .build());
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package org.openpickles.policy.engine.service;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Compressed (radix) trie from resource id prefixes to values, answering
+ * "which stored prefixes does this resource id start with" in one walk down
+ * the id, independent of how many prefixes are stored.
+ * <p>
+ * Entitlement resource ids ending in {@code *} are patterns: {@code branch-12/*}
+ * covers every id starting with {@code branch-12/}, a lone {@code *} covers
+ * every id of the resource type. Methods are synchronized; the trie holds
+ * patterns only, which are few compared to exact ids.
+ */
+public class ResourceIdTrie<V> {
+
+    public static final String WILDCARD = "*";
+
+    private final Node<V> root = new Node<>("");
+
+    public static boolean isPattern(String resourceId) {
+        return resourceId.endsWith(WILDCARD);
+    }
+
+    /**
+     * Whether a resource id is exact or a pattern with its single wildcard at
+     * the end.
+     */
+    public static boolean isValid(String resourceId) {
+        int wildcard = resourceId.indexOf(WILDCARD);
+        return wildcard < 0 || wildcard == resourceId.length() - 1;
+    }
+
+    /**
+     * The prefix a pattern covers, e.g. {@code branch-12/} for {@code branch-12/*}.
+     */
+    public static String prefixOf(String pattern) {
+        return pattern.substring(0, pattern.length() - 1);
+    }
+
+    public static boolean matches(String pattern, String resourceId) {
+        return isPattern(pattern) ? resourceId.startsWith(prefixOf(pattern)) : pattern.equals(resourceId);
+    }
+
+    public synchronized void add(String prefix, V value) {
+        Node<V> node = root;
+        int i = 0;
+        while (i < prefix.length()) {
+            Node<V> child = node.children.get(prefix.charAt(i));
+            if (child == null) {
+                child = new Node<>(prefix.substring(i));
+                node.children.put(prefix.charAt(i), child);
+                node = child;
+                break;
+            }
+            int common = commonLength(child.label, prefix, i);
+            if (common < child.label.length()) {
+                // Split the edge where the new prefix branches off
+                Node<V> split = new Node<>(child.label.substring(0, common));
+                child.label = child.label.substring(common);
+                split.children.put(child.label.charAt(0), child);
+                node.children.put(split.label.charAt(0), split);
+                child = split;
+            }
+            node = child;
+            i += common;
+        }
+        node.values.add(value);
+    }
+
+    public synchronized void remove(String prefix, V value) {
+        remove(root, prefix, 0, value);
+    }
+
+    /**
+     * Calls {@code action} with the values of every stored prefix of
+     * {@code resourceId}, shortest prefix first.
+     */
+    public synchronized void forEachMatch(String resourceId, Consumer<V> action) {
+        Node<V> node = root;
+        int i = 0;
+        while (true) {
+            node.values.forEach(action);
+            if (i == resourceId.length()) {
+                return;
+            }
+            Node<V> child = node.children.get(resourceId.charAt(i));
+            if (child == null || !resourceId.startsWith(child.label, i)) {
+                return;
+            }
+            node = child;
+            i += child.label.length();
+        }
+    }
+
+    public synchronized boolean isEmpty() {
+        return root.values.isEmpty() && root.children.isEmpty();
+    }
+
+    // Returns whether the node is left without values and children
+    private boolean remove(Node<V> node, String prefix, int i, V value) {
+        if (i == prefix.length()) {
+            node.values.remove(value);
+        } else {
+            Node<V> child = node.children.get(prefix.charAt(i));
+            if (child == null || !prefix.startsWith(child.label, i)) {
+                return false;
+            }
+            if (remove(child, prefix, i + child.label.length(), value)) {
+                node.children.remove(prefix.charAt(i));
+            } else if (child.values.isEmpty() && child.children.size() == 1) {
+                // Merge a pass-through node into its only child
+                Node<V> only = child.children.values().iterator().next();
+                only.label = child.label + only.label;
+                node.children.put(prefix.charAt(i), only);
+            }
+        }
+        return node != root && node.values.isEmpty() && node.children.isEmpty();
+    }
+
+    private static int commonLength(String label, String key, int offset) {
+        int max = Math.min(label.length(), key.length() - offset);
+        int n = 0;
+        while (n < max && label.charAt(n) == key.charAt(offset + n)) {
+            n++;
+        }
+        return n;
+    }
+
+    private static class Node<V> {
+        private String label;
+        private final Map<Character, Node<V>> children = new HashMap<>(4);
+        private final Set<V> values = new HashSet<>(2);
+
+        Node(String label) {
+            this.label = label;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package org.openpickles.policy.engine.service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Append-only dictionary from strings to dense int codes. Strings are kept as
+ * UTF-8 in one byte array with an offset per code and found through an
+ * open-addressing table of codes, so an entry costs its bytes plus about 16
+ * bytes rather than a String object and a map node.
+ * <p>
+ * Codes are never reused or removed; a dictionary is dropped as a whole when
+ * its owner is rebuilt. {@link #encode} needs one writer at a time, while
+ * {@link #find} and {@link #get} may run concurrently with it and see every
+ * code published to them through a volatile write (e.g. of a snapshot).
+ */
+public class StringDictionary {
+
+    private volatile byte[] bytes = new byte[1024];
+    // Entry c is bytes[offsets[c]..offsets[c + 1])
+    private volatile int[] offsets = new int[65];
+    private volatile int[] hashes = new int[64];
+    // code + 1 per slot, 0 for an empty slot; at most half full
+    private volatile int[] table = new int[128];
+    private volatile int size;
+
+    /**
+     * The code of {@code value}, adding it if needed.
+     */
+    public int encode(String value) {
+        int code = find(value);
+        if (code >= 0) {
+            return code;
+        }
+        code = size;
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        int start = offsets[code];
+        if (start + utf8.length > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, start + utf8.length));
+        }
+        if (code + 1 == hashes.length) {
+            hashes = Arrays.copyOf(hashes, hashes.length * 2);
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+        }
+        System.arraycopy(utf8, 0, bytes, start, utf8.length);
+        offsets[code + 1] = start + utf8.length;
+        hashes[code] = value.hashCode();
+        if ((code + 1) * 2 > table.length) {
+            rehash(table.length * 2, code);
+        }
+        insert(table, value.hashCode(), code);
+        // Publishes the entry to readers
+        size = code + 1;
+        return code;
+    }
+
+    /**
+     * The code of {@code value}, or -1 if it has none.
+     */
+    public int find(String value) {
+        int n = size;
+        int[] t = table;
+        byte[] b = bytes;
+        int[] off = offsets;
+        int[] h = hashes;
+        int hash = value.hashCode();
+        int mask = t.length - 1;
+        for (int slot = spread(hash) & mask;; slot = (slot + 1) & mask) {
+            int entry = t[slot];
+            if (entry == 0) {
+                return -1;
+            }
+            int code = entry - 1;
+            // Entries added after size was read are not complete yet
+            if (code < n && h[code] == hash && equals(b, off[code], off[code + 1], value)) {
+                return code;
+            }
+        }
+    }
+
+    public String get(int code) {
+        int[] off = offsets;
+        return new String(bytes, off[code], off[code + 1] - off[code], StandardCharsets.UTF_8);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void rehash(int capacity, int count) {
+        int[] grown = new int[capacity];
+        for (int code = 0; code < count; code++) {
+            insert(grown, hashes[code], code);
+        }
+        table = grown;
+    }
+
+    private static void insert(int[] t, int hash, int code) {
+        int mask = t.length - 1;
+        int slot = spread(hash) & mask;
+        while (t[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        t[slot] = code + 1;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    // Compares UTF-8 bytes with a string without decoding them into a new one
+    private static boolean equals(byte[] b, int from, int to, String value) {
+        int i = 0;
+        int length = value.length();
+        int p = from;
+        while (p < to) {
+            if (i >= length) {
+                return false;
+            }
+            int c = b[p] & 0xff;
+            int codePoint;
+            if (c < 0x80) {
+                codePoint = c;
+                p += 1;
+            } else if (c < 0xe0) {
+                codePoint = ((c & 0x1f) << 6) | (b[p + 1] & 0x3f);
+                p += 2;
+            } else if (c < 0xf0) {
+                codePoint = ((c & 0x0f) << 12) | ((b[p + 1] & 0x3f) << 6) | (b[p + 2] & 0x3f);
+                p += 3;
+            } else {
+                codePoint = ((c & 0x07) << 18) | ((b[p + 1] & 0x3f) << 12) | ((b[p + 2] & 0x3f) << 6)
+                        | (b[p + 3] & 0x3f);
+                p += 4;
+            }
+            int expected = value.codePointAt(i);
+            if (codePoint != expected) {
+                return false;
+            }
+            i += Character.charCount(expected);
+        }
+        return i == length;
+    }
+}
@@ -0,0 +1,138 @@
+package org.openpickles.policy.engine.service;
+
+import java.util.Arrays;
+
+/**
+ * Hierarchical timing wheel of ids with deadlines, in the style of the Linux
+ * kernel timers: five levels of 64 slots, level {@code n} slots spanning
+ * {@code 64^n} ticks. Scheduling is O(1); advancing one tick touches a single
+ * level-0 slot plus, every 64^n ticks, one slot of level n whose entries are
+ * re-spread over the levels below. Deadlines beyond the top level (64^5
+ * ticks) are parked in its last slot and re-spread when it comes around.
+ * <p>
+ * Entries are kept in primitive arrays so that millions of them stay cheap.
+ * Not thread-safe; callers synchronize.
+ */
+public class TimingWheel {
+
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int LEVELS = 5;
+    private static final long SPAN = 1L << (BITS * LEVELS);
+
+    private final long tickMs;
+    private final Bucket[][] levels = new Bucket[LEVELS][SLOTS];
+    // Entries whose deadline had already passed when they were scheduled
+    private final Bucket overdue = new Bucket();
+    private long currentTick;
+    private int size;
+
+    public TimingWheel(long tickMs, long nowMs) {
+        this.tickMs = tickMs;
+        this.currentTick = nowMs / tickMs;
+        for (Bucket[] level : levels) {
+            for (int i = 0; i < SLOTS; i++) {
+                level[i] = new Bucket();
+            }
+        }
+    }
+
+    /**
+     * Schedules {@code id} to be returned by the first {@link #advance} at or
+     * after {@code deadlineMs}.
+     */
+    public void schedule(long id, long deadlineMs) {
+        // Round up so an entry never fires before its deadline
+        long tick = Math.floorDiv(deadlineMs + tickMs - 1, tickMs);
+        if (tick <= currentTick) {
+            overdue.add(id, tick);
+        } else {
+            place(id, tick);
+        }
+        size++;
+    }
+
+    /**
+     * Moves the wheel up to {@code nowMs}.
+     *
+     * @return the ids that became due, possibly with repeats
+     */
+    public long[] advance(long nowMs) {
+        Bucket due = new Bucket();
+        overdue.drainTo(due);
+        long target = nowMs / tickMs;
+        while (currentTick < target) {
+            currentTick++;
+            // Re-spread the higher slots that start at this tick, top down
+            int level = 1;
+            while (level < LEVELS && (currentTick & ((1L << (BITS * level)) - 1)) == 0) {
+                level++;
+            }
+            for (int n = level - 1; n >= 1; n--) {
+                Bucket bucket = take(n, (int) ((currentTick >>> (BITS * n)) & (SLOTS - 1)));
+                for (int i = 0; i < bucket.size; i++) {
+                    place(bucket.ids[i], bucket.ticks[i]);
+                }
+            }
+            Bucket bucket = take(0, (int) (currentTick & (SLOTS - 1)));
+            for (int i = 0; i < bucket.size; i++) {
+                if (bucket.ticks[i] <= currentTick) {
+                    due.add(bucket.ids[i], bucket.ticks[i]);
+                } else {
+                    place(bucket.ids[i], bucket.ticks[i]);
+                }
+            }
+        }
+        size -= due.size;
+        return Arrays.copyOf(due.ids, due.size);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void place(long id, long tick) {
+        long delta = tick - currentTick;
+        for (int n = 0; n < LEVELS; n++) {
+            if (delta < 1L << (BITS * (n + 1))) {
+                levels[n][(int) ((tick >>> (BITS * n)) & (SLOTS - 1))].add(id, tick);
+                return;
+            }
+        }
+        // Beyond the wheel: park in the top slot reached last, keeping the real deadline
+        long parked = currentTick + SPAN - 1;
+        levels[LEVELS - 1][(int) ((parked >>> (BITS * (LEVELS - 1))) & (SLOTS - 1))].add(id, tick);
+    }
+
+    private Bucket take(int level, int slot) {
+        Bucket bucket = levels[level][slot];
+        levels[level][slot] = new Bucket();
+        return bucket;
+    }
+
+    private static final class Bucket {
+        private long[] ids = new long[0];
+        private long[] ticks = new long[0];
+        private int size;
+
+        void add(long id, long tick) {
+            if (size == ids.length) {
+                int capacity = Math.max(8, size * 2);
+                ids = Arrays.copyOf(ids, capacity);
+                ticks = Arrays.copyOf(ticks, capacity);
+            }
+            ids[size] = id;
+            ticks[size] = tick;
+            size++;
+        }
+
+        void drainTo(Bucket target) {
+            for (int i = 0; i < size; i++) {
+                target.add(ids[i], ticks[i]);
+            }
+            ids = new long[0];
+            ticks = new long[0];
+            size = 0;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package org.openpickles.policy.engine.service;
 
+import org.openpickles.policy.engine.model.EffectivePermission;
 import org.openpickles.policy.engine.model.Group;
 import org.openpickles.policy.engine.model.Role;
 import org.openpickles.policy.engine.model.User;
@@ -7,6 +8,8 @@ import org.openpickles.policy.engine.repository.GroupRepository;
 import org.openpickles.policy.engine.repository.RoleRepository;
 import org.openpickles.policy.engine.repository.UserRepository;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -27,6 +30,9 @@ public class UserService {
     @Autowired
     private GroupRepository groupRepository;
 
+    @Autowired
+    private EffectivePermissionView effectivePermissionView;
+
     public List<User> getAllUsers() {
         return userRepository.findAll();
     }
@@ -49,6 +55,15 @@ public class UserService {
         return userRepository.save(user);
     }
 
+    @Transactional(readOnly = true)
+    public Page<EffectivePermission> getEffectivePermissions(Long id, String resourceType, Pageable pageable) {
+        if (!userRepository.existsById(id)) {
+            throw new org.openpickles.policy.engine.exception.FunctionalException(
+                    "User not found with id: " + id, "FUNC_005");
+        }
+        return effectivePermissionView.permissionsOf(id, resourceType, pageable);
+    }
+
     public void deleteUser(Long id) {
         userRepository.deleteById(id);
     }
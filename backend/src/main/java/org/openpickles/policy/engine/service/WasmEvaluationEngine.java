@@ -0,0 +1,223 @@
+package org.openpickles.policy.engine.service;
+
+import com.dylibso.chicory.compiler.MachineFactoryCompiler;
+import com.dylibso.chicory.runtime.Instance;
+import com.dylibso.chicory.runtime.Machine;
+import com.dylibso.chicory.wasm.Parser;
+import com.dylibso.chicory.wasm.WasmModule;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.openpickles.policy.engine.model.Policy;
+import org.openpickles.policy.engine.model.PolicyBinding;
+import org.openpickles.policy.engine.model.PolicyBundle;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Evaluates WASM-enabled bundles inside the JVM.
+ * <p>
+ * The first decision for a bundle compiles it with {@code opa build -t wasm}
+ * (see {@link BundleService#compileToWasm}), translates the resulting
+ * policy.wasm to JVM bytecode once and keeps a pool of instances, each with the
+ * bundle's data.json already parsed into its own linear memory. Subsequent
+ * decisions only copy the input into an instance and call {@code opa_eval},
+ * without any IPC to the OPA process.
+ * <p>
+ * Like an external data plane, a loaded bundle is only replaced when the bundle
+ * is (re)built, one of its policies changes or an entitlement of a bound
+ * resource type is written, see {@link BundleCacheInvalidator}. Bundles are
+ * loaded in the background, see {@link BundleLoads}.
+ * Whenever this engine cannot serve a decision it returns an empty result and
+ * the caller falls back to the OPA server.
+ */
+@Component
+@Slf4j
+public class WasmEvaluationEngine {
+
+    @Value("${policy.engine.wasm.enabled:true}")
+    private boolean enabled;
+
+    @Value("${policy.engine.wasm.pool-size:0}")
+    private int poolSize;
+
+    @Value("${policy.engine.wasm.borrow-timeout-ms:1000}")
+    private long borrowTimeoutMs;
+
+    @Autowired
+    private BundleService bundleService;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final ExecutorService loader = Executors.newVirtualThreadPerTaskExecutor();
+
+    private final BundleLoads<LoadedBundle> bundles = new BundleLoads<>(loader);
+
+    @PreDestroy
+    public void shutdown() {
+        loader.shutdownNow();
+    }
+
+    /**
+     * Evaluates an entrypoint of a WASM-enabled bundle.
+     *
+     * @param entrypoint compiled entrypoint path (e.g. "authz/allow"); may be
+     *                   null if the bundle has a single entrypoint
+     * @return the OPA style response ({@code {"result": ...}} or an empty map
+     *         when undefined), or empty if the decision must be served by OPA
+     */
+    public Optional<Map<String, Object>> evaluate(PolicyBundle bundle, String entrypoint, Object input) {
+        if (!enabled || !bundle.isWasmEnabled()) {
+            return Optional.empty();
+        }
+
+        Optional<LoadedBundle> current = bundles.get(bundle.getId(), () -> load(bundle));
+        if (current.isEmpty()) {
+            return Optional.empty();
+        }
+        LoadedBundle loaded = current.get();
+
+        Integer entrypointId = loaded.resolveEntrypoint(entrypoint);
+        if (entrypointId == null) {
+            return Optional.empty();
+        }
+
+        OpaWasmInstance instance = null;
+        try {
+            instance = loaded.pool.poll(borrowTimeoutMs, TimeUnit.MILLISECONDS);
+            if (instance == null) {
+                log.debug("No WASM instance available for bundle {} within {}ms", bundle.getId(), borrowTimeoutMs);
+                return Optional.empty();
+            }
+
+            String resultSet = instance.eval(entrypointId, objectMapper.writeValueAsBytes(input));
+            List<Map<String, Object>> results = objectMapper.readValue(resultSet,
+                    new TypeReference<List<Map<String, Object>>>() {
+                    });
+            return Optional.of(results.isEmpty() ? new HashMap<>() : results.get(0));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Optional.empty();
+        } catch (Exception e) {
+            log.warn("WASM evaluation of bundle {} failed, falling back to OPA: {}", bundle.getId(), e.getMessage());
+            // A trapped instance may be in an inconsistent state; replace it.
+            instance = replace(bundle.getId(), loaded);
+            return Optional.empty();
+        } finally {
+            if (instance != null) {
+                loaded.pool.offer(instance);
+            }
+        }
+    }
+
+    /**
+     * Drops the loaded module for a bundle; the next decision reloads it.
+     */
+    public void invalidate(Long bundleId) {
+        if (bundles.invalidate(bundleId)) {
+            log.info("Invalidated in-JVM WASM engine for bundle {}", bundleId);
+        }
+    }
+
+    private OpaWasmInstance replace(Long bundleId, LoadedBundle loaded) {
+        try {
+            return loaded.newInstance();
+        } catch (Exception e) {
+            // Reload rather than serve from a pool that shrinks with every failure
+            log.error("Failed to re-instantiate WASM module of bundle {}, reloading it", bundleId, e);
+            bundles.invalidate(bundleId, loaded);
+            return null;
+        }
+    }
+
+    /**
+     * @return the loaded bundle, or null if it cannot be served in the JVM
+     */
+    private LoadedBundle load(PolicyBundle bundle) {
+        long start = System.nanoTime();
+        try {
+            List<PolicyBinding> bindings = bundleService.getBindings(bundle);
+            List<Policy> policies = bundleService.getPolicies(bindings);
+            byte[] compiled = bundleService.compileToWasm(policies, bundleService.buildDataJson(bindings),
+                    bundle.getEntrypoint());
+
+            Map<String, byte[]> entries = bundleService.extractBundle(compiled);
+            byte[] wasm = entries.get("policy.wasm");
+            byte[] data = entries.getOrDefault("data.json", "{}".getBytes());
+            if (wasm == null) {
+                log.warn("Bundle {} contains no policy.wasm, serving it through OPA", bundle.getId());
+                return null;
+            }
+
+            WasmModule module = Parser.parse(wasm);
+            Function<Instance, Machine> machineFactory = MachineFactoryCompiler.compile(module);
+
+            int size = poolSize > 0 ? poolSize : Runtime.getRuntime().availableProcessors();
+            LoadedBundle loaded = new LoadedBundle(module, machineFactory, data, size);
+
+            OpaWasmInstance first = loaded.newInstance();
+            Map<String, Object> builtins = objectMapper.readValue(first.builtins(),
+                    new TypeReference<Map<String, Object>>() {
+                    });
+            if (!builtins.isEmpty()) {
+                log.info("Bundle {} requires host builtins {}, serving it through OPA", bundle.getId(),
+                        builtins.keySet());
+                return null;
+            }
+            loaded.entrypoints.putAll(objectMapper.readValue(first.entrypoints(),
+                    new TypeReference<Map<String, Integer>>() {
+                    }));
+
+            loaded.pool.offer(first);
+            for (int i = 1; i < size; i++) {
+                loaded.pool.offer(loaded.newInstance());
+            }
+
+            log.info("Loaded bundle {} into in-JVM WASM engine ({} instances, entrypoints {}) in {}ms",
+                    bundle.getId(), size, loaded.entrypoints.keySet(), (System.nanoTime() - start) / 1_000_000);
+            return loaded;
+        } catch (Exception e) {
+            log.warn("Bundle {} could not be loaded into the in-JVM WASM engine: {}", bundle.getId(), e.getMessage());
+            return null;
+        }
+    }
+
+    private static class LoadedBundle {
+        private final WasmModule module;
+        private final Function<Instance, Machine> machineFactory;
+        private final byte[] data;
+        private final BlockingQueue<OpaWasmInstance> pool;
+        private final Map<String, Integer> entrypoints = new HashMap<>();
+
+        LoadedBundle(WasmModule module, Function<Instance, Machine> machineFactory, byte[] data, int size) {
+            this.module = module;
+            this.machineFactory = machineFactory;
+            this.data = data;
+            this.pool = new ArrayBlockingQueue<>(size);
+        }
+
+        OpaWasmInstance newInstance() {
+            return new OpaWasmInstance(module, machineFactory, data);
+        }
+
+        Integer resolveEntrypoint(String entrypoint) {
+            if (entrypoint == null || entrypoint.isEmpty()) {
+                return entrypoints.size() == 1 ? entrypoints.values().iterator().next() : null;
+            }
+            return entrypoints.get(entrypoint.replace('.', '/'));
+        }
+    }
+}
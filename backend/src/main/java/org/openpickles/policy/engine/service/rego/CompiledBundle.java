@@ -0,0 +1,196 @@
+package org.openpickles.policy.engine.service.rego;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The rules of a bundle compiled to closures by {@link RegoCompiler}, bound
+ * to the bundle's {@link DataSnapshot}.
+ * <p>
+ * Thread safe: every query gets its own {@link Context} (rule memo) and
+ * frames, the compiled tree and the snapshot are shared and immutable.
+ */
+public class CompiledBundle {
+
+    // Memo marker for rules whose value is JSON null
+    private static final Object NULL = new Object();
+
+    private final Map<String, Map<String, RuleGroup>> packages;
+    private final DataSnapshot data;
+    private final int ruleCount;
+
+    CompiledBundle(Map<String, Map<String, RuleGroup>> packages, DataSnapshot data, int ruleCount) {
+        this.packages = packages;
+        this.data = data;
+        this.ruleCount = ruleCount;
+    }
+
+    /**
+     * Evaluates {@code data.<path>}.
+     *
+     * @param path slash separated, e.g. "authz/allow"
+     * @return the value, or {@link Values#UNDEFINED}
+     */
+    public Object evaluate(String path, Object input) {
+        List<String> steps = Arrays.asList(path.split("/"));
+        Context ctx = new Context(input, data, ruleCount);
+        for (int i = steps.size(); i > 0; i--) {
+            Map<String, RuleGroup> rules = packages.get(String.join(".", steps.subList(0, i)));
+            if (rules == null) {
+                continue;
+            }
+            if (i == steps.size()) {
+                // The package document: all rules with a value
+                Map<String, Object> document = new LinkedHashMap<>();
+                rules.forEach((name, group) -> {
+                    Object value = group.value(ctx);
+                    if (value != Values.UNDEFINED) {
+                        document.put(name, value);
+                    }
+                });
+                return document;
+            }
+            RuleGroup group = rules.get(steps.get(i));
+            if (group == null) {
+                break;
+            }
+            Object value = group.value(ctx);
+            for (String step : steps.subList(i + 1, steps.size())) {
+                value = Values.get(value, step);
+            }
+            return value;
+        }
+        if (packages.keySet().stream().anyMatch(p -> (p + ".").startsWith(String.join(".", steps) + "."))) {
+            throw new UnsupportedRegoException("Query of a document enclosing packages: " + path);
+        }
+        return data.lookup(List.copyOf(steps));
+    }
+
+    /**
+     * State of one query: the input, the data and the values of the rules
+     * evaluated so far.
+     */
+    static final class Context {
+        private static final Object PENDING = new Object();
+
+        final Object input;
+        final DataSnapshot data;
+        private final Object[] rules;
+
+        Context(Object input, DataSnapshot data, int ruleCount) {
+            this.input = input;
+            this.data = data;
+            this.rules = new Object[ruleCount];
+        }
+    }
+
+    /**
+     * A term whose variables are all bound.
+     */
+    @FunctionalInterface
+    interface Term {
+        Object eval(Context ctx, Object[] frame);
+    }
+
+    /**
+     * One expression of a rule body linked to the rest of the body. Returns
+     * true to stop the search (an answer was found and no more are needed).
+     */
+    @FunctionalInterface
+    interface Step {
+        boolean run(Context ctx, Object[] frame);
+    }
+
+    /**
+     * All definitions of one rule in a package.
+     */
+    static final class RuleGroup {
+        final int id;
+        final String name;
+        final boolean partialSet;
+        final List<Definition> definitions;
+        final Term defaultValue;
+        // Every definition has the same constant value: the first answer is final
+        final boolean conflictFree;
+
+        RuleGroup(int id, String name, boolean partialSet, List<Definition> definitions, Term defaultValue,
+                boolean conflictFree) {
+            this.id = id;
+            this.name = name;
+            this.partialSet = partialSet;
+            this.definitions = definitions;
+            this.defaultValue = defaultValue;
+            this.conflictFree = conflictFree;
+        }
+
+        Object value(Context ctx) {
+            Object memo = ctx.rules[id];
+            if (memo == Context.PENDING) {
+                throw new UnsupportedRegoException("Recursive rule " + name);
+            }
+            if (memo != null) {
+                return memo == NULL ? null : memo;
+            }
+            ctx.rules[id] = Context.PENDING;
+            Object value = partialSet ? collect(ctx) : complete(ctx);
+            ctx.rules[id] = value == null ? NULL : value;
+            return value;
+        }
+
+        private Object complete(Context ctx) {
+            Object result = Values.UNDEFINED;
+            for (Definition definition : definitions) {
+                Object[] frame = new Object[definition.frameSize];
+                frame[definition.resultSlot] = Values.UNDEFINED;
+                definition.body.run(ctx, frame);
+                Object value = frame[definition.resultSlot];
+                if (value == Values.UNDEFINED) {
+                    continue;
+                }
+                if (result == Values.UNDEFINED) {
+                    result = value;
+                    if (conflictFree) {
+                        break;
+                    }
+                } else if (!Values.equal(result, value)) {
+                    // OPA reports a conflict error, let it do so
+                    throw new UnsupportedRegoException("Conflicting values for rule " + name);
+                }
+            }
+            if (result == Values.UNDEFINED && defaultValue != null) {
+                return defaultValue.eval(ctx, new Object[0]);
+            }
+            return result;
+        }
+
+        private Object collect(Context ctx) {
+            Set<Object> result = new LinkedHashSet<>();
+            for (Definition definition : definitions) {
+                Object[] frame = new Object[definition.frameSize];
+                frame[definition.resultSlot] = result;
+                definition.body.run(ctx, frame);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * One rule definition: its body ends in a step that stores the head value
+     * (or adds the key of a partial set) in {@code resultSlot}.
+     */
+    static final class Definition {
+        final Step body;
+        final int frameSize;
+        final int resultSlot;
+
+        Definition(Step body, int frameSize, int resultSlot) {
+            this.body = body;
+            this.frameSize = frameSize;
+            this.resultSlot = resultSlot;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package org.openpickles.policy.engine.service.rego;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Immutable base documents of a bundle (its data.json) with hash indexes on
+ * collection fields.
+ * <p>
+ * An index maps the value found at a field path of each element, e.g.
+ * {@code subject.id} of every entry of {@code data.entitlements}, to the
+ * matching {@code [key, element]} pairs in iteration order. Indexes are built
+ * while compiling a rule that iterates a collection under an equality on one
+ * of its fields.
+ */
+public class DataSnapshot {
+
+    private final Map<String, Object> root;
+    private final Map<String, Map<Object, List<Object[]>>> indexes = new ConcurrentHashMap<>();
+
+    public DataSnapshot(Map<String, Object> root) {
+        this.root = root;
+    }
+
+    public Map<String, Object> getRoot() {
+        return root;
+    }
+
+    /**
+     * The document at a path of constant keys, UNDEFINED if absent.
+     */
+    public Object lookup(List<Object> path) {
+        Object current = root;
+        for (Object key : path) {
+            current = Values.get(current, key);
+            if (current == Values.UNDEFINED) {
+                return current;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Index of the collection at {@code path} by the value at {@code field}
+     * of its elements: {@link Values#key(Object) key} to {@code [key, element]}
+     * pairs. Built once per path and field.
+     */
+    public Map<Object, List<Object[]>> index(List<Object> path, List<String> field) {
+        return indexes.computeIfAbsent(path + "|" + field, k -> buildIndex(lookup(path), field));
+    }
+
+    private static Map<Object, List<Object[]>> buildIndex(Object collection, List<String> field) {
+        Map<Object, List<Object[]>> index = new HashMap<>();
+        if (collection instanceof List<?> list) {
+            for (int i = 0; i < list.size(); i++) {
+                add(index, (long) i, list.get(i), field);
+            }
+        } else if (collection instanceof Map<?, ?> map) {
+            map.forEach((key, element) -> add(index, key, element, field));
+        } else if (collection instanceof Collection<?> set) {
+            set.forEach(element -> add(index, element, element, field));
+        }
+        index.replaceAll((k, v) -> List.copyOf(v));
+        return index;
+    }
+
+    private static void add(Map<Object, List<Object[]>> index, Object key, Object element, List<String> field) {
+        Object value = element;
+        for (String step : field) {
+            value = Values.get(value, step);
+            if (value == Values.UNDEFINED) {
+                return;
+            }
+        }
+        index.computeIfAbsent(Values.key(value), k -> new ArrayList<>()).add(new Object[] { key, element });
+    }
+}
@@ -0,0 +1,1060 @@
+package org.openpickles.policy.engine.service.rego;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.openpickles.policy.engine.service.rego.CompiledBundle.Context;
+import org.openpickles.policy.engine.service.rego.CompiledBundle.Definition;
+import org.openpickles.policy.engine.service.rego.CompiledBundle.RuleGroup;
+import org.openpickles.policy.engine.service.rego.CompiledBundle.Step;
+import org.openpickles.policy.engine.service.rego.CompiledBundle.Term;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compiles Rego modules, given as the AST printed by
+ * {@code opa parse --format json}, into a {@link CompiledBundle}.
+ * <p>
+ * Supported is the subset entitlement policies are written in: complete rules
+ * (with defaults) and partial sets; bodies of {@code =}, {@code :=},
+ * comparisons, {@code some}/{@code in}, {@code not}, references to input,
+ * data and other rules, iteration over refs with unbound variables, and the
+ * built-ins {@code count}, {@code startswith}, {@code endswith},
+ * {@code contains}, {@code lower} and {@code upper}. Anything else (functions,
+ * {@code with}, {@code else}, comprehensions, other built-ins, ...) raises
+ * {@link UnsupportedRegoException} and the bundle stays with OPA.
+ * <p>
+ * Bodies are compiled in order with the set of bound variables known at each
+ * expression, so no binding checks remain at run time. Iteration over a base
+ * document followed by an equality on a field of the element, e.g.
+ * <pre>
+ * some e in data.entitlements
+ * e.subject.id == input.user
+ * </pre>
+ * is turned into a lookup in a hash index of that field.
+ */
+public final class RegoCompiler {
+
+    private static final Set<String> COMPARISONS = Set.of("equal", "neq", "lt", "lte", "gt", "gte");
+    private static final Set<String> BUILTINS = Set.of("count", "startswith", "endswith", "contains", "lower",
+            "upper");
+
+    private final DataSnapshot data;
+    // package -> rule name -> rule group id
+    private final Map<String, Map<String, Integer>> ruleIds = new LinkedHashMap<>();
+    private final List<RuleGroup> groups = new ArrayList<>();
+    // Filled in once all groups are compiled, rule refs resolve through it
+    private final RuleGroup[] resolved;
+
+    private RegoCompiler(DataSnapshot data, int ruleCount) {
+        this.data = data;
+        this.resolved = new RuleGroup[ruleCount];
+    }
+
+    /**
+     * @param modules ASTs of all modules of the bundle
+     */
+    public static CompiledBundle compile(List<JsonNode> modules, DataSnapshot data) {
+        // package -> rule name -> definitions
+        Map<String, Map<String, List<JsonNode>>> rules = new LinkedHashMap<>();
+        for (JsonNode module : modules) {
+            checkImports(module);
+            String pkg = packageName(module);
+            for (JsonNode rule : module.path("rules")) {
+                rules.computeIfAbsent(pkg, p -> new LinkedHashMap<>())
+                        .computeIfAbsent(ruleName(rule), n -> new ArrayList<>())
+                        .add(rule);
+            }
+        }
+
+        int count = rules.values().stream().mapToInt(Map::size).sum();
+        RegoCompiler compiler = new RegoCompiler(data, count);
+        int id = 0;
+        for (Map.Entry<String, Map<String, List<JsonNode>>> pkg : rules.entrySet()) {
+            for (String name : pkg.getValue().keySet()) {
+                compiler.ruleIds.computeIfAbsent(pkg.getKey(), p -> new LinkedHashMap<>()).put(name, id++);
+            }
+        }
+
+        Map<String, Map<String, RuleGroup>> packages = new LinkedHashMap<>();
+        for (Map.Entry<String, Map<String, List<JsonNode>>> pkg : rules.entrySet()) {
+            for (Map.Entry<String, List<JsonNode>> group : pkg.getValue().entrySet()) {
+                RuleGroup compiled = compiler.compileGroup(pkg.getKey(), group.getKey(), group.getValue());
+                compiler.resolved[compiled.id] = compiled;
+                packages.computeIfAbsent(pkg.getKey(), p -> new LinkedHashMap<>()).put(group.getKey(), compiled);
+            }
+        }
+        return new CompiledBundle(packages, data, count);
+    }
+
+    // ---------------------------------------------------------------- rules
+
+    private RuleGroup compileGroup(String pkg, String name, List<JsonNode> rules) {
+        int id = ruleIds.get(pkg).get(name);
+        Boolean partialSet = null;
+        Term defaultValue = null;
+        List<Definition> definitions = new ArrayList<>();
+        Set<String> headValues = new HashSet<>();
+
+        for (JsonNode rule : rules) {
+            JsonNode head = rule.path("head");
+            if (rule.has("else")) {
+                throw new UnsupportedRegoException("else in rule " + name);
+            }
+            if (head.has("args")) {
+                throw new UnsupportedRegoException("function " + name);
+            }
+            if (head.path("ref").size() > 1) {
+                throw new UnsupportedRegoException("multi-level rule ref " + name);
+            }
+            if (rule.path("default").asBoolean(false)) {
+                defaultValue = closed(head.path("value"), new Scope(pkg), Set.of());
+                continue;
+            }
+            boolean isSet = head.has("key") && !head.has("value");
+            if (head.has("key") && head.has("value")) {
+                throw new UnsupportedRegoException("partial object rule " + name);
+            }
+            if (partialSet != null && partialSet != isSet) {
+                throw new UnsupportedRegoException("mixed rule kinds for " + name);
+            }
+            partialSet = isSet;
+            JsonNode headTerm = isSet ? head.path("key") : head.path("value");
+            headValues.add(headTerm.isMissingNode() ? "boolean:true"
+                    : isConstant(headTerm) ? canonical(headTerm) : "var:" + definitions.size());
+            definitions.add(compileDefinition(pkg, rule.path("body"), headTerm, isSet));
+        }
+        boolean conflictFree = headValues.size() <= 1;
+        return new RuleGroup(id, name, Boolean.TRUE.equals(partialSet), definitions, defaultValue, conflictFree);
+    }
+
+    private Definition compileDefinition(String pkg, JsonNode body, JsonNode headTerm, boolean partialSet) {
+        Scope scope = new Scope(pkg);
+        Set<String> bound = new HashSet<>();
+        List<JsonNode> exprs = new ArrayList<>();
+        body.forEach(exprs::add);
+        List<Link> links = new ArrayList<>();
+        for (int i = 0; i < exprs.size(); i++) {
+            compileExpr(exprs.get(i), exprs.subList(i, exprs.size()), scope, bound, links);
+        }
+
+        int resultSlot = scope.slot("$result");
+        Step terminal;
+        if (headTerm.isMissingNode()) {
+            terminal = (ctx, frame) -> {
+                frame[resultSlot] = Boolean.TRUE;
+                return true;
+            };
+        } else {
+            // p[x.id] { ... } may still iterate in the head
+            expand(headTerm, List.of(), scope, bound, links);
+            Term head = closed(headTerm, scope, bound);
+            if (partialSet) {
+                terminal = (ctx, frame) -> {
+                    Object key = head.eval(ctx, frame);
+                    if (key != Values.UNDEFINED) {
+                        @SuppressWarnings("unchecked")
+                        Set<Object> result = (Set<Object>) frame[resultSlot];
+                        result.add(Values.key(key));
+                    }
+                    return false;
+                };
+            } else {
+                terminal = (ctx, frame) -> {
+                    Object value = head.eval(ctx, frame);
+                    if (value == Values.UNDEFINED) {
+                        return false;
+                    }
+                    frame[resultSlot] = value;
+                    return true;
+                };
+            }
+        }
+        return new Definition(link(links, terminal), scope.size(), resultSlot);
+    }
+
+    // ---------------------------------------------------------- expressions
+
+    /**
+     * A compiled expression waiting for the rest of the body.
+     */
+    @FunctionalInterface
+    private interface Link {
+        Step to(Step next);
+    }
+
+    private static Step link(List<Link> links, Step terminal) {
+        Step step = terminal;
+        for (int i = links.size() - 1; i >= 0; i--) {
+            step = links.get(i).to(step);
+        }
+        return step;
+    }
+
+    /**
+     * @param remaining this and the following expressions of the body, used to
+     *                  plan index lookups
+     */
+    private void compileExpr(JsonNode expr, List<JsonNode> remaining, Scope scope, Set<String> bound,
+            List<Link> links) {
+        if (expr.has("with")) {
+            throw new UnsupportedRegoException("with modifier");
+        }
+        if (expr.path("negated").asBoolean(false)) {
+            // Variables bound inside the negation do not leak out of it
+            List<Link> inner = new ArrayList<>();
+            compilePositive(expr, List.of(expr), scope, new HashSet<>(bound), inner);
+            Step negated = link(inner, (ctx, frame) -> true);
+            links.add(next -> (ctx, frame) -> !negated.run(ctx, frame) && next.run(ctx, frame));
+            return;
+        }
+        compilePositive(expr, remaining, scope, bound, links);
+    }
+
+    private void compilePositive(JsonNode expr, List<JsonNode> remaining, Scope scope, Set<String> bound,
+            List<Link> links) {
+        JsonNode terms = expr.path("terms");
+        if (terms.isObject() && terms.has("symbols")) {
+            for (JsonNode symbol : terms.path("symbols")) {
+                if ("var".equals(symbol.path("type").asText())) {
+                    scope.declared.add(symbol.path("value").asText());
+                } else if ("call".equals(symbol.path("type").asText())) {
+                    JsonNode call = symbol.path("value");
+                    for (int i = 1; i < call.size() - 1; i++) {
+                        collectVars(call.get(i), scope.declared);
+                    }
+                    compileCall(call, remaining, scope, bound, links);
+                } else {
+                    throw new UnsupportedRegoException("some declaration " + symbol.path("type").asText());
+                }
+            }
+            return;
+        }
+        if (terms.isObject()) {
+            expand(terms, remaining, scope, bound, links);
+            Term term = closed(terms, scope, bound);
+            links.add(next -> (ctx, frame) -> Values.isTruthy(term.eval(ctx, frame)) && next.run(ctx, frame));
+            return;
+        }
+        compileCall(terms, remaining, scope, bound, links);
+    }
+
+    private void compileCall(JsonNode terms, List<JsonNode> remaining, Scope scope, Set<String> bound,
+            List<Link> links) {
+        String op = operator(terms.get(0));
+        switch (op) {
+            case "eq", "assign" -> compileUnify(op, terms.get(1), terms.get(2), remaining, scope, bound, links);
+            case "internal.member_2" -> compileMember(terms.get(1), terms.get(2), remaining, scope, bound, links);
+            case "internal.member_3" -> compileMember3(terms.get(1), terms.get(2), terms.get(3), scope, bound,
+                    links);
+            default -> {
+                if (COMPARISONS.contains(op)) {
+                    expand(terms.get(1), remaining, scope, bound, links);
+                    expand(terms.get(2), remaining, scope, bound, links);
+                    Term left = closed(terms.get(1), scope, bound);
+                    Term right = closed(terms.get(2), scope, bound);
+                    Comparison comparison = comparison(op);
+                    links.add(next -> (ctx, frame) -> {
+                        Object a = left.eval(ctx, frame);
+                        if (a == Values.UNDEFINED) {
+                            return false;
+                        }
+                        Object b = right.eval(ctx, frame);
+                        return b != Values.UNDEFINED && comparison.test(a, b) && next.run(ctx, frame);
+                    });
+                } else if (BUILTINS.contains(op)) {
+                    List<Term> args = new ArrayList<>();
+                    for (int i = 1; i < terms.size(); i++) {
+                        expand(terms.get(i), remaining, scope, bound, links);
+                    }
+                    for (int i = 1; i < terms.size(); i++) {
+                        args.add(closed(terms.get(i), scope, bound));
+                    }
+                    Term call = builtin(op, args);
+                    links.add(next -> (ctx, frame) -> Values.isTruthy(call.eval(ctx, frame)) && next.run(ctx, frame));
+                } else {
+                    throw new UnsupportedRegoException("operator " + op);
+                }
+            }
+        }
+    }
+
+    private void compileUnify(String op, JsonNode left, JsonNode right, List<JsonNode> remaining, Scope scope,
+            Set<String> bound, List<Link> links) {
+        String target = bindable(left, scope, bound) ? left.path("value").asText()
+                : "eq".equals(op) && bindable(right, scope, bound) ? right.path("value").asText() : null;
+        if ("assign".equals(op) && target == null) {
+            throw new UnsupportedRegoException(":= to a bound variable or non-variable");
+        }
+        if (target == null) {
+            expand(left, remaining, scope, bound, links);
+            expand(right, remaining, scope, bound, links);
+            Term a = closed(left, scope, bound);
+            Term b = closed(right, scope, bound);
+            links.add(next -> (ctx, frame) -> {
+                Object x = a.eval(ctx, frame);
+                return x != Values.UNDEFINED && Values.equal(x, b.eval(ctx, frame)) && next.run(ctx, frame);
+            });
+            return;
+        }
+
+        JsonNode value = target.equals(left.path("value").asText()) && bindable(left, scope, bound) ? right : left;
+        // x = data.coll[_]: x is the element, so later equalities on x.<field> can use an index
+        JsonNode generated = lastVarRef(value, scope, bound);
+        if (generated != null) {
+            List<JsonNode> prefix = elements(value).subList(0, value.path("value").size() - 1);
+            generator(prefix, generated.path("value").asText(), target, remaining, scope, bound, links);
+        }
+        expand(value, remaining, scope, bound, links);
+        Term term = closed(value, scope, bound);
+        int slot = scope.slot(target);
+        bound.add(target);
+        links.add(next -> (ctx, frame) -> {
+            Object v = term.eval(ctx, frame);
+            if (v == Values.UNDEFINED) {
+                return false;
+            }
+            frame[slot] = v;
+            return next.run(ctx, frame);
+        });
+    }
+
+    private void compileMember(JsonNode element, JsonNode collection, List<JsonNode> remaining, Scope scope,
+            Set<String> bound, List<Link> links) {
+        expand(collection, remaining, scope, bound, links);
+        if (bindable(element, scope, bound)) {
+            // some x in coll
+            String var = element.path("value").asText();
+            List<Object> path = dataPath(elements(collection), scope);
+            Set<String> before = new HashSet<>(bound);
+            Plan plan = path != null ? plan(path, null, var, remaining, scope, before) : null;
+            int slot = scope.slot(var);
+            bound.add(var);
+            if (plan != null) {
+                links.add(indexed(plan, -1, slot));
+                return;
+            }
+            Term coll = closed(collection, scope, bound);
+            links.add(next -> (ctx, frame) -> {
+                Iterator<?> values = Values.values(coll.eval(ctx, frame));
+                while (values.hasNext()) {
+                    frame[slot] = values.next();
+                    if (next.run(ctx, frame)) {
+                        return true;
+                    }
+                }
+                return false;
+            });
+            return;
+        }
+        expand(element, remaining, scope, bound, links);
+        Term x = closed(element, scope, bound);
+        Term coll = closed(collection, scope, bound);
+        links.add(next -> (ctx, frame) -> {
+            Object value = x.eval(ctx, frame);
+            return value != Values.UNDEFINED && member(value, coll.eval(ctx, frame)) && next.run(ctx, frame);
+        });
+    }
+
+    private void compileMember3(JsonNode key, JsonNode value, JsonNode collection, Scope scope, Set<String> bound,
+            List<Link> links) {
+        expand(collection, List.of(), scope, bound, links);
+        Term coll = closed(collection, scope, bound);
+        Binder keyBinder = binder(key, scope, bound, links);
+        Binder valueBinder = binder(value, scope, bound, links);
+        links.add(next -> (ctx, frame) -> {
+            Object c = coll.eval(ctx, frame);
+            Iterator<Object[]> entries = entries(c);
+            while (entries.hasNext()) {
+                Object[] entry = entries.next();
+                if (keyBinder.bind(ctx, frame, entry[0]) && valueBinder.bind(ctx, frame, entry[1])
+                        && next.run(ctx, frame)) {
+                    return true;
+                }
+            }
+            return false;
+        });
+    }
+
+    @FunctionalInterface
+    private interface Binder {
+        boolean bind(Context ctx, Object[] frame, Object value);
+    }
+
+    private Binder binder(JsonNode term, Scope scope, Set<String> bound, List<Link> links) {
+        if (bindable(term, scope, bound)) {
+            String var = term.path("value").asText();
+            int slot = scope.slot(var);
+            bound.add(var);
+            return (ctx, frame, value) -> {
+                frame[slot] = value;
+                return true;
+            };
+        }
+        expand(term, List.of(), scope, bound, links);
+        Term expected = closed(term, scope, bound);
+        return (ctx, frame, value) -> Values.equal(expected.eval(ctx, frame), value);
+    }
+
+    // ------------------------------------------------------------ iteration
+
+    /**
+     * Adds generators for the unbound variables inside refs of a term, left
+     * to right, so that afterwards the term is closed.
+     */
+    private void expand(JsonNode term, List<JsonNode> remaining, Scope scope, Set<String> bound, List<Link> links) {
+        String type = term.path("type").asText();
+        JsonNode value = term.path("value");
+        switch (type) {
+            case "ref" -> {
+                for (int i = 1; i < value.size(); i++) {
+                    JsonNode element = value.get(i);
+                    if (!"var".equals(element.path("type").asText())) {
+                        expand(element, remaining, scope, bound, links);
+                    } else if (bindable(element, scope, bound)) {
+                        generator(elements(term).subList(0, i), element.path("value").asText(), null, remaining,
+                                scope, bound, links);
+                    }
+                }
+            }
+            case "call" -> {
+                for (int i = 1; i < value.size(); i++) {
+                    expand(value.get(i), remaining, scope, bound, links);
+                }
+            }
+            case "array", "set" -> value.forEach(e -> expand(e, remaining, scope, bound, links));
+            case "object" -> value.forEach(pair -> pair.forEach(e -> expand(e, remaining, scope, bound, links)));
+            case "arraycomprehension", "setcomprehension", "objectcomprehension" ->
+                throw new UnsupportedRegoException("comprehension");
+            default -> {
+            }
+        }
+    }
+
+    /**
+     * Iterates the collection {@code prefix} binding {@code keyVar} to each
+     * key. {@code alias} is the variable the element will be bound to right
+     * after, if any.
+     */
+    private void generator(List<JsonNode> prefix, String keyVar, String alias, List<JsonNode> remaining, Scope scope,
+            Set<String> bound, List<Link> links) {
+        Set<String> before = new HashSet<>(bound);
+        List<Object> path = dataPath(prefix, scope);
+        Plan plan = path != null ? plan(path, keyVar, alias, remaining, scope, before) : null;
+        Term coll = plan == null ? ref(prefix, scope, bound) : null;
+        int slot = scope.slot(keyVar);
+        bound.add(keyVar);
+        if (plan != null) {
+            links.add(indexed(plan, slot, -1));
+            return;
+        }
+        links.add(next -> (ctx, frame) -> {
+            Iterator<Object[]> entries = entries(coll.eval(ctx, frame));
+            while (entries.hasNext()) {
+                frame[slot] = entries.next()[0];
+                if (next.run(ctx, frame)) {
+                    return true;
+                }
+            }
+            return false;
+        });
+    }
+
+    /**
+     * An equality between a field of the iterated elements and a term that is
+     * already closed where the iteration starts.
+     */
+    private record Plan(Map<Object, List<Object[]>> index, Term probe) {
+    }
+
+    private Plan plan(List<Object> path, String keyVar, String alias, List<JsonNode> remaining, Scope scope,
+            Set<String> before) {
+        for (JsonNode expr : remaining) {
+            JsonNode terms = expr.path("terms");
+            if (expr.has("with") || expr.path("negated").asBoolean(false) || !terms.isArray()
+                    || terms.size() != 3) {
+                continue;
+            }
+            String op = operator(terms.get(0));
+            if (!"equal".equals(op) && !"eq".equals(op)) {
+                continue;
+            }
+            for (int side = 1; side <= 2; side++) {
+                List<String> field = elementField(terms.get(side), path, keyVar, alias);
+                JsonNode other = terms.get(3 - side);
+                if (field == null || !closedIn(other, scope, before)) {
+                    continue;
+                }
+                try {
+                    Term probe = closed(other, scope, before);
+                    return new Plan(data.index(path, field), probe);
+                } catch (UnsupportedRegoException e) {
+                    // Not usable as probe, the expression itself decides
+                }
+            }
+        }
+        return null;
+    }
+
+    private static Link indexed(Plan plan, int keySlot, int elementSlot) {
+        Map<Object, List<Object[]>> index = plan.index();
+        Term probe = plan.probe();
+        return next -> (ctx, frame) -> {
+            Object value = probe.eval(ctx, frame);
+            if (value == Values.UNDEFINED) {
+                return false;
+            }
+            List<Object[]> matches = index.get(Values.key(value));
+            if (matches == null) {
+                return false;
+            }
+            for (Object[] entry : matches) {
+                if (keySlot >= 0) {
+                    frame[keySlot] = entry[0];
+                }
+                if (elementSlot >= 0) {
+                    frame[elementSlot] = entry[1];
+                }
+                if (next.run(ctx, frame)) {
+                    return true;
+                }
+            }
+            return false;
+        };
+    }
+
+    /**
+     * The field path {@code f1.f2...} if the term is {@code <path>[keyVar].f1.f2}
+     * or {@code alias.f1.f2}, else null.
+     */
+    private static List<String> elementField(JsonNode term, List<Object> path, String keyVar, String alias) {
+        String type = term.path("type").asText();
+        if ("var".equals(type)) {
+            return alias != null && alias.equals(term.path("value").asText()) ? List.of() : null;
+        }
+        if (!"ref".equals(type)) {
+            return null;
+        }
+        JsonNode value = term.path("value");
+        int start;
+        if (alias != null && isVar(value.get(0), alias)) {
+            start = 1;
+        } else if (keyVar != null && isVar(value.get(0), "data") && value.size() > path.size() + 1) {
+            for (int i = 0; i < path.size(); i++) {
+                JsonNode element = value.get(i + 1);
+                if (!"string".equals(element.path("type").asText())
+                        || !element.path("value").asText().equals(path.get(i))) {
+                    return null;
+                }
+            }
+            if (!isVar(value.get(path.size() + 1), keyVar)) {
+                return null;
+            }
+            start = path.size() + 2;
+        } else {
+            return null;
+        }
+        List<String> field = new ArrayList<>();
+        for (int i = start; i < value.size(); i++) {
+            if (!"string".equals(value.get(i).path("type").asText())) {
+                return null;
+            }
+            field.add(value.get(i).path("value").asText());
+        }
+        return field;
+    }
+
+    /**
+     * {@code [key, value]} pairs of a collection, as {@code some k, v in coll}
+     * sees them; empty for scalars.
+     */
+    private static Iterator<Object[]> entries(Object collection) {
+        if (collection instanceof List<?> list) {
+            return new Iterator<>() {
+                private int i;
+
+                @Override
+                public boolean hasNext() {
+                    return i < list.size();
+                }
+
+                @Override
+                public Object[] next() {
+                    Object[] entry = { (long) i, list.get(i) };
+                    i++;
+                    return entry;
+                }
+            };
+        }
+        if (collection instanceof Map<?, ?> map) {
+            Iterator<? extends Map.Entry<?, ?>> it = map.entrySet().iterator();
+            return new Iterator<>() {
+                @Override
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+
+                @Override
+                public Object[] next() {
+                    Map.Entry<?, ?> entry = it.next();
+                    return new Object[] { entry.getKey(), entry.getValue() };
+                }
+            };
+        }
+        if (collection instanceof Collection<?> set) {
+            Iterator<?> it = set.iterator();
+            return new Iterator<>() {
+                @Override
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+
+                @Override
+                public Object[] next() {
+                    Object element = it.next();
+                    return new Object[] { element, element };
+                }
+            };
+        }
+        return Collections.emptyIterator();
+    }
+
+    private static boolean member(Object value, Object collection) {
+        if (collection instanceof Set<?> set) {
+            return Values.contains(set, value);
+        }
+        Iterator<?> values = Values.values(collection);
+        while (values.hasNext()) {
+            if (Values.equal(value, values.next())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // ---------------------------------------------------------------- terms
+
+    /**
+     * Compiles a term whose variables are all bound.
+     */
+    private Term closed(JsonNode term, Scope scope, Set<String> bound) {
+        String type = term.path("type").asText();
+        JsonNode value = term.path("value");
+        switch (type) {
+            case "null":
+                return (ctx, frame) -> null;
+            case "boolean":
+            case "string":
+            case "number": {
+                Object constant = constant(term);
+                return (ctx, frame) -> constant;
+            }
+            case "var":
+            case "ref":
+                return ref(elements(term), scope, bound);
+            case "array": {
+                List<Term> items = new ArrayList<>();
+                value.forEach(e -> items.add(closed(e, scope, bound)));
+                return (ctx, frame) -> {
+                    List<Object> array = new ArrayList<>(items.size());
+                    for (Term item : items) {
+                        Object v = item.eval(ctx, frame);
+                        if (v == Values.UNDEFINED) {
+                            return Values.UNDEFINED;
+                        }
+                        array.add(v);
+                    }
+                    return array;
+                };
+            }
+            case "set": {
+                List<Term> items = new ArrayList<>();
+                value.forEach(e -> items.add(closed(e, scope, bound)));
+                if (value.isEmpty() || !isConstant(term)) {
+                    return (ctx, frame) -> {
+                        Set<Object> set = new LinkedHashSet<>();
+                        for (Term item : items) {
+                            Object v = item.eval(ctx, frame);
+                            if (v == Values.UNDEFINED) {
+                                return Values.UNDEFINED;
+                            }
+                            set.add(Values.key(v));
+                        }
+                        return set;
+                    };
+                }
+                // Constant sets (the common "allowed values" literal) are built once
+                Set<Object> set = new LinkedHashSet<>();
+                items.forEach(item -> set.add(Values.key(item.eval(null, null))));
+                Set<Object> constant = Collections.unmodifiableSet(set);
+                return (ctx, frame) -> constant;
+            }
+            case "object": {
+                List<Term[]> pairs = new ArrayList<>();
+                value.forEach(pair -> pairs.add(new Term[] { closed(pair.get(0), scope, bound),
+                        closed(pair.get(1), scope, bound) }));
+                return (ctx, frame) -> {
+                    Map<Object, Object> object = new LinkedHashMap<>();
+                    for (Term[] pair : pairs) {
+                        Object k = pair[0].eval(ctx, frame);
+                        Object v = pair[1].eval(ctx, frame);
+                        if (k == Values.UNDEFINED || v == Values.UNDEFINED) {
+                            return Values.UNDEFINED;
+                        }
+                        object.put(k, v);
+                    }
+                    return object;
+                };
+            }
+            case "call": {
+                String name = operator(value.get(0));
+                if (!BUILTINS.contains(name)) {
+                    throw new UnsupportedRegoException("built-in " + name);
+                }
+                List<Term> args = new ArrayList<>();
+                for (int i = 1; i < value.size(); i++) {
+                    args.add(closed(value.get(i), scope, bound));
+                }
+                return builtin(name, args);
+            }
+            default:
+                throw new UnsupportedRegoException("term " + type);
+        }
+    }
+
+    /**
+     * Compiles a ref (or a single variable) whose variables are all bound.
+     */
+    private Term ref(List<JsonNode> elements, Scope scope, Set<String> bound) {
+        JsonNode head = elements.get(0);
+        if (!"var".equals(head.path("type").asText())) {
+            throw new UnsupportedRegoException("ref head " + head.path("type").asText());
+        }
+        String name = head.path("value").asText();
+        Term base;
+        int next = 1;
+        if (bound.contains(name)) {
+            int slot = scope.slot(name);
+            base = (ctx, frame) -> frame[slot];
+        } else if ("input".equals(name)) {
+            base = (ctx, frame) -> ctx.input;
+        } else if ("data".equals(name)) {
+            // data.<pkg>.<rule>... or a base document
+            List<String> constants = new ArrayList<>();
+            for (int i = 1; i < elements.size() && "string".equals(elements.get(i).path("type").asText()); i++) {
+                constants.add(elements.get(i).path("value").asText());
+            }
+            RuleGroupRef rule = null;
+            for (int k = constants.size() - 1; k >= 1 && rule == null; k--) {
+                Map<String, Integer> ids = ruleIds.get(String.join(".", constants.subList(0, k)));
+                if (ids != null && ids.containsKey(constants.get(k))) {
+                    rule = new RuleGroupRef(ids.get(constants.get(k)), k + 2);
+                }
+            }
+            String joined = String.join(".", constants);
+            if (rule == null && ruleIds.keySet().stream().anyMatch(p -> (p + ".").startsWith(joined + ".")
+                    || joined.startsWith(p + "."))) {
+                throw new UnsupportedRegoException("ref into a package document data." + joined);
+            }
+            if (rule != null) {
+                base = ruleTerm(rule.id());
+                next = rule.next();
+            } else {
+                // Base documents are immutable: resolve the constant part now
+                Object resolvedValue = data.lookup(new ArrayList<>(constants));
+                base = (ctx, frame) -> resolvedValue;
+                next = 1 + constants.size();
+            }
+        } else if (!scope.declared.contains(name) && ruleIds.getOrDefault(scope.pkg, Map.of()).containsKey(name)) {
+            base = ruleTerm(ruleIds.get(scope.pkg).get(name));
+        } else {
+            throw new UnsupportedRegoException("unsafe variable " + name);
+        }
+        if (next >= elements.size()) {
+            return base;
+        }
+
+        List<Term> keys = new ArrayList<>();
+        for (JsonNode element : elements.subList(next, elements.size())) {
+            keys.add(closed(element, scope, bound));
+        }
+        Term[] steps = keys.toArray(new Term[0]);
+        return (ctx, frame) -> {
+            Object value = base.eval(ctx, frame);
+            for (Term step : steps) {
+                if (value == Values.UNDEFINED) {
+                    return value;
+                }
+                value = Values.get(value, step.eval(ctx, frame));
+            }
+            return value;
+        };
+    }
+
+    private record RuleGroupRef(int id, int next) {
+    }
+
+    private Term ruleTerm(int id) {
+        RuleGroup[] groups = resolved;
+        return (ctx, frame) -> groups[id].value(ctx);
+    }
+
+    private static Term builtin(String name, List<Term> args) {
+        int arity = "count".equals(name) || "lower".equals(name) || "upper".equals(name) ? 1 : 2;
+        if (args.size() != arity) {
+            throw new UnsupportedRegoException(name + " with " + args.size() + " arguments");
+        }
+        Term a = args.get(0);
+        Term b = arity == 2 ? args.get(1) : null;
+        return switch (name) {
+            case "count" -> (ctx, frame) -> {
+                Object v = a.eval(ctx, frame);
+                if (v instanceof Collection<?> c) {
+                    return (long) c.size();
+                }
+                if (v instanceof Map<?, ?> m) {
+                    return (long) m.size();
+                }
+                return v instanceof String s ? (long) s.codePointCount(0, s.length()) : Values.UNDEFINED;
+            };
+            case "lower", "upper" -> (ctx, frame) -> {
+                Object v = a.eval(ctx, frame);
+                if (!(v instanceof String s)) {
+                    return Values.UNDEFINED;
+                }
+                return "lower".equals(name) ? s.toLowerCase(Locale.ROOT) : s.toUpperCase(Locale.ROOT);
+            };
+            default -> (ctx, frame) -> {
+                Object x = a.eval(ctx, frame);
+                Object y = b.eval(ctx, frame);
+                if (!(x instanceof String s) || !(y instanceof String t)) {
+                    return Values.UNDEFINED;
+                }
+                return switch (name) {
+                    case "startswith" -> s.startsWith(t);
+                    case "endswith" -> s.endsWith(t);
+                    default -> s.contains(t);
+                };
+            };
+        };
+    }
+
+    @FunctionalInterface
+    private interface Comparison {
+        boolean test(Object a, Object b);
+    }
+
+    private static Comparison comparison(String op) {
+        return switch (op) {
+            case "equal" -> Values::equal;
+            case "neq" -> (a, b) -> !Values.equal(a, b);
+            case "lt" -> (a, b) -> Values.compare(a, b) < 0;
+            case "lte" -> (a, b) -> Values.compare(a, b) <= 0;
+            case "gt" -> (a, b) -> Values.compare(a, b) > 0;
+            default -> (a, b) -> Values.compare(a, b) >= 0;
+        };
+    }
+
+    // -------------------------------------------------------------- helpers
+
+    /**
+     * Variables of one rule definition and their frame slots.
+     */
+    private static final class Scope {
+        private final String pkg;
+        private final Map<String, Integer> slots = new HashMap<>();
+        // Declared with some, so they shadow rules of the same name
+        private final Set<String> declared = new HashSet<>();
+
+        Scope(String pkg) {
+            this.pkg = pkg;
+        }
+
+        int slot(String var) {
+            return slots.computeIfAbsent(var, v -> slots.size());
+        }
+
+        int size() {
+            return slots.size();
+        }
+    }
+
+    /**
+     * True for a variable that is not bound yet and not input, data or a rule.
+     */
+    private boolean bindable(JsonNode term, Scope scope, Set<String> bound) {
+        if (!"var".equals(term.path("type").asText())) {
+            return false;
+        }
+        String name = term.path("value").asText();
+        if (bound.contains(name) || "input".equals(name) || "data".equals(name)) {
+            return false;
+        }
+        return scope.declared.contains(name) || !ruleIds.getOrDefault(scope.pkg, Map.of()).containsKey(name);
+    }
+
+    /**
+     * The last element of a ref if it is its only unbound variable, e.g. the
+     * {@code _} of {@code data.entitlements[_]}.
+     */
+    private JsonNode lastVarRef(JsonNode term, Scope scope, Set<String> bound) {
+        if (!"ref".equals(term.path("type").asText())) {
+            return null;
+        }
+        JsonNode value = term.path("value");
+        JsonNode last = value.get(value.size() - 1);
+        if (value.size() < 2 || !bindable(last, scope, bound)) {
+            return null;
+        }
+        for (int i = 1; i < value.size() - 1; i++) {
+            if (!closedIn(value.get(i), scope, bound)) {
+                return null;
+            }
+        }
+        return last;
+    }
+
+    /**
+     * True if every variable of the term is bound in {@code bound} (or is
+     * input, data or a rule).
+     */
+    private boolean closedIn(JsonNode term, Scope scope, Set<String> bound) {
+        Set<String> vars = new HashSet<>();
+        collectVars(term, vars);
+        for (String var : vars) {
+            if (!bound.contains(var) && !"input".equals(var) && !"data".equals(var)
+                    && (scope.declared.contains(var) || !ruleIds.getOrDefault(scope.pkg, Map.of()).containsKey(var))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void collectVars(JsonNode term, Set<String> vars) {
+        if (term.isArray()) {
+            term.forEach(e -> collectVars(e, vars));
+            return;
+        }
+        String type = term.path("type").asText();
+        if ("var".equals(type)) {
+            vars.add(term.path("value").asText());
+        } else if ("call".equals(type)) {
+            // The first element names the built-in
+            JsonNode value = term.path("value");
+            for (int i = 1; i < value.size(); i++) {
+                collectVars(value.get(i), vars);
+            }
+        } else if (term.path("value").isArray()) {
+            term.path("value").forEach(e -> collectVars(e, vars));
+        }
+    }
+
+    /**
+     * The constant path of a ref to a base document ({@code data.a.b}), or
+     * null if it has variables or reaches into a rule.
+     */
+    private List<Object> dataPath(List<JsonNode> elements, Scope scope) {
+        if (elements.isEmpty() || !isVar(elements.get(0), "data")) {
+            return null;
+        }
+        List<Object> path = new ArrayList<>();
+        for (JsonNode element : elements.subList(1, elements.size())) {
+            if (!"string".equals(element.path("type").asText())) {
+                return null;
+            }
+            path.add(element.path("value").asText());
+        }
+        String joined = String.join(".", path.stream().map(String::valueOf).toList());
+        boolean overlapsRules = ruleIds.keySet().stream()
+                .anyMatch(p -> (p + ".").startsWith(joined + ".") || joined.startsWith(p + "."));
+        return path.isEmpty() || overlapsRules ? null : path;
+    }
+
+    private static List<JsonNode> elements(JsonNode term) {
+        List<JsonNode> elements = new ArrayList<>();
+        if ("var".equals(term.path("type").asText())) {
+            elements.add(term);
+        } else {
+            term.path("value").forEach(elements::add);
+        }
+        return elements;
+    }
+
+    private static boolean isVar(JsonNode term, String name) {
+        return "var".equals(term.path("type").asText()) && name.equals(term.path("value").asText());
+    }
+
+    private static String operator(JsonNode ref) {
+        List<String> parts = new ArrayList<>();
+        for (JsonNode part : ref.path("value")) {
+            parts.add(part.path("value").asText());
+        }
+        return String.join(".", parts);
+    }
+
+    private static Object constant(JsonNode term) {
+        JsonNode value = term.path("value");
+        if (value.isIntegralNumber() && value.canConvertToLong()) {
+            return value.longValue();
+        }
+        if (value.isNumber()) {
+            return value.decimalValue();
+        }
+        return value.isBoolean() ? value.booleanValue() : value.asText();
+    }
+
+    private static boolean isConstant(JsonNode term) {
+        String type = term.path("type").asText();
+        return switch (type) {
+            case "null", "boolean", "number", "string" -> true;
+            case "array", "set" -> {
+                for (JsonNode e : term.path("value")) {
+                    if (!isConstant(e)) {
+                        yield false;
+                    }
+                }
+                yield true;
+            }
+            default -> false;
+        };
+    }
+
+    private static String canonical(JsonNode term) {
+        return term.path("type").asText() + ":" + term.path("value");
+    }
+
+    private static void checkImports(JsonNode module) {
+        for (JsonNode imp : module.path("imports")) {
+            String path = operator(imp.path("path"));
+            if (!"rego.v1".equals(path) && !path.startsWith("future.keywords")) {
+                throw new UnsupportedRegoException("import " + path);
+            }
+        }
+    }
+
+    private static String packageName(JsonNode module) {
+        List<String> parts = new ArrayList<>();
+        JsonNode path = module.path("package").path("path");
+        for (int i = 1; i < path.size(); i++) {
+            parts.add(path.get(i).path("value").asText());
+        }
+        return String.join(".", parts);
+    }
+
+    private static String ruleName(JsonNode rule) {
+        JsonNode head = rule.path("head");
+        if (head.hasNonNull("name")) {
+            return head.get("name").asText();
+        }
+        return head.path("ref").path(0).path("value").asText();
+    }
+}
@@ -0,0 +1,12 @@
+package org.openpickles.policy.engine.service.rego;
+
+/**
+ * A module uses Rego outside the subset the native evaluator supports; the
+ * bundle has to be evaluated by OPA.
+ */
+public class UnsupportedRegoException extends RuntimeException {
+
+    public UnsupportedRegoException(String message) {
+        super(message);
+    }
+}
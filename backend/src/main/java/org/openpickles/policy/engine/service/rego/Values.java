@@ -0,0 +1,245 @@
+package org.openpickles.policy.engine.service.rego;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Rego semantics on the plain Java values Jackson produces for JSON (null,
+ * Boolean, Number, String, List, Map) plus {@link Set} for Rego sets.
+ * <p>
+ * Numbers compare by value regardless of their Java type, so {@code 1} from
+ * the input equals {@code 1.0} from data as in OPA.
+ */
+public final class Values {
+
+    /**
+     * Result of a ref or rule that has no value.
+     */
+    public static final Object UNDEFINED = new Object() {
+        @Override
+        public String toString() {
+            return "undefined";
+        }
+    };
+
+    private Values() {
+    }
+
+    public static boolean isTruthy(Object value) {
+        return value != UNDEFINED && !Boolean.FALSE.equals(value);
+    }
+
+    public static boolean equal(Object a, Object b) {
+        if (a == b) {
+            return true;
+        }
+        if (a == null || b == null || a == UNDEFINED || b == UNDEFINED) {
+            return false;
+        }
+        if (a instanceof Number x && b instanceof Number y) {
+            return compareNumbers(x, y) == 0;
+        }
+        if (a instanceof List<?> x && b instanceof List<?> y) {
+            if (x.size() != y.size()) {
+                return false;
+            }
+            for (int i = 0; i < x.size(); i++) {
+                if (!equal(x.get(i), y.get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (a instanceof Map<?, ?> x && b instanceof Map<?, ?> y) {
+            if (x.size() != y.size()) {
+                return false;
+            }
+            for (Map.Entry<?, ?> entry : x.entrySet()) {
+                if (!y.containsKey(entry.getKey()) || !equal(entry.getValue(), y.get(entry.getKey()))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (a instanceof Set<?> x && b instanceof Set<?> y) {
+            return x.size() == y.size() && x.stream().allMatch(e -> contains(y, e));
+        }
+        return a.equals(b);
+    }
+
+    /**
+     * Total order of Rego values: null < boolean < number < string < array <
+     * object < set, then by value within a type.
+     */
+    public static int compare(Object a, Object b) {
+        int rank = Integer.compare(rank(a), rank(b));
+        if (rank != 0) {
+            return rank;
+        }
+        if (a instanceof Boolean x) {
+            return Boolean.compare(x, (Boolean) b);
+        }
+        if (a instanceof Number x) {
+            return compareNumbers(x, (Number) b);
+        }
+        if (a instanceof String x) {
+            return x.compareTo((String) b);
+        }
+        if (a instanceof List<?> x) {
+            List<?> y = (List<?>) b;
+            for (int i = 0; i < Math.min(x.size(), y.size()); i++) {
+                int c = compare(x.get(i), y.get(i));
+                if (c != 0) {
+                    return c;
+                }
+            }
+            return Integer.compare(x.size(), y.size());
+        }
+        // Objects and sets: only equality is meaningful for the supported subset
+        if (equal(a, b)) {
+            return 0;
+        }
+        int bySize = Integer.compare(size(a), size(b));
+        return bySize != 0 ? bySize : String.valueOf(a).compareTo(String.valueOf(b));
+    }
+
+    /**
+     * Key under which a value is stored in hash based structures (sets and
+     * data indexes): integral numbers as Long, other numbers as BigDecimal.
+     */
+    public static Object key(Object value) {
+        if (value instanceof Number n) {
+            if (n instanceof Long || n instanceof Integer || n instanceof Short || n instanceof Byte) {
+                return n.longValue();
+            }
+            BigDecimal decimal = new BigDecimal(n.toString()).stripTrailingZeros();
+            try {
+                return decimal.longValueExact();
+            } catch (ArithmeticException e) {
+                return decimal;
+            }
+        }
+        if (value instanceof List<?> list) {
+            List<Object> keys = new ArrayList<>(list.size());
+            list.forEach(e -> keys.add(key(e)));
+            return keys;
+        }
+        if (value instanceof Map<?, ?> map) {
+            Map<Object, Object> keys = new LinkedHashMap<>();
+            map.forEach((k, v) -> keys.put(k, key(v)));
+            return keys;
+        }
+        return value;
+    }
+
+    public static boolean contains(Set<?> set, Object value) {
+        return set.contains(key(value));
+    }
+
+    /**
+     * Values of a collection in iteration order, as {@code some x in coll}
+     * sees them; empty for scalars.
+     */
+    public static Iterator<?> values(Object collection) {
+        if (collection instanceof Collection<?> c) {
+            return c.iterator();
+        }
+        if (collection instanceof Map<?, ?> m) {
+            return m.values().iterator();
+        }
+        return List.of().iterator();
+    }
+
+    /**
+     * Looks up one step of a ref; UNDEFINED if the key does not exist.
+     */
+    public static Object get(Object collection, Object key) {
+        if (collection instanceof Map<?, ?> map) {
+            if (!(key instanceof String)) {
+                return UNDEFINED;
+            }
+            Object value = map.get(key);
+            return value != null || map.containsKey(key) ? value : UNDEFINED;
+        }
+        if (collection instanceof List<?> list) {
+            if (!(key instanceof Number n) || n.doubleValue() != Math.rint(n.doubleValue())) {
+                return UNDEFINED;
+            }
+            long index = n.longValue();
+            return index >= 0 && index < list.size() ? list.get((int) index) : UNDEFINED;
+        }
+        if (collection instanceof Set<?> set) {
+            return contains(set, key) ? key : UNDEFINED;
+        }
+        return UNDEFINED;
+    }
+
+    /**
+     * The value as OPA renders it in a response: sets become sorted arrays.
+     */
+    public static Object toJson(Object value) {
+        if (value instanceof Set<?> set) {
+            List<Object> sorted = new ArrayList<>();
+            set.forEach(e -> sorted.add(toJson(e)));
+            sorted.sort(Values::compare);
+            return sorted;
+        }
+        if (value instanceof List<?> list) {
+            List<Object> json = new ArrayList<>(list.size());
+            list.forEach(e -> json.add(toJson(e)));
+            return json;
+        }
+        if (value instanceof Map<?, ?> map) {
+            Map<Object, Object> json = new LinkedHashMap<>();
+            map.forEach((k, v) -> json.put(k, toJson(v)));
+            return json;
+        }
+        return value;
+    }
+
+    private static int compareNumbers(Number a, Number b) {
+        if (isIntegral(a) && isIntegral(b)) {
+            return Long.compare(a.longValue(), b.longValue());
+        }
+        return new BigDecimal(a.toString()).compareTo(new BigDecimal(b.toString()));
+    }
+
+    private static boolean isIntegral(Number n) {
+        return n instanceof Long || n instanceof Integer || n instanceof Short || n instanceof Byte;
+    }
+
+    private static int size(Object value) {
+        return value instanceof Collection<?> c ? c.size() : value instanceof Map<?, ?> m ? m.size() : 0;
+    }
+
+    private static int rank(Object value) {
+        if (value == null) {
+            return 0;
+        }
+        if (value instanceof Boolean) {
+            return 1;
+        }
+        if (value instanceof Number) {
+            return 2;
+        }
+        if (value instanceof String) {
+            return 3;
+        }
+        if (value instanceof List<?>) {
+            return 4;
+        }
+        if (value instanceof Map<?, ?>) {
+            return 5;
+        }
+        if (value instanceof Set<?>) {
+            return 6;
+        }
+        return 7;
+    }
+}
@@ -0,0 +1,268 @@
+package org.openpickles.policy.engine.controller;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.openpickles.policy.engine.OpaProcessManager;
+import org.openpickles.policy.engine.model.Entitlement;
+import org.openpickles.policy.engine.model.Policy;
+import org.openpickles.policy.engine.model.PolicyBinding;
+import org.openpickles.policy.engine.model.PolicyBundle;
+import org.openpickles.policy.engine.repository.EntitlementRepository;
+import org.openpickles.policy.engine.repository.PolicyBindingRepository;
+import org.openpickles.policy.engine.repository.PolicyBundleRepository;
+import org.openpickles.policy.engine.repository.PolicyRepository;
+import org.openpickles.policy.engine.service.NativeEvaluationEngine;
+import org.openpickles.policy.engine.service.OpaCliRunner;
+import org.openpickles.policy.engine.service.OpaSandbox;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.webmvc.test.autoconfigure.AutoConfigureMockMvc;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.bean.override.mockito.MockitoSpyBean;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doReturn;
+import static org.openpickles.policy.engine.service.rego.RegoAst.*;
+import static org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestPostProcessors.user;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+// Not @Transactional: bundle caches are invalidated after commit
+@SpringBootTest(properties = { "policy.engine.native.enabled=true", "policy.engine.wasm.enabled=false" })
+@AutoConfigureMockMvc
+public class BundleDecisionIntegrationTest {
+
+        private static final String POLICY = """
+                        package invoices
+                        import rego.v1
+
+                        default allow := false
+
+                        allow if {
+                            some e in data.entitlements
+                            e.subjectId == input.user
+                            input.resource in e.resourceIds
+                        }
+                        """;
+
+        @Autowired
+        private MockMvc mockMvc;
+
+        @Autowired
+        private EntitlementRepository entitlementRepository;
+
+        @Autowired
+        private PolicyRepository policyRepository;
+
+        @Autowired
+        private PolicyBindingRepository bindingRepository;
+
+        @Autowired
+        private PolicyBundleRepository bundleRepository;
+
+        @Autowired
+        private OpaProcessManager processManager;
+
+        @Autowired
+        private NativeEvaluationEngine nativeEvaluationEngine;
+
+        // No opa binary here: hand the native engine the AST opa parse prints
+        @MockitoSpyBean
+        private OpaCliRunner opaCliRunner;
+
+        private final ObjectMapper objectMapper = new ObjectMapper();
+
+        private Long bundleId;
+
+        @BeforeEach
+        public void setup() {
+                cleanup();
+                doReturn(module("invoices",
+                                defaultRule("allow", bool(false)),
+                                rule("allow", null,
+                                                someIn(var("e"), ref("data.entitlements")),
+                                                call("equal", ref("e.subjectId"), ref("input.user")),
+                                                call("internal.member_2", ref("input.resource"),
+                                                                ref("e.resourceIds")))))
+                                .when(opaCliRunner).parse(anyString());
+
+                Policy policy = new Policy();
+                policy.setName("invoices");
+                policy.setFilename("invoices.rego");
+                policy.setContent(POLICY);
+                policy = policyRepository.save(policy);
+                PolicyBinding binding = bindingRepository.save(
+                                new PolicyBinding("INVOICE", "DECISION", List.of(policy.getId()), "DIRECT"));
+                PolicyBundle bundle = new PolicyBundle();
+                bundle.setName("invoices-decision");
+                bundle.setBindingIds(List.of(binding.getId()));
+                bundleId = bundleRepository.save(bundle).getId();
+        }
+
+        @AfterEach
+        public void cleanup() {
+                entitlementRepository.deleteAll();
+                bundleRepository.deleteAll();
+                bindingRepository.deleteAll();
+                policyRepository.deleteAll();
+        }
+
+        @Test
+        public void testDecision_FollowsRevokedGrant() throws Exception {
+                Entitlement grant = new Entitlement();
+                grant.setResourceType("INVOICE");
+                grant.setResourceIds(Set.of("inv-1"));
+                grant.setActions(Set.of("VIEW"));
+                grant.setSubjectType(Entitlement.SubjectType.USER);
+                grant.setSubjectId("alice");
+                grant.setEffect(Entitlement.Effect.ALLOW);
+                String created = mockMvc.perform(post("/api/v1/entitlements")
+                                .with(user("admin").roles("ADMIN"))
+                                .contentType(MediaType.APPLICATION_JSON)
+                                .content(objectMapper.writeValueAsString(grant)))
+                                .andExpect(status().isOk())
+                                .andReturn().getResponse().getContentAsString();
+                long grantId = objectMapper.readTree(created).get("id").asLong();
+
+                JsonNode allowed = decide("alice", "inv-1");
+                assertEquals("native", allowed.get("engine").asText());
+                assertEquals(true, allowed.get("result").asBoolean());
+
+                mockMvc.perform(delete("/api/v1/entitlements/" + grantId)
+                                .with(user("admin").roles("ADMIN")))
+                                .andExpect(status().isOk());
+
+                JsonNode denied = decide("alice", "inv-1");
+                assertEquals("native", denied.get("engine").asText());
+                assertEquals(false, denied.get("result").asBoolean());
+        }
+
+        @Test
+        public void testDecision_FollowsSyncedGrant() throws Exception {
+                assertEquals(false, decide("bob", "inv-2").get("result").asBoolean());
+
+                Entitlement grant = new Entitlement();
+                grant.setResourceType("INVOICE");
+                grant.setResourceIds(Set.of("inv-2"));
+                grant.setActions(Set.of("VIEW"));
+                grant.setSubjectType(Entitlement.SubjectType.USER);
+                grant.setSubjectId("bob");
+                grant.setEffect(Entitlement.Effect.ALLOW);
+                mockMvc.perform(post("/api/v1/entitlements/sync")
+                                .with(user("admin").roles("ADMIN"))
+                                .contentType(MediaType.APPLICATION_JSON)
+                                .content(objectMapper.writeValueAsString(List.of(grant))))
+                                .andExpect(status().isOk());
+
+                assertEquals(true, decide("bob", "inv-2").get("result").asBoolean());
+        }
+
+        @Test
+        public void testDecision_OpaFallbackRepublishedWhenInvalidated() throws Exception {
+                // Not parseable here: the decision is served by OPA
+                doReturn(null).when(opaCliRunner).parse(anyString());
+                Entitlement grant = new Entitlement();
+                grant.setResourceType("INVOICE");
+                grant.setResourceIds(Set.of("inv-3"));
+                grant.setActions(Set.of("VIEW"));
+                grant.setSubjectType(Entitlement.SubjectType.USER);
+                grant.setSubjectId("carol");
+                grant.setEffect(Entitlement.Effect.ALLOW);
+                String created = mockMvc.perform(post("/api/v1/entitlements")
+                                .with(user("admin").roles("ADMIN"))
+                                .contentType(MediaType.APPLICATION_JSON)
+                                .content(objectMapper.writeValueAsString(grant)))
+                                .andExpect(status().isOk())
+                                .andReturn().getResponse().getContentAsString();
+                long grantId = objectMapper.readTree(created).get("id").asLong();
+
+                // Whether or not an OPA is running, the bundle is published once
+                dispatch("carol", "inv-3");
+                dispatch("carol", "inv-3");
+                List<Path> published = publishedNamespaces();
+                assertEquals(1, published.size());
+                assertTrue(Files.readString(published.get(0).resolve("data.json")).contains("inv-3"));
+                assertTrue(Files.readString(published.get(0).resolve("0.rego"))
+                                .contains("package sandboxes." + published.get(0).getFileName() + ".invoices"));
+
+                mockMvc.perform(delete("/api/v1/entitlements/" + grantId)
+                                .with(user("admin").roles("ADMIN")))
+                                .andExpect(status().isOk());
+                // Still answering until the next decision has republished the bundle
+                assertEquals(published, publishedNamespaces());
+
+                dispatch("carol", "inv-3");
+                List<Path> republished = awaitRepublished(published);
+                assertEquals(1, republished.size());
+                assertNotEquals(published.get(0), republished.get(0));
+                assertFalse(Files.readString(republished.get(0).resolve("data.json")).contains("inv-3"));
+        }
+
+        private JsonNode decide(String user, String resource) throws Exception {
+                awaitCompiled();
+                MvcResult result = dispatch(user, resource);
+                assertEquals(200, result.getResponse().getStatus());
+                return objectMapper.readTree(result.getResponse().getContentAsString());
+        }
+
+        // Compiled in the background after every invalidation, decisions go to OPA meanwhile
+        private void awaitCompiled() throws Exception {
+                PolicyBundle bundle = bundleRepository.findById(bundleId).orElseThrow();
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+                while (nativeEvaluationEngine.evaluate(bundle, "invoices/allow", Map.of()).isEmpty()) {
+                        assertTrue(System.nanoTime() < deadline, "Bundle not compiled");
+                        Thread.sleep(20);
+                }
+        }
+
+        private MvcResult dispatch(String user, String resource) throws Exception {
+                MvcResult pending = mockMvc.perform(post("/api/v1/evaluation/bundles/" + bundleId + "/decision")
+                                .with(user("admin").roles("ADMIN"))
+                                .contentType(MediaType.APPLICATION_JSON)
+                                .content(objectMapper.writeValueAsString(Map.of(
+                                                "entrypoint", "invoices/allow",
+                                                "input", Map.of("user", user, "resource", resource)))))
+                                .andReturn();
+                return mockMvc.perform(asyncDispatch(pending)).andReturn();
+        }
+
+        private List<Path> awaitRepublished(List<Path> previous) throws Exception {
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+                List<Path> namespaces = publishedNamespaces();
+                while (namespaces.equals(previous) || namespaces.size() != 1) {
+                        assertTrue(System.nanoTime() < deadline, "Not republished: " + namespaces);
+                        Thread.sleep(50);
+                        namespaces = publishedNamespaces();
+                }
+                return namespaces;
+        }
+
+        private List<Path> publishedNamespaces() throws Exception {
+                Path root = processManager.getSnapshotDir().resolve(OpaSandbox.ROOT);
+                if (!Files.isDirectory(root)) {
+                        return List.of();
+                }
+                try (Stream<Path> namespaces = Files.list(root)) {
+                        return namespaces.toList();
+                }
+        }
+}
@@ -0,0 +1,386 @@
+package org.openpickles.policy.engine.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.openpickles.policy.engine.dto.CheckRequest;
+import org.openpickles.policy.engine.model.Entitlement;
+import org.openpickles.policy.engine.model.PolicyBinding;
+import org.openpickles.policy.engine.model.Role;
+import org.openpickles.policy.engine.model.User;
+import org.openpickles.policy.engine.repository.EntitlementRepository;
+import org.openpickles.policy.engine.repository.PolicyBindingRepository;
+import org.openpickles.policy.engine.repository.RoleRepository;
+import org.openpickles.policy.engine.repository.UserRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.webmvc.test.autoconfigure.AutoConfigureMockMvc;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.ResultMatcher;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestPostProcessors.user;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+// Not @Transactional: the index follows the database after commit
+@SpringBootTest
+@AutoConfigureMockMvc
+public class CheckIntegrationTest {
+
+        @Autowired
+        private MockMvc mockMvc;
+
+        @Autowired
+        private EntitlementRepository entitlementRepository;
+
+        @Autowired
+        private PolicyBindingRepository bindingRepository;
+
+        @Autowired
+        private UserRepository userRepository;
+
+        @Autowired
+        private RoleRepository roleRepository;
+
+        @BeforeEach
+        public void setup() {
+                cleanup();
+                bindingRepository.save(new PolicyBinding("LOAN", "CHECK", List.of(), "DIRECT"));
+
+                Role officer = roleRepository.save(new Role("loan-officer"));
+                User alice = new User();
+                alice.setUsername("alice");
+                alice.setRoles(new HashSet<>(Set.of(officer)));
+                userRepository.save(alice);
+
+                entitlementRepository.save(entitlement(Entitlement.SubjectType.ROLE, "loan-officer",
+                                Set.of("L1", "L2", "L3"), Entitlement.Effect.ALLOW));
+                entitlementRepository.save(entitlement(Entitlement.SubjectType.USER, "alice",
+                                Set.of("L2"), Entitlement.Effect.DENY));
+        }
+
+        @AfterEach
+        public void cleanup() {
+                entitlementRepository.deleteAll();
+                userRepository.deleteAll();
+                roleRepository.deleteAll();
+                bindingRepository.deleteAll();
+        }
+
+        @Test
+        public void testCheck_RoleExpansionAndDenyOverride() throws Exception {
+                CheckRequest request = new CheckRequest();
+                request.setSubject("alice");
+                request.setAction("VIEW");
+                request.setResourceType("LOAN");
+                request.setResourceIds(List.of("L1", "L2", "L3", "L4"));
+
+                mockMvc.perform(post("/api/v1/check")
+                                .with(user("admin").roles("ADMIN"))
+                                .contentType(MediaType.APPLICATION_JSON)
+                                .content(new ObjectMapper().writeValueAsString(request)))
+                                .andExpect(status().isOk())
+                                .andExpect(jsonPath("$.allowed[0]").value(true))
+                                .andExpect(jsonPath("$.allowed[1]").value(false))
+                                .andExpect(jsonPath("$.allowed[2]").value(true))
+                                .andExpect(jsonPath("$.allowed[3]").value(false))
+                                // bits 0 and 2 -> 0b101
+                                .andExpect(jsonPath("$.bitmap").value("BQ=="));
+        }
+
+        @Test
+        public void testCheck_RequiresDirectBinding() throws Exception {
+                CheckRequest request = new CheckRequest();
+                request.setSubject("alice");
+                request.setAction("VIEW");
+                request.setResourceType("UNBOUND");
+                request.setResourceIds(List.of("X"));
+
+                mockMvc.perform(post("/api/v1/check")
+                                .with(user("admin").roles("ADMIN"))
+                                .contentType(MediaType.APPLICATION_JSON)
+                                .content(new ObjectMapper().writeValueAsString(request)))
+                                .andExpect(status().isBadRequest())
+                                .andExpect(jsonPath("$.errorCode").value("FUNC_CHECK_MODE"));
+        }
+
+        @Test
+        public void testResourceAccess_ExpandsRolesAndAppliesDeny() throws Exception {
+                mockMvc.perform(get("/api/v1/entitlements/resource/access")
+                                .param("type", "LOAN")
+                                .param("id", "L1")
+                                .with(user("admin").roles("ADMIN")))
+                                .andExpect(status().isOk())
+                                .andExpect(jsonPath("$.grants.length()").value(1))
+                                .andExpect(jsonPath("$.users[0].username").value("alice"))
+                                .andExpect(jsonPath("$.users[0].via[0]").value("ROLE:loan-officer"));
+
+                mockMvc.perform(get("/api/v1/entitlements/resource/access")
+                                .param("type", "LOAN")
+                                .param("id", "L2")
+                                .with(user("admin").roles("ADMIN")))
+                                .andExpect(status().isOk())
+                                .andExpect(jsonPath("$.grants.length()").value(2))
+                                .andExpect(jsonPath("$.users.length()").value(0));
+        }
+
+        @Test
+        public void testEffectivePermissions_FollowEntitlementChanges() throws Exception {
+                Long aliceId = userRepository.findByUsername("alice").orElseThrow().getId();
+
+                awaitEffectivePermissions(get("/api/v1/users/" + aliceId + "/effective-permissions"),
+                                jsonPath("$.content.length()").value(2),
+                                jsonPath("$.content[0].resourceId").value("L1"),
+                                jsonPath("$.content[0].via").value("ROLE:loan-officer"),
+                                jsonPath("$.content[1].resourceId").value("L3"));
+
+                entitlementRepository.save(entitlement(Entitlement.SubjectType.USER, "alice",
+                                Set.of("L4"), Entitlement.Effect.ALLOW));
+
+                awaitEffectivePermissions(get("/api/v1/users/" + aliceId + "/effective-permissions")
+                                .param("resourceType", "LOAN")
+                                .param("size", "2")
+                                .param("page", "1"),
+                                jsonPath("$.content.length()").value(1),
+                                jsonPath("$.content[0].resourceId").value("L4"),
+                                jsonPath("$.content[0].via").value("USER:alice"));
+        }
+
+        @Test
+        public void testEffectivePermissions_PatternListsDeniedExceptions() throws Exception {
+                entitlementRepository.save(entitlement(Entitlement.SubjectType.USER, "alice",
+                                Set.of("branch-12/*", "1*"), Entitlement.Effect.ALLOW));
+                entitlementRepository.save(entitlement(Entitlement.SubjectType.USER, "alice",
+                                Set.of("branch-12/5", "branch-12/archive/*", "branch-13/5", "150"),
+                                Entitlement.Effect.DENY));
+                Long aliceId = userRepository.findByUsername("alice").orElseThrow().getId();
+
+                // Rows ordered by resource id: 1*, L1, L3, branch-12/*
+                awaitEffectivePermissions(get("/api/v1/users/" + aliceId + "/effective-permissions"),
+                                jsonPath("$.content.length()").value(4),
+                                jsonPath("$.content[0].resourceId").value("1*"),
+                                jsonPath("$.content[0].exceptResourceIds").doesNotExist(),
+                                jsonPath("$.content[0].exceptResourceIdRanges[0][0]").value(150),
+                                jsonPath("$.content[0].exceptResourceIdRanges[0][1]").value(150),
+                                jsonPath("$.content[3].resourceId").value("branch-12/*"),
+                                jsonPath("$.content[3].exceptResourceIds.length()").value(2),
+                                jsonPath("$.content[3].exceptResourceIds[0]").value("branch-12/5"),
+                                jsonPath("$.content[3].exceptResourceIds[1]").value("branch-12/archive/*"),
+                                jsonPath("$.content[3].exceptResourceIdRanges").doesNotExist());
+        }
+
+        @Test
+        public void testCheck_PatternResourceIds() throws Exception {
+                entitlementRepository.save(entitlement(Entitlement.SubjectType.USER, "alice",
+                                Set.of("branch-12/*"), Entitlement.Effect.ALLOW));
+
+                CheckRequest request = new CheckRequest();
+                request.setSubject("alice");
+                request.setAction("VIEW");
+                request.setResourceType("LOAN");
+                request.setResourceIds(List.of("branch-12/L9", "branch-13/L9"));
+
+                mockMvc.perform(post("/api/v1/check")
+                                .with(user("admin").roles("ADMIN"))
+                                .contentType(MediaType.APPLICATION_JSON)
+                                .content(new ObjectMapper().writeValueAsString(request)))
+                                .andExpect(status().isOk())
+                                .andExpect(jsonPath("$.allowed[0]").value(true))
+                                .andExpect(jsonPath("$.allowed[1]").value(false));
+
+                mockMvc.perform(get("/api/v1/entitlements/resource/access")
+                                .param("type", "LOAN")
+                                .param("id", "branch-12/L9")
+                                .with(user("admin").roles("ADMIN")))
+                                .andExpect(status().isOk())
+                                .andExpect(jsonPath("$.users[0].username").value("alice"))
+                                .andExpect(jsonPath("$.users[0].via[0]").value("USER:alice"));
+
+                Entitlement invalid = entitlement(Entitlement.SubjectType.USER, "alice",
+                                Set.of("branch-*/L1"), Entitlement.Effect.ALLOW);
+                mockMvc.perform(post("/api/v1/entitlements")
+                                .with(user("admin").roles("ADMIN"))
+                                .contentType(MediaType.APPLICATION_JSON)
+                                .content(new ObjectMapper().writeValueAsString(invalid)))
+                                .andExpect(status().isBadRequest())
+                                .andExpect(jsonPath("$.errorCode").value("FUNC_ENTITLEMENT_PATTERN"));
+        }
+
+        @Test
+        public void testCheck_ValidityWindowsOpenAndClose() throws Exception {
+                Instant soon = Instant.now().plusMillis(1500);
+                Entitlement expiring = entitlement(Entitlement.SubjectType.USER, "alice", Set.of("T1"),
+                                Entitlement.Effect.ALLOW);
+                expiring.setValidUntil(soon);
+                entitlementRepository.save(expiring);
+                Entitlement starting = entitlement(Entitlement.SubjectType.USER, "alice", Set.of("T2"),
+                                Entitlement.Effect.ALLOW);
+                starting.setValidFrom(soon);
+                entitlementRepository.save(starting);
+
+                assertEquals(List.of(true, false), checkAlice(List.of("T1", "T2")));
+
+                long deadline = System.currentTimeMillis() + 10_000;
+                List<Boolean> allowed = checkAlice(List.of("T1", "T2"));
+                while (!allowed.equals(List.of(false, true)) && System.currentTimeMillis() < deadline) {
+                        Thread.sleep(200);
+                        allowed = checkAlice(List.of("T1", "T2"));
+                }
+                assertEquals(List.of(false, true), allowed);
+        }
+
+        @Test
+        public void testCheck_ResourceIdRanges() throws Exception {
+                Map<String, Object> ranged = Map.of("resourceType", "LOAN", "subjectType", "USER",
+                                "subjectId", "alice", "actions", List.of("VIEW"), "effect", "ALLOW",
+                                "resourceIdRanges", List.of(List.of(100, 199)));
+                String created = mockMvc.perform(post("/api/v1/entitlements")
+                                .with(user("admin").roles("ADMIN"))
+                                .contentType(MediaType.APPLICATION_JSON)
+                                .content(new ObjectMapper().writeValueAsString(ranged)))
+                                .andExpect(status().isOk())
+                                .andExpect(jsonPath("$.resourceIds.length()").value(100))
+                                .andExpect(jsonPath("$.resourceIdRanges").doesNotExist())
+                                .andReturn().getResponse().getContentAsString();
+                long id = new ObjectMapper().readTree(created).get("id").asLong();
+                entitlementRepository.save(entitlement(Entitlement.SubjectType.USER, "alice",
+                                Set.of("150"), Entitlement.Effect.DENY));
+
+                assertEquals(List.of(true, false, true, false), checkAlice(List.of("100", "150", "199", "250")));
+
+                mockMvc.perform(get("/api/v1/entitlements/" + id)
+                                .accept(EntitlementController.COMPACT_MEDIA_TYPE)
+                                .with(user("admin").roles("ADMIN")))
+                                .andExpect(status().isOk())
+                                .andExpect(jsonPath("$.resourceIds.length()").value(0))
+                                .andExpect(jsonPath("$.resourceIdRanges[0][0]").value(100))
+                                .andExpect(jsonPath("$.resourceIdRanges[0][1]").value(199));
+
+                mockMvc.perform(get("/api/v1/entitlements/" + id)
+                                .with(user("admin").roles("ADMIN")))
+                                .andExpect(status().isOk())
+                                .andExpect(jsonPath("$.resourceIds.length()").value(100));
+
+                Long aliceId = userRepository.findByUsername("alice").orElseThrow().getId();
+                awaitEffectivePermissions(get("/api/v1/users/" + aliceId + "/effective-permissions"),
+                                jsonPath("$.content[0].resourceIdRanges[0][1]").value(149),
+                                jsonPath("$.content[0].resourceIdRanges[1][0]").value(151),
+                                jsonPath("$.content[0].via").value("USER:alice"));
+
+                Map<String, Object> inverted = new HashMap<>(ranged);
+                inverted.put("resourceIdRanges", List.of(List.of(199, 100)));
+                mockMvc.perform(post("/api/v1/entitlements")
+                                .with(user("admin").roles("ADMIN"))
+                                .contentType(MediaType.APPLICATION_JSON)
+                                .content(new ObjectMapper().writeValueAsString(inverted)))
+                                .andExpect(status().isBadRequest())
+                                .andExpect(jsonPath("$.errorCode").value("VAL_002"));
+
+                // Too many ids to list stay ranges even in plain JSON
+                Map<String, Object> large = new HashMap<>(ranged);
+                large.put("resourceIdRanges", List.of(List.of(0, 999_999)));
+                mockMvc.perform(post("/api/v1/entitlements")
+                                .with(user("admin").roles("ADMIN"))
+                                .contentType(MediaType.APPLICATION_JSON)
+                                .content(new ObjectMapper().writeValueAsString(large)))
+                                .andExpect(status().isOk())
+                                .andExpect(jsonPath("$.resourceIds.length()").value(0))
+                                .andExpect(jsonPath("$.resourceIdRanges[0][1]").value(999_999));
+
+                Map<String, Object> unbounded = new HashMap<>(ranged);
+                unbounded.put("resourceIdRanges", List.of(List.of(0L, 999_999_999_999_999_999L)));
+                mockMvc.perform(post("/api/v1/entitlements")
+                                .with(user("admin").roles("ADMIN"))
+                                .contentType(MediaType.APPLICATION_JSON)
+                                .content(new ObjectMapper().writeValueAsString(unbounded)))
+                                .andExpect(status().isBadRequest())
+                                .andExpect(jsonPath("$.errorCode").value("FUNC_ENTITLEMENT_RANGES"));
+        }
+
+        @Test
+        public void testCheck_FollowsMovedAndDeletedGrants() throws Exception {
+                Entitlement moved = entitlementRepository.save(entitlement(Entitlement.SubjectType.USER, "bob",
+                                Set.of("M1", "M2"), Entitlement.Effect.ALLOW));
+                assertEquals(List.of(false, false), checkAlice(List.of("M1", "M2")));
+
+                // Moving a grant between principals rebuilds both of their shards
+                moved.setSubjectId("alice");
+                moved.setResourceIds(new HashSet<>(Set.of("M2")));
+                moved = entitlementRepository.save(moved);
+                assertEquals(List.of(false, true), checkAlice(List.of("M1", "M2")));
+
+                mockMvc.perform(get("/api/v1/entitlements/resource/access")
+                                .param("type", "LOAN")
+                                .param("id", "M2")
+                                .with(user("admin").roles("ADMIN")))
+                                .andExpect(status().isOk())
+                                .andExpect(jsonPath("$.grants.length()").value(1))
+                                .andExpect(jsonPath("$.users[0].via[0]").value("USER:alice"));
+
+                entitlementRepository.deleteById(moved.getId());
+                assertEquals(List.of(false, false), checkAlice(List.of("M1", "M2")));
+        }
+
+        // Entitlement changes reach the view on a worker after commit
+        private void awaitEffectivePermissions(MockHttpServletRequestBuilder request, ResultMatcher... matchers)
+                        throws Exception {
+                request.with(user("admin").roles("ADMIN"));
+                long deadline = System.currentTimeMillis() + 10_000;
+                while (true) {
+                        try {
+                                mockMvc.perform(request)
+                                                .andExpect(status().isOk())
+                                                .andExpectAll(matchers);
+                                return;
+                        } catch (AssertionError e) {
+                                if (System.currentTimeMillis() > deadline) {
+                                        throw e;
+                                }
+                                Thread.sleep(50);
+                        }
+                }
+        }
+
+        private List<Boolean> checkAlice(List<String> resourceIds) throws Exception {
+                CheckRequest request = new CheckRequest();
+                request.setSubject("alice");
+                request.setAction("VIEW");
+                request.setResourceType("LOAN");
+                request.setResourceIds(resourceIds);
+                String body = mockMvc.perform(post("/api/v1/check")
+                                .with(user("admin").roles("ADMIN"))
+                                .contentType(MediaType.APPLICATION_JSON)
+                                .content(new ObjectMapper().writeValueAsString(request)))
+                                .andExpect(status().isOk())
+                                .andReturn().getResponse().getContentAsString();
+                List<Boolean> allowed = new ArrayList<>();
+                new ObjectMapper().readTree(body).get("allowed").forEach(node -> allowed.add(node.asBoolean()));
+                return allowed;
+        }
+
+        private Entitlement entitlement(Entitlement.SubjectType type, String subjectId, Set<String> resourceIds,
+                        Entitlement.Effect effect) {
+                Entitlement e = new Entitlement();
+                e.setResourceType("LOAN");
+                e.setSubjectType(type);
+                e.setSubjectId(subjectId);
+                e.setResourceIds(new HashSet<>(resourceIds));
+                e.setActions(new HashSet<>(Set.of("VIEW")));
+                e.setEffect(effect);
+                return e;
+        }
+}
@@ -1,22 +1,51 @@
 package org.openpickles.policy.engine.controller;
 
+import org.openpickles.policy.engine.dto.EntitlementChangeFeed;
+import org.openpickles.policy.engine.event.EntitlementChangedEvent;
 import org.openpickles.policy.engine.model.Entitlement;
 import org.openpickles.policy.engine.repository.EntitlementRepository;
+import org.openpickles.policy.engine.service.EntitlementChangeLog;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.TestConfiguration;
 import org.springframework.boot.webmvc.test.autoconfigure.AutoConfigureMockMvc;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
 import org.springframework.http.MediaType;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.security.test.context.support.WithMockUser;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import java.io.ByteArrayOutputStream;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 import static org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestPostProcessors.user;
 
@@ -31,6 +60,18 @@ public class EntitlementSyncIntegrationTest {
         @Autowired
         private EntitlementRepository entitlementRepository;
 
+        @Autowired
+        private JdbcTemplate jdbcTemplate;
+
+        @Autowired
+        private EntitlementChangeLog entitlementChangeLog;
+
+        @Autowired
+        private PlatformTransactionManager transactionManager;
+
+        @Autowired
+        private BlockingSyncListener blockingSyncListener;
+
         @BeforeEach
         public void cleanup() {
                 entitlementRepository.deleteAll();
@@ -51,7 +92,8 @@ public class EntitlementSyncIntegrationTest {
                                 .with(user("admin").roles("ADMIN"))
                                 .contentType(MediaType.APPLICATION_JSON)
                                 .content(new ObjectMapper().writeValueAsString(List.of(e1))))
-                                .andExpect(status().isOk());
+                                .andExpect(status().isOk())
+                                .andExpect(jsonPath("$.inserted").value(1));
 
                 // Verify creation
                 List<Entitlement> saved = entitlementRepository.findByResourceTypeAndSubjectTypeAndSubjectId("DOCUMENT",
@@ -73,7 +115,9 @@ public class EntitlementSyncIntegrationTest {
                                 .with(user("admin").roles("ADMIN"))
                                 .contentType(MediaType.APPLICATION_JSON)
                                 .content(new ObjectMapper().writeValueAsString(List.of(e1Update))))
-                                .andExpect(status().isOk());
+                                .andExpect(status().isOk())
+                                .andExpect(jsonPath("$.updated").value(1))
+                                .andExpect(jsonPath("$.unchanged").value(0));
 
                 // Verify update (should still be 1 record, but updated)
                 saved = entitlementRepository.findByResourceTypeAndSubjectTypeAndSubjectId("DOCUMENT",
@@ -82,4 +126,325 @@ public class EntitlementSyncIntegrationTest {
                 assertEquals(3, saved.get(0).getResourceIds().size()); // Should have 3 now
                 assertEquals("EDIT", saved.get(0).getActions().iterator().next());
         }
+
+        @Test
+        public void testSyncEntitlements_AdoptsRowWithoutBusinessKey() throws Exception {
+                // Written through the CRUD API, which leaves the business key empty
+                Entitlement crud = new Entitlement();
+                crud.setSubjectType(Entitlement.SubjectType.USER);
+                crud.setSubjectId("dave");
+                crud.setResourceType("DOCUMENT");
+                crud.setResourceIds(Set.of("doc7"));
+                crud.setActions(Set.of("VIEW"));
+                crud.setEffect(Entitlement.Effect.ALLOW);
+                Long id = entitlementRepository.saveAndFlush(crud).getId();
+
+                Entitlement synced = new Entitlement();
+                synced.setSubjectType(Entitlement.SubjectType.USER);
+                synced.setSubjectId("dave");
+                synced.setResourceType("DOCUMENT");
+                synced.setResourceIds(Set.of("doc7"));
+                synced.setActions(Set.of("VIEW"));
+                synced.setEffect(Entitlement.Effect.ALLOW);
+                for (int i = 0; i < 2; i++) {
+                        mockMvc.perform(post("/api/v1/entitlements/sync")
+                                        .with(user("admin").roles("ADMIN"))
+                                        .contentType(MediaType.APPLICATION_JSON)
+                                        .content(new ObjectMapper().writeValueAsString(List.of(synced))))
+                                        .andExpect(status().isOk())
+                                        .andExpect(jsonPath("$.inserted").value(0))
+                                        .andExpect(jsonPath("$.unchanged").value(1));
+                }
+
+                assertEquals(Entitlement.businessKey("DOCUMENT", Entitlement.SubjectType.USER, "dave"),
+                                jdbcTemplate.queryForObject("SELECT business_key FROM entitlements WHERE id = ?",
+                                                String.class, id));
+                assertEquals(1, entitlementRepository.count());
+        }
+
+        // Not in the test transaction: each sync has to commit for the others to race with it
+        @Test
+        @org.springframework.transaction.annotation.Transactional(propagation = Propagation.NOT_SUPPORTED)
+        public void testSyncEntitlements_ConcurrentOverlappingSyncs() throws Exception {
+                int writers = 8;
+                int keys = 40;
+                ExecutorService pool = Executors.newFixedThreadPool(writers);
+                try {
+                        List<Future<Integer>> statuses = new ArrayList<>();
+                        for (int w = 0; w < writers; w++) {
+                                List<Entitlement> batch = new ArrayList<>();
+                                for (int k = 0; k < keys; k++) {
+                                        Entitlement e = new Entitlement();
+                                        e.setSubjectType(Entitlement.SubjectType.USER);
+                                        e.setSubjectId("user-" + k);
+                                        e.setResourceType("DOCUMENT");
+                                        e.setResourceIds(Set.of("doc-" + w, "shared"));
+                                        e.setActions(Set.of("VIEW"));
+                                        e.setEffect(Entitlement.Effect.ALLOW);
+                                        batch.add(e);
+                                }
+                                String body = new ObjectMapper().writeValueAsString(batch);
+                                statuses.add(pool.submit(() -> mockMvc.perform(post("/api/v1/entitlements/sync")
+                                                .with(user("admin").roles("ADMIN"))
+                                                .contentType(MediaType.APPLICATION_JSON)
+                                                .content(body))
+                                                .andReturn().getResponse().getStatus()));
+                        }
+                        for (Future<Integer> status : statuses) {
+                                assertEquals(200, status.get());
+                        }
+                } finally {
+                        pool.shutdownNow();
+                }
+
+                // One row per key, each holding exactly one writer's state
+                assertEquals(keys, entitlementRepository.count());
+                Map<Long, List<String>> resourceIds = new HashMap<>();
+                jdbcTemplate.query("SELECT entitlement_id, resource_id FROM entitlement_resource_ids", rs -> {
+                        resourceIds.computeIfAbsent(rs.getLong(1), k -> new ArrayList<>()).add(rs.getString(2));
+                });
+                assertEquals(keys, resourceIds.size());
+                for (List<String> ids : resourceIds.values()) {
+                        assertEquals(2, ids.size());
+                        assertTrue(ids.contains("shared"));
+                }
+                entitlementRepository.deleteAll();
+        }
+
+        // Not in the test transaction: the feed only serves committed changes
+        @Test
+        @org.springframework.transaction.annotation.Transactional(propagation = Propagation.NOT_SUPPORTED)
+        public void testEntitlementChanges_CursorPaging() throws Exception {
+                long cursor = Long.parseLong(mockMvc.perform(get("/api/v1/sync/entitlements"))
+                                .andExpect(status().isOk())
+                                .andReturn().getResponse().getHeader(SyncController.CURSOR_HEADER));
+
+                mockMvc.perform(post("/api/v1/entitlements/sync")
+                                .with(user("admin").roles("ADMIN"))
+                                .contentType(MediaType.APPLICATION_JSON)
+                                .content(new ObjectMapper().writeValueAsString(
+                                                List.of(entitlement("alice", "doc1"), entitlement("bob", "doc2")))))
+                                .andExpect(status().isOk());
+
+                // One change per page, with the current row state
+                Map<?, ?> page = changes(cursor, 1);
+                assertEquals(true, page.get("hasMore"));
+                List<?> changes = (List<?>) page.get("changes");
+                assertEquals(1, changes.size());
+                Map<?, ?> first = (Map<?, ?>) changes.get(0);
+                long firstSequence = ((Number) first.get("sequence")).longValue();
+                assertEquals("UPSERT", first.get("operation"));
+                assertEquals(firstSequence, ((Number) page.get("nextCursor")).longValue());
+
+                page = changes(firstSequence, 10);
+                assertEquals(false, page.get("hasMore"));
+                changes = (List<?>) page.get("changes");
+                assertEquals(1, changes.size());
+                Map<?, ?> second = (Map<?, ?>) changes.get(0);
+                assertTrue(((Number) second.get("sequence")).longValue() > firstSequence);
+                assertEquals(Set.of("alice", "bob"), Set.of(
+                                ((Map<?, ?>) first.get("entitlement")).get("subjectId"),
+                                ((Map<?, ?>) second.get("entitlement")).get("subjectId")));
+                cursor = ((Number) page.get("nextCursor")).longValue();
+                assertTrue(((List<?>) changes(cursor, 10).get("changes")).isEmpty());
+
+                // A change is held back until its transaction commits, so the cursor cannot pass it
+                long since = cursor;
+                Long carolId = new TransactionTemplate(transactionManager).execute(tx -> {
+                        Long id = entitlementRepository.saveAndFlush(entitlement("carol", "doc3")).getId();
+                        // Read like another node would, outside the writing transaction
+                        EntitlementChangeFeed feed = CompletableFuture
+                                        .supplyAsync(() -> entitlementChangeLog.changesSince(since, 10)).join();
+                        assertTrue(feed.getChanges().isEmpty());
+                        assertEquals(since, feed.getNextCursor());
+                        return id;
+                });
+                entitlementRepository.deleteById(carolId);
+
+                page = changes(cursor, 10);
+                changes = (List<?>) page.get("changes");
+                assertEquals(List.of("UPSERT", "DELETE"),
+                                changes.stream().map(c -> ((Map<?, ?>) c).get("operation")).toList());
+                // The row is gone, so neither entry carries its state any more
+                assertNull(((Map<?, ?>) changes.get(0)).get("entitlement"));
+                assertNull(((Map<?, ?>) changes.get(1)).get("entitlement"));
+                assertFalse((Boolean) page.get("hasMore"));
+
+                mockMvc.perform(get("/api/v1/sync/entitlements/changes").param("since", "-1"))
+                                .andExpect(status().isBadRequest());
+                entitlementRepository.deleteAll();
+        }
+
+        @Test
+        @org.springframework.transaction.annotation.Transactional(propagation = Propagation.NOT_SUPPORTED)
+        public void testEntitlementChanges_PrunedCursorRejected() throws Exception {
+                long stale = Long.parseLong(mockMvc.perform(get("/api/v1/sync/entitlements"))
+                                .andReturn().getResponse().getHeader(SyncController.CURSOR_HEADER));
+                entitlementRepository.save(entitlement("alice", "doc1"));
+                entitlementRepository.save(entitlement("bob", "doc2"));
+
+                assertTrue(entitlementChangeLog.prune(Instant.now().plusSeconds(1)) >= 2);
+
+                mockMvc.perform(get("/api/v1/sync/entitlements/changes").param("since", String.valueOf(stale)))
+                                .andExpect(status().isBadRequest())
+                                .andExpect(jsonPath("$.errorCode").value("FUNC_SYNC_CURSOR_EXPIRED"));
+                // A fresh snapshot continues right after the pruned range
+                long cursor = Long.parseLong(mockMvc.perform(get("/api/v1/sync/entitlements"))
+                                .andReturn().getResponse().getHeader(SyncController.CURSOR_HEADER));
+                assertTrue(((List<?>) changes(cursor, 10).get("changes")).isEmpty());
+                entitlementRepository.save(entitlement("carol", "doc3"));
+                List<?> changes = (List<?>) changes(cursor, 10).get("changes");
+                assertEquals(1, changes.size());
+                assertEquals(cursor + 1, ((Number) ((Map<?, ?>) changes.get(0)).get("sequence")).longValue());
+                entitlementRepository.deleteAll();
+        }
+
+        // Both syncs have to be in flight at once, each in its own committed transactions
+        @Test
+        @org.springframework.transaction.annotation.Transactional(propagation = Propagation.NOT_SUPPORTED)
+        public void testSyncEntitlements_DisjointKeysRunInParallel() throws Exception {
+                List<Entitlement> blocked = new ArrayList<>();
+                List<Entitlement> other = new ArrayList<>();
+                for (int k = 0; k < 300; k++) {
+                        Entitlement e = entitlement("user-" + k, "doc-" + k);
+                        e.setResourceType(BlockingSyncListener.RESOURCE_TYPE);
+                        blocked.add(e);
+                        other.add(entitlement("user-" + k, "doc-" + k));
+                }
+                String blockedBody = new ObjectMapper().writeValueAsString(blocked);
+                String otherBody = new ObjectMapper().writeValueAsString(other);
+
+                ExecutorService pool = Executors.newFixedThreadPool(2);
+                CountDownLatch release = blockingSyncListener.block();
+                try {
+                        // Held inside its write, with the locks of its 300 keys taken
+                        Future<Integer> first = pool.submit(() -> mockMvc.perform(post("/api/v1/entitlements/sync")
+                                        .with(user("admin").roles("ADMIN"))
+                                        .contentType(MediaType.APPLICATION_JSON)
+                                        .content(blockedBody))
+                                        .andReturn().getResponse().getStatus());
+                        assertTrue(blockingSyncListener.awaitBlocked(10, TimeUnit.SECONDS));
+
+                        Future<Integer> second = pool.submit(() -> mockMvc.perform(post("/api/v1/entitlements/sync")
+                                        .with(user("admin").roles("ADMIN"))
+                                        .contentType(MediaType.APPLICATION_JSON)
+                                        .content(otherBody))
+                                        .andReturn().getResponse().getStatus());
+                        assertEquals(200, second.get(10, TimeUnit.SECONDS));
+                        assertFalse(first.isDone());
+
+                        release.countDown();
+                        assertEquals(200, first.get(10, TimeUnit.SECONDS));
+                } finally {
+                        release.countDown();
+                        pool.shutdownNow();
+                }
+                assertEquals(600, entitlementRepository.count());
+                entitlementRepository.deleteAll();
+        }
+
+        @Test
+        public void testSyncEntitlementStream_Snapshot() throws Exception {
+                Entitlement alice = new Entitlement();
+                alice.setSubjectType(Entitlement.SubjectType.USER);
+                alice.setSubjectId("alice");
+                alice.setResourceType("DOCUMENT");
+                alice.setResourceIds(Set.of("doc1"));
+                alice.setActions(Set.of("VIEW"));
+                alice.setEffect(Entitlement.Effect.ALLOW);
+
+                Entitlement bob = new Entitlement();
+                bob.setSubjectType(Entitlement.SubjectType.USER);
+                bob.setSubjectId("bob");
+                bob.setResourceType("DOCUMENT");
+                bob.setResourceIds(Set.of("doc2"));
+                bob.setActions(Set.of("VIEW"));
+                bob.setEffect(Entitlement.Effect.ALLOW);
+
+                mockMvc.perform(post("/api/v1/entitlements/sync")
+                                .with(user("admin").roles("ADMIN"))
+                                .contentType(MediaType.APPLICATION_JSON)
+                                .content(new ObjectMapper().writeValueAsString(List.of(alice, bob))))
+                                .andExpect(status().isOk());
+
+                // Snapshot of DOCUMENT without bob, gzip compressed
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                try (GZIPOutputStream gzip = new GZIPOutputStream(body)) {
+                        gzip.write((new ObjectMapper().writeValueAsString(alice) + "\n").getBytes());
+                }
+
+                String response = mockMvc.perform(post("/api/v1/entitlements/sync/stream")
+                                .param("snapshot", "true")
+                                .with(user("admin").roles("ADMIN"))
+                                .contentType("application/x-ndjson")
+                                .content(body.toByteArray()))
+                                .andExpect(status().isOk())
+                                .andReturn().getResponse().getContentAsString();
+
+                String[] lines = response.trim().split("\n");
+                Map<?, ?> result = new ObjectMapper().readValue(lines[lines.length - 1], Map.class);
+                assertEquals(true, result.get("complete"));
+                assertEquals(1, result.get("unchanged"));
+                assertEquals(1, result.get("deleted"));
+                assertEquals(1, entitlementRepository.findAll().size());
+        }
+
+        private Map<?, ?> changes(long since, int limit) throws Exception {
+                String response = mockMvc.perform(get("/api/v1/sync/entitlements/changes")
+                                .param("since", String.valueOf(since))
+                                .param("limit", String.valueOf(limit)))
+                                .andExpect(status().isOk())
+                                .andReturn().getResponse().getContentAsString();
+                return new ObjectMapper().readValue(response, Map.class);
+        }
+
+        private static Entitlement entitlement(String subjectId, String resourceId) {
+                Entitlement e = new Entitlement();
+                e.setSubjectType(Entitlement.SubjectType.USER);
+                e.setSubjectId(subjectId);
+                e.setResourceType("DOCUMENT");
+                e.setResourceIds(Set.of(resourceId));
+                e.setActions(Set.of("VIEW"));
+                e.setEffect(Entitlement.Effect.ALLOW);
+                return e;
+        }
+
+        @TestConfiguration
+        static class BlockingSyncConfig {
+                @Bean
+                BlockingSyncListener blockingSyncListener() {
+                        return new BlockingSyncListener();
+                }
+        }
+
+        /**
+         * Holds bulk writes of {@link #RESOURCE_TYPE} inside their transaction
+         * until released.
+         */
+        static class BlockingSyncListener {
+                static final String RESOURCE_TYPE = "BLOCKING";
+
+                private volatile CountDownLatch blocked = new CountDownLatch(1);
+                private volatile CountDownLatch release = new CountDownLatch(0);
+
+                CountDownLatch block() {
+                        blocked = new CountDownLatch(1);
+                        release = new CountDownLatch(1);
+                        return release;
+                }
+
+                boolean awaitBlocked(long timeout, TimeUnit unit) throws InterruptedException {
+                        return blocked.await(timeout, unit);
+                }
+
+                // Ahead of the change log, which serializes writers from their first logged change
+                @EventListener
+                @Order(Ordered.HIGHEST_PRECEDENCE)
+                public void onEntitlementChanged(EntitlementChangedEvent event) throws InterruptedException {
+                        if (event.getResourceTypes().contains(RESOURCE_TYPE)) {
+                                blocked.countDown();
+                                release.await(30, TimeUnit.SECONDS);
+                        }
+                }
+        }
 }
@@ -0,0 +1,118 @@
+package org.openpickles.policy.engine.model;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ResourceIdRangesTest {
+
+    @Test
+    public void testIsNumeric_OnlyCanonicalDecimals() {
+        assertTrue(ResourceIdRanges.isNumeric("0"));
+        assertTrue(ResourceIdRanges.isNumeric("999999999999999999"));
+        assertFalse(ResourceIdRanges.isNumeric("1000000000000000000"));
+        assertFalse(ResourceIdRanges.isNumeric("007"));
+        assertFalse(ResourceIdRanges.isNumeric("-1"));
+        assertFalse(ResourceIdRanges.isNumeric("1e3"));
+        assertFalse(ResourceIdRanges.isNumeric(""));
+    }
+
+    @Test
+    public void testOfIds_MergesAdjacentIds() {
+        ResourceIdRanges ranges = ResourceIdRanges.ofIds(List.of("5", "3", "4", "10", "8", "9"));
+
+        assertEquals("3-5,8-10", ranges.format());
+        assertEquals(2, ranges.rangeCount());
+        assertEquals(6, ranges.size());
+        assertTrue(ranges.contains("4"));
+        assertFalse(ranges.contains("7"));
+        assertFalse(ranges.contains("04"));
+    }
+
+    @Test
+    public void testOfPrefix_CoversEveryLength() {
+        ResourceIdRanges ranges = ResourceIdRanges.ofPrefix("12");
+
+        assertTrue(ranges.contains("12"));
+        assertTrue(ranges.contains("120"));
+        assertTrue(ranges.contains("1299"));
+        assertTrue(ranges.contains("129999999999999999"));
+        assertFalse(ranges.contains("13"));
+        assertFalse(ranges.contains("1300"));
+        assertFalse(ranges.contains("1"));
+        assertEquals("0", ResourceIdRanges.ofPrefix("0").format());
+        assertEquals(ResourceIdRanges.EMPTY, ResourceIdRanges.ofPrefix("ab"));
+        assertTrue(ResourceIdRanges.ofPrefix("").contains("0"));
+    }
+
+    @Test
+    public void testFromPairs_NormalizesAndValidates() {
+        ResourceIdRanges ranges = ResourceIdRanges.fromPairs(List.of(
+                new long[] { 20, 30 }, new long[] { 1, 5 }, new long[] { 25, 40 }, new long[] { 6, 6 }));
+
+        assertEquals("1-6,20-40", ranges.format());
+        assertEquals(ranges, ResourceIdRanges.parse("20-40,1-6"));
+        assertEquals(ranges, ResourceIdRanges.parse(ranges.format()));
+        assertEquals(ResourceIdRanges.EMPTY, ResourceIdRanges.parse(""));
+        for (long[] invalid : List.of(new long[] { 5, 1 }, new long[] { -1, 1 }, new long[] { 1 })) {
+            assertThrows(IllegalArgumentException.class, () -> ResourceIdRanges.fromPairs(List.<long[]>of(invalid)));
+        }
+    }
+
+    @Test
+    public void testJson_RoundTripsAsPairs() throws Exception {
+        ObjectMapper objectMapper = new ObjectMapper();
+        ResourceIdRanges ranges = ResourceIdRanges.parse("1000-1999,2005");
+
+        String json = objectMapper.writeValueAsString(ranges);
+
+        assertEquals("[[1000,1999],[2005,2005]]", json);
+        assertEquals(ranges, objectMapper.readValue(json, ResourceIdRanges.class));
+        assertEquals(ranges, objectMapper.readValue("[[2005,2005],[1500,1999],[1000,1600]]", ResourceIdRanges.class));
+    }
+
+    @Test
+    public void testMinusAndUnion_MatchSetSemantics() {
+        Random random = new Random(7);
+        for (int round = 0; round < 200; round++) {
+            BitSet a = new BitSet();
+            BitSet b = new BitSet();
+            ResourceIdRanges left = randomRanges(random, a);
+            ResourceIdRanges right = randomRanges(random, b);
+
+            BitSet difference = (BitSet) a.clone();
+            difference.andNot(b);
+            BitSet union = (BitSet) a.clone();
+            union.or(b);
+            assertEquals(difference, bits(left.minus(right)), left + " minus " + right);
+            assertEquals(union, bits(left.union(right)), left + " union " + right);
+            assertEquals(union.cardinality(), left.union(right).size());
+        }
+    }
+
+    private static ResourceIdRanges randomRanges(Random random, BitSet bits) {
+        List<long[]> pairs = new ArrayList<>();
+        for (int i = random.nextInt(5); i > 0; i--) {
+            int start = random.nextInt(100);
+            int end = start + random.nextInt(10);
+            pairs.add(new long[] { start, end });
+            bits.set(start, end + 1);
+        }
+        return ResourceIdRanges.fromPairs(pairs);
+    }
+
+    private static BitSet bits(ResourceIdRanges ranges) {
+        BitSet bits = new BitSet();
+        ranges.forEachId(id -> bits.set((int) id));
+        return bits;
+    }
+}
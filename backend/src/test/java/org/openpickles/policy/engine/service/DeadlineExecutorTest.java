@@ -0,0 +1,69 @@
+package org.openpickles.policy.engine.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.openpickles.policy.engine.exception.DeadlineExceededException;
+import org.slf4j.MDC;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest
+public class DeadlineExecutorTest {
+
+    @Autowired
+    private DeadlineExecutor deadlineExecutor;
+
+    @AfterEach
+    public void cleanup() {
+        MDC.clear();
+        SecurityContextHolder.clearContext();
+    }
+
+    @Test
+    public void testSubmit_PropagatesTraceIdAndPrincipal() throws Exception {
+        MDC.put("traceId", "trace-1");
+        SecurityContextHolder.getContext().setAuthentication(
+                new UsernamePasswordAuthenticationToken("alice", null, List.of()));
+
+        List<String> seen = deadlineExecutor.submit(1_000, () -> List.of(MDC.get("traceId"),
+                SecurityContextHolder.getContext().getAuthentication().getName())).get();
+
+        assertEquals(List.of("trace-1", "alice"), seen);
+    }
+
+    @Test
+    public void testSubmit_InterruptsTaskAfterDeadline() throws Exception {
+        CountDownLatch interrupted = new CountDownLatch(1);
+        ExecutionException failure = assertThrows(ExecutionException.class,
+                () -> deadlineExecutor.submit(50, () -> {
+                    try {
+                        Thread.sleep(10_000);
+                    } catch (InterruptedException e) {
+                        interrupted.countDown();
+                    }
+                    return null;
+                }).get());
+
+        assertInstanceOf(DeadlineExceededException.class, failure.getCause());
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testResolveBatchTimeout_DefaultsAboveRegularCap() {
+        assertEquals(300_000, deadlineExecutor.resolveBatchTimeout(null, null));
+        assertEquals(120_000, deadlineExecutor.resolveBatchTimeout(120_000L, null));
+        assertEquals(60_000, deadlineExecutor.resolveTimeout(120_000L, null));
+    }
+}
@@ -0,0 +1,118 @@
+package org.openpickles.policy.engine.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.openpickles.policy.engine.OpaInstance;
+import org.openpickles.policy.engine.OpaProcessManager;
+import org.openpickles.policy.engine.dto.ReplayReport;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class DecisionReplayServiceTest {
+
+    private final EvaluationService evaluationService = mock(EvaluationService.class);
+    private final OpaClient opaClient = mock(OpaClient.class);
+    private final OpaProcessManager processManager = mock(OpaProcessManager.class);
+    private final EvaluationService.LoadedBundle current = mock(EvaluationService.LoadedBundle.class);
+    private final EvaluationService.LoadedBundle candidate = mock(EvaluationService.LoadedBundle.class);
+    private DecisionReplayService service;
+
+    @BeforeEach
+    public void setup() {
+        service = new DecisionReplayService(4);
+        ReflectionTestUtils.setField(service, "evaluationService", evaluationService);
+        ReflectionTestUtils.setField(service, "opaClient", opaClient);
+        ReflectionTestUtils.setField(service, "processManager", processManager);
+        ReflectionTestUtils.setField(service, "maxInstances", 2);
+        ReflectionTestUtils.setField(service, "instanceShare", 0.25);
+        ReflectionTestUtils.setField(service, "concurrencyPerInstance", 8);
+        ReflectionTestUtils.setField(service, "maxFlips", 1);
+
+        OpaInstance instance = mock(OpaInstance.class);
+        when(instance.isAvailable()).thenReturn(true);
+        when(instance.getOutstanding()).thenReturn(new AtomicInteger());
+        when(processManager.getInstances()).thenReturn(List.of(instance));
+        when(opaClient.acquire()).thenAnswer(invocation -> new OpaClient.Lease(instance));
+        when(evaluationService.loadBundle(any(), eq(1L), any())).thenReturn(current);
+        when(evaluationService.loadBundle(any(), eq(2L), any())).thenReturn(candidate);
+    }
+
+    @AfterEach
+    public void shutdown() {
+        service.shutdown();
+    }
+
+    @Test
+    public void testReplay_CountsFlipsAndErrors() {
+        // Admins are allowed by both bundles, everybody else only by the candidate
+        when(current.evaluate(any())).thenAnswer(invocation -> "admin".equals(role(invocation.getArgument(0))));
+        when(candidate.evaluate(any())).thenReturn(true);
+        String corpus = """
+                {"role": "admin"}
+                {"role": "user"}
+
+                {"decision_id": "d-1", "input": {"role": "guest"}, "result": false}
+                not json
+                """;
+
+        ReplayReport report = service.replay(1L, 2L, "authz/allow",
+                new ByteArrayInputStream(corpus.getBytes(StandardCharsets.UTF_8)));
+
+        assertEquals(4, report.getInputs());
+        assertEquals(3, report.getEvaluated());
+        assertEquals(2, report.getFlipped());
+        assertEquals(1, report.getErrors());
+        assertTrue(report.getErrorSamples().get(0).startsWith("line 5:"));
+        // Only maxFlips of them are listed
+        assertEquals(1, report.getFlips().size());
+        assertTrue(report.isFlipsTruncated());
+        ReplayReport.Flip flip = report.getFlips().get(0);
+        assertEquals(false, flip.getCurrent());
+        assertEquals(true, flip.getCandidate());
+        verify(current, times(1)).close();
+        verify(candidate, times(1)).close();
+    }
+
+    @Test
+    public void testReplay_NoFlips() {
+        when(current.evaluate(any())).thenReturn(true);
+        when(candidate.evaluate(any())).thenReturn(true);
+
+        ReplayReport report = service.replay(1L, 2L, null,
+                new ByteArrayInputStream("{}\n{}\n".getBytes(StandardCharsets.UTF_8)));
+
+        assertEquals(2, report.getEvaluated());
+        assertEquals(0, report.getFlipped());
+        assertFalse(report.isFlipsTruncated());
+    }
+
+    @Test
+    public void testWorkerCount_LeasesCappedShare() {
+        assertEquals(1, DecisionReplayService.workerCount(1, 0.25, 2));
+        assertEquals(1, DecisionReplayService.workerCount(3, 0.25, 2));
+        assertEquals(2, DecisionReplayService.workerCount(8, 0.25, 2));
+        assertEquals(2, DecisionReplayService.workerCount(64, 0.25, 2));
+        assertEquals(4, DecisionReplayService.workerCount(4, 1.0, 8));
+        assertEquals(1, DecisionReplayService.workerCount(4, 0, 8));
+    }
+
+    private static Object role(Object input) {
+        return input instanceof Map<?, ?> map ? map.get("role") : null;
+    }
+}
@@ -0,0 +1,100 @@
+package org.openpickles.policy.engine.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class EntitlementStoreTest {
+
+    @Test
+    public void testApply_ReencodesDictionariesOfReplacedGrants() {
+        EntitlementStore store = new EntitlementStore();
+        store.load(sink -> {
+            for (long id = 1; id <= 10; id++) {
+                sink.accept(row(id, "USER:u" + id, "doc-" + id));
+            }
+        });
+
+        // Every round moves each grant to a resource id never seen before
+        for (int round = 1; round <= 10_000; round++) {
+            long id = 1 + round % 10;
+            store.apply(List.of(row(id, "USER:u" + id, "doc-" + id + "-" + round)), List.of());
+        }
+
+        EntitlementStore.Snapshot snapshot = store.snapshot();
+        assertEquals(10, snapshot.size());
+        assertTrue(snapshot.dictionaryEntries() < EntitlementStore.MIN_REENCODE_ENTRIES,
+                "dictionary entries: " + snapshot.dictionaryEntries());
+        EntitlementStore.Grant grant = snapshot.grant("DOCUMENT", "USER:u1", 1);
+        assertEquals(Set.of("doc-1-10000"), grant.getResourceIds());
+        assertEquals(Set.of("VIEW"), grant.getActions());
+        assertTrue(grant.covers("VIEW", "doc-1-10000"));
+        assertEquals(1, snapshot.grantsListing("DOCUMENT", "doc-1-10000").size());
+        assertEquals(0, snapshot.grantsListing("DOCUMENT", "doc-1-9990").size());
+    }
+
+    @Test
+    public void testReencode_KeepsGrants() {
+        EntitlementStore store = new EntitlementStore();
+        store.load(sink -> {
+            sink.accept(row(1, "USER:alice", "doc-1"));
+            sink.accept(row(2, "ROLE:admin", "branch-1/*"));
+        });
+        store.apply(List.of(row(1, "USER:alice", "doc-2")), List.of(2L));
+        int before = store.snapshot().dictionaryEntries();
+
+        store.reencode();
+
+        EntitlementStore.Snapshot snapshot = store.snapshot();
+        assertEquals(1, snapshot.size());
+        assertTrue(snapshot.dictionaryEntries() < before);
+        assertEquals(List.of(1L), snapshot.grantsFor("DOCUMENT", List.of("USER:alice", "ROLE:admin")).stream()
+                .map(EntitlementStore.Grant::getId)
+                .toList());
+        assertEquals(1, snapshot.grantsListing("DOCUMENT", "doc-2").size());
+        // Later writes see the new dictionaries too
+        store.apply(List.of(row(3, "USER:bob", "doc-2")), List.of());
+        assertEquals(2, store.snapshot().grantsListing("DOCUMENT", "doc-2").size());
+    }
+
+    @Test
+    public void testApply_SparseIds() {
+        EntitlementStore store = new EntitlementStore();
+        Random random = new Random(3);
+        Map<Long, String> stored = new HashMap<>();
+        for (int op = 0; op < 20_000; op++) {
+            // Far apart ids, some of them revisited, as after imports or with external id ranges
+            long id = random.nextInt(4) == 0 && !stored.isEmpty()
+                    ? new ArrayList<>(stored.keySet()).get(random.nextInt(stored.size()))
+                    : random.nextLong(Long.MAX_VALUE);
+            if (stored.containsKey(id) && random.nextBoolean()) {
+                store.apply(List.of(), List.of(id));
+                stored.remove(id);
+            } else {
+                String principal = "USER:u" + random.nextInt(50);
+                store.apply(List.of(row(id, principal, "doc-" + id)), List.of());
+                stored.put(id, principal);
+            }
+        }
+
+        EntitlementStore.Snapshot snapshot = store.snapshot();
+        assertEquals(stored.size(), snapshot.size());
+        stored.forEach((id, principal) -> assertEquals(Set.of("doc-" + id),
+                snapshot.grant("DOCUMENT", principal, id).getResourceIds()));
+    }
+
+    private static EntitlementStore.Row row(long id, String principal, String resourceId) {
+        EntitlementStore.Row row = new EntitlementStore.Row(id, "DOCUMENT", principal, false, null, null, null);
+        row.getResourceIds().add(resourceId);
+        row.getActions().add("VIEW");
+        return row;
+    }
+}
@@ -0,0 +1,90 @@
+package org.openpickles.policy.engine.service;
+
+import org.junit.jupiter.api.Test;
+import org.openpickles.policy.engine.dto.EvaluationStats;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class EvaluationMetricsTest {
+
+    @Test
+    public void testHistogram_BucketBoundsContainValue() {
+        for (long value : new long[] { 0, 1, 7, 8, 9, 15, 16, 17, 1_000, 999_999, 1L << 40, Long.MAX_VALUE }) {
+            int index = EvaluationMetrics.Histogram.index(value);
+            assertTrue(value <= EvaluationMetrics.Histogram.upperBound(index), "upper bound of " + value);
+            if (index > 0) {
+                assertTrue(value > EvaluationMetrics.Histogram.upperBound(index - 1), "lower bound of " + value);
+            }
+        }
+        // Exact below 8, then 8 linear sub-buckets per power of two
+        assertEquals(7, EvaluationMetrics.Histogram.upperBound(EvaluationMetrics.Histogram.index(7)));
+        assertEquals(8, EvaluationMetrics.Histogram.upperBound(EvaluationMetrics.Histogram.index(8)));
+        assertEquals(17, EvaluationMetrics.Histogram.upperBound(EvaluationMetrics.Histogram.index(16)));
+        assertEquals(Long.MAX_VALUE, EvaluationMetrics.Histogram.upperBound(EvaluationMetrics.Histogram.index(
+                Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void testHistogram_PercentileWithinRelativeError() {
+        EvaluationMetrics.Histogram histogram = new EvaluationMetrics.Histogram();
+        for (long micros = 1; micros <= 100_000; micros++) {
+            histogram.record(micros * 1_000);
+        }
+
+        assertEquals(50_000_000, histogram.percentile(0.5), 50_000_000 * 0.125);
+        assertEquals(99_000_000, histogram.percentile(0.99), 99_000_000 * 0.125);
+        // Never above the largest value seen
+        assertEquals(100_000_000, histogram.percentile(1.0));
+    }
+
+    @Test
+    public void testRecord_TaggedWithEngine() {
+        EvaluationMetrics metrics = metrics(200);
+        metrics.record(EvaluationMetrics.WASM, "authz/allow", 1_000);
+        metrics.record(EvaluationMetrics.NATIVE, "authz/allow", 2_000);
+        metrics.record(EvaluationMetrics.OPA, "authz/allow", Map.of("timer_rego_query_eval_ns", 500), 3_000);
+        metrics.record(EvaluationMetrics.PARTIAL, "", 4_000);
+
+        List<EvaluationStats.PathStats> paths = metrics.snapshot().getPaths();
+        assertEquals(List.of("native", "opa", "partial", "wasm"),
+                paths.stream().map(EvaluationStats.PathStats::getEngine).toList());
+        assertEquals(List.of("authz/allow", "authz/allow", "data", "authz/allow"),
+                paths.stream().map(EvaluationStats.PathStats::getPath).toList());
+        assertEquals(1, paths.get(1).getQueryEval().getCount());
+        assertEquals(0, paths.get(0).getQueryEval().getCount());
+
+        String prometheus = metrics.prometheus();
+        assertTrue(prometheus.contains(
+                "policy_engine_evaluation_round_trip_seconds_count{engine=\"wasm\",path=\"authz/allow\"} 1"));
+        assertTrue(prometheus.contains(
+                "policy_engine_opa_query_eval_seconds_count{engine=\"opa\",path=\"authz/allow\"} 1"));
+        // OPA timers are not reported for engines that have none
+        assertFalse(prometheus.contains("policy_engine_opa_query_eval_seconds_count{engine=\"wasm\""));
+    }
+
+    @Test
+    public void testRecord_FoldsPathsBeyondLimitPerEngine() {
+        EvaluationMetrics metrics = metrics(2);
+        metrics.record(EvaluationMetrics.OPA, "a", 1);
+        metrics.record(EvaluationMetrics.OPA, "b", 1);
+        metrics.record(EvaluationMetrics.OPA, "c", 1);
+        metrics.record(EvaluationMetrics.WASM, "a", 1);
+
+        List<String> keys = metrics.snapshot().getPaths().stream()
+                .map(p -> p.getEngine() + ":" + p.getPath())
+                .toList();
+        assertEquals(List.of("opa:_other", "opa:a", "opa:b", "wasm:_other"), keys);
+    }
+
+    private static EvaluationMetrics metrics(int maxPaths) {
+        EvaluationMetrics metrics = new EvaluationMetrics();
+        ReflectionTestUtils.setField(metrics, "maxPaths", maxPaths);
+        return metrics;
+    }
+}
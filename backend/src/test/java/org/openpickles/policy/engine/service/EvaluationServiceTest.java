@@ -0,0 +1,109 @@
+package org.openpickles.policy.engine.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.openpickles.policy.engine.OpaInstance;
+import org.openpickles.policy.engine.model.Policy;
+import org.openpickles.policy.engine.model.PolicyBundle;
+import org.openpickles.policy.engine.repository.PolicyBundleRepository;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.RestTemplate;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class EvaluationServiceTest {
+
+    private final OpaClient opaClient = mock(OpaClient.class);
+    private final RestTemplate restTemplate = mock(RestTemplate.class);
+    private final BundleService bundleService = mock(BundleService.class);
+    private final WasmEvaluationEngine wasmEvaluationEngine = mock(WasmEvaluationEngine.class);
+    private final NativeEvaluationEngine nativeEvaluationEngine = mock(NativeEvaluationEngine.class);
+    private final CountDownLatch republishing = new CountDownLatch(1);
+    private final CountDownLatch republished = new CountDownLatch(1);
+    private final AtomicInteger dataWrites = new AtomicInteger();
+    private final List<String> removed = new CopyOnWriteArrayList<>();
+    private EvaluationService service;
+
+    @BeforeEach
+    public void setup() {
+        when(opaClient.getRestTemplate()).thenReturn(restTemplate);
+        OpaInstance instance = mock(OpaInstance.class);
+        when(instance.getUrl()).thenReturn("http://opa");
+        when(instance.getOutstanding()).thenReturn(new AtomicInteger());
+        when(opaClient.acquire()).thenAnswer(invocation -> new OpaClient.Lease(instance));
+        when(restTemplate.postForEntity(anyString(), any(), eq(Map.class)))
+                .thenAnswer(invocation -> ResponseEntity.ok(Map.of("result", invocation.getArgument(0))));
+        // The second copy of the bundle takes until the test lets it complete
+        doAnswer(invocation -> {
+            if (dataWrites.incrementAndGet() > 1) {
+                republishing.countDown();
+                republished.await(10, TimeUnit.SECONDS);
+            }
+            return null;
+        }).when(opaClient).putData(anyString(), any());
+        // Recorded apart from the mock: its methods are synchronized, so verifying one waits for the blocked publish
+        doAnswer(invocation -> removed.add(invocation.getArgument(0))).when(opaClient).removeData(anyString());
+
+        PolicyBundle bundle = new PolicyBundle();
+        bundle.setId(1L);
+        PolicyBundleRepository bundleRepository = mock(PolicyBundleRepository.class);
+        when(bundleRepository.findById(1L)).thenReturn(Optional.of(bundle));
+        Policy policy = new Policy();
+        policy.setContent("package authz\nallow if true\n");
+        when(bundleService.getPolicies(any())).thenReturn(List.of(policy));
+        when(wasmEvaluationEngine.evaluate(any(), any(), any())).thenReturn(Optional.empty());
+        when(nativeEvaluationEngine.evaluate(any(), any(), any())).thenReturn(Optional.empty());
+
+        service = new EvaluationService(opaClient);
+        ReflectionTestUtils.setField(service, "bundleRepository", bundleRepository);
+        ReflectionTestUtils.setField(service, "bundleService", bundleService);
+        ReflectionTestUtils.setField(service, "wasmEvaluationEngine", wasmEvaluationEngine);
+        ReflectionTestUtils.setField(service, "nativeEvaluationEngine", nativeEvaluationEngine);
+        ReflectionTestUtils.setField(service, "evaluationMetrics", new EvaluationMetrics());
+    }
+
+    @Test
+    public void testEvaluateBundle_ServesOldCopyWhileRepublishing() throws Exception {
+        Object first = service.evaluateBundle(1L, "authz/allow", Map.of()).get("result");
+        service.invalidate(1L);
+
+        // The new copy is still being published: the old one answers
+        assertEquals(first, service.evaluateBundle(1L, "authz/allow", Map.of()).get("result"));
+        assertEquals(first, service.evaluateBundle(1L, "authz/allow", Map.of()).get("result"));
+        assertTrue(republishing.await(5, TimeUnit.SECONDS));
+        assertEquals(2, dataWrites.get());
+        assertEquals(List.of(), removed);
+
+        republished.countDown();
+        String url = (String) first;
+        String old = url.substring("http://opa/v1/data/".length(), url.lastIndexOf("/authz/allow"));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (removed.isEmpty() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(List.of(old), removed);
+        Object second = service.evaluateBundle(1L, "authz/allow", Map.of()).get("result");
+        assertNotEquals(first, second);
+        assertTrue(((String) second).endsWith("/authz/allow?metrics=true"));
+        // Published once per copy, not once per waiting decision
+        assertEquals(2, dataWrites.get());
+        service.shutdown();
+    }
+}
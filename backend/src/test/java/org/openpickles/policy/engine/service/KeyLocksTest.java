@@ -0,0 +1,59 @@
+package org.openpickles.policy.engine.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class KeyLocksTest {
+
+    private final KeyLocks<String> locks = new KeyLocks<>();
+
+    @Test
+    public void testLockAll_DisjointKeysDoNotWait() throws Exception {
+        try (KeyLocks<String>.Held held = locks.lockAll(List.of("a", "b", "c"))) {
+            CompletableFuture<Void> other = CompletableFuture.runAsync(() -> {
+                try (KeyLocks<String>.Held inner = locks.lockAll(List.of("d", "e"))) {
+                    assertEquals(5, locks.size());
+                }
+            });
+            other.get(5, TimeUnit.SECONDS);
+        }
+        assertEquals(0, locks.size());
+    }
+
+    @Test
+    public void testLockAll_SharedKeyWaits() throws Exception {
+        CompletableFuture<Void> other;
+        try (KeyLocks<String>.Held held = locks.lockAll(List.of("a", "b"))) {
+            other = CompletableFuture.runAsync(() -> locks.lockAll(List.of("b", "z")).close());
+            assertThrows(TimeoutException.class, () -> other.get(200, TimeUnit.MILLISECONDS));
+        }
+        other.get(5, TimeUnit.SECONDS);
+        assertEquals(0, locks.size());
+    }
+
+    @Test
+    public void testLockAll_OpposingOrdersDoNotDeadlock() throws Exception {
+        List<String> forward = List.of("a", "b", "c", "d");
+        List<String> backward = List.of("d", "c", "b", "a");
+        CompletableFuture<Void> first = CompletableFuture.runAsync(() -> {
+            for (int i = 0; i < 2000; i++) {
+                locks.lockAll(forward).close();
+            }
+        });
+        CompletableFuture<Void> second = CompletableFuture.runAsync(() -> {
+            for (int i = 0; i < 2000; i++) {
+                locks.lockAll(backward).close();
+            }
+        });
+
+        CompletableFuture.allOf(first, second).get(10, TimeUnit.SECONDS);
+        assertEquals(0, locks.size());
+    }
+}
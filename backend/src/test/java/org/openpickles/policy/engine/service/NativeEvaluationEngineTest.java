@@ -0,0 +1,127 @@
+package org.openpickles.policy.engine.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.openpickles.policy.engine.model.Policy;
+import org.openpickles.policy.engine.model.PolicyBundle;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.openpickles.policy.engine.service.rego.RegoAst.*;
+
+public class NativeEvaluationEngineTest {
+
+    private final BundleService bundleService = mock(BundleService.class);
+    private final OpaCliRunner opaCliRunner = mock(OpaCliRunner.class);
+    private final NativeEvaluationEngine engine = new NativeEvaluationEngine();
+    private final PolicyBundle bundle = new PolicyBundle();
+
+    @BeforeEach
+    public void setup() {
+        ReflectionTestUtils.setField(engine, "enabled", true);
+        ReflectionTestUtils.setField(engine, "bundleService", bundleService);
+        ReflectionTestUtils.setField(engine, "opaCliRunner", opaCliRunner);
+        // Compiled on the deciding thread, see testEvaluate_CompiledInBackground
+        ReflectionTestUtils.setField(engine, "bundles", new BundleLoads<>(Runnable::run));
+        bundle.setId(1L);
+        Policy policy = new Policy();
+        policy.setName("authz");
+        policy.setContent("package authz");
+        when(bundleService.getBindings(bundle)).thenReturn(List.of());
+        when(bundleService.getPolicies(any())).thenReturn(List.of(policy));
+        when(bundleService.buildDataJson(any())).thenReturn("{\"admins\": [\"alice\"]}");
+    }
+
+    @Test
+    public void testEvaluate_OpaStyleResponse() {
+        parsesTo(module("authz",
+                defaultRule("allow", bool(false)),
+                rule("allow", null, call("internal.member_2", ref("input.user"), ref("data.admins"))),
+                partialSet("roles", str("admin"), call("internal.member_2", ref("input.user"), ref("data.admins")))));
+
+        assertEquals(Optional.of(Map.of("result", true)),
+                engine.evaluate(bundle, "authz/allow", Map.of("user", "alice")));
+        assertEquals(Optional.of(Map.of("result", false)),
+                engine.evaluate(bundle, "authz/allow", Map.of("user", "bob")));
+        assertEquals(Optional.of(Map.of("result", List.of())),
+                engine.evaluate(bundle, "authz/roles", Map.of("user", "bob")));
+        // Undefined is an empty response like OPA's
+        assertEquals(Optional.of(Map.of()), engine.evaluate(bundle, "authz/missing", Map.of()));
+        // Compiled once
+        verify(opaCliRunner, times(1)).parse("package authz");
+    }
+
+    @Test
+    public void testEvaluate_CompiledInBackground() {
+        List<Runnable> loads = new ArrayList<>();
+        ReflectionTestUtils.setField(engine, "bundles", new BundleLoads<>(loads::add));
+        parsesTo(module("authz", rule("allow", null, call("internal.member_2", ref("input.user"),
+                ref("data.admins")))));
+
+        // Served by OPA until compiled, without starting another compilation
+        assertTrue(engine.evaluate(bundle, "authz/allow", Map.of("user", "alice")).isEmpty());
+        assertTrue(engine.evaluate(bundle, "authz/allow", Map.of("user", "alice")).isEmpty());
+        assertEquals(1, loads.size());
+
+        loads.get(0).run();
+        assertEquals(Optional.of(Map.of("result", true)),
+                engine.evaluate(bundle, "authz/allow", Map.of("user", "alice")));
+
+        engine.invalidate(1L);
+        assertTrue(engine.evaluate(bundle, "authz/allow", Map.of("user", "alice")).isEmpty());
+        assertEquals(2, loads.size());
+    }
+
+    @Test
+    public void testEvaluate_WithFallsBackToOpa() {
+        parsesTo(module("authz",
+                rule("admin", null, call("equal", ref("input.user"), str("alice"))),
+                rule("allow", null, with(term(var("admin")), ref("input.user"), str("alice")))));
+
+        assertTrue(engine.evaluate(bundle, "authz/allow", Map.of()).isEmpty());
+    }
+
+    @Test
+    public void testEvaluate_EveryFallsBackToOpa() {
+        parsesTo(module("authz",
+                rule("allow", null, every("r", ref("input.roles"), call("startswith", var("r"), str("a"))))));
+
+        assertTrue(engine.evaluate(bundle, "authz/allow", Map.of("roles", List.of("a"))).isEmpty());
+    }
+
+    @Test
+    public void testEvaluate_ConflictFallsBackToOpa() {
+        parsesTo(module("authz",
+                rule("level", num(1), term(ref("input.a"))),
+                rule("level", num(2), term(ref("input.b")))));
+
+        assertEquals(Optional.of(Map.of("result", 1L)), engine.evaluate(bundle, "authz/level", Map.of("a", true)));
+        assertTrue(engine.evaluate(bundle, "authz/level", Map.of("a", true, "b", true)).isEmpty());
+    }
+
+    @Test
+    public void testEvaluate_UnparseableFallsBackToOpa() {
+        when(opaCliRunner.parse("package authz")).thenReturn(null);
+
+        assertTrue(engine.evaluate(bundle, "authz/allow", Map.of()).isEmpty());
+        // Not retried for every decision
+        engine.evaluate(bundle, "authz/allow", Map.of());
+        verify(opaCliRunner, times(1)).parse("package authz");
+    }
+
+    private void parsesTo(JsonNode module) {
+        when(opaCliRunner.parse("package authz")).thenReturn(module);
+    }
+}
@@ -0,0 +1,73 @@
+package org.openpickles.policy.engine.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class OpaCliRunnerTest {
+
+    private final Path workDir = Path.of(System.getProperty("java.io.tmpdir"));
+    private OpaCliRunner runner;
+
+    @BeforeEach
+    public void setup() {
+        runner = new OpaCliRunner();
+        ReflectionTestUtils.setField(runner, "timeoutMs", 500L);
+    }
+
+    @Test
+    public void testExec_CapturesOutputAndExitCode() throws Exception {
+        OpaCliRunner.Result result = runner.exec(workDir, List.of("sh", "-c", "echo out; echo err >&2; exit 3"));
+
+        assertEquals(3, result.getExitCode());
+        assertFalse(result.isSuccess());
+        assertEquals("out\nerr\n", result.getOutput());
+    }
+
+    @Test
+    public void testExec_KillsProcessPastTimeout() throws Exception {
+        long start = System.nanoTime();
+        // The background child keeps the output open after sh is killed
+        IOException failure = assertThrows(IOException.class,
+                () -> runner.exec(workDir, List.of("sh", "-c", "sleep 30 & sleep 30")));
+
+        assertTrue(failure.getMessage().contains("did not exit within 500 ms"), failure.getMessage());
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+    }
+
+    @Test
+    public void testExec_KillsProcessWhenInterrupted() throws Exception {
+        ReflectionTestUtils.setField(runner, "timeoutMs", 60_000L);
+        Thread[] caller = new Thread[1];
+        CountDownLatch started = new CountDownLatch(1);
+        CompletableFuture<OpaCliRunner.Result> run = CompletableFuture.supplyAsync(() -> {
+            caller[0] = Thread.currentThread();
+            started.countDown();
+            try {
+                return runner.exec(workDir, List.of("sleep", "30"));
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        Thread.sleep(300);
+        caller[0].interrupt();
+
+        ExecutionException failure = assertThrows(ExecutionException.class, () -> run.get(10, TimeUnit.SECONDS));
+        assertInstanceOf(InterruptedException.class, failure.getCause().getCause());
+    }
+}
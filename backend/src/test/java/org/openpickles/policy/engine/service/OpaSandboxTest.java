@@ -0,0 +1,146 @@
+package org.openpickles.policy.engine.service;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.openpickles.policy.engine.OpaInstance;
+import org.openpickles.policy.engine.model.Policy;
+import org.openpickles.policy.engine.repository.PolicyRepository;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.RestTemplate;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class OpaSandboxTest {
+
+    @Test
+    public void testRewrite_PackageAndDataRefs() {
+        OpaSandbox sandbox = new OpaSandbox("http://opa");
+        String root = "sandboxes." + sandbox.getId();
+
+        String rewritten = sandbox.rewrite("""
+                package authz.docs
+
+                import data.lib.roles
+
+                allow if data.roles[input.user] == "admin"
+                allow if data ["users"][input.user].active
+                owner if input.data.owner == input.user
+                """);
+
+        assertEquals("""
+                package %1$s.authz.docs
+
+                import data.%1$s.lib.roles
+
+                allow if data.%1$s.roles[input.user] == "admin"
+                allow if data.%1$s ["users"][input.user].active
+                owner if input.data.owner == input.user
+                """.formatted(root), rewritten);
+    }
+
+    @Test
+    public void testRewrite_KeepsStringsAndComments() {
+        OpaSandbox sandbox = new OpaSandbox("http://opa");
+        String root = "sandboxes." + sandbox.getId();
+
+        String rewritten = sandbox.rewrite("""
+                # package commented.out, reads data.roles
+                package authz
+
+                msg := "see data.roles \\" or data.users"
+                raw := `data.roles
+                package not.this`
+                allow if data.roles[input.user] # not data.users
+                """);
+
+        assertEquals("""
+                # package commented.out, reads data.roles
+                package %1$s.authz
+
+                msg := "see data.roles \\" or data.users"
+                raw := `data.roles
+                package not.this`
+                allow if data.%1$s.roles[input.user] # not data.users
+                """.formatted(root), rewritten);
+    }
+
+    @Test
+    public void testDataRefs_SkipsStringsAndComments() {
+        Set<String> refs = OpaSandbox.dataRefs("""
+                package authz
+                import data.lib.roles
+                # data.commented
+                msg := "data.quoted"
+                allow if data.lib.roles.admins[input.user]
+                allow if input.data.owner
+                """);
+
+        assertEquals(List.of("lib.roles", "lib.roles.admins"), List.copyOf(refs));
+    }
+
+    @Test
+    public void testTestPolicy_LoadsImportedPackages() {
+        OpaClient opaClient = mock(OpaClient.class);
+        RestTemplate restTemplate = mock(RestTemplate.class);
+        when(opaClient.getRestTemplate()).thenReturn(restTemplate);
+        OpaInstance instance = mock(OpaInstance.class);
+        when(instance.getUrl()).thenReturn("http://opa");
+        when(instance.getOutstanding()).thenReturn(new AtomicInteger());
+        when(opaClient.acquire()).thenAnswer(invocation -> new OpaClient.Lease(instance));
+        when(restTemplate.postForEntity(anyString(), any(), eq(Map.class)))
+                .thenReturn(ResponseEntity.ok(Map.of("result", Map.of())));
+        PolicyRepository policyRepository = mock(PolicyRepository.class);
+        BundleService bundleService = mock(BundleService.class);
+        when(bundleService.findPackageName(anyString())).thenCallRealMethod();
+        List<Policy> stored = List.of(
+                policy(1L, "package authz\nallow if false\n"),
+                policy(2L, "package lib.roles\nimport data.lib.users\nadmin(u) if data.lib.users[u].admin\n"),
+                policy(3L, "package lib.users\n"),
+                policy(4L, "package unrelated\n"));
+        when(policyRepository.findByContentContaining(anyString())).thenAnswer(invocation -> stored.stream()
+                .filter(p -> p.getContent().contains(invocation.<String>getArgument(0)))
+                .toList());
+        EvaluationService service = new EvaluationService(opaClient);
+        ReflectionTestUtils.setField(service, "policyRepository", policyRepository);
+        ReflectionTestUtils.setField(service, "bundleService", bundleService);
+        ReflectionTestUtils.setField(service, "evaluationMetrics", new EvaluationMetrics());
+
+        service.testPolicy("package authz\nimport data.lib.roles\nallow if roles.admin(input.user)\n", "1",
+                Map.of(), Map.of());
+
+        ArgumentCaptor<HttpEntity> modules = ArgumentCaptor.forClass(HttpEntity.class);
+        verify(restTemplate, atLeastOnce()).put(anyString(), modules.capture());
+        // The stored authz is replaced by the content under test, unrelated is never loaded
+        List<String> packages = modules.getAllValues().stream()
+                .map(HttpEntity::getBody)
+                .filter(String.class::isInstance)
+                .map(body -> ((String) body).lines().findFirst().orElseThrow().replaceAll("sandboxes\\.s\\w+\\.", ""))
+                .toList();
+        assertEquals(List.of("package authz", "package lib.roles", "package lib.users"), packages);
+        // Looked up by the referenced packages, not by reading every policy
+        verify(policyRepository).findByContentContaining("lib");
+        verify(policyRepository, never()).findAll();
+    }
+
+    private static Policy policy(Long id, String content) {
+        Policy policy = new Policy();
+        policy.setId(id);
+        policy.setContent(content);
+        return policy;
+    }
+}
@@ -0,0 +1,73 @@
+package org.openpickles.policy.engine.service;
+
+import org.junit.jupiter.api.Test;
+import org.openpickles.policy.engine.OpaProcessManager;
+import org.openpickles.policy.engine.exception.TechnicalException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest
+public class OpaSnapshotTest {
+
+    @Autowired
+    private OpaProcessManager processManager;
+
+    @Autowired
+    private OpaClient opaClient;
+
+    @Test
+    public void testSnapshotDir_PrivateToProcess() {
+        Path dir = processManager.getSnapshotDir();
+        assertTrue(Files.isDirectory(dir));
+        assertTrue(dir.getFileName().toString().startsWith("opa-snapshot-"));
+        assertNotEquals(Path.of(System.getProperty("java.io.tmpdir"), "policy-engine", "opa-snapshot"), dir);
+    }
+
+    @Test
+    public void testPutData_WritesSnapshot() throws Exception {
+        opaClient.putData("snapshot-test/data", Map.of("answer", 42));
+        opaClient.putPolicy("snapshot-test/policy", "package snapshot_test\n");
+
+        Path dir = processManager.getSnapshotDir();
+        assertEquals("{\"answer\":42}", Files.readString(dir.resolve("snapshot-test/data/data.json")));
+        assertEquals("package snapshot_test\n",
+                Files.readString(dir.resolve("snapshot-test/policy.rego"), StandardCharsets.UTF_8));
+        assertFalse(Files.exists(dir.resolve("snapshot-test/policy.rego.tmp")));
+    }
+
+    @Test
+    public void testRemove_DeletesSnapshot() throws Exception {
+        opaClient.putData("snapshot-test/removed", Map.of("answer", 42));
+        opaClient.putPolicy("snapshot-test/removed/0", "package snapshot_test.removed\n");
+        opaClient.putData("snapshot-test/kept", Map.of("answer", 7));
+
+        opaClient.removePolicy("snapshot-test/removed/0");
+        Path dir = processManager.getSnapshotDir();
+        assertFalse(Files.exists(dir.resolve("snapshot-test/removed/0.rego")));
+        assertTrue(Files.exists(dir.resolve("snapshot-test/removed/data.json")));
+
+        opaClient.removeData("snapshot-test/removed");
+        assertFalse(Files.exists(dir.resolve("snapshot-test/removed")));
+        assertTrue(Files.exists(dir.resolve("snapshot-test/kept/data.json")));
+
+        // Removing again is harmless
+        opaClient.removeData("snapshot-test/removed");
+    }
+
+    @Test
+    public void testPutPolicy_OutsideSnapshotRejected() {
+        assertThrows(TechnicalException.class, () -> opaClient.putPolicy("../escaped", "package escaped\n"));
+        assertFalse(Files.exists(processManager.getSnapshotDir().resolveSibling("escaped.rego")));
+    }
+}
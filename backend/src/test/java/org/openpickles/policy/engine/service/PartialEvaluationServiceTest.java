@@ -0,0 +1,191 @@
+package org.openpickles.policy.engine.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.openpickles.policy.engine.dto.FilterRequest;
+import org.openpickles.policy.engine.dto.FilterResult;
+import org.openpickles.policy.engine.exception.FunctionalException;
+import org.openpickles.policy.engine.model.Policy;
+import org.openpickles.policy.engine.repository.PolicyBindingRepository;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class PartialEvaluationServiceTest {
+
+    private final PolicyBindingRepository bindingRepository = mock(PolicyBindingRepository.class);
+    private final BundleService bundleService = mock(BundleService.class);
+    private final EvaluationService evaluationService = mock(EvaluationService.class);
+    private final PartialEvaluationService service = new PartialEvaluationService();
+
+    @BeforeEach
+    public void setup() {
+        ReflectionTestUtils.setField(service, "bindingRepository", bindingRepository);
+        ReflectionTestUtils.setField(service, "bundleService", bundleService);
+        ReflectionTestUtils.setField(service, "evaluationService", evaluationService);
+        Policy policy = new Policy();
+        policy.setContent("package docs.authz");
+        when(bindingRepository.findByResourceType("DOCUMENT")).thenReturn(List.of());
+        when(bundleService.getPolicies(any())).thenReturn(List.of(policy));
+        when(bundleService.findPackageName(anyString())).thenCallRealMethod();
+    }
+
+    @Test
+    public void testFilter_IdEqualitiesBecomeIdSet() {
+        compilesTo(query(expr("eq", ref("input", "resource", "id"), scalar("string", "doc-1"))),
+                query(expr("equal", scalar("string", "doc-2"), ref("input", "resource", "id"))),
+                query(expr("internal.member_2", ref("input", "resource", "id"),
+                        collection("set", scalar("string", "doc-2"), scalar("string", "doc-3")))));
+
+        FilterResult result = service.filter(request());
+
+        assertEquals(FilterResult.Mode.IDS, result.getMode());
+        assertEquals(List.of("doc-1", "doc-2", "doc-3"), List.copyOf(result.getResourceIds()));
+    }
+
+    @Test
+    public void testFilter_QueriesEveryPackageWithResourceUnknown() {
+        compilesTo();
+        FilterRequest request = request();
+        request.setInput(Map.of("resource", Map.of("id", "ignored"), "tenant", "t1"));
+
+        FilterResult result = service.filter(request);
+
+        assertEquals(FilterResult.Mode.NONE, result.getMode());
+        ArgumentCaptor<Map<String, Object>> input = ArgumentCaptor.forClass(Map.class);
+        verify(evaluationService).partialEvaluate(eq(List.of("package docs.authz")), any(),
+                eq(List.of("docs/authz/allow")), input.capture(), eq(List.of("input.resource")));
+        assertEquals(Map.of("subject", "alice", "action", "read", "resourceType", "DOCUMENT", "tenant", "t1"),
+                input.getValue());
+    }
+
+    @Test
+    public void testFilter_EmptyQueryGrantsAll() {
+        compilesTo(query(expr("eq", ref("input", "resource", "id"), scalar("string", "doc-1"))), query());
+
+        assertEquals(FilterResult.Mode.ALL, service.filter(request()).getMode());
+    }
+
+    @Test
+    public void testFilter_AttributeConditionsBecomePredicate() {
+        compilesTo(query(expr("eq", ref("input", "resource", "owner"), scalar("string", "alice")),
+                expr("lt", scalar("number", 3), ref("input", "resource", "level"))));
+
+        FilterResult result = service.filter(request());
+
+        assertEquals(FilterResult.Mode.RESIDUAL, result.getMode());
+        assertEquals(List.of(List.of(condition("owner", "eq", "alice"), condition("level", "gt", 3))),
+                result.getPredicate());
+        assertEquals(1, result.getQueries().size());
+    }
+
+    @Test
+    public void testFilter_UntranslatableResidualKeepsRawQueries() {
+        Map<String, Object> negated = expr("eq", ref("input", "resource", "owner"), scalar("string", "alice"));
+        negated.put("negated", true);
+        compilesTo(query(negated));
+
+        FilterResult result = service.filter(request());
+
+        assertEquals(FilterResult.Mode.RESIDUAL, result.getMode());
+        assertNull(result.getPredicate());
+        assertEquals(1, result.getQueries().size());
+    }
+
+    @Test
+    public void testFilter_SupportModulesAreNotTranslated() {
+        when(evaluationService.partialEvaluate(anyList(), any(), anyList(), anyMap(), anyList()))
+                .thenReturn(List.of(Map.of(
+                        "queries", List.of(query(expr("eq", ref("input", "resource", "id"), scalar("string", "d")))),
+                        "support", List.of(Map.of("package", "partial")))));
+
+        FilterResult result = service.filter(request());
+
+        assertEquals(FilterResult.Mode.RESIDUAL, result.getMode());
+        assertNull(result.getPredicate());
+        assertEquals(1, result.getSupport().size());
+    }
+
+    @Test
+    public void testFilter_CustomIdPath() {
+        compilesTo(query(expr("eq", ref("input", "resource", "key"), scalar("number", 7))));
+        FilterRequest request = request();
+        request.setResourceIdPath("input.resource.key");
+
+        FilterResult result = service.filter(request);
+
+        assertEquals(FilterResult.Mode.IDS, result.getMode());
+        assertEquals(Set.of(7), Set.copyOf(result.getResourceIds()));
+
+        request.setResourceIdPath("input.id");
+        assertThrows(FunctionalException.class, () -> service.filter(request));
+    }
+
+    private void compilesTo(List<?>... queries) {
+        when(evaluationService.partialEvaluate(anyList(), any(), anyList(), anyMap(), anyList()))
+                .thenReturn(List.of(Map.of("queries", List.of(queries))));
+    }
+
+    private static FilterRequest request() {
+        FilterRequest request = new FilterRequest();
+        request.setResourceType("DOCUMENT");
+        request.setSubject("alice");
+        request.setAction("read");
+        return request;
+    }
+
+    private static FilterResult.Condition condition(String path, String operator, Object value) {
+        return FilterResult.Condition.builder().path(path).operator(operator).value(value).build();
+    }
+
+    // Compile API residuals, in the JSON shape OPA returns them
+
+    private static List<Object> query(Map<?, ?>... exprs) {
+        return List.of((Object[]) exprs);
+    }
+
+    private static Map<String, Object> expr(String operator, Map<?, ?> left, Map<?, ?> right) {
+        List<Object> operatorParts = new ArrayList<>();
+        for (String part : operator.split("\\.")) {
+            operatorParts.add(Map.of("type", operatorParts.isEmpty() ? "var" : "string", "value", part));
+        }
+        Map<String, Object> expr = new HashMap<>();
+        expr.put("index", 0);
+        expr.put("terms", List.of(Map.of("type", "ref", "value", operatorParts), left, right));
+        return expr;
+    }
+
+    private static Map<String, Object> ref(String head, String... path) {
+        List<Object> parts = new ArrayList<>();
+        parts.add(Map.of("type", "var", "value", head));
+        for (String part : path) {
+            parts.add(Map.of("type", "string", "value", part));
+        }
+        return Map.of("type", "ref", "value", parts);
+    }
+
+    private static Map<String, Object> scalar(String type, Object value) {
+        return Map.of("type", type, "value", value);
+    }
+
+    private static Map<String, Object> collection(String type, Map<?, ?>... elements) {
+        return Map.of("type", type, "value", List.of((Object[]) elements));
+    }
+}
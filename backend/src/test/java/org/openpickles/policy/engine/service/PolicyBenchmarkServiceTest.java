@@ -0,0 +1,134 @@
+package org.openpickles.policy.engine.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.openpickles.policy.engine.dto.BenchmarkRequest;
+import org.openpickles.policy.engine.exception.FunctionalException;
+import org.openpickles.policy.engine.model.Policy;
+import org.openpickles.policy.engine.model.PolicyBenchmark;
+import org.openpickles.policy.engine.repository.PolicyBenchmarkRepository;
+import org.openpickles.policy.engine.repository.PolicyRepository;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class PolicyBenchmarkServiceTest {
+
+    private static final String BENCH_OUTPUT = "{\"N\": 1000, \"T\": 2500000, \"MemAllocs\": 40000, "
+            + "\"MemBytes\": 3200000, \"Extra\": {\"histogram_timer_rego_query_eval_ns_median\": 2100, "
+            + "\"histogram_timer_rego_query_eval_ns_90%\": 2900, \"histogram_timer_rego_query_eval_ns_99%\": 5400}}";
+
+    private final OpaCliRunner opaCliRunner = mock(OpaCliRunner.class);
+    private final BundleService bundleService = mock(BundleService.class);
+    private final PolicyRepository policyRepository = mock(PolicyRepository.class);
+    private final PolicyBenchmarkRepository benchmarkRepository = mock(PolicyBenchmarkRepository.class);
+    private final PolicyBenchmarkService service = new PolicyBenchmarkService();
+    private final List<String> inputs = new ArrayList<>();
+
+    @BeforeEach
+    public void setup() throws Exception {
+        ReflectionTestUtils.setField(service, "opaCliRunner", opaCliRunner);
+        ReflectionTestUtils.setField(service, "bundleService", bundleService);
+        ReflectionTestUtils.setField(service, "policyRepository", policyRepository);
+        ReflectionTestUtils.setField(service, "benchmarkRepository", benchmarkRepository);
+        when(bundleService.findPackageName(anyString())).thenCallRealMethod();
+        when(benchmarkRepository.save(any())).thenAnswer(invocation -> invocation.getArgument(0));
+        when(opaCliRunner.run(any(), any())).thenAnswer(invocation -> {
+            Path dir = invocation.getArgument(0);
+            inputs.add(Files.readString(dir.resolve("input.json")));
+            return new OpaCliRunner.Result(0, BENCH_OUTPUT);
+        });
+    }
+
+    @Test
+    public void testBenchmark_DraftIsNotPersisted() throws Exception {
+        BenchmarkRequest request = new BenchmarkRequest();
+        request.setPolicyContent("package authz.docs\ndefault allow := false");
+        request.setRule("allow");
+        request.setInput(Map.of("user", "alice"));
+
+        PolicyBenchmark result = service.benchmark(request);
+
+        assertEquals("data.authz.docs.allow", result.getQuery());
+        assertEquals(1000, result.getIterations());
+        assertEquals(2500.0, result.getNsPerOp());
+        assertEquals(40L, result.getAllocsPerOp());
+        assertEquals(3200L, result.getBytesPerOp());
+        assertEquals(2100.0, result.getP50Ns());
+        assertEquals(2900.0, result.getP90Ns());
+        assertEquals(5400.0, result.getP99Ns());
+        assertNull(result.getPolicyId());
+        assertEquals(List.of("{\"user\":\"alice\"}"), inputs);
+        verify(opaCliRunner).run(any(), any());
+        verify(benchmarkRepository, never()).save(any());
+    }
+
+    @Test
+    public void testBenchmark_StoredPolicyIsPersistedWithVersion() {
+        Policy policy = new Policy();
+        policy.setId(3L);
+        policy.setVersion("1.2.0");
+        policy.setContent("package authz");
+        when(policyRepository.findById(3L)).thenReturn(Optional.of(policy));
+        BenchmarkRequest request = new BenchmarkRequest();
+        request.setPolicyId(3L);
+
+        PolicyBenchmark stored = service.benchmark(request);
+
+        assertEquals(3L, stored.getPolicyId());
+        assertEquals("1.2.0", stored.getPolicyVersion());
+        assertEquals("data.authz", stored.getQuery());
+        assertFalse(stored.isDraft());
+        verify(benchmarkRepository).save(stored);
+
+        // Edited content of a stored policy is tagged as a draft of it
+        request.setPolicyContent("package authz\nallow := true");
+        PolicyBenchmark draft = service.benchmark(request);
+        assertTrue(draft.isDraft());
+        assertNotEquals(stored.getContentHash(), draft.getContentHash());
+    }
+
+    @Test
+    public void testBenchmark_RejectsInvalidRequests() {
+        BenchmarkRequest request = new BenchmarkRequest();
+        assertThrows(FunctionalException.class, () -> service.benchmark(request));
+
+        request.setPolicyContent("allow := true");
+        assertThrows(FunctionalException.class, () -> service.benchmark(request));
+
+        request.setPolicyContent("package authz");
+        request.setRule("allow; rm -rf");
+        assertThrows(FunctionalException.class, () -> service.benchmark(request));
+        assertTrue(inputs.isEmpty());
+    }
+
+    @Test
+    public void testBenchmark_OpaFailureIsReported() throws Exception {
+        doReturn(new OpaCliRunner.Result(1, "1 error occurred: policy.rego:1: rego_parse_error"))
+                .when(opaCliRunner).run(any(), any());
+        BenchmarkRequest request = new BenchmarkRequest();
+        request.setPolicyContent("package authz\nallow {");
+
+        FunctionalException e = assertThrows(FunctionalException.class, () -> service.benchmark(request));
+        assertEquals("FUNC_BENCH_FAILED", e.getErrorCode());
+    }
+}
@@ -0,0 +1,151 @@
+package org.openpickles.policy.engine.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.openpickles.policy.engine.dto.BulkValidationRequest;
+import org.openpickles.policy.engine.dto.BulkValidationResult;
+import org.openpickles.policy.engine.exception.FunctionalException;
+import org.openpickles.policy.engine.model.Policy;
+import org.openpickles.policy.engine.repository.PolicyBundleRepository;
+import org.openpickles.policy.engine.repository.PolicyRepository;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class PolicyCheckServiceTest {
+
+    private final OpaCliRunner opaCliRunner = mock(OpaCliRunner.class);
+    private final BundleService bundleService = mock(BundleService.class);
+    private final PolicyRepository policyRepository = mock(PolicyRepository.class);
+    private final PolicyCheckService service = new PolicyCheckService();
+    // Packages of the modules each opa check run saw
+    private final List<List<String>> runs = Collections.synchronizedList(new ArrayList<>());
+
+    @BeforeEach
+    public void setup() throws Exception {
+        ReflectionTestUtils.setField(service, "opaCliRunner", opaCliRunner);
+        ReflectionTestUtils.setField(service, "bundleService", bundleService);
+        ReflectionTestUtils.setField(service, "policyRepository", policyRepository);
+        ReflectionTestUtils.setField(service, "bundleRepository", mock(PolicyBundleRepository.class));
+        ReflectionTestUtils.setField(service, "shardSize", 200);
+        when(bundleService.findPackageName(anyString())).thenCallRealMethod();
+        // opa check reports a parse error for every module containing "broken"
+        when(opaCliRunner.run(any(), any())).thenAnswer(invocation -> {
+            Path dir = invocation.getArgument(0);
+            List<String> packages = new ArrayList<>();
+            List<String> errors = new ArrayList<>();
+            try (Stream<Path> files = Files.list(dir)) {
+                for (Path file : files.sorted().toList()) {
+                    String content = Files.readString(file);
+                    packages.add(bundleService.findPackageName(content));
+                    if (content.contains("broken")) {
+                        errors.add("{\"code\": \"rego_parse_error\", \"message\": \"unexpected ident\", "
+                                + "\"location\": {\"file\": \"" + file.getFileName() + "\", \"row\": 2, \"col\": 1}}");
+                    }
+                }
+            }
+            runs.add(packages);
+            return errors.isEmpty() ? new OpaCliRunner.Result(0, "")
+                    : new OpaCliRunner.Result(1, "{\"errors\": [" + String.join(", ", errors) + "]}");
+        });
+    }
+
+    @AfterEach
+    public void shutdown() {
+        service.shutdown();
+    }
+
+    @Test
+    public void testCheck_AttributesErrorsToModules() {
+        Policy stored = new Policy();
+        stored.setId(7L);
+        stored.setName("stored");
+        stored.setContent("package c\nbroken\n");
+        when(policyRepository.findAllById(Set.of(7L))).thenReturn(List.of(stored));
+        BulkValidationRequest request = request(
+                module("a.rego", "package a\nallow := true\n"),
+                module("b.rego", "package b\nbroken\n"));
+        request.setPolicyIds(List.of(7L));
+
+        BulkValidationResult result = service.check(request);
+
+        assertFalse(result.isValid());
+        assertEquals(1, result.getShards());
+        assertEquals(1, runs.size());
+        assertTrue(result.getFiles().get(0).isValid());
+        BulkValidationResult.FileResult broken = result.getFiles().get(1);
+        assertEquals("b.rego", broken.getName());
+        assertFalse(broken.isValid());
+        assertEquals("rego_parse_error", broken.getErrors().get(0).getCode());
+        assertEquals(2, broken.getErrors().get(0).getRow());
+        BulkValidationResult.FileResult storedResult = result.getFiles().get(2);
+        assertEquals("stored.rego", storedResult.getName());
+        assertEquals(7L, storedResult.getPolicyId());
+        assertFalse(storedResult.isValid());
+        assertTrue(result.getErrors().isEmpty());
+    }
+
+    @Test
+    public void testCheck_ShardsKeepPackagesTogether() {
+        ReflectionTestUtils.setField(service, "shardSize", 2);
+
+        BulkValidationResult result = service.check(request(
+                module("a1.rego", "package a\n"),
+                module("b.rego", "package b\n"),
+                module("a2.rego", "package a\n"),
+                module("c.rego", "package c\n")));
+
+        assertTrue(result.isValid());
+        assertEquals(2, result.getShards());
+        assertTrue(runs.contains(List.of("a", "a")), runs.toString());
+        assertTrue(runs.contains(List.of("b", "c")), runs.toString());
+    }
+
+    @Test
+    public void testCheck_UnattributedErrorFailsValidation() throws Exception {
+        doReturn(new OpaCliRunner.Result(1,
+                "{\"errors\": [{\"code\": \"rego_compile_error\", \"message\": \"too many errors\"}]}"))
+                .when(opaCliRunner).run(any(), any());
+
+        BulkValidationResult result = service.check(request(module("a.rego", "package a\n")));
+
+        assertFalse(result.isValid());
+        assertTrue(result.getFiles().get(0).isValid());
+        assertEquals("too many errors", result.getErrors().get(0).getMessage());
+    }
+
+    @Test
+    public void testCheck_NothingToValidate() {
+        assertThrows(FunctionalException.class, () -> service.check(new BulkValidationRequest()));
+    }
+
+    private static BulkValidationRequest request(BulkValidationRequest.Module... modules) {
+        BulkValidationRequest request = new BulkValidationRequest();
+        request.setModules(List.of(modules));
+        return request;
+    }
+
+    private static BulkValidationRequest.Module module(String name, String content) {
+        BulkValidationRequest.Module module = new BulkValidationRequest.Module();
+        module.setName(name);
+        module.setContent(content);
+        return module;
+    }
+}
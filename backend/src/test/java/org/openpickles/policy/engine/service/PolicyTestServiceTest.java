@@ -0,0 +1,179 @@
+package org.openpickles.policy.engine.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.openpickles.policy.engine.dto.BulkValidationRequest;
+import org.openpickles.policy.engine.dto.PolicyTestRequest;
+import org.openpickles.policy.engine.dto.PolicyTestResult;
+import org.openpickles.policy.engine.exception.FunctionalException;
+import org.openpickles.policy.engine.model.Policy;
+import org.openpickles.policy.engine.repository.PolicyBindingRepository;
+import org.openpickles.policy.engine.repository.PolicyBundleRepository;
+import org.openpickles.policy.engine.repository.PolicyRepository;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class PolicyTestServiceTest {
+
+    private static final Pattern PACKAGE = Pattern.compile("package (\\S+)");
+    private static final Pattern TEST = Pattern.compile("(test_\\w+) \\{ (\\w+) }");
+
+    private final OpaCliRunner opaCliRunner = mock(OpaCliRunner.class);
+    private final OpaClient opaClient = mock(OpaClient.class);
+    private final BundleService bundleService = mock(BundleService.class);
+    private final PolicyRepository policyRepository = mock(PolicyRepository.class);
+    private final PolicyTestService service = new PolicyTestService();
+    // File names each opa test run saw
+    private final List<List<String>> runs = Collections.synchronizedList(new ArrayList<>());
+
+    @BeforeEach
+    public void setup() throws Exception {
+        ReflectionTestUtils.setField(service, "maxShards", 2);
+        ReflectionTestUtils.setField(service, "opaCliRunner", opaCliRunner);
+        ReflectionTestUtils.setField(service, "opaClient", opaClient);
+        ReflectionTestUtils.setField(service, "bundleService", bundleService);
+        ReflectionTestUtils.setField(service, "policyRepository", policyRepository);
+        ReflectionTestUtils.setField(service, "bundleRepository", mock(PolicyBundleRepository.class));
+        ReflectionTestUtils.setField(service, "bindingRepository", mock(PolicyBindingRepository.class));
+        when(opaClient.getVersion()).thenReturn("0.70.0");
+        when(bundleService.getPolicies(anyList())).thenReturn(List.of());
+        when(policyRepository.findAllById(any())).thenReturn(List.of(policy(1L, "authz.rego", "package authz")));
+        // opa test reports one case per "test_x { true|false }" line of the test files
+        when(opaCliRunner.run(any(), any())).thenAnswer(invocation -> {
+            Path dir = invocation.getArgument(0);
+            List<String> files = new ArrayList<>();
+            List<String> reports = new ArrayList<>();
+            try (Stream<Path> list = Files.list(dir)) {
+                for (Path file : list.sorted().toList()) {
+                    String name = file.getFileName().toString();
+                    files.add(name);
+                    if (!name.endsWith("_test.rego")) {
+                        continue;
+                    }
+                    String content = Files.readString(file);
+                    Matcher pkg = PACKAGE.matcher(content);
+                    pkg.find();
+                    Matcher test = TEST.matcher(content);
+                    for (int row = 2; test.find(); row++) {
+                        reports.add("{\"location\": {\"file\": \"" + file + "\", \"row\": " + row + "}, "
+                                + "\"package\": \"data." + pkg.group(1) + "\", \"name\": \"" + test.group(1) + "\", "
+                                + "\"fail\": " + !"true".equals(test.group(2)) + ", \"duration\": 1000}");
+                    }
+                }
+            }
+            runs.add(files);
+            return new OpaCliRunner.Result(reports.isEmpty() ? 0 : 2, "[" + String.join(", ", reports) + "]");
+        });
+    }
+
+    @AfterEach
+    public void shutdown() {
+        service.shutdown();
+    }
+
+    @Test
+    public void testRun_ShardsTestsAndMapsResultsBack() {
+        when(policyRepository.findByFilenameIn(List.of("authz_test.rego"))).thenReturn(List.of(
+                policy(2L, "authz_test.rego", "package authz_test\ntest_allow { true }\ntest_deny { false }")));
+        PolicyTestRequest request = request(test("extra", "package extra_test\ntest_more { true }"));
+        request.setData(Map.of("roles", List.of("admin")));
+
+        PolicyTestResult result = service.run(request);
+
+        assertFalse(result.isSuccess());
+        assertEquals(2, result.getPassed());
+        assertEquals(1, result.getFailed());
+        assertEquals(2, result.getShards());
+        List<PolicyTestResult.TestCase> cases = result.getResults();
+        assertEquals(List.of("authz_test.rego", "authz_test.rego", "extra_test.rego"),
+                cases.stream().map(PolicyTestResult.TestCase::getFile).toList());
+        assertEquals("authz_test", cases.get(0).getPackageName());
+        assertEquals("test_allow", cases.get(0).getName());
+        assertEquals(PolicyTestResult.Status.FAIL, cases.get(1).getStatus());
+        // Every shard sees the policies and the data, but only its own tests
+        assertEquals(2, runs.size());
+        for (List<String> files : runs) {
+            assertTrue(files.contains("data.json") && files.contains("p0.rego"), files.toString());
+            assertEquals(1, files.stream().filter(f -> f.endsWith("_test.rego")).count(), files.toString());
+        }
+    }
+
+    @Test
+    public void testRun_UnchangedSuiteIsCached() {
+        PolicyTestRequest request = request(test("authz_test.rego", "package authz_test\ntest_allow { true }"));
+
+        PolicyTestResult first = service.run(request);
+        PolicyTestResult second = service.run(request);
+
+        assertTrue(first.isSuccess());
+        assertFalse(first.isCached());
+        assertTrue(second.isCached());
+        assertEquals(first.getResults(), second.getResults());
+        assertEquals(1, runs.size());
+
+        // A new OPA version invalidates the cached result
+        when(opaClient.getVersion()).thenReturn("0.71.0");
+        assertFalse(service.run(request).isCached());
+        assertEquals(2, runs.size());
+    }
+
+    @Test
+    public void testRun_CompileErrorIsReported() throws Exception {
+        doReturn(new OpaCliRunner.Result(1, "1 error occurred: authz_test.rego:2: rego_parse_error"))
+                .when(opaCliRunner).run(any(), any());
+
+        FunctionalException e = assertThrows(FunctionalException.class,
+                () -> service.run(request(test("authz_test.rego", "package authz_test\ntest_allow {"))));
+        assertEquals("FUNC_TEST_COMPILE", e.getErrorCode());
+    }
+
+    @Test
+    public void testRun_NothingToTest() {
+        when(policyRepository.findAllById(any())).thenReturn(List.of());
+
+        assertThrows(FunctionalException.class, () -> service.run(new PolicyTestRequest()));
+    }
+
+    private static PolicyTestRequest request(BulkValidationRequest.Module... tests) {
+        PolicyTestRequest request = new PolicyTestRequest();
+        request.setPolicyIds(List.of(1L));
+        request.setTests(List.of(tests));
+        return request;
+    }
+
+    private static BulkValidationRequest.Module test(String name, String content) {
+        BulkValidationRequest.Module module = new BulkValidationRequest.Module();
+        module.setName(name);
+        module.setContent(content);
+        return module;
+    }
+
+    private static Policy policy(Long id, String filename, String content) {
+        Policy policy = new Policy();
+        policy.setId(id);
+        policy.setName(filename.substring(0, filename.length() - ".rego".length()));
+        policy.setFilename(filename);
+        policy.setContent(content);
+        return policy;
+    }
+}
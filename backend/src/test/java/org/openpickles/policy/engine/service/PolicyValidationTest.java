@@ -0,0 +1,93 @@
+package org.openpickles.policy.engine.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.openpickles.policy.engine.OpaInstance;
+import org.openpickles.policy.engine.dto.ValidationResult;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class PolicyValidationTest {
+
+    private final OpaClient opaClient = mock(OpaClient.class);
+    private final RestTemplate restTemplate = mock(RestTemplate.class);
+    private EvaluationService service;
+
+    @BeforeEach
+    public void setup() {
+        when(opaClient.getRestTemplate()).thenReturn(restTemplate);
+        when(opaClient.getVersion()).thenReturn("1.0.0");
+        OpaInstance instance = mock(OpaInstance.class);
+        when(instance.getUrl()).thenReturn("http://opa");
+        when(instance.getOutstanding()).thenReturn(new AtomicInteger());
+        when(opaClient.acquire()).thenAnswer(invocation -> new OpaClient.Lease(instance));
+        service = new EvaluationService(opaClient);
+        ReflectionTestUtils.setField(service, "regoPerformanceLinter", mock(RegoPerformanceLinter.class));
+    }
+
+    @Test
+    public void testValidate_CompilesInsideSandbox() {
+        ValidationResult result = service.validate("package authz\n\nallow if data.roles[input.user] == \"admin\"\n");
+
+        assertTrue(result.isValid());
+        ArgumentCaptor<String> url = ArgumentCaptor.forClass(String.class);
+        ArgumentCaptor<HttpEntity> request = ArgumentCaptor.forClass(HttpEntity.class);
+        verify(restTemplate).put(url.capture(), request.capture());
+        // Never the stored package, so live decisions on data.authz are untouched
+        assertTrue(url.getValue().startsWith("http://opa/v1/policies/sandboxes/"), url.getValue());
+        String module = (String) request.getValue().getBody();
+        assertTrue(module.startsWith("package sandboxes.s"), module);
+        assertTrue(module.contains("data.sandboxes.s"), module);
+        verify(restTemplate).delete(url.getValue());
+        // Modules only, validation never writes data
+        verify(restTemplate, never()).put(eq("http://opa/v1/data"), any());
+    }
+
+    @Test
+    public void testValidate_ReportsErrorsWithoutSandboxPrefix() {
+        doAnswer(invocation -> {
+            // OPA names the rewritten package in its errors
+            String id = ((String) invocation.getArgument(0)).split("/")[6];
+            String body = "{\"message\": \"rego_type_error: conflicting rules data.sandboxes." + id
+                    + ".authz.allow\"}";
+            // As RestTemplate's error handler reports it, body included
+            throw HttpClientErrorException.create("400 Bad Request: " + body, HttpStatus.BAD_REQUEST,
+                    "Bad Request", null, body.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8);
+        }).when(restTemplate).put(anyString(), any(HttpEntity.class));
+
+        ValidationResult result = service.validate("package authz\n");
+
+        assertFalse(result.isValid());
+        verify(restTemplate, never()).delete(anyString());
+        assertTrue(result.getError().contains("conflicting rules data.authz.allow"), result.getError());
+    }
+
+    @Test
+    public void testUnwrap_StripsOnlyOwnRoot() {
+        OpaSandbox sandbox = new OpaSandbox("http://opa");
+        String prefix = OpaSandbox.ROOT + "." + sandbox.getId() + ".";
+
+        assertEquals("conflicting rules data.authz.allow in authz",
+                sandbox.unwrap("conflicting rules data." + prefix + "authz.allow in " + prefix + "authz"));
+        assertEquals("data.sandboxes.other.authz", sandbox.unwrap("data.sandboxes.other.authz"));
+    }
+}
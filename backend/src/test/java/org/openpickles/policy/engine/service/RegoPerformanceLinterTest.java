@@ -0,0 +1,97 @@
+package org.openpickles.policy.engine.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.openpickles.policy.engine.model.LintWarning;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.openpickles.policy.engine.service.rego.RegoAst.*;
+
+public class RegoPerformanceLinterTest {
+
+    private final OpaCliRunner opaCliRunner = mock(OpaCliRunner.class);
+    private final RegoPerformanceLinter linter = new RegoPerformanceLinter();
+
+    @BeforeEach
+    public void setup() {
+        ReflectionTestUtils.setField(linter, "largeDataRoots", List.of("entitlements", "bindings"));
+        ReflectionTestUtils.setField(linter, "opaCliRunner", opaCliRunner);
+    }
+
+    @Test
+    public void testLint_UnboundKeyOverLargeRoot() {
+        List<LintWarning> warnings = lint(module("authz",
+                rule("allow", null, call("equal", ref("data.entitlements[_].subjectId"), ref("input.user")))));
+
+        assertEquals(1, warnings.size());
+        assertEquals(LintWarning.Rule.NON_INDEXED_ITERATION, warnings.get(0).getRule());
+        assertEquals("allow", warnings.get(0).getRuleName());
+        assertTrue(warnings.get(0).getMessage().contains("data.entitlements"));
+    }
+
+    @Test
+    public void testLint_MembershipOverLargeRoot() {
+        assertEquals(List.of(LintWarning.Rule.NON_INDEXED_ITERATION, LintWarning.Rule.NON_INDEXED_ITERATION),
+                rules(lint(module("authz",
+                        rule("allow", null, someIn(var("b"), ref("data.bindings")),
+                                call("equal", ref("b.subject"), ref("input.user"))),
+                        rule("member", null, call("internal.member_2", ref("input.user"), ref("data.bindings")))))));
+    }
+
+    @Test
+    public void testLint_KeyedLookupAndSmallRootsPass() {
+        assertEquals(List.of(), lint(module("authz",
+                rule("allow", null, call("assign", var("id"), ref("input.user")),
+                        term(ref("data.entitlements[id].active"))),
+                rule("admin", null, call("equal", ref("data.config.admins[_]"), ref("input.user"))))));
+    }
+
+    @Test
+    public void testLint_ComprehensionReportedOnce() {
+        List<LintWarning> warnings = lint(module("authz",
+                rule("subjects", setComprehension(ref("e.subjectId"), someIn(var("e"), ref("data.entitlements")),
+                        call("equal", ref("data.bindings[_].id"), ref("e.binding"))))));
+
+        assertEquals(List.of(LintWarning.Rule.UNBOUNDED_COMPREHENSION), rules(warnings));
+        assertTrue(warnings.get(0).getMessage().contains("data.entitlements"));
+        assertTrue(warnings.get(0).getMessage().contains("data.bindings"));
+    }
+
+    @Test
+    public void testLint_RepeatedExpensiveBuiltin() {
+        JsonNode match = call("regex.match", str("^adm"), ref("input.user"));
+
+        assertEquals(List.of(LintWarning.Rule.REPEATED_BUILTIN), rules(lint(module("authz",
+                rule("admin", null, match),
+                rule("allow", null, match),
+                rule("deny", null, call("regex.match", str("^ext"), ref("input.user")),
+                        call("equal", ref("input.action"), str("write")))))));
+        // Cheap built-ins are not tracked
+        assertEquals(List.of(), lint(module("authz",
+                rule("a", null, call("startswith", ref("input.user"), str("x"))),
+                rule("b", null, call("startswith", ref("input.user"), str("x"))))));
+    }
+
+    @Test
+    public void testLint_UnparseableModuleHasNoWarnings() {
+        when(opaCliRunner.parse("package authz")).thenReturn(null);
+
+        assertEquals(List.of(), linter.lint("package authz"));
+    }
+
+    private List<LintWarning> lint(JsonNode module) {
+        when(opaCliRunner.parse("package authz")).thenReturn(module);
+        return linter.lint("package authz");
+    }
+
+    private static List<LintWarning.Rule> rules(List<LintWarning> warnings) {
+        return warnings.stream().map(LintWarning::getRule).toList();
+    }
+}
@@ -0,0 +1,105 @@
+package org.openpickles.policy.engine.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ResourceIdTrieTest {
+
+    @Test
+    public void testPatterns() {
+        assertTrue(ResourceIdTrie.isPattern("branch-12/*"));
+        assertFalse(ResourceIdTrie.isPattern("branch-12/doc"));
+        assertTrue(ResourceIdTrie.isValid("*"));
+        assertTrue(ResourceIdTrie.isValid("doc"));
+        assertFalse(ResourceIdTrie.isValid("branch-*/doc"));
+        assertFalse(ResourceIdTrie.isValid("**"));
+        assertEquals("branch-12/", ResourceIdTrie.prefixOf("branch-12/*"));
+        assertTrue(ResourceIdTrie.matches("branch-12/*", "branch-12/doc"));
+        assertFalse(ResourceIdTrie.matches("branch-12/*", "branch-123"));
+        assertTrue(ResourceIdTrie.matches("*", "anything"));
+        assertTrue(ResourceIdTrie.matches("doc", "doc"));
+    }
+
+    @Test
+    public void testForEachMatch_ShortestPrefixFirst() {
+        ResourceIdTrie<String> trie = new ResourceIdTrie<>();
+        trie.add("branch-12/", "branch");
+        trie.add("", "all");
+        trie.add("branch-1", "branch-1x");
+        trie.add("branch-2", "other");
+
+        assertEquals(List.of("all", "branch-1x", "branch"), matches(trie, "branch-12/doc"));
+        assertEquals(List.of("all", "branch-1x"), matches(trie, "branch-13"));
+        assertEquals(List.of("all"), matches(trie, "branch-"));
+        assertEquals(List.of("all"), matches(trie, ""));
+
+        trie.remove("branch-1", "branch-1x");
+        assertEquals(List.of("all", "branch"), matches(trie, "branch-12/doc"));
+        assertEquals(List.of("all"), matches(trie, "branch-13"));
+    }
+
+    @Test
+    public void testAddAndRemove_MatchBruteForce() {
+        Random random = new Random(11);
+        ResourceIdTrie<Integer> trie = new ResourceIdTrie<>();
+        Map<Integer, String> stored = new HashMap<>();
+        for (int op = 0; op < 2000; op++) {
+            if (stored.isEmpty() || random.nextInt(3) > 0) {
+                int value = random.nextInt(300);
+                String prefix = randomId(random, 5);
+                if (stored.containsKey(value)) {
+                    trie.remove(stored.get(value), value);
+                }
+                trie.add(prefix, value);
+                stored.put(value, prefix);
+            } else {
+                Integer value = new ArrayList<>(stored.keySet()).get(random.nextInt(stored.size()));
+                trie.remove(stored.remove(value), value);
+            }
+
+            String resourceId = randomId(random, 7);
+            Set<Integer> expected = new HashSet<>();
+            stored.forEach((value, prefix) -> {
+                if (resourceId.startsWith(prefix)) {
+                    expected.add(value);
+                }
+            });
+            List<Integer> actual = new ArrayList<>();
+            trie.forEachMatch(resourceId, actual::add);
+            assertEquals(expected, new HashSet<>(actual), resourceId);
+            assertEquals(expected.size(), actual.size(), resourceId);
+            for (int i = 1; i < actual.size(); i++) {
+                assertTrue(stored.get(actual.get(i - 1)).length() <= stored.get(actual.get(i)).length());
+            }
+        }
+
+        stored.forEach((value, prefix) -> trie.remove(prefix, value));
+        assertTrue(trie.isEmpty());
+    }
+
+    private static List<String> matches(ResourceIdTrie<String> trie, String resourceId) {
+        List<String> values = new ArrayList<>();
+        trie.forEachMatch(resourceId, values::add);
+        return values;
+    }
+
+    // Small alphabet so prefixes share and split edges often
+    private static String randomId(Random random, int maxLength) {
+        StringBuilder id = new StringBuilder();
+        for (int i = random.nextInt(maxLength + 1); i > 0; i--) {
+            id.append("ab/".charAt(random.nextInt(3)));
+        }
+        return id.toString();
+    }
+}
@@ -0,0 +1,97 @@
+package org.openpickles.policy.engine.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class StringDictionaryTest {
+
+    @Test
+    public void testEncode_DenseStableCodes() {
+        StringDictionary dictionary = new StringDictionary();
+
+        assertEquals(0, dictionary.encode("alice"));
+        assertEquals(1, dictionary.encode("bob"));
+        assertEquals(0, dictionary.encode("alice"));
+        assertEquals(2, dictionary.size());
+        assertEquals(1, dictionary.find("bob"));
+        assertEquals(-1, dictionary.find("carol"));
+        assertEquals("bob", dictionary.get(1));
+    }
+
+    @Test
+    public void testFind_ComparesFullValues() {
+        StringDictionary dictionary = new StringDictionary();
+        // "Aa" and "BB" share a hash code, "ab" is a prefix of "abc"
+        List<String> values = List.of("", "Aa", "BB", "ab", "abc", "café", "文档-7", "doc-📄", "cafe");
+        values.forEach(dictionary::encode);
+
+        for (int code = 0; code < values.size(); code++) {
+            assertEquals(code, dictionary.find(values.get(code)), values.get(code));
+            assertEquals(values.get(code), dictionary.get(code));
+        }
+        assertEquals(-1, dictionary.find("a"));
+        assertEquals(-1, dictionary.find("abcd"));
+        assertEquals(-1, dictionary.find("caf"));
+        assertEquals(-1, dictionary.find("doc-📅"));
+    }
+
+    @Test
+    public void testEncode_GrowsPastInitialCapacity() {
+        StringDictionary dictionary = new StringDictionary();
+        String large = "x".repeat(5000);
+        for (int i = 0; i < 20_000; i++) {
+            assertEquals(i, dictionary.encode("resource-" + i));
+        }
+        int code = dictionary.encode(large);
+
+        assertEquals(20_001, dictionary.size());
+        assertEquals(large, dictionary.get(code));
+        for (int i = 0; i < 20_000; i += 997) {
+            assertEquals(i, dictionary.find("resource-" + i));
+            assertEquals("resource-" + i, dictionary.get(i));
+        }
+    }
+
+    @Test
+    public void testFind_ConcurrentWithEncode() throws Exception {
+        StringDictionary dictionary = new StringDictionary();
+        AtomicBoolean done = new AtomicBoolean();
+        ExecutorService readers = Executors.newFixedThreadPool(3);
+        try {
+            List<Future<Integer>> lookups = new ArrayList<>();
+            for (int r = 0; r < 3; r++) {
+                lookups.add(readers.submit(() -> {
+                    int checked = 0;
+                    while (!done.get()) {
+                        int size = dictionary.size();
+                        for (int code = Math.max(0, size - 50); code < size; code++) {
+                            // Every published code is complete
+                            assertEquals("value-" + code, dictionary.get(code));
+                            assertEquals(code, dictionary.find("value-" + code));
+                            checked++;
+                        }
+                    }
+                    return checked;
+                }));
+            }
+            for (int i = 0; i < 50_000; i++) {
+                dictionary.encode("value-" + i);
+            }
+            done.set(true);
+            for (Future<Integer> lookup : lookups) {
+                // Rethrows a failed reader assertion
+                lookup.get();
+            }
+        } finally {
+            readers.shutdownNow();
+        }
+    }
+}
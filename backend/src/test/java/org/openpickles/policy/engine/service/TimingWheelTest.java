@@ -0,0 +1,84 @@
+package org.openpickles.policy.engine.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TimingWheelTest {
+
+    @Test
+    public void testAdvance_NeverFiresBeforeDeadline() {
+        TimingWheel wheel = new TimingWheel(10, 1000);
+        wheel.schedule(1, 1025);
+        wheel.schedule(2, 1030);
+
+        assertArrayEquals(new long[0], wheel.advance(1029));
+        // 1025 rounds up to the 1030 tick
+        assertArrayEquals(new long[] { 1, 2 }, sorted(wheel.advance(1030)));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testAdvance_OverdueFiresOnNextAdvance() {
+        TimingWheel wheel = new TimingWheel(10, 1000);
+        wheel.schedule(7, 500);
+        wheel.schedule(8, 1000);
+
+        assertEquals(2, wheel.size());
+        assertArrayEquals(new long[] { 7, 8 }, sorted(wheel.advance(1000)));
+        assertArrayEquals(new long[0], wheel.advance(2000));
+    }
+
+    @Test
+    public void testAdvance_CascadesThroughLevels() {
+        // Deadlines up to 300,000 ticks span the first four levels (64^3 = 262,144)
+        Random random = new Random(42);
+        TimingWheel wheel = new TimingWheel(1, 0);
+        Map<Long, Long> deadlines = new HashMap<>();
+        for (long id = 0; id < 5000; id++) {
+            long deadline = 1 + random.nextInt(300_000);
+            deadlines.put(id, deadline);
+            wheel.schedule(id, deadline);
+        }
+
+        long previous = 0;
+        long now = 0;
+        while (now < 300_000) {
+            now = Math.min(300_000, now + 1 + random.nextInt(5000));
+            for (long id : wheel.advance(now)) {
+                long deadline = deadlines.remove(id);
+                assertTrue(deadline > previous && deadline <= now, id + " due at " + deadline + ", fired at " + now);
+            }
+            previous = now;
+            for (long deadline : deadlines.values()) {
+                assertTrue(deadline > now);
+            }
+        }
+        assertTrue(deadlines.isEmpty());
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testAdvance_RescheduledIdFiresTwice() {
+        TimingWheel wheel = new TimingWheel(1, 0);
+        wheel.schedule(3, 100);
+        wheel.schedule(3, 5000);
+
+        assertArrayEquals(new long[] { 3 }, wheel.advance(100));
+        assertEquals(1, wheel.size());
+        assertArrayEquals(new long[] { 3 }, wheel.advance(5000));
+    }
+
+    private static long[] sorted(long[] ids) {
+        long[] copy = ids.clone();
+        Arrays.sort(copy);
+        return copy;
+    }
+}
@@ -0,0 +1,262 @@
+package org.openpickles.policy.engine.service.rego;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Builds module ASTs in the shape {@code opa parse --format json} prints, so
+ * tests can feed {@link RegoCompiler} without an opa binary.
+ */
+public final class RegoAst {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private RegoAst() {
+    }
+
+    public static ObjectNode module(String pkg, JsonNode... rules) {
+        ObjectNode module = MAPPER.createObjectNode();
+        ArrayNode path = module.putObject("package").putArray("path");
+        path.add(var("data"));
+        for (String part : pkg.split("\\.")) {
+            path.add(str(part));
+        }
+        module.putArray("imports").addObject().set("path", ref("rego.v1"));
+        ArrayNode array = module.putArray("rules");
+        for (JsonNode rule : rules) {
+            array.add(rule);
+        }
+        return module;
+    }
+
+    public static ObjectNode defaultRule(String name, JsonNode value) {
+        ObjectNode rule = MAPPER.createObjectNode();
+        rule.put("default", true);
+        rule.set("head", head(name).set("value", value));
+        rule.putArray("body").add(expr(bool(true), 0));
+        return rule;
+    }
+
+    /**
+     * {@code name := value if { body }}; a null value is {@code true}.
+     */
+    public static ObjectNode rule(String name, JsonNode value, JsonNode... body) {
+        ObjectNode rule = MAPPER.createObjectNode();
+        rule.set("head", head(name).set("value", value != null ? value : bool(true)));
+        rule.set("body", body(body));
+        return rule;
+    }
+
+    /**
+     * {@code name contains key if { body }}.
+     */
+    public static ObjectNode partialSet(String name, JsonNode key, JsonNode... body) {
+        ObjectNode rule = MAPPER.createObjectNode();
+        rule.set("head", head(name).set("key", key));
+        rule.set("body", body(body));
+        return rule;
+    }
+
+    /**
+     * An expression that is a single term, e.g. {@code input.admin}.
+     */
+    public static ObjectNode term(JsonNode term) {
+        return expr(term, 0);
+    }
+
+    /**
+     * A call expression, e.g. {@code call("equal", a, b)} for {@code a == b}.
+     */
+    public static ObjectNode call(String operator, JsonNode... args) {
+        ArrayNode terms = MAPPER.createArrayNode();
+        terms.add(operator(operator));
+        for (JsonNode arg : args) {
+            terms.add(arg);
+        }
+        return expr(terms, 0);
+    }
+
+    public static ObjectNode not(ObjectNode expr) {
+        return expr.deepCopy().put("negated", true);
+    }
+
+    /**
+     * {@code expr with target as value}.
+     */
+    public static ObjectNode with(ObjectNode expr, JsonNode target, JsonNode value) {
+        ObjectNode copy = expr.deepCopy();
+        ObjectNode with = copy.putArray("with").addObject();
+        with.set("target", target);
+        with.set("value", value);
+        return copy;
+    }
+
+    /**
+     * {@code some x, y}.
+     */
+    public static ObjectNode some(String... vars) {
+        ObjectNode terms = MAPPER.createObjectNode();
+        ArrayNode symbols = terms.putArray("symbols");
+        for (String name : vars) {
+            symbols.add(var(name));
+        }
+        return expr(terms, 0);
+    }
+
+    /**
+     * {@code some element in collection}.
+     */
+    public static ObjectNode someIn(JsonNode element, JsonNode collection) {
+        ObjectNode terms = MAPPER.createObjectNode();
+        terms.putArray("symbols").add(callTerm("internal.member_2", element, collection));
+        return expr(terms, 0);
+    }
+
+    /**
+     * {@code some key, value in collection}.
+     */
+    public static ObjectNode someIn(JsonNode key, JsonNode value, JsonNode collection) {
+        ObjectNode terms = MAPPER.createObjectNode();
+        terms.putArray("symbols").add(callTerm("internal.member_3", key, value, collection));
+        return expr(terms, 0);
+    }
+
+    /**
+     * {@code every x in collection { body }}, which OPA prints as an
+     * {@code every} term.
+     */
+    public static ObjectNode every(String var, JsonNode collection, JsonNode... body) {
+        ObjectNode term = MAPPER.createObjectNode().put("type", "every");
+        ObjectNode value = term.putObject("value");
+        value.set("key", var("__local0__"));
+        value.set("value", var(var));
+        value.set("domain", collection);
+        value.set("body", body(body));
+        return expr(term, 0);
+    }
+
+    /**
+     * {@code {term | body}}.
+     */
+    public static ObjectNode setComprehension(JsonNode term, JsonNode... body) {
+        ObjectNode comprehension = MAPPER.createObjectNode().put("type", "setcomprehension");
+        ObjectNode value = comprehension.putObject("value");
+        value.set("term", term);
+        value.set("body", body(body));
+        return comprehension;
+    }
+
+    /**
+     * A ref from dotted text; segments after the head are strings, segments
+     * in brackets are variables: {@code ref("data.entitlements[_].id")}.
+     */
+    public static ObjectNode ref(String dotted) {
+        ArrayNode parts = MAPPER.createArrayNode();
+        for (String segment : dotted.split("\\.")) {
+            int bracket = segment.indexOf('[');
+            String name = bracket >= 0 ? segment.substring(0, bracket) : segment;
+            parts.add(parts.isEmpty() ? var(name) : str(name));
+            while (bracket >= 0) {
+                int close = segment.indexOf(']', bracket);
+                parts.add(var(segment.substring(bracket + 1, close)));
+                bracket = segment.indexOf('[', close);
+            }
+        }
+        return parts.size() == 1 ? (ObjectNode) parts.get(0) : term("ref", parts);
+    }
+
+    public static ObjectNode ref(JsonNode... parts) {
+        ArrayNode array = MAPPER.createArrayNode();
+        for (JsonNode part : parts) {
+            array.add(part);
+        }
+        return term("ref", array);
+    }
+
+    public static ObjectNode callTerm(String operator, JsonNode... args) {
+        ArrayNode value = MAPPER.createArrayNode();
+        value.add(operator(operator));
+        for (JsonNode arg : args) {
+            value.add(arg);
+        }
+        return term("call", value);
+    }
+
+    public static ObjectNode var(String name) {
+        return MAPPER.createObjectNode().put("type", "var").put("value", name);
+    }
+
+    public static ObjectNode str(String value) {
+        return MAPPER.createObjectNode().put("type", "string").put("value", value);
+    }
+
+    public static ObjectNode num(long value) {
+        return MAPPER.createObjectNode().put("type", "number").put("value", value);
+    }
+
+    public static ObjectNode bool(boolean value) {
+        return MAPPER.createObjectNode().put("type", "boolean").put("value", value);
+    }
+
+    public static ObjectNode set(JsonNode... elements) {
+        return collection("set", elements);
+    }
+
+    public static ObjectNode array(JsonNode... elements) {
+        return collection("array", elements);
+    }
+
+    public static ObjectNode object(JsonNode... keysAndValues) {
+        ArrayNode pairs = MAPPER.createArrayNode();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            pairs.addArray().add(keysAndValues[i]).add(keysAndValues[i + 1]);
+        }
+        return term("object", pairs);
+    }
+
+    private static ObjectNode collection(String type, JsonNode... elements) {
+        ArrayNode array = MAPPER.createArrayNode();
+        for (JsonNode element : elements) {
+            array.add(element);
+        }
+        return term(type, array);
+    }
+
+    private static ObjectNode term(String type, JsonNode value) {
+        ObjectNode term = MAPPER.createObjectNode().put("type", type);
+        term.set("value", value);
+        return term;
+    }
+
+    // Operators are refs even when they have a single segment
+    private static ObjectNode operator(String name) {
+        ArrayNode parts = MAPPER.createArrayNode();
+        String[] segments = name.split("\\.");
+        for (int i = 0; i < segments.length; i++) {
+            parts.add(i == 0 ? var(segments[i]) : str(segments[i]));
+        }
+        return term("ref", parts);
+    }
+
+    private static ObjectNode head(String name) {
+        ObjectNode head = MAPPER.createObjectNode().put("name", name);
+        head.putArray("ref").add(var(name));
+        return head;
+    }
+
+    private static ArrayNode body(JsonNode... exprs) {
+        ArrayNode body = MAPPER.createArrayNode();
+        for (int i = 0; i < exprs.length; i++) {
+            body.add(((ObjectNode) exprs[i].deepCopy()).put("index", i));
+        }
+        return body;
+    }
+
+    private static ObjectNode expr(JsonNode terms, int index) {
+        ObjectNode expr = MAPPER.createObjectNode().put("index", index);
+        expr.set("terms", terms);
+        return expr;
+    }
+}
@@ -0,0 +1,320 @@
+package org.openpickles.policy.engine.service.rego;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+import org.openpickles.policy.engine.service.OpaCliRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+import static org.openpickles.policy.engine.service.rego.RegoAst.*;
+
+/**
+ * Evaluates Rego programs natively and compares the results with what OPA
+ * returns for them. The expected values are OPA's; {@link #testOpaEval} checks
+ * them, and the AST fixtures, against a real opa binary when one is on the
+ * PATH.
+ */
+public class RegoConformanceTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static final String DATA = """
+            {
+              "blocked": ["mallory"],
+              "grants": [
+                {"id": "g1", "user": "alice", "action": "read"},
+                {"id": "g2", "user": "bob", "action": "write"},
+                {"id": "g3", "user": "alice", "action": "write"}
+              ],
+              "docs": {"d1": {"owner": "alice"}, "d2": {"owner": "bob"}, "d3": {"owner": "alice"}}
+            }
+            """;
+
+    private static final Program BUILTINS = new Program(List.of("""
+            package conf
+            import rego.v1
+            many_roles if count(input.roles) > 1
+            api if startswith(input.path, "/api/")
+            json if endswith(input.path, ".json")
+            has_admin if contains(lower(input.user), "admin")
+            shout := upper(input.user)
+            """), List.of(module("conf",
+            rule("many_roles", null, call("gt", callTerm("count", ref("input.roles")), num(1))),
+            rule("api", null, call("startswith", ref("input.path"), str("/api/"))),
+            rule("json", null, call("endswith", ref("input.path"), str(".json"))),
+            rule("has_admin", null, call("contains", callTerm("lower", ref("input.user")), str("admin"))),
+            rule("shout", callTerm("upper", ref("input.user")), term(bool(true))))));
+
+    private static final Program NEGATION = new Program(List.of("""
+            package conf
+            import rego.v1
+            default allow := false
+            allow if {
+                input.user == "alice"
+                not blocked
+            }
+            blocked if input.user in data.blocked
+            blocked if input.suspended
+            """), List.of(module("conf",
+            defaultRule("allow", bool(false)),
+            rule("allow", null, call("equal", ref("input.user"), str("alice")), not(term(var("blocked")))),
+            rule("blocked", null, call("internal.member_2", ref("input.user"), ref("data.blocked"))),
+            rule("blocked", null, term(ref("input.suspended"))))));
+
+    private static final Program SOME = new Program(List.of("""
+            package conf
+            import rego.v1
+            allow if {
+                some i
+                data.grants[i].user == input.user
+                data.grants[i].action == input.action
+            }
+            admin_roles contains r if {
+                some r in input.roles
+                startswith(r, "admin")
+            }
+            owned contains k if {
+                some k, v in data.docs
+                v.owner == input.user
+            }
+            known_action if input.action in {"read", "write"}
+            """), List.of(module("conf",
+            rule("allow", null, some("i"),
+                    call("equal", ref("data.grants[i].user"), ref("input.user")),
+                    call("equal", ref("data.grants[i].action"), ref("input.action"))),
+            partialSet("admin_roles", var("r"), someIn(var("r"), ref("input.roles")),
+                    call("startswith", var("r"), str("admin"))),
+            partialSet("owned", var("k"), someIn(var("k"), var("v"), ref("data.docs")),
+                    call("equal", ref("v.owner"), ref("input.user"))),
+            rule("known_action", null,
+                    call("internal.member_2", ref("input.action"), set(str("read"), str("write")))))));
+
+    private static final Program PARTIAL_SETS = new Program(List.of("""
+            package conf
+            import rego.v1
+            grant_ids contains g.id if {
+                some g in data.grants
+                g.user == input.user
+            }
+            actions contains g.action if {
+                some g in data.grants
+                g.user == input.user
+            }
+            grant_count := count(grant_ids)
+            """), List.of(module("conf",
+            partialSet("grant_ids", ref("g.id"), someIn(var("g"), ref("data.grants")),
+                    call("equal", ref("g.user"), ref("input.user"))),
+            partialSet("actions", ref("g.action"), someIn(var("g"), ref("data.grants")),
+                    call("equal", ref("g.user"), ref("input.user"))),
+            rule("grant_count", callTerm("count", var("grant_ids")), term(bool(true))))));
+
+    private static final Program DEFAULTS = new Program(List.of("""
+            package conf
+            import rego.v1
+            default level := 0
+            level := 1 if input.user == "bob"
+            level := 2 if input.admin
+            exact if input.n == 1
+            at_least_one if input.n >= 1
+            below_two if input.n < 2
+            """), List.of(module("conf",
+            defaultRule("level", num(0)),
+            rule("level", num(1), call("equal", ref("input.user"), str("bob"))),
+            rule("level", num(2), term(ref("input.admin"))),
+            rule("exact", null, call("equal", ref("input.n"), num(1))),
+            rule("at_least_one", null, call("gte", ref("input.n"), num(1))),
+            rule("below_two", null, call("lt", ref("input.n"), num(2))))));
+
+    private static final Program PACKAGES = new Program(List.of("""
+            package conf.lib
+            import rego.v1
+            admins := {"alice"}
+            """, """
+            package conf
+            import rego.v1
+            allow if input.user in data.conf.lib.admins
+            """), List.of(
+            module("conf.lib", rule("admins", set(str("alice")), term(bool(true)))),
+            module("conf", rule("allow", null,
+                    call("internal.member_2", ref("input.user"), ref("data.conf.lib.admins"))))));
+
+    static Stream<Case> cases() {
+        return Stream.of(
+                new Case("builtins", BUILTINS, """
+                        {"roles": ["a", "b"], "path": "/api/x.json", "user": "SuperAdmin"}""", "conf", """
+                        {"many_roles": true, "api": true, "json": true, "has_admin": true, "shout": "SUPERADMIN"}"""),
+                new Case("builtins on wrong types are undefined", BUILTINS, """
+                        {"roles": "ab", "path": 7, "user": "alice"}""", "conf", """
+                        {"many_roles": true, "shout": "ALICE"}"""),
+                new Case("negation allows", NEGATION, """
+                        {"user": "alice"}""", "conf/allow", "true"),
+                new Case("negation of a rule with any true definition", NEGATION, """
+                        {"user": "alice", "suspended": true}""", "conf/allow", "false"),
+                new Case("negated rule is undefined, not false", NEGATION, """
+                        {"user": "alice"}""", "conf/blocked", null),
+                new Case("some index across two refs", SOME, """
+                        {"user": "alice", "action": "write"}""", "conf/allow", "true"),
+                new Case("some index without a match", SOME, """
+                        {"user": "bob", "action": "read"}""", "conf/allow", null),
+                new Case("some in", SOME, """
+                        {"roles": ["admin-eu", "viewer", "admin-us"]}""", "conf/admin_roles", """
+                        ["admin-eu", "admin-us"]"""),
+                new Case("some key value in", SOME, """
+                        {"user": "alice"}""", "conf/owned", """
+                        ["d1", "d3"]"""),
+                new Case("in a set literal", SOME, """
+                        {"action": "write"}""", "conf/known_action", "true"),
+                new Case("partial set over an indexed collection", PARTIAL_SETS, """
+                        {"user": "alice"}""", "conf", """
+                        {"grant_ids": ["g1", "g3"], "actions": ["read", "write"], "grant_count": 2}"""),
+                new Case("empty partial set", PARTIAL_SETS, """
+                        {"user": "nobody"}""", "conf/grant_ids", "[]"),
+                new Case("default", DEFAULTS, """
+                        {"user": "carol", "n": 1.0}""", "conf", """
+                        {"level": 0, "exact": true, "at_least_one": true, "below_two": true}"""),
+                new Case("numbers compare by value", DEFAULTS, """
+                        {"user": "bob", "n": 1.5}""", "conf", """
+                        {"level": 1, "at_least_one": true, "below_two": true}"""),
+                new Case("rule of another package", PACKAGES, """
+                        {"user": "alice"}""", "conf/allow", "true"),
+                new Case("base document", PACKAGES, "{}", "blocked", """
+                        ["mallory"]"""));
+    }
+
+    @ParameterizedTest(name = "{0}")
+    @MethodSource("cases")
+    public void testNative(Case c) throws Exception {
+        CompiledBundle bundle = RegoCompiler.compile(c.program().asts(), snapshot());
+
+        Object actual = bundle.evaluate(c.path(), MAPPER.readValue(c.input(), Object.class));
+
+        assertResult(c, actual);
+    }
+
+    /**
+     * The same cases against opa itself: {@code opa eval} for the expected
+     * result and {@code opa parse} for the ASTs the native evaluator is fed
+     * in production.
+     */
+    @ParameterizedTest(name = "{0}")
+    @MethodSource("cases")
+    public void testOpaEval(Case c) throws Exception {
+        OpaCliRunner runner = new OpaCliRunner();
+        ReflectionTestUtils.setField(runner, "timeoutMs", 30_000L);
+        assumeTrue(opaAvailable(runner), "opa is not on the PATH");
+
+        Path dir = Files.createTempDirectory("rego-conformance");
+        try {
+            Path bundle = Files.createDirectory(dir.resolve("bundle"));
+            List<JsonNode> parsed = new ArrayList<>();
+            for (int i = 0; i < c.program().sources().size(); i++) {
+                String source = c.program().sources().get(i);
+                Files.writeString(bundle.resolve("module" + i + ".rego"), source, StandardCharsets.UTF_8);
+                JsonNode ast = runner.parse(source);
+                assertNotNull(ast, "opa parse of module " + i);
+                parsed.add(ast);
+            }
+            Files.writeString(bundle.resolve("data.json"), DATA, StandardCharsets.UTF_8);
+            Files.writeString(dir.resolve("input.json"), c.input(), StandardCharsets.UTF_8);
+
+            OpaCliRunner.Result result = runner.run(dir, List.of("eval", "--format", "json", "-d", "bundle",
+                    "-i", "input.json", "data." + c.path().replace('/', '.')));
+            assertEquals(0, result.getExitCode(), result.getOutput());
+            JsonNode expressions = MAPPER.readTree(result.getOutput()).path("result").path(0).path("expressions");
+            Object opa = expressions.isMissingNode() ? Values.UNDEFINED
+                    : MAPPER.convertValue(expressions.path(0).path("value"), Object.class);
+            assertResult(c, opa);
+
+            Object actual = RegoCompiler.compile(parsed, snapshot())
+                    .evaluate(c.path(), MAPPER.readValue(c.input(), Object.class));
+            assertResult(c, actual);
+        } finally {
+            FileSystemUtils.deleteRecursively(dir);
+        }
+    }
+
+    @Test
+    public void testWith_Unsupported() {
+        List<JsonNode> modules = List.of(module("conf",
+                rule("admin", null, call("equal", ref("input.user"), str("alice"))),
+                rule("allow", null, with(term(var("admin")), ref("input"), object(str("user"), str("alice"))))));
+
+        assertThrows(UnsupportedRegoException.class, () -> RegoCompiler.compile(modules, snapshot()));
+    }
+
+    @Test
+    public void testEvery_Unsupported() {
+        List<JsonNode> modules = List.of(module("conf",
+                rule("allow", null, every("r", ref("input.roles"), call("startswith", var("r"), str("a"))))));
+
+        assertThrows(UnsupportedRegoException.class, () -> RegoCompiler.compile(modules, snapshot()));
+    }
+
+    @Test
+    public void testConflictingValues_Unsupported() throws Exception {
+        CompiledBundle bundle = RegoCompiler.compile(DEFAULTS.asts(), snapshot());
+
+        // OPA fails the query with a conflict error, natively it is left to OPA
+        UnsupportedRegoException e = assertThrows(UnsupportedRegoException.class,
+                () -> bundle.evaluate("conf/level", Map.of("user", "bob", "admin", true)));
+        assertTrue(e.getMessage().contains("level"), e.getMessage());
+    }
+
+    private static void assertResult(Case c, Object actual) throws IOException {
+        if (c.expected() == null) {
+            assertEquals(Values.UNDEFINED, actual, c.name());
+            return;
+        }
+        Object expected = MAPPER.readValue(c.expected(), Object.class);
+        Object json = Values.toJson(actual);
+        assertTrue(Values.equal(expected, json), c.name() + ": expected " + expected + " but was " + json);
+    }
+
+    private static DataSnapshot snapshot() throws IOException {
+        return new DataSnapshot(MAPPER.readValue(DATA, Map.class));
+    }
+
+    private static boolean opaAvailable(OpaCliRunner runner) {
+        try {
+            return runner.run(Path.of(System.getProperty("java.io.tmpdir")), List.of("version")).isSuccess();
+        } catch (IOException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Rego modules and the ASTs {@code opa parse} prints for them.
+     */
+    record Program(List<String> sources, List<JsonNode> asts) {
+    }
+
+    /**
+     * @param expected OPA's result as JSON, null if undefined
+     */
+    record Case(String name, Program program, String input, String path, String expected) {
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package org.openpickles.policy.engine.service.rego;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ValuesTest {
+
+    @Test
+    public void testEqual_NumbersByValue() {
+        assertTrue(Values.equal(1, 1L));
+        assertTrue(Values.equal(1L, 1.0));
+        assertTrue(Values.equal(List.of(1, Map.of("a", 2.0)), List.of(1L, Map.of("a", 2L))));
+        assertFalse(Values.equal(1, 1.5));
+        assertFalse(Values.equal(null, Values.UNDEFINED));
+        assertTrue(Values.contains(Set.of(Values.key(2L)), 2.0));
+    }
+
+    @Test
+    public void testCompare_OrdersTypesLikeOpa() {
+        List<Object> values = new ArrayList<>(List.of(Set.of(), Map.of(), List.of(), "a", 1, true));
+        values.add(null);
+        values.sort(Values::compare);
+
+        assertEquals(Arrays.asList(null, true, 1, "a", List.of(), Map.of(), Set.of()), values);
+        assertTrue(Values.compare(1, 1.5) < 0);
+        assertTrue(Values.compare(List.of(1, 2), List.of(1, 2, 0)) < 0);
+        assertEquals(0, Values.compare(2L, 2.0));
+    }
+
+    @Test
+    public void testKey_NormalizesNumbers() {
+        assertEquals(2L, Values.key(2.0));
+        assertEquals(2L, Values.key(2));
+        assertEquals(new BigDecimal("2.5"), Values.key(2.50));
+        assertEquals(List.of(1L, Map.of("a", 2L)), Values.key(List.of(1.0, Map.of("a", 2))));
+    }
+
+    @Test
+    public void testGet_UndefinedForMissingOrMistypedKeys() {
+        assertEquals("x", Values.get(Map.of("a", "x"), "a"));
+        assertEquals(Values.UNDEFINED, Values.get(Map.of("a", "x"), "b"));
+        assertEquals(Values.UNDEFINED, Values.get(Map.of("1", "x"), 1L));
+        assertEquals("b", Values.get(List.of("a", "b"), 1.0));
+        assertEquals(Values.UNDEFINED, Values.get(List.of("a", "b"), 1.5));
+        assertEquals(Values.UNDEFINED, Values.get(List.of("a", "b"), 2));
+        assertTrue(Values.equal(3L, Values.get(Set.of(3L), 3.0)));
+        assertEquals(Values.UNDEFINED, Values.get("scalar", "a"));
+    }
+
+    @Test
+    public void testToJson_SortsSets() {
+        Set<Object> set = new LinkedHashSet<>(List.of("b", "a", 2L, 1L));
+
+        assertEquals(List.of(1L, 2L, "a", "b"), Values.toJson(set));
+        assertEquals(Map.of("s", List.of("a", "b")), Values.toJson(Map.of("s", new LinkedHashSet<>(List.of("b", "a")))));
+        assertTrue(Values.isTruthy(0));
+        assertFalse(Values.isTruthy(false));
+        assertFalse(Values.isTruthy(Values.UNDEFINED));
+    }
+}
@@ -1,6 +1,6 @@
-import React, { useState } from 'react';
+import React, { useState, useEffect } from 'react';
 import Editor from '@monaco-editor/react';
-import { Play } from 'lucide-react';
+import { Play, Gauge } from 'lucide-react';
 import { evaluationService } from '../services/api';
 
 const TestPanel = ({ policyContent, policyId }) => {
@@ -9,6 +9,48 @@ const TestPanel = ({ policyContent, policyId }) => {
     const [result, setResult] = useState(null);
     const [loading, setLoading] = useState(false);
     const [error, setError] = useState(null);
+    const [benchmarks, setBenchmarks] = useState([]);
+    const [benchmarking, setBenchmarking] = useState(false);
+
+    useEffect(() => {
+        if (!policyId) {
+            setBenchmarks([]);
+            return;
+        }
+        evaluationService.getBenchHistory(policyId)
+            .then((response) => setBenchmarks(response.data))
+            .catch(() => setBenchmarks([]));
+    }, [policyId]);
+
+    const parseEditors = () => {
+        try {
+            return { input: JSON.parse(inputJson), data: JSON.parse(dataJson) };
+        } catch (e) {
+            throw new Error("Invalid JSON: " + e.message);
+        }
+    };
+
+    const handleBenchmark = async () => {
+        setBenchmarking(true);
+        setError(null);
+        try {
+            const { input, data } = parseEditors();
+            const response = await evaluationService.bench({ policyContent, policyId, input, data });
+            setBenchmarks((previous) => [response.data, ...previous]);
+        } catch (err) {
+            console.error(err);
+            setError(err.response?.data?.message || err.message || "Benchmark Failed");
+        } finally {
+            setBenchmarking(false);
+        }
+    };
+
+    const formatNs = (ns) => {
+        if (ns == null) return '-';
+        if (ns >= 1e6) return (ns / 1e6).toFixed(2) + ' ms';
+        if (ns >= 1e3) return (ns / 1e3).toFixed(1) + ' µs';
+        return Math.round(ns) + ' ns';
+    };
 
     const handleRunTest = async () => {
         setLoading(true);
@@ -49,14 +91,25 @@ const TestPanel = ({ policyContent, policyId }) => {
         <div className="flex flex-col h-full bg-slate-50 w-full animate-in slide-in-from-right duration-200">
             <div className="p-3 border-b border-slate-200 bg-white flex justify-between items-center">
                 <h3 className="font-bold text-slate-700">Test Policy</h3>
-                <button
-                    onClick={handleRunTest}
-                    disabled={loading}
-                    className="btn-primary flex items-center gap-2 py-1 px-3 text-xs"
-                >
-                    <Play size={14} />
-                    {loading ? 'Running...' : 'Run Test'}
-                </button>
+                <div className="flex items-center gap-2">
+                    <button
+                        onClick={handleBenchmark}
+                        disabled={benchmarking}
+                        className="btn-secondary flex items-center gap-2 py-1 px-3 text-xs"
+                        title="Benchmark with opa bench"
+                    >
+                        <Gauge size={14} />
+                        {benchmarking ? 'Measuring...' : 'Benchmark'}
+                    </button>
+                    <button
+                        onClick={handleRunTest}
+                        disabled={loading}
+                        className="btn-primary flex items-center gap-2 py-1 px-3 text-xs"
+                    >
+                        <Play size={14} />
+                        {loading ? 'Running...' : 'Run Test'}
+                    </button>
+                </div>
             </div>
 
             <div className="flex-1 overflow-y-auto p-4 space-y-4">
@@ -106,6 +159,35 @@ const TestPanel = ({ policyContent, policyId }) => {
                         {error ? error : result ? JSON.stringify(result, null, 2) : <span className="text-slate-400 italic">Run test to see results...</span>}
                     </div>
                 </div>
+
+                {/* Benchmarks, newest first */}
+                {benchmarks.length > 0 && (
+                    <div>
+                        <label className="block text-xs font-medium text-slate-500 mb-1">Benchmarks</label>
+                        <table className="w-full text-xs bg-white border border-slate-200 rounded-md">
+                            <thead className="text-slate-500">
+                                <tr>
+                                    <th className="text-left p-2">Version</th>
+                                    <th className="text-right p-2">ns/op</th>
+                                    <th className="text-right p-2">allocs/op</th>
+                                    <th className="text-right p-2">p50</th>
+                                    <th className="text-right p-2">p99</th>
+                                </tr>
+                            </thead>
+                            <tbody className="font-mono text-slate-700">
+                                {benchmarks.map((b, i) => (
+                                    <tr key={b.id || `draft-${i}`} className="border-t border-slate-100">
+                                        <td className="p-2">{b.policyVersion || '-'}{b.draft ? ' (draft)' : ''}</td>
+                                        <td className="text-right p-2">{formatNs(b.nsPerOp)}</td>
+                                        <td className="text-right p-2">{b.allocsPerOp ?? '-'}</td>
+                                        <td className="text-right p-2">{formatNs(b.p50Ns)}</td>
+                                        <td className="text-right p-2">{formatNs(b.p99Ns)}</td>
+                                    </tr>
+                                ))}
+                            </tbody>
+                        </table>
+                    </div>
+                )}
             </div>
         </div>
     );
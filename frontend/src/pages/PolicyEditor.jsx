@@ -198,7 +198,22 @@ const PolicyEditor = () => {
         }
 
         try {
-            await evaluationService.validate(formData.content);
+            const response = await evaluationService.validate(formData.content);
+            // Performance lint findings are shown as warnings, they don't fail validation
+            const warnings = response.data?.warnings || [];
+            if (warnings.length > 0 && monaco && editorRef.current) {
+                const model = editorRef.current.getModel();
+                if (model) {
+                    monaco.editor.setModelMarkers(model, 'rego', warnings.map(w => ({
+                        startLineNumber: w.row || 1,
+                        startColumn: w.col || 1,
+                        endLineNumber: w.row || 1,
+                        endColumn: 1000,
+                        message: w.message,
+                        severity: monaco.MarkerSeverity.Warning
+                    })));
+                }
+            }
             setValidationStatus('valid');
             setTimeout(() => setValidationStatus(null), 3000);
             return true;
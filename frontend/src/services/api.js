@@ -23,6 +23,8 @@ export const policyService = {
 export const evaluationService = {
     validate: (content) => api.post('/evaluation/validate', { content }),
     test: (testRequest) => api.post('/evaluation/test', testRequest),
+    bench: (benchRequest) => api.post('/evaluation/bench', benchRequest),
+    getBenchHistory: (policyId) => api.get('/evaluation/bench', { params: { policyId } }),
 };
 
 export const entitlementService = {
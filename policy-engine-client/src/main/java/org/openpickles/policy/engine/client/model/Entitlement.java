@@ -0,0 +1,99 @@
+package org.openpickles.policy.engine.client.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * An entitlement as served by the control plane, in either encoding: plain
+ * JSON lists every resource id in {@code resourceIds}; bundles and the compact
+ * media type ({@value #COMPACT_MEDIA_TYPE}) move large numeric id sets into
+ * {@code resourceIdRanges}. Use {@link #covers} rather than reading
+ * {@code resourceIds} directly to handle both.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class Entitlement {
+    public static final String COMPACT_MEDIA_TYPE = "application/vnd.openpickles.entitlement-compact+json";
+
+    private Long id;
+    private String resourceType;
+    private Set<String> resourceIds = new HashSet<>();
+    private ResourceIdRanges resourceIdRanges;
+    private Set<String> actions = new HashSet<>();
+    private String subjectType;
+    private String subjectId;
+    private String effect;
+
+    public Entitlement() {
+    }
+
+    public boolean covers(String resourceId) {
+        return (resourceIds != null && resourceIds.contains(resourceId))
+                || (resourceIdRanges != null && resourceIdRanges.contains(resourceId));
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public String getResourceType() {
+        return resourceType;
+    }
+
+    public void setResourceType(String resourceType) {
+        this.resourceType = resourceType;
+    }
+
+    public Set<String> getResourceIds() {
+        return resourceIds;
+    }
+
+    public void setResourceIds(Set<String> resourceIds) {
+        this.resourceIds = resourceIds;
+    }
+
+    public ResourceIdRanges getResourceIdRanges() {
+        return resourceIdRanges;
+    }
+
+    public void setResourceIdRanges(ResourceIdRanges resourceIdRanges) {
+        this.resourceIdRanges = resourceIdRanges;
+    }
+
+    public Set<String> getActions() {
+        return actions;
+    }
+
+    public void setActions(Set<String> actions) {
+        this.actions = actions;
+    }
+
+    public String getSubjectType() {
+        return subjectType;
+    }
+
+    public void setSubjectType(String subjectType) {
+        this.subjectType = subjectType;
+    }
+
+    public String getSubjectId() {
+        return subjectId;
+    }
+
+    public void setSubjectId(String subjectId) {
+        this.subjectId = subjectId;
+    }
+
+    public String getEffect() {
+        return effect;
+    }
+
+    public void setEffect(String effect) {
+        this.effect = effect;
+    }
+}
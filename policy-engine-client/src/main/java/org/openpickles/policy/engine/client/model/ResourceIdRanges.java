@@ -0,0 +1,94 @@
+package org.openpickles.policy.engine.client.model;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.LongConsumer;
+
+/**
+ * Decoder for the compact resource id encoding of the control plane: sorted,
+ * disjoint, inclusive {@code [start, end]} ranges of numeric resource ids, as
+ * found in {@code resourceIdRanges} of bundle entitlements and of responses
+ * in the compact entitlement media type.
+ */
+public final class ResourceIdRanges {
+    private final long[] starts;
+    private final long[] ends;
+
+    private ResourceIdRanges(long[] starts, long[] ends) {
+        this.starts = starts;
+        this.ends = ends;
+    }
+
+    @JsonCreator(mode = JsonCreator.Mode.DELEGATING)
+    public static ResourceIdRanges fromPairs(List<long[]> pairs) {
+        List<long[]> sorted = new ArrayList<>(pairs);
+        sorted.sort((a, b) -> Long.compare(a[0], b[0]));
+        long[] starts = new long[sorted.size()];
+        long[] ends = new long[sorted.size()];
+        int n = 0;
+        for (long[] pair : sorted) {
+            if (pair.length != 2 || pair[0] > pair[1]) {
+                throw new IllegalArgumentException("Invalid resource id range: " + Arrays.toString(pair));
+            }
+            if (n > 0 && pair[0] <= ends[n - 1] + 1) {
+                ends[n - 1] = Math.max(ends[n - 1], pair[1]);
+            } else {
+                starts[n] = pair[0];
+                ends[n] = pair[1];
+                n++;
+            }
+        }
+        return new ResourceIdRanges(Arrays.copyOf(starts, n), Arrays.copyOf(ends, n));
+    }
+
+    @JsonValue
+    public List<long[]> toPairs() {
+        List<long[]> pairs = new ArrayList<>(starts.length);
+        for (int i = 0; i < starts.length; i++) {
+            pairs.add(new long[] { starts[i], ends[i] });
+        }
+        return pairs;
+    }
+
+    /**
+     * Whether the resource id is a canonical decimal number (no sign, no
+     * leading zeros) within one of the ranges.
+     */
+    public boolean contains(String resourceId) {
+        int length = resourceId.length();
+        if (starts.length == 0 || length == 0 || length > 18 || (length > 1 && resourceId.charAt(0) == '0')) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (resourceId.charAt(i) < '0' || resourceId.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return contains(Long.parseLong(resourceId));
+    }
+
+    public boolean contains(long id) {
+        int i = Arrays.binarySearch(starts, id);
+        if (i >= 0) {
+            return true;
+        }
+        int before = -i - 2;
+        return before >= 0 && id <= ends[before];
+    }
+
+    public void forEachId(LongConsumer action) {
+        for (int i = 0; i < starts.length; i++) {
+            for (long id = starts[i]; id <= ends[i]; id++) {
+                action.accept(id);
+            }
+        }
+    }
+
+    public int rangeCount() {
+        return starts.length;
+    }
+}